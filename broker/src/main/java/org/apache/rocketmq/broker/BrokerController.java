@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
@@ -130,6 +131,7 @@ public class BrokerController {
     private ExecutorService clientManageExecutor;
     private ExecutorService consumerManageExecutor;
     private boolean updateMasterHAServerAddrPeriodically = false;
+    private int registeredBrokerPermission = -1;
     private BrokerStats brokerStats;
     private InetSocketAddress storeHost;
     private BrokerFastFailure brokerFastFailure;
@@ -204,6 +206,7 @@ public class BrokerController {
                     new DefaultMessageStore(this.messageStoreConfig, this.brokerStatsManager, this.messageArrivingListener,
                         this.brokerConfig);
                 this.brokerStats = new BrokerStats((DefaultMessageStore) this.messageStore);
+                ((DefaultMessageStore) this.messageStore).setConsumerOffsetProvider(this.consumerOffsetManager);
                 //load plugin
                 MessageStorePluginContext context = new MessageStorePluginContext(messageStoreConfig, brokerStatsManager, messageArrivingListener, brokerConfig);
                 this.messageStore = MessageStoreFactory.build(context, this.messageStore);
@@ -279,6 +282,20 @@ public class BrokerController {
                 }
             }, 1000 * 10, this.brokerConfig.getFlushConsumerOffsetInterval(), TimeUnit.MILLISECONDS);
 
+            if (this.brokerConfig.isConfigLogEnable()) {
+                this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            BrokerController.this.topicConfigManager.flush();
+                            BrokerController.this.subscriptionGroupManager.flush();
+                        } catch (Throwable e) {
+                            log.error("schedule flush config log error.", e);
+                        }
+                    }
+                }, 1000, this.brokerConfig.getFlushConfigLogInterval(), TimeUnit.MILLISECONDS);
+            }
+
             this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
                 @Override
                 public void run() {
@@ -603,7 +620,9 @@ public class BrokerController {
             this.brokerOuterAPI.shutdown();
         }
 
-        this.consumerOffsetManager.persist();
+        this.consumerOffsetManager.shutdown();
+        this.topicConfigManager.shutdown();
+        this.subscriptionGroupManager.shutdown();
 
         if (this.filterServerManager != null) {
             this.filterServerManager.shutdown();
@@ -683,6 +702,17 @@ public class BrokerController {
     }
 
     public synchronized void registerBrokerAll(final boolean checkOrderConfig, boolean oneway) {
+        // All topics are sent again once the permission they are registered with changes. The changed topics are
+        // taken before the wrapper is built, so a topic created meanwhile is in the wrapper and not taken as deleted
+        Set<String> changedTopics = null;
+        if (this.brokerConfig.isDeltaRegisterEnable()) {
+            changedTopics = this.getTopicConfigManager().takeChangedKeys();
+            if (this.registeredBrokerPermission != this.brokerConfig.getBrokerPermission()) {
+                this.registeredBrokerPermission = this.brokerConfig.getBrokerPermission();
+                changedTopics = null;
+            }
+        }
+
         TopicConfigSerializeWrapper topicConfigWrapper = this.getTopicConfigManager().buildTopicConfigSerializeWrapper();
 
         if (!PermName.isWriteable(this.getBrokerConfig().getBrokerPermission())
@@ -704,9 +734,11 @@ public class BrokerController {
             this.brokerConfig.getBrokerId(),
             this.getHAServerAddr(),
             topicConfigWrapper,
+            changedTopics,
             this.filterServerManager.buildNewFilterServerList(),
             oneway,
-            this.brokerConfig.getRegisterBrokerTimeoutMills());
+            this.brokerConfig.getRegisterBrokerTimeoutMills(),
+            this.brokerConfig.isCompressedRegister());
 
         if (registerBrokerResult != null) {
             if (this.updateMasterHAServerAddrPeriodically && registerBrokerResult.getHaServerAddr() != null) {
@@ -39,6 +39,14 @@ public class BrokerPathConfigHelper {
         return rootDir + File.separator + "config" + File.separator + "consumerOffset.json";
     }
 
+    public static String getConsumerOffsetSlotPath(final String rootDir) {
+        return rootDir + File.separator + "config" + File.separator + "consumerOffset.slot";
+    }
+
+    public static String getConsumerOffsetDictPath(final String rootDir) {
+        return rootDir + File.separator + "config" + File.separator + "consumerOffset.dict";
+    }
+
     public static String getSubscriptionGroupPath(final String rootDir) {
         return rootDir + File.separator + "config" + File.separator + "subscriptionGroup.json";
     }
@@ -17,26 +17,67 @@
 package org.apache.rocketmq.broker.longpolling;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Pull requests suspended on a queue, kept in a lock-free stack.
+ */
 public class ManyPullRequest {
-    private final ArrayList<PullRequest> pullRequestList = new ArrayList<>();
+    private final String topic;
+    private final int queueId;
+    private final AtomicReference<Node> head = new AtomicReference<Node>();
+
+    public ManyPullRequest(final String topic, final int queueId) {
+        this.topic = topic;
+        this.queueId = queueId;
+    }
 
-    public synchronized void addPullRequest(final PullRequest pullRequest) {
-        this.pullRequestList.add(pullRequest);
+    public void addPullRequest(final PullRequest pullRequest) {
+        Node node = new Node(pullRequest);
+        do {
+            node.next = this.head.get();
+        } while (!this.head.compareAndSet(node.next, node));
     }
 
-    public synchronized void addPullRequest(final List<PullRequest> many) {
-        this.pullRequestList.addAll(many);
+    public void addPullRequest(final List<PullRequest> many) {
+        for (PullRequest pullRequest : many) {
+            this.addPullRequest(pullRequest);
+        }
     }
 
-    public synchronized List<PullRequest> cloneListAndClear() {
-        if (!this.pullRequestList.isEmpty()) {
-            List<PullRequest> result = (ArrayList<PullRequest>) this.pullRequestList.clone();
-            this.pullRequestList.clear();
-            return result;
+    /**
+     * @return the requests in the order they were added, null if there is none
+     */
+    public List<PullRequest> cloneListAndClear() {
+        Node node = this.head.getAndSet(null);
+        if (null == node) {
+            return null;
         }
 
-        return null;
+        List<PullRequest> result = new ArrayList<PullRequest>();
+        for (; node != null; node = node.next) {
+            result.add(node.pullRequest);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public int getQueueId() {
+        return queueId;
+    }
+
+    private static class Node {
+        private final PullRequest pullRequest;
+        private Node next;
+
+        Node(final PullRequest pullRequest) {
+            this.pullRequest = pullRequest;
+        }
     }
 }
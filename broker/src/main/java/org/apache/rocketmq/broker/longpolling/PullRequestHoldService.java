@@ -16,51 +16,143 @@
  */
 package org.apache.rocketmq.broker.longpolling;
 
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.rocketmq.broker.BrokerController;
 import org.apache.rocketmq.common.ServiceThread;
 import org.apache.rocketmq.common.SystemClock;
+import org.apache.rocketmq.common.ThreadFactoryImpl;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.store.ConsumeQueueExt;
+import org.apache.rocketmq.store.config.BrokerRole;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Holds suspended pull requests until messages arrive on their queue or they time out.
+ * <p>
+ * Requests are indexed by (topic id, queue id) and woken up directly by message arrivals, timeouts are scheduled on a
+ * hashed wheel timer. Only a slave, which is not told about arrivals, checks all held queues periodically.
+ * </p>
+ * Requests are added to a queue without locking, but taken out and put back under the lock of its
+ * {@link ManyPullRequest}, so that an arrival never misses the requests another one is checking.
+ */
 public class PullRequestHoldService extends ServiceThread {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.BROKER_LOGGER_NAME);
-    private static final String TOPIC_QUEUEID_SEPARATOR = "@";
     private final BrokerController brokerController;
     private final SystemClock systemClock = new SystemClock();
-    private ConcurrentMap<String/* topic@queueId */, ManyPullRequest> pullRequestTable =
-        new ConcurrentHashMap<String, ManyPullRequest>(1024);
+    private final ConcurrentMap<String/* topic */, Integer> topicIdTable = new ConcurrentHashMap<String, Integer>(1024);
+    private final AtomicInteger topicIdGenerator = new AtomicInteger(0);
+    private final ConcurrentMap<Long/* topicId << 32 | queueId */, ManyPullRequest> pullRequestTable =
+        new ConcurrentHashMap<Long, ManyPullRequest>(1024);
+    private final HashedWheelTimer timeoutTimer =
+        new HashedWheelTimer(new ThreadFactoryImpl("PullRequestTimeoutThread_"), 10, TimeUnit.MILLISECONDS, 512);
 
     public PullRequestHoldService(final BrokerController brokerController) {
         this.brokerController = brokerController;
     }
 
     public void suspendPullRequest(final String topic, final int queueId, final PullRequest pullRequest) {
-        String key = this.buildKey(topic, queueId);
+        final ManyPullRequest mpr = this.findOrCreateManyPullRequest(topic, queueId);
+        mpr.addPullRequest(pullRequest);
+        pullRequest.setTimeout(this.timeoutTimer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) {
+                PullRequestHoldService.this.onTimeout(mpr, pullRequest);
+            }
+        }, pullRequest.getTimeoutMillis(), TimeUnit.MILLISECONDS));
+
+        // Messages arrived since the pull found none, only this request may have missed them
+        final long offset = this.brokerController.getMessageStore().getMaxOffsetInQueue(topic, queueId);
+        if (offset > pullRequest.getPullFromThisOffset()) {
+            this.wakeup(pullRequest);
+            this.removeCompleted(mpr);
+        }
+    }
+
+    private long buildKey(final int topicId, final int queueId) {
+        return ((long) topicId << 32) | (queueId & 0xFFFFFFFFL);
+    }
+
+    private ManyPullRequest findManyPullRequest(final String topic, final int queueId) {
+        Integer topicId = this.topicIdTable.get(topic);
+        if (null == topicId) {
+            return null;
+        }
+        return this.pullRequestTable.get(this.buildKey(topicId, queueId));
+    }
+
+    private ManyPullRequest findOrCreateManyPullRequest(final String topic, final int queueId) {
+        Integer topicId = this.topicIdTable.get(topic);
+        if (null == topicId) {
+            topicId = this.topicIdGenerator.getAndIncrement();
+            Integer prev = this.topicIdTable.putIfAbsent(topic, topicId);
+            if (prev != null) {
+                topicId = prev;
+            }
+        }
+
+        long key = this.buildKey(topicId, queueId);
         ManyPullRequest mpr = this.pullRequestTable.get(key);
         if (null == mpr) {
-            mpr = new ManyPullRequest();
+            mpr = new ManyPullRequest(topic, queueId);
             ManyPullRequest prev = this.pullRequestTable.putIfAbsent(key, mpr);
             if (prev != null) {
                 mpr = prev;
             }
         }
+        return mpr;
+    }
 
-        mpr.addPullRequest(pullRequest);
+    private void onTimeout(final ManyPullRequest mpr, final PullRequest pullRequest) {
+        if (pullRequest.isCompleted()) {
+            return;
+        }
+        this.wakeup(pullRequest);
+        // Queues no message arrives on would pile up timed out requests otherwise
+        this.removeCompleted(mpr);
+    }
+
+    private void removeCompleted(final ManyPullRequest mpr) {
+        synchronized (mpr) {
+            List<PullRequest> requestList = mpr.cloneListAndClear();
+            if (null == requestList) {
+                return;
+            }
+
+            List<PullRequest> replayList = new ArrayList<PullRequest>(requestList.size());
+            for (PullRequest request : requestList) {
+                if (!request.isCompleted()) {
+                    replayList.add(request);
+                }
+            }
+            mpr.addPullRequest(replayList);
+        }
     }
 
-    private String buildKey(final String topic, final int queueId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(topic);
-        sb.append(TOPIC_QUEUEID_SEPARATOR);
-        sb.append(queueId);
-        return sb.toString();
+    private void wakeup(final PullRequest request) {
+        if (!request.complete()) {
+            return;
+        }
+        Timeout timeout = request.getTimeout();
+        if (timeout != null) {
+            timeout.cancel();
+        }
+
+        try {
+            this.brokerController.getPullMessageProcessor().executeRequestWhenWakeup(request.getClientChannel(),
+                request.getRequestCommand());
+        } catch (Throwable e) {
+            log.error("execute request when wakeup failed.", e);
+        }
     }
 
     @Override
@@ -68,10 +160,9 @@ public class PullRequestHoldService extends ServiceThread {
         log.info("{} service started", this.getServiceName());
         while (!this.isStopped()) {
             try {
-                if (this.brokerController.getBrokerConfig().isLongPollingEnable()) {
-                    this.waitForRunning(5 * 1000);
-                } else {
-                    this.waitForRunning(this.brokerController.getBrokerConfig().getShortPollingTimeMills());
+                this.waitForRunning(5 * 1000);
+                if (BrokerRole.SLAVE != this.brokerController.getMessageStoreConfig().getBrokerRole()) {
+                    continue;
                 }
 
                 long beginLockTimestamp = this.systemClock.now();
@@ -88,23 +179,24 @@ public class PullRequestHoldService extends ServiceThread {
         log.info("{} service end", this.getServiceName());
     }
 
+    @Override
+    public void shutdown(final boolean interrupt) {
+        super.shutdown(interrupt);
+        this.timeoutTimer.stop();
+    }
+
     @Override
     public String getServiceName() {
         return PullRequestHoldService.class.getSimpleName();
     }
 
     private void checkHoldRequest() {
-        for (String key : this.pullRequestTable.keySet()) {
-            String[] kArray = key.split(TOPIC_QUEUEID_SEPARATOR);
-            if (2 == kArray.length) {
-                String topic = kArray[0];
-                int queueId = Integer.parseInt(kArray[1]);
-                final long offset = this.brokerController.getMessageStore().getMaxOffsetInQueue(topic, queueId);
-                try {
-                    this.notifyMessageArriving(topic, queueId, offset);
-                } catch (Throwable e) {
-                    log.error("check hold request failed. topic={}, queueId={}", topic, queueId, e);
-                }
+        for (ManyPullRequest mpr : this.pullRequestTable.values()) {
+            final long offset = this.brokerController.getMessageStore().getMaxOffsetInQueue(mpr.getTopic(), mpr.getQueueId());
+            try {
+                this.notifyMessageArriving(mpr.getTopic(), mpr.getQueueId(), offset);
+            } catch (Throwable e) {
+                log.error("check hold request failed. topic={}, queueId={}", mpr.getTopic(), mpr.getQueueId(), e);
             }
         }
     }
@@ -114,56 +206,54 @@ public class PullRequestHoldService extends ServiceThread {
     }
 
     public void notifyMessageArriving(final String topic, final int queueId, final long maxOffset, final Long tagsCode,
-        long msgStoreTime, byte[] filterBitMap, Map<String, String> properties) {
-        String key = this.buildKey(topic, queueId);
-        ManyPullRequest mpr = this.pullRequestTable.get(key);
-        if (mpr != null) {
+        final long msgStoreTime, final byte[] filterBitMap, final Map<String, String> properties) {
+        ManyPullRequest mpr = this.findManyPullRequest(topic, queueId);
+        if (null == mpr) {
+            return;
+        }
+
+        List<PullRequest> wakeupList = new ArrayList<PullRequest>();
+        synchronized (mpr) {
             List<PullRequest> requestList = mpr.cloneListAndClear();
-            if (requestList != null) {
-                List<PullRequest> replayList = new ArrayList<PullRequest>();
+            if (null == requestList) {
+                return;
+            }
 
-                for (PullRequest request : requestList) {
-                    long newestOffset = maxOffset;
-                    if (newestOffset <= request.getPullFromThisOffset()) {
-                        newestOffset = this.brokerController.getMessageStore().getMaxOffsetInQueue(topic, queueId);
-                    }
+            List<PullRequest> replayList = new ArrayList<PullRequest>();
+            for (PullRequest request : requestList) {
+                if (request.isCompleted()) {
+                    continue;
+                }
 
-                    if (newestOffset > request.getPullFromThisOffset()) {
-                        boolean match = request.getMessageFilter().isMatchedByConsumeQueue(tagsCode,
-                            new ConsumeQueueExt.CqExtUnit(tagsCode, msgStoreTime, filterBitMap));
-                        // match by bit map, need eval again when properties is not null.
-                        if (match && properties != null) {
-                            match = request.getMessageFilter().isMatchedByCommitLog(null, properties);
-                        }
-
-                        if (match) {
-                            try {
-                                this.brokerController.getPullMessageProcessor().executeRequestWhenWakeup(request.getClientChannel(),
-                                    request.getRequestCommand());
-                            } catch (Throwable e) {
-                                log.error("execute request when wakeup failed.", e);
-                            }
-                            continue;
-                        }
+                long newestOffset = maxOffset;
+                if (newestOffset <= request.getPullFromThisOffset()) {
+                    newestOffset = this.brokerController.getMessageStore().getMaxOffsetInQueue(topic, queueId);
+                }
+
+                if (newestOffset > request.getPullFromThisOffset()) {
+                    boolean match = request.getMessageFilter().isMatchedByConsumeQueue(tagsCode,
+                        new ConsumeQueueExt.CqExtUnit(tagsCode, msgStoreTime, filterBitMap));
+                    // match by bit map, need eval again when properties is not null.
+                    if (match && properties != null) {
+                        match = request.getMessageFilter().isMatchedByCommitLog(null, properties);
                     }
 
-                    if (System.currentTimeMillis() >= (request.getSuspendTimestamp() + request.getTimeoutMillis())) {
-                        try {
-                            this.brokerController.getPullMessageProcessor().executeRequestWhenWakeup(request.getClientChannel(),
-                                request.getRequestCommand());
-                        } catch (Throwable e) {
-                            log.error("execute request when wakeup failed.", e);
-                        }
+                    if (match) {
+                        wakeupList.add(request);
                         continue;
                     }
-
-                    replayList.add(request);
                 }
 
-                if (!replayList.isEmpty()) {
-                    mpr.addPullRequest(replayList);
-                }
+                replayList.add(request);
+            }
+
+            if (!replayList.isEmpty()) {
+                mpr.addPullRequest(replayList);
             }
         }
+
+        for (PullRequest request : wakeupList) {
+            this.wakeup(request);
+        }
     }
 }
@@ -0,0 +1,424 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.broker.offset;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Consumer offsets in a memory mapped file of fixed size slots, one per topic@group and queue.
+ * <p>
+ * Committing an offset is a long write into its slot. Which topic@group and queue a slot belongs to is appended to a
+ * dictionary file when the slot is taken, topic@group keys are written to it once and referred to by id. Persisting
+ * forces only the regions of the slot file written since the last time. The dictionary is compacted on load once it is
+ * mostly made of freed slots.
+ * </p>
+ * <p>
+ * A store is created by importing offsets: the dictionary is written to a temporary file which only replaces the
+ * dictionary once {@link #completeImport()} is called, so an import which has not completed is done again.
+ * </p>
+ */
+public class ConsumerOffsetBinaryStore {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.BROKER_LOGGER_NAME);
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final int SLOT_SIZE = 8;
+    private static final int SLOTS_PER_REGION = 1024 * 1024;
+
+    // type + keyId + key length, followed by the key
+    private static final byte RECORD_KEY = 1;
+    // type + slot + keyId + queueId
+    private static final byte RECORD_SLOT = 2;
+    // type + slot
+    private static final byte RECORD_FREE = 3;
+
+    private final String slotFilePath;
+    private final String dictFilePath;
+    private final String importDictFilePath;
+
+    private final ConcurrentMap<String/* topic@group */, ConcurrentMap<Integer/* queueId */, Integer/* slot */>> slotTable =
+        new ConcurrentHashMap<String, ConcurrentMap<Integer, Integer>>(512);
+    private final Map<String/* topic@group */, Integer> keyIdTable = new HashMap<String, Integer>();
+    private final List<MappedByteBuffer> regions = new CopyOnWriteArrayList<MappedByteBuffer>();
+    private final Set<Integer> dirtyRegions = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final Deque<Integer> freeSlots = new ArrayDeque<Integer>();
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(1 + 4 + 2 + Short.MAX_VALUE);
+    // Slots are taken and freed under the write lock, offsets are written into them under the read lock
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int nextSlot = 0;
+    private int nextKeyId = 0;
+
+    private FileChannel slotChannel;
+    private FileChannel dictChannel;
+
+    public ConsumerOffsetBinaryStore(final String slotFilePath, final String dictFilePath) {
+        this.slotFilePath = slotFilePath;
+        this.dictFilePath = dictFilePath;
+        this.importDictFilePath = dictFilePath + ".import";
+    }
+
+    /**
+     * Load the offsets of the store into the table.
+     *
+     * @return false if there is no store yet, the offsets put are then imported until {@link #completeImport()}
+     */
+    public boolean load(final ConcurrentMap<String, ConcurrentMap<Integer, Long>> offsetTable) throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            return this.load0(offsetTable);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private boolean load0(final ConcurrentMap<String, ConcurrentMap<Integer, Long>> offsetTable) throws IOException {
+        File dictFile = new File(this.dictFilePath);
+        boolean exists = dictFile.exists();
+        if (!exists && dictFile.getParentFile() != null) {
+            dictFile.getParentFile().mkdirs();
+        }
+        this.slotChannel = new RandomAccessFile(this.slotFilePath, "rw").getChannel();
+        if (!exists) {
+            // What an import left behind before it completed
+            this.dictChannel = new RandomAccessFile(this.importDictFilePath, "rw").getChannel();
+            this.dictChannel.truncate(0);
+            return false;
+        }
+        this.dictChannel = new RandomAccessFile(this.dictFilePath, "rw").getChannel();
+
+        Map<Integer, String> keys = new HashMap<Integer, String>();
+        Map<Integer/* slot */, Long/* keyId << 32 | queueId */> owners = new HashMap<Integer, Long>();
+        int records = 0;
+        long validSize = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dictFile)));
+        try {
+            while (true) {
+                byte type = in.readByte();
+                if (RECORD_KEY == type) {
+                    int keyId = in.readInt();
+                    short keyLength = in.readShort();
+                    if (keyLength <= 0) {
+                        log.warn("illegal key length {} in {} at {}", keyLength, this.dictFilePath, validSize);
+                        break;
+                    }
+                    byte[] key = new byte[keyLength];
+                    in.readFully(key);
+                    keys.put(keyId, new String(key, CHARSET));
+                    this.nextKeyId = Math.max(this.nextKeyId, keyId + 1);
+                    validSize += 1 + 4 + 2 + key.length;
+                } else if (RECORD_SLOT == type) {
+                    int slot = in.readInt();
+                    int keyId = in.readInt();
+                    int queueId = in.readInt();
+                    owners.put(slot, ((long) keyId << 32) | (queueId & 0xFFFFFFFFL));
+                    this.nextSlot = Math.max(this.nextSlot, slot + 1);
+                    validSize += 1 + 4 + 4 + 4;
+                } else if (RECORD_FREE == type) {
+                    owners.remove(in.readInt());
+                    validSize += 1 + 4;
+                } else {
+                    log.warn("unknown record type {} in {} at {}", type, this.dictFilePath, validSize);
+                    break;
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            // the last record may be written partly
+        } finally {
+            in.close();
+        }
+
+        if (validSize < this.dictChannel.size()) {
+            log.warn("truncate {} from {} to {}", this.dictFilePath, this.dictChannel.size(), validSize);
+            this.dictChannel.truncate(validSize);
+        }
+        this.dictChannel.position(validSize);
+        this.ensureRegion(this.nextSlot - 1);
+
+        BitSet takenSlots = new BitSet(this.nextSlot);
+        for (Map.Entry<Integer, Long> entry : owners.entrySet()) {
+            int slot = entry.getKey();
+            int keyId = (int) (entry.getValue() >>> 32);
+            int queueId = entry.getValue().intValue();
+            String key = keys.get(keyId);
+            if (null == key) {
+                log.warn("slot {} refers to unknown key {}, free it", slot, keyId);
+                continue;
+            }
+            this.keyIdTable.put(key, keyId);
+            this.slotsOf(key).put(queueId, slot);
+            takenSlots.set(slot);
+
+            ConcurrentMap<Integer, Long> offsets = offsetTable.get(key);
+            if (null == offsets) {
+                offsets = new ConcurrentHashMap<Integer, Long>(32);
+                offsetTable.put(key, offsets);
+            }
+            offsets.put(queueId, this.readSlot(slot));
+        }
+        for (int slot = 0; slot < this.nextSlot; slot++) {
+            if (!takenSlots.get(slot)) {
+                this.freeSlots.add(slot);
+            }
+        }
+
+        log.info("load {} slots of {} keys from {}, {} records", takenSlots.cardinality(), this.slotTable.size(),
+            this.dictFilePath, records);
+        if (records > takenSlots.cardinality() * 2 + 1024) {
+            this.compact();
+        }
+        return true;
+    }
+
+    /**
+     * Make the offsets imported since {@link #load} the store, by forcing them to disk and moving the dictionary into
+     * place.
+     */
+    public void completeImport() throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            this.flush();
+            long size = this.dictChannel.size();
+            this.dictChannel.close();
+            Files.move(new File(this.importDictFilePath).toPath(), new File(this.dictFilePath).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.dictChannel = new RandomAccessFile(this.dictFilePath, "rw").getChannel();
+            this.dictChannel.position(size);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public void put(final String key, final int queueId, final long offset) {
+        // The slot can not be freed and taken by another queue before the offset is written
+        this.lock.readLock().lock();
+        try {
+            ConcurrentMap<Integer, Integer> slots = this.slotTable.get(key);
+            Integer slot = slots != null ? slots.get(queueId) : null;
+            if (slot != null) {
+                this.writeSlot(slot, offset);
+                return;
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        this.allocate(key, queueId, offset);
+    }
+
+    private void allocate(final String key, final int queueId, final long offset) {
+        this.lock.writeLock().lock();
+        try {
+            this.allocate0(key, queueId, offset);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void allocate0(final String key, final int queueId, final long offset) {
+        ConcurrentMap<Integer, Integer> slots = this.slotsOf(key);
+        Integer slot = slots.get(queueId);
+        if (slot != null) {
+            this.writeSlot(slot, offset);
+            return;
+        }
+
+        slot = this.freeSlots.poll();
+        if (null == slot) {
+            slot = this.nextSlot++;
+        }
+        try {
+            this.ensureRegion(slot);
+            // The offset is in place before the slot is taken
+            this.writeSlot(slot, offset);
+
+            Integer keyId = this.keyIdTable.get(key);
+            if (null == keyId) {
+                keyId = this.nextKeyId++;
+                byte[] keyBytes = key.getBytes(CHARSET);
+                this.recordBuffer.clear();
+                this.recordBuffer.put(RECORD_KEY).putInt(keyId).putShort((short) keyBytes.length).put(keyBytes);
+                this.appendRecord();
+                this.keyIdTable.put(key, keyId);
+            }
+
+            this.recordBuffer.clear();
+            this.recordBuffer.put(RECORD_SLOT).putInt(slot).putInt(keyId).putInt(queueId);
+            this.appendRecord();
+            slots.put(queueId, slot);
+        } catch (IOException e) {
+            log.error("take slot {} for {} {} failed", slot, key, queueId, e);
+            this.freeSlots.add(slot);
+        }
+    }
+
+    /**
+     * Free the slots of all queues of the topic@group.
+     */
+    public void remove(final String key) {
+        this.lock.writeLock().lock();
+        try {
+            ConcurrentMap<Integer, Integer> slots = this.slotTable.remove(key);
+            if (null == slots) {
+                return;
+            }
+
+            for (Integer slot : slots.values()) {
+                try {
+                    this.recordBuffer.clear();
+                    this.recordBuffer.put(RECORD_FREE).putInt(slot);
+                    this.appendRecord();
+                    this.freeSlots.add(slot);
+                } catch (IOException e) {
+                    log.error("free slot {} of {} failed", slot, key, e);
+                }
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Force the slots written and the dictionary appended since the last time to disk.
+     */
+    public void flush() {
+        for (Integer region : this.dirtyRegions) {
+            this.dirtyRegions.remove(region);
+            this.regions.get(region).force();
+        }
+
+        try {
+            this.dictChannel.force(false);
+        } catch (IOException e) {
+            log.error("flush {} failed", this.dictFilePath, e);
+        }
+    }
+
+    public void shutdown() {
+        this.lock.writeLock().lock();
+        try {
+            this.flush();
+            this.slotChannel.close();
+            this.dictChannel.close();
+        } catch (IOException e) {
+            log.error("close consumer offset store failed", e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private ConcurrentMap<Integer, Integer> slotsOf(final String key) {
+        ConcurrentMap<Integer, Integer> slots = this.slotTable.get(key);
+        if (null == slots) {
+            slots = new ConcurrentHashMap<Integer, Integer>(32);
+            ConcurrentMap<Integer, Integer> prev = this.slotTable.putIfAbsent(key, slots);
+            if (prev != null) {
+                slots = prev;
+            }
+        }
+        return slots;
+    }
+
+    private void ensureRegion(final int slot) throws IOException {
+        while (this.regions.size() <= slot / SLOTS_PER_REGION) {
+            long position = (long) this.regions.size() * SLOTS_PER_REGION * SLOT_SIZE;
+            this.regions.add(this.slotChannel.map(FileChannel.MapMode.READ_WRITE, position, SLOTS_PER_REGION * SLOT_SIZE));
+        }
+    }
+
+    private long readSlot(final int slot) {
+        return this.regions.get(slot / SLOTS_PER_REGION).getLong(slot % SLOTS_PER_REGION * SLOT_SIZE);
+    }
+
+    private void writeSlot(final int slot, final long offset) {
+        int region = slot / SLOTS_PER_REGION;
+        this.regions.get(region).putLong(slot % SLOTS_PER_REGION * SLOT_SIZE, offset);
+        this.dirtyRegions.add(region);
+    }
+
+    private void appendRecord() throws IOException {
+        this.recordBuffer.flip();
+        while (this.recordBuffer.hasRemaining()) {
+            this.dictChannel.write(this.recordBuffer);
+        }
+    }
+
+    /**
+     * Rewrite the dictionary with the slots taken only.
+     */
+    private void compact() throws IOException {
+        File tmpFile = new File(this.dictFilePath + ".tmp");
+        FileChannel tmpChannel = new RandomAccessFile(tmpFile, "rw").getChannel();
+        FileChannel dict = this.dictChannel;
+        this.dictChannel = tmpChannel;
+        try {
+            tmpChannel.truncate(0);
+            for (Map.Entry<String, ConcurrentMap<Integer, Integer>> entry : this.slotTable.entrySet()) {
+                int keyId = this.keyIdTable.get(entry.getKey());
+                byte[] keyBytes = entry.getKey().getBytes(CHARSET);
+                this.recordBuffer.clear();
+                this.recordBuffer.put(RECORD_KEY).putInt(keyId).putShort((short) keyBytes.length).put(keyBytes);
+                this.appendRecord();
+                for (Map.Entry<Integer, Integer> slot : entry.getValue().entrySet()) {
+                    this.recordBuffer.clear();
+                    this.recordBuffer.put(RECORD_SLOT).putInt(slot.getValue()).putInt(keyId).putInt(slot.getKey());
+                    this.appendRecord();
+                }
+            }
+            tmpChannel.force(false);
+        } catch (IOException e) {
+            this.dictChannel = dict;
+            tmpChannel.close();
+            throw e;
+        }
+
+        long size = tmpChannel.size();
+        tmpChannel.close();
+        dict.close();
+        Files.move(tmpFile.toPath(), new File(this.dictFilePath).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        this.dictChannel = new RandomAccessFile(this.dictFilePath, "rw").getChannel();
+        this.dictChannel.position(size);
+        log.info("compact {} to {} bytes", this.dictFilePath, size);
+    }
+}
@@ -16,6 +16,7 @@
  */
 package org.apache.rocketmq.broker.offset;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -30,10 +31,11 @@ import org.apache.rocketmq.common.ConfigManager;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.remoting.protocol.RemotingSerializable;
+import org.apache.rocketmq.store.ConsumerOffsetProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class ConsumerOffsetManager extends ConfigManager {
+public class ConsumerOffsetManager extends ConfigManager implements ConsumerOffsetProvider {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.BROKER_LOGGER_NAME);
     private static final String TOPIC_GROUP_SEPARATOR = "@";
 
@@ -42,11 +44,75 @@ public class ConsumerOffsetManager extends ConfigManager {
 
     private transient BrokerController brokerController;
 
+    // Offsets are persisted by it instead of the json file, if not null
+    private transient ConsumerOffsetBinaryStore binaryStore;
+
     public ConsumerOffsetManager() {
     }
 
     public ConsumerOffsetManager(BrokerController brokerController) {
         this.brokerController = brokerController;
+        if (brokerController.getBrokerConfig().isConsumerOffsetBinaryEnable()) {
+            String rootDir = brokerController.getMessageStoreConfig().getStorePathRootDir();
+            this.binaryStore = new ConsumerOffsetBinaryStore(BrokerPathConfigHelper.getConsumerOffsetSlotPath(rootDir),
+                BrokerPathConfigHelper.getConsumerOffsetDictPath(rootDir));
+        }
+    }
+
+    @Override
+    public boolean load() {
+        if (null == this.binaryStore) {
+            return super.load();
+        }
+
+        try {
+            if (this.binaryStore.load(this.offsetTable)) {
+                log.info("load consumer offsets from binary store OK, {} topic@group", this.offsetTable.size());
+                return true;
+            }
+        } catch (IOException e) {
+            log.error("load consumer offsets from binary store failed", e);
+            return false;
+        }
+
+        // First start with the binary store, import the json file. Done again on the next start if not completed
+        if (!super.load()) {
+            return false;
+        }
+        for (Entry<String, ConcurrentMap<Integer, Long>> entry : this.offsetTable.entrySet()) {
+            for (Entry<Integer, Long> offset : entry.getValue().entrySet()) {
+                this.binaryStore.put(entry.getKey(), offset.getKey(), offset.getValue());
+            }
+        }
+        try {
+            this.binaryStore.completeImport();
+        } catch (IOException e) {
+            log.error("import consumer offsets into binary store failed", e);
+            return false;
+        }
+        log.info("import consumer offsets of {} topic@group from json file into binary store", this.offsetTable.size());
+        return true;
+    }
+
+    @Override
+    public synchronized void persist() {
+        if (this.binaryStore != null) {
+            this.binaryStore.flush();
+        } else {
+            super.persist();
+        }
+    }
+
+    /**
+     * Persist offsets, and write the json file as well when they are kept in the binary store, for tools and for going
+     * back to the json file.
+     */
+    public void shutdown() {
+        this.persist();
+        if (this.binaryStore != null) {
+            super.persist();
+            this.binaryStore.shutdown();
+        }
     }
 
     public void scanUnsubscribedTopic() {
@@ -62,6 +128,9 @@ public class ConsumerOffsetManager extends ConfigManager {
                 if (null == brokerController.getConsumerManager().findSubscriptionData(group, topic)
                     && this.offsetBehindMuchThanData(topic, next.getValue())) {
                     it.remove();
+                    if (this.binaryStore != null) {
+                        this.binaryStore.remove(topicAtGroup);
+                    }
                     log.warn("remove topic offset, {}", topicAtGroup);
                 }
             }
@@ -126,6 +195,10 @@ public class ConsumerOffsetManager extends ConfigManager {
     }
 
     private void commitOffset(final String clientHost, final String key, final int queueId, final long offset) {
+        if (this.binaryStore != null) {
+            this.binaryStore.put(key, queueId, offset);
+        }
+
         ConcurrentMap<Integer, Long> map = this.offsetTable.get(key);
         if (null == map) {
             map = new ConcurrentHashMap<Integer, Long>(32);
@@ -139,6 +212,7 @@ public class ConsumerOffsetManager extends ConfigManager {
         }
     }
 
+    @Override
     public long queryOffset(final String group, final String topic, final int queueId) {
         // topic@group
         String key = topic + TOPIC_GROUP_SEPARATOR + group;
@@ -219,6 +293,27 @@ public class ConsumerOffsetManager extends ConfigManager {
         return queueMinOffset;
     }
 
+    @Override
+    public Map<String, Map<Integer, Long>> queryMinOffsetInAllGroup() {
+        Map<String, Map<Integer, Long>> minOffsetTable = new HashMap<String, Map<Integer, Long>>();
+        for (Map.Entry<String, ConcurrentMap<Integer, Long>> offSetEntry : this.offsetTable.entrySet()) {
+            String topic = offSetEntry.getKey().split(TOPIC_GROUP_SEPARATOR)[0];
+            Map<Integer, Long> queueMinOffset = minOffsetTable.get(topic);
+            if (null == queueMinOffset) {
+                queueMinOffset = new HashMap<Integer, Long>();
+                minOffsetTable.put(topic, queueMinOffset);
+            }
+
+            for (Entry<Integer, Long> entry : offSetEntry.getValue().entrySet()) {
+                Long offset = queueMinOffset.get(entry.getKey());
+                if (null == offset || entry.getValue() < offset) {
+                    queueMinOffset.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return minOffsetTable;
+    }
+
     public Map<Integer, Long> queryOffset(final String group, final String topic) {
         // topic@group
         String key = topic + TOPIC_GROUP_SEPARATOR + group;
@@ -228,8 +323,28 @@ public class ConsumerOffsetManager extends ConfigManager {
     public void cloneOffset(final String srcGroup, final String destGroup, final String topic) {
         ConcurrentMap<Integer, Long> offsets = this.offsetTable.get(topic + TOPIC_GROUP_SEPARATOR + srcGroup);
         if (offsets != null) {
-            this.offsetTable.put(topic + TOPIC_GROUP_SEPARATOR + destGroup, new ConcurrentHashMap<Integer, Long>(offsets));
+            String key = topic + TOPIC_GROUP_SEPARATOR + destGroup;
+            if (this.binaryStore != null) {
+                for (Entry<Integer, Long> entry : offsets.entrySet()) {
+                    this.binaryStore.put(key, entry.getKey(), entry.getValue());
+                }
+            }
+            this.offsetTable.put(key, new ConcurrentHashMap<Integer, Long>(offsets));
+        }
+    }
+
+    /**
+     * Take over offsets of another table, those of the same topic@group are replaced.
+     */
+    public void putAll(final Map<String, ConcurrentMap<Integer, Long>> offsetTable) {
+        if (this.binaryStore != null) {
+            for (Entry<String, ConcurrentMap<Integer, Long>> entry : offsetTable.entrySet()) {
+                for (Entry<Integer, Long> offset : entry.getValue().entrySet()) {
+                    this.binaryStore.put(entry.getKey(), offset.getKey(), offset.getValue());
+                }
+            }
         }
+        this.offsetTable.putAll(offsetTable);
     }
 
 }
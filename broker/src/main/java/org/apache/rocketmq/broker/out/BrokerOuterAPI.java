@@ -16,11 +16,20 @@
  */
 package org.apache.rocketmq.broker.out;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.apache.rocketmq.client.exception.MQBrokerException;
+import org.apache.rocketmq.common.DataVersion;
 import org.apache.rocketmq.common.MixAll;
+import org.apache.rocketmq.common.TopicConfig;
+import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.common.namesrv.RegisterBrokerResult;
 import org.apache.rocketmq.common.namesrv.TopAddressing;
@@ -49,7 +58,10 @@ import org.slf4j.LoggerFactory;
 
 public class BrokerOuterAPI {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.BROKER_LOGGER_NAME);
+    private static final int REGISTER_BODY_COMPRESS_LEVEL = 5;
     private final RemotingClient remotingClient;
+    private final ConcurrentMap<String/* namesrvAddr */, RegisterState> registerStateTable =
+        new ConcurrentHashMap<String, RegisterState>();
     private final TopAddressing topAddressing = new TopAddressing(MixAll.getWSAddr());
     private String nameSrvAddr = null;
 
@@ -107,16 +119,81 @@ public class BrokerOuterAPI {
         final List<String> filterServerList,
         final boolean oneway,
         final int timeoutMills) {
+        return this.registerBrokerAll(clusterName, brokerAddr, brokerName, brokerId, haServerAddr, topicConfigWrapper,
+            null, filterServerList, oneway, timeoutMills, false);
+    }
+
+    /**
+     * Register to every name server, with only the topics changed since the data version it has acknowledged if
+     * changedTopics is not null. A name server which has not acknowledged any, or has lost it, is sent all topics.
+     *
+     * @param changedTopics topics changed since the last registration, null to send all topics to every name server
+     * @param compressed compress the request body
+     */
+    public synchronized RegisterBrokerResult registerBrokerAll(
+        final String clusterName,
+        final String brokerAddr,
+        final String brokerName,
+        final long brokerId,
+        final String haServerAddr,
+        final TopicConfigSerializeWrapper topicConfigWrapper,
+        final Set<String> changedTopics,
+        final List<String> filterServerList,
+        final boolean oneway,
+        final int timeoutMills,
+        final boolean compressed) {
         RegisterBrokerResult registerBrokerResult = null;
 
+        // Topics changed after it are sent again, whether they are sent this time or not
+        DataVersion dataVersion = new DataVersion();
+        dataVersion.assignNewOne(topicConfigWrapper.getDataVersion());
+        if (null == changedTopics) {
+            this.registerStateTable.clear();
+        } else {
+            for (RegisterState registerState : this.registerStateTable.values()) {
+                registerState.pendingTopics.addAll(changedTopics);
+            }
+        }
+
         List<String> nameServerAddressList = this.remotingClient.getNameServerAddressList();
         if (nameServerAddressList != null) {
             for (String namesrvAddr : nameServerAddressList) {
                 try {
+                    RegisterState registerState = this.registerStateTable.get(namesrvAddr);
+                    if (null == registerState) {
+                        registerState = new RegisterState();
+                        this.registerStateTable.put(namesrvAddr, registerState);
+                    }
+
+                    Set<String> sentTopics = null;
+                    RegisterBrokerBody requestBody;
+                    if (changedTopics != null && registerState.ackedDataVersion != null) {
+                        sentTopics = new HashSet<String>(registerState.pendingTopics);
+                        requestBody = this.buildRegisterBrokerBody(topicConfigWrapper, filterServerList,
+                            registerState.ackedDataVersion, sentTopics);
+                    } else {
+                        requestBody = this.buildRegisterBrokerBody(topicConfigWrapper, filterServerList, null, null);
+                    }
+
                     RegisterBrokerResult result = this.registerBroker(namesrvAddr, clusterName, brokerAddr, brokerName, brokerId,
-                        haServerAddr, topicConfigWrapper, filterServerList, oneway, timeoutMills);
+                        haServerAddr, requestBody, oneway, timeoutMills, compressed);
+                    if (result != null && result.isFullSyncRequired()) {
+                        log.info("name server {} requires all topics of the broker, data version {}", namesrvAddr,
+                            registerState.ackedDataVersion);
+                        sentTopics = null;
+                        requestBody = this.buildRegisterBrokerBody(topicConfigWrapper, filterServerList, null, null);
+                        result = this.registerBroker(namesrvAddr, clusterName, brokerAddr, brokerName, brokerId,
+                            haServerAddr, requestBody, oneway, timeoutMills, compressed);
+                    }
+
                     if (result != null) {
                         registerBrokerResult = result;
+                        registerState.ackedDataVersion = dataVersion;
+                        if (sentTopics != null) {
+                            registerState.pendingTopics.removeAll(sentTopics);
+                        } else {
+                            registerState.pendingTopics.clear();
+                        }
                     }
 
                     log.info("register broker to name server {} OK", namesrvAddr);
@@ -129,6 +206,37 @@ public class BrokerOuterAPI {
         return registerBrokerResult;
     }
 
+    private RegisterBrokerBody buildRegisterBrokerBody(
+        final TopicConfigSerializeWrapper topicConfigWrapper,
+        final List<String> filterServerList,
+        final DataVersion baseDataVersion,
+        final Set<String> topics) {
+        RegisterBrokerBody requestBody = new RegisterBrokerBody();
+        requestBody.setFilterServerList(filterServerList);
+        if (null == baseDataVersion) {
+            requestBody.setTopicConfigSerializeWrapper(topicConfigWrapper);
+            return requestBody;
+        }
+
+        TopicConfigSerializeWrapper deltaWrapper = new TopicConfigSerializeWrapper();
+        ConcurrentMap<String, TopicConfig> topicConfigTable = new ConcurrentHashMap<String, TopicConfig>();
+        List<String> deletedTopicList = new ArrayList<String>();
+        for (String topic : topics) {
+            TopicConfig topicConfig = topicConfigWrapper.getTopicConfigTable().get(topic);
+            if (topicConfig != null) {
+                topicConfigTable.put(topic, topicConfig);
+            } else {
+                deletedTopicList.add(topic);
+            }
+        }
+        deltaWrapper.setTopicConfigTable(topicConfigTable);
+        deltaWrapper.setDataVersion(topicConfigWrapper.getDataVersion());
+        requestBody.setTopicConfigSerializeWrapper(deltaWrapper);
+        requestBody.setBaseDataVersion(baseDataVersion);
+        requestBody.setDeletedTopicList(deletedTopicList);
+        return requestBody;
+    }
+
     private RegisterBrokerResult registerBroker(
         final String namesrvAddr,
         final String clusterName,
@@ -136,24 +244,26 @@ public class BrokerOuterAPI {
         final String brokerName,
         final long brokerId,
         final String haServerAddr,
-        final TopicConfigSerializeWrapper topicConfigWrapper,
-        final List<String> filterServerList,
+        final RegisterBrokerBody requestBody,
         final boolean oneway,
-        final int timeoutMills
+        final int timeoutMills,
+        final boolean compressed
     ) throws RemotingCommandException, MQBrokerException, RemotingConnectException, RemotingSendRequestException, RemotingTimeoutException,
-        InterruptedException {
+        InterruptedException, IOException {
         RegisterBrokerRequestHeader requestHeader = new RegisterBrokerRequestHeader();
         requestHeader.setBrokerAddr(brokerAddr);
         requestHeader.setBrokerId(brokerId);
         requestHeader.setBrokerName(brokerName);
         requestHeader.setClusterName(clusterName);
         requestHeader.setHaServerAddr(haServerAddr);
+        requestHeader.setCompressed(compressed);
         RemotingCommand request = RemotingCommand.createRequestCommand(RequestCode.REGISTER_BROKER, requestHeader);
 
-        RegisterBrokerBody requestBody = new RegisterBrokerBody();
-        requestBody.setTopicConfigSerializeWrapper(topicConfigWrapper);
-        requestBody.setFilterServerList(filterServerList);
-        request.setBody(requestBody.encode());
+        byte[] body = requestBody.encode();
+        if (compressed) {
+            body = UtilAll.compress(body, REGISTER_BODY_COMPRESS_LEVEL);
+        }
+        request.setBody(body);
 
         if (oneway) {
             try {
@@ -173,6 +283,7 @@ public class BrokerOuterAPI {
                 RegisterBrokerResult result = new RegisterBrokerResult();
                 result.setMasterAddr(responseHeader.getMasterAddr());
                 result.setHaServerAddr(responseHeader.getHaServerAddr());
+                result.setFullSyncRequired(Boolean.TRUE.equals(responseHeader.getFullSyncRequired()));
                 if (response.getBody() != null) {
                     result.setKvTable(KVTable.decode(response.getBody(), KVTable.class));
                 }
@@ -303,4 +414,9 @@ public class BrokerOuterAPI {
     public void registerRPCHook(RPCHook rpcHook) {
         remotingClient.registerRPCHook(rpcHook);
     }
+
+    static class RegisterState {
+        private volatile DataVersion ackedDataVersion;
+        private final Set<String> pendingTopics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
 }
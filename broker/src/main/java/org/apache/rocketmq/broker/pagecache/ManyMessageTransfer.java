@@ -41,7 +41,7 @@ public class ManyMessageTransfer extends AbstractReferenceCounted implements Fil
     @Override
     public long position() {
         int pos = byteBufferHeader.position();
-        List<ByteBuffer> messageBufferList = this.getMessageResult.getMessageBufferList();
+        List<ByteBuffer> messageBufferList = this.getMessageResult.getTransferBufferList();
         for (ByteBuffer bb : messageBufferList) {
             pos += bb.position();
         }
@@ -64,7 +64,7 @@ public class ManyMessageTransfer extends AbstractReferenceCounted implements Fil
             transferred += target.write(this.byteBufferHeader);
             return transferred;
         } else {
-            List<ByteBuffer> messageBufferList = this.getMessageResult.getMessageBufferList();
+            List<ByteBuffer> messageBufferList = this.getMessageResult.getTransferBufferList();
             for (ByteBuffer bb : messageBufferList) {
                 if (bb.hasRemaining()) {
                     transferred += target.write(bb);
@@ -23,6 +23,7 @@ import org.apache.rocketmq.broker.mqtrace.SendMessageHook;
 import org.apache.rocketmq.common.MixAll;
 import org.apache.rocketmq.common.TopicConfig;
 import org.apache.rocketmq.common.TopicFilterType;
+import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.DBMsgConstants;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.common.constant.PermName;
@@ -43,11 +44,13 @@ import org.apache.rocketmq.remoting.exception.RemotingCommandException;
 import org.apache.rocketmq.remoting.netty.NettyRequestProcessor;
 import org.apache.rocketmq.remoting.protocol.RemotingCommand;
 import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.MessageExtEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -60,6 +63,12 @@ public abstract class AbstractSendMessageProcessor implements NettyRequestProces
     protected final Random random = new Random(System.currentTimeMillis());
     protected final SocketAddress storeHost;
     private List<SendMessageHook> sendMessageHookList;
+    private final ThreadLocal<MessageExtEncoder> encoderThreadLocal = new ThreadLocal<MessageExtEncoder>() {
+        @Override
+        protected MessageExtEncoder initialValue() {
+            return new MessageExtEncoder(brokerController.getMessageStoreConfig().getMaxMessageSize());
+        }
+    };
 
     public AbstractSendMessageProcessor(final BrokerController brokerController) {
         this.brokerController = brokerController;
@@ -136,6 +145,26 @@ public abstract class AbstractSendMessageProcessor implements NettyRequestProces
         return storeHost;
     }
 
+    /**
+     * Build the store record on the send thread, so that the CommitLog only patches offsets and timestamp and copies
+     * it while holding the put message lock. The buffer is owned by the current thread until putMessage returns.
+     */
+    protected void preEncode(final MessageExtBrokerInner msgInner) {
+        if (!this.brokerController.getBrokerConfig().isPreEncodeMessageEnable()) {
+            return;
+        }
+
+        // Delayed messages are rewritten to the schedule topic by the store, nothing to gain here
+        if (msgInner.getDelayTimeLevel() > 0) {
+            return;
+        }
+
+        msgInner.setBodyCRC(UtilAll.crc32(msgInner.getBody()));
+        ByteBuffer encoded = this.encoderThreadLocal.get().encode(msgInner);
+        // Illegal messages are left to the store, which reports the proper status
+        msgInner.setEncodedBuff(encoded);
+    }
+
     protected RemotingCommand msgContentCheck(final ChannelHandlerContext ctx,
         final SendMessageRequestHeader requestHeader, RemotingCommand request,
         final RemotingCommand response) {
@@ -47,6 +47,8 @@ import org.apache.rocketmq.remoting.exception.RemotingCommandException;
 import org.apache.rocketmq.remoting.netty.NettyRequestProcessor;
 import org.apache.rocketmq.remoting.protocol.RemotingCommand;
 import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.PutMessageCallback;
+import org.apache.rocketmq.store.PutMessageFuture;
 import org.apache.rocketmq.store.PutMessageResult;
 import org.apache.rocketmq.store.config.StorePathConfigHelper;
 import org.apache.rocketmq.store.stats.BrokerStatsManager;
@@ -82,7 +84,10 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
                     response = this.sendMessage(ctx, request, mqtraceContext, requestHeader);
                 }
 
-                this.executeSendMessageHookAfter(response, mqtraceContext);
+                // Async sends run the hook from the store callback, once the response is known
+                if (response != null || !this.brokerController.getBrokerConfig().isAsyncSendEnable()) {
+                    this.executeSendMessageHookAfter(response, mqtraceContext);
+                }
                 return response;
         }
     }
@@ -354,12 +359,38 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
             }
         }
 
+        this.preEncode(msgInner);
+        if (this.brokerController.getBrokerConfig().isAsyncSendEnable()) {
+            PutMessageFuture future = this.brokerController.getMessageStore().asyncPutMessage(msgInner);
+            this.handlePutMessageFuture(future, response, request, msgInner, responseHeader, sendMessageContext, ctx, queueIdInt);
+            return null;
+        }
+
         PutMessageResult putMessageResult = this.brokerController.getMessageStore().putMessage(msgInner);
 
         return handlePutMessageResult(putMessageResult, response, request, msgInner, responseHeader, sendMessageContext, ctx, queueIdInt);
 
     }
 
+    /**
+     * Write the response once the store completes the put, the send thread is free to take the next request meanwhile
+     */
+    private void handlePutMessageFuture(final PutMessageFuture future, final RemotingCommand response,
+        final RemotingCommand request, final MessageExt msg, final SendMessageResponseHeader responseHeader,
+        final SendMessageContext sendMessageContext, final ChannelHandlerContext ctx, final int queueIdInt) {
+        future.addCallback(new PutMessageCallback() {
+            @Override
+            public void onComplete(PutMessageResult putMessageResult) {
+                RemotingCommand failedResponse = handlePutMessageResult(putMessageResult, response, request, msg,
+                    responseHeader, sendMessageContext, ctx, queueIdInt);
+                if (failedResponse != null) {
+                    doResponse(ctx, request, failedResponse);
+                }
+                executeSendMessageHookAfter(failedResponse, sendMessageContext);
+            }
+        });
+    }
+
     private RemotingCommand handlePutMessageResult(PutMessageResult putMessageResult, RemotingCommand response,
         RemotingCommand request, MessageExt msg,
         SendMessageResponseHeader responseHeader, SendMessageContext sendMessageContext, ChannelHandlerContext ctx,
@@ -529,6 +560,12 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         messageExtBatch.setStoreHost(this.getStoreHost());
         messageExtBatch.setReconsumeTimes(requestHeader.getReconsumeTimes() == null ? 0 : requestHeader.getReconsumeTimes());
 
+        if (this.brokerController.getBrokerConfig().isAsyncSendEnable()) {
+            PutMessageFuture future = this.brokerController.getMessageStore().asyncPutMessages(messageExtBatch);
+            this.handlePutMessageFuture(future, response, request, messageExtBatch, responseHeader, sendMessageContext, ctx, queueIdInt);
+            return null;
+        }
+
         PutMessageResult putMessageResult = this.brokerController.getMessageStore().putMessages(messageExtBatch);
 
         return handlePutMessageResult(putMessageResult, response, request, messageExtBatch, responseHeader, sendMessageContext, ctx, queueIdInt);
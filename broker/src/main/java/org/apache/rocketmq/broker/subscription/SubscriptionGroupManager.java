@@ -22,7 +22,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import org.apache.rocketmq.broker.BrokerController;
 import org.apache.rocketmq.broker.BrokerPathConfigHelper;
-import org.apache.rocketmq.common.ConfigManager;
+import org.apache.rocketmq.common.ConfigLogManager;
 import org.apache.rocketmq.common.DataVersion;
 import org.apache.rocketmq.common.MixAll;
 import org.apache.rocketmq.common.constant.LoggerName;
@@ -31,7 +31,7 @@ import org.apache.rocketmq.remoting.protocol.RemotingSerializable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class SubscriptionGroupManager extends ConfigManager {
+public class SubscriptionGroupManager extends ConfigLogManager<SubscriptionGroupConfig> {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.BROKER_LOGGER_NAME);
 
     private final ConcurrentMap<String, SubscriptionGroupConfig> subscriptionGroupTable =
@@ -40,10 +40,12 @@ public class SubscriptionGroupManager extends ConfigManager {
     private transient BrokerController brokerController;
 
     public SubscriptionGroupManager() {
+        super(SubscriptionGroupConfig.class);
         this.init();
     }
 
     public SubscriptionGroupManager(BrokerController brokerController) {
+        super(SubscriptionGroupConfig.class);
         this.brokerController = brokerController;
         this.init();
     }
@@ -106,7 +108,7 @@ public class SubscriptionGroupManager extends ConfigManager {
 
         this.dataVersion.nextVersion();
 
-        this.persist();
+        this.persist(config.getGroupName());
     }
 
     public void disableConsume(final String groupName) {
@@ -128,13 +130,23 @@ public class SubscriptionGroupManager extends ConfigManager {
                     log.info("auto create a subscription group, {}", subscriptionGroupConfig.toString());
                 }
                 this.dataVersion.nextVersion();
-                this.persist();
+                this.persist(group);
             }
         }
 
         return subscriptionGroupConfig;
     }
 
+    @Override
+    protected ConcurrentMap<String, SubscriptionGroupConfig> getConfigTable() {
+        return this.subscriptionGroupTable;
+    }
+
+    @Override
+    protected boolean isConfigLogEnable() {
+        return this.brokerController != null && this.brokerController.getBrokerConfig().isConfigLogEnable();
+    }
+
     @Override
     public String encode() {
         return this.encode(false);
@@ -174,6 +186,7 @@ public class SubscriptionGroupManager extends ConfigManager {
         return subscriptionGroupTable;
     }
 
+    @Override
     public DataVersion getDataVersion() {
         return dataVersion;
     }
@@ -183,7 +196,7 @@ public class SubscriptionGroupManager extends ConfigManager {
         if (old != null) {
             log.info("delete subscription group OK, subscription group:{}", old);
             this.dataVersion.nextVersion();
-            this.persist();
+            this.persist(groupName);
         } else {
             log.warn("delete subscription group failed, subscription groupName: {} not exist", groupName);
         }
@@ -28,7 +28,7 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import org.apache.rocketmq.broker.BrokerController;
 import org.apache.rocketmq.broker.BrokerPathConfigHelper;
-import org.apache.rocketmq.common.ConfigManager;
+import org.apache.rocketmq.common.ConfigLogManager;
 import org.apache.rocketmq.common.DataVersion;
 import org.apache.rocketmq.common.MixAll;
 import org.apache.rocketmq.common.TopicConfig;
@@ -40,7 +40,7 @@ import org.apache.rocketmq.common.sysflag.TopicSysFlag;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class TopicConfigManager extends ConfigManager {
+public class TopicConfigManager extends ConfigLogManager<TopicConfig> {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.BROKER_LOGGER_NAME);
     private static final long LOCK_TIMEOUT_MILLIS = 3000;
     private transient final Lock lockTopicConfigTable = new ReentrantLock();
@@ -52,9 +52,11 @@ public class TopicConfigManager extends ConfigManager {
     private transient BrokerController brokerController;
 
     public TopicConfigManager() {
+        super(TopicConfig.class);
     }
 
     public TopicConfigManager(BrokerController brokerController) {
+        super(TopicConfig.class);
         this.brokerController = brokerController;
         {
             // MixAll.SELF_TEST_TOPIC
@@ -199,7 +201,7 @@ public class TopicConfigManager extends ConfigManager {
 
                         createNew = true;
 
-                        this.persist();
+                        this.persist(topic);
                     }
                 } finally {
                     this.lockTopicConfigTable.unlock();
@@ -244,7 +246,7 @@ public class TopicConfigManager extends ConfigManager {
                     this.topicConfigTable.put(topic, topicConfig);
                     createNew = true;
                     this.dataVersion.nextVersion();
-                    this.persist();
+                    this.persist(topic);
                 } finally {
                     this.lockTopicConfigTable.unlock();
                 }
@@ -278,7 +280,7 @@ public class TopicConfigManager extends ConfigManager {
 
             this.dataVersion.nextVersion();
 
-            this.persist();
+            this.persist(topic);
             this.brokerController.registerBrokerAll(false, true);
         }
     }
@@ -298,7 +300,7 @@ public class TopicConfigManager extends ConfigManager {
 
             this.dataVersion.nextVersion();
 
-            this.persist();
+            this.persist(topic);
             this.brokerController.registerBrokerAll(false, true);
         }
     }
@@ -313,19 +315,19 @@ public class TopicConfigManager extends ConfigManager {
 
         this.dataVersion.nextVersion();
 
-        this.persist();
+        this.persist(topicConfig.getTopicName());
     }
 
     public void updateOrderTopicConfig(final KVTable orderKVTableFromNs) {
 
         if (orderKVTableFromNs != null && orderKVTableFromNs.getTable() != null) {
-            boolean isChange = false;
+            Set<String> changedTopics = new HashSet<String>();
             Set<String> orderTopics = orderKVTableFromNs.getTable().keySet();
             for (String topic : orderTopics) {
                 TopicConfig topicConfig = this.topicConfigTable.get(topic);
                 if (topicConfig != null && !topicConfig.isOrder()) {
                     topicConfig.setOrder(true);
-                    isChange = true;
+                    changedTopics.add(topic);
                     log.info("update order topic config, topic={}, order={}", topic, true);
                 }
             }
@@ -336,15 +338,15 @@ public class TopicConfigManager extends ConfigManager {
                     TopicConfig topicConfig = entry.getValue();
                     if (topicConfig.isOrder()) {
                         topicConfig.setOrder(false);
-                        isChange = true;
+                        changedTopics.add(topic);
                         log.info("update order topic config, topic={}, order={}", topic, false);
                     }
                 }
             }
 
-            if (isChange) {
+            if (!changedTopics.isEmpty()) {
                 this.dataVersion.nextVersion();
-                this.persist();
+                this.persist(changedTopics);
             }
         }
     }
@@ -363,7 +365,7 @@ public class TopicConfigManager extends ConfigManager {
         if (old != null) {
             log.info("delete topic config OK, topic: {}", old);
             this.dataVersion.nextVersion();
-            this.persist();
+            this.persist(topic);
         } else {
             log.warn("delete topic config failed, topic: {} not exists", topic);
         }
@@ -376,6 +378,16 @@ public class TopicConfigManager extends ConfigManager {
         return topicConfigSerializeWrapper;
     }
 
+    @Override
+    protected ConcurrentMap<String, TopicConfig> getConfigTable() {
+        return this.topicConfigTable;
+    }
+
+    @Override
+    protected boolean isConfigLogEnable() {
+        return this.brokerController != null && this.brokerController.getBrokerConfig().isConfigLogEnable();
+    }
+
     @Override
     public String encode() {
         return encode(false);
@@ -415,6 +427,7 @@ public class TopicConfigManager extends ConfigManager {
         }
     }
 
+    @Override
     public DataVersion getDataVersion() {
         return dataVersion;
     }
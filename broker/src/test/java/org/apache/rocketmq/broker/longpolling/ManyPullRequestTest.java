@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.broker.longpolling;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ManyPullRequestTest {
+    private PullRequest createPullRequest(long pullFromThisOffset) {
+        return new PullRequest(null, null, 1000, System.currentTimeMillis(), pullFromThisOffset, null, null);
+    }
+
+    @Test
+    public void testAddAndClear() {
+        ManyPullRequest mpr = new ManyPullRequest("FooBar", 1);
+        assertThat(mpr.cloneListAndClear()).isNull();
+
+        PullRequest first = createPullRequest(0);
+        PullRequest second = createPullRequest(1);
+        PullRequest third = createPullRequest(2);
+        mpr.addPullRequest(first);
+        mpr.addPullRequest(Arrays.asList(second, third));
+
+        // Taken out in the order they were added
+        List<PullRequest> requests = mpr.cloneListAndClear();
+        assertThat(requests).containsExactly(first, second, third);
+        assertThat(mpr.cloneListAndClear()).isNull();
+    }
+
+    @Test
+    public void testComplete() {
+        PullRequest pullRequest = createPullRequest(0);
+        assertThat(pullRequest.isCompleted()).isFalse();
+        assertThat(pullRequest.complete()).isTrue();
+        // Woken up only once, by either an arrival or the timeout
+        assertThat(pullRequest.complete()).isFalse();
+        assertThat(pullRequest.isCompleted()).isTrue();
+    }
+}
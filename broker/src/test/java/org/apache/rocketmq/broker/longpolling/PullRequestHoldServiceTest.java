@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.broker.longpolling;
+
+import io.netty.channel.Channel;
+import org.apache.rocketmq.broker.BrokerController;
+import org.apache.rocketmq.broker.processor.PullMessageProcessor;
+import org.apache.rocketmq.common.filter.FilterAPI;
+import org.apache.rocketmq.common.protocol.RequestCode;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+import org.apache.rocketmq.store.DefaultMessageFilter;
+import org.apache.rocketmq.store.MessageStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PullRequestHoldServiceTest {
+    private static final String TOPIC = "FooBar";
+    private MessageStore messageStore;
+    private PullMessageProcessor pullMessageProcessor;
+    private PullRequestHoldService pullRequestHoldService;
+
+    @Before
+    public void init() {
+        BrokerController brokerController = mock(BrokerController.class);
+        messageStore = mock(MessageStore.class);
+        pullMessageProcessor = mock(PullMessageProcessor.class);
+        when(brokerController.getMessageStore()).thenReturn(messageStore);
+        when(brokerController.getPullMessageProcessor()).thenReturn(pullMessageProcessor);
+        pullRequestHoldService = new PullRequestHoldService(brokerController);
+    }
+
+    @After
+    public void destroy() {
+        pullRequestHoldService.shutdown();
+    }
+
+    private PullRequest createPullRequest(long timeoutMillis, long pullFromThisOffset, String subString)
+        throws Exception {
+        RemotingCommand requestCommand = RemotingCommand.createRequestCommand(RequestCode.PULL_MESSAGE, null);
+        return new PullRequest(requestCommand, null, timeoutMillis, System.currentTimeMillis(), pullFromThisOffset,
+            null, new DefaultMessageFilter(FilterAPI.buildSubscriptionData("GROUP", TOPIC, subString)));
+    }
+
+    private void verifyWokenUp(PullRequest pullRequest) throws Exception {
+        verify(pullMessageProcessor, timeout(3000)).executeRequestWhenWakeup(nullable(Channel.class), eq(pullRequest.getRequestCommand()));
+        assertThat(pullRequest.isCompleted()).isTrue();
+    }
+
+    private void verifyHeld(PullRequest pullRequest) throws Exception {
+        verify(pullMessageProcessor, never()).executeRequestWhenWakeup(nullable(Channel.class), eq(pullRequest.getRequestCommand()));
+        assertThat(pullRequest.isCompleted()).isFalse();
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        when(messageStore.getMaxOffsetInQueue(TOPIC, 0)).thenReturn(10L);
+        PullRequest pullRequest = createPullRequest(500, 10, "*");
+        pullRequestHoldService.suspendPullRequest(TOPIC, 0, pullRequest);
+        verifyHeld(pullRequest);
+
+        verifyWokenUp(pullRequest);
+    }
+
+    @Test
+    public void testWakeupOnArrival() throws Exception {
+        when(messageStore.getMaxOffsetInQueue(TOPIC, 0)).thenReturn(10L);
+        PullRequest tagA = createPullRequest(60 * 1000, 10, "TagA");
+        PullRequest tagB = createPullRequest(60 * 1000, 10, "TagB");
+        pullRequestHoldService.suspendPullRequest(TOPIC, 0, tagA);
+        pullRequestHoldService.suspendPullRequest(TOPIC, 0, tagB);
+
+        // only the subscriber of the tag is woken up
+        when(messageStore.getMaxOffsetInQueue(TOPIC, 0)).thenReturn(11L);
+        pullRequestHoldService.notifyMessageArriving(TOPIC, 0, 11, (long) "TagA".hashCode(), 0, null, null);
+        verifyWokenUp(tagA);
+        verifyHeld(tagB);
+
+        // arrivals on other queues do not matter
+        pullRequestHoldService.notifyMessageArriving(TOPIC, 1, 12, (long) "TagB".hashCode(), 0, null, null);
+        verifyHeld(tagB);
+
+        when(messageStore.getMaxOffsetInQueue(TOPIC, 0)).thenReturn(12L);
+        pullRequestHoldService.notifyMessageArriving(TOPIC, 0, 12, (long) "TagB".hashCode(), 0, null, null);
+        verifyWokenUp(tagB);
+    }
+
+    @Test
+    public void testArrivalBeforeSuspend() throws Exception {
+        when(messageStore.getMaxOffsetInQueue(TOPIC, 0)).thenReturn(10L);
+        PullRequest held = createPullRequest(60 * 1000, 10, "TagB");
+        pullRequestHoldService.suspendPullRequest(TOPIC, 0, held);
+
+        // a message arrived after the pull found none, but before the request was suspended
+        when(messageStore.getMaxOffsetInQueue(TOPIC, 0)).thenReturn(11L);
+        pullRequestHoldService.notifyMessageArriving(TOPIC, 0, 11, (long) "TagA".hashCode(), 0, null, null);
+        PullRequest late = createPullRequest(60 * 1000, 10, "TagA");
+        pullRequestHoldService.suspendPullRequest(TOPIC, 0, late);
+        verifyWokenUp(late);
+        // the request already checked against that arrival stays held
+        verifyHeld(held);
+
+        pullRequestHoldService.notifyMessageArriving(TOPIC, 0, 12, (long) "TagB".hashCode(), 0, null, null);
+        verifyWokenUp(held);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.broker.offset;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.common.UtilAll;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConsumerOffsetBinaryStoreTest {
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-offset";
+    private final String slotPath = storePath + File.separator + "consumerOffset.slot";
+    private final String dictPath = storePath + File.separator + "consumerOffset.dict";
+
+    @After
+    public void destroy() {
+        UtilAll.deleteFile(new File(this.storePath));
+    }
+
+    private ConcurrentMap<String, ConcurrentMap<Integer, Long>> reload() throws Exception {
+        ConcurrentMap<String, ConcurrentMap<Integer, Long>> offsetTable =
+            new ConcurrentHashMap<String, ConcurrentMap<Integer, Long>>();
+        ConsumerOffsetBinaryStore store = new ConsumerOffsetBinaryStore(this.slotPath, this.dictPath);
+        assertThat(store.load(offsetTable)).isTrue();
+        store.shutdown();
+        return offsetTable;
+    }
+
+    @Test
+    public void testPutAndLoad() throws Exception {
+        ConsumerOffsetBinaryStore store = new ConsumerOffsetBinaryStore(this.slotPath, this.dictPath);
+        assertThat(store.load(new ConcurrentHashMap<String, ConcurrentMap<Integer, Long>>())).isFalse();
+        store.completeImport();
+        store.put("TOPIC_A@GROUP_A", 0, 100);
+        store.put("TOPIC_A@GROUP_A", 1, 200);
+        store.put("TOPIC_A@GROUP_B", 0, 300);
+        // Committed in place
+        store.put("TOPIC_A@GROUP_A", 0, 101);
+        store.remove("TOPIC_A@GROUP_B");
+        // Takes the freed slot
+        store.put("TOPIC_B@GROUP_A", 3, 400);
+        store.shutdown();
+
+        ConcurrentMap<String, ConcurrentMap<Integer, Long>> offsetTable = this.reload();
+        assertThat(offsetTable).hasSize(2);
+        assertThat(offsetTable.get("TOPIC_A@GROUP_A")).containsEntry(0, 101L).containsEntry(1, 200L).hasSize(2);
+        assertThat(offsetTable.get("TOPIC_B@GROUP_A")).containsEntry(3, 400L).hasSize(1);
+        assertThat(new File(this.slotPath).length()).isEqualTo(1024 * 1024 * 8);
+    }
+
+    @Test
+    public void testImportNotCompleted() throws Exception {
+        ConsumerOffsetBinaryStore store = new ConsumerOffsetBinaryStore(this.slotPath, this.dictPath);
+        assertThat(store.load(new ConcurrentHashMap<String, ConcurrentMap<Integer, Long>>())).isFalse();
+        store.put("TOPIC_A@GROUP_A", 0, 100);
+        store.shutdown();
+
+        // Imported again from the start
+        ConcurrentMap<String, ConcurrentMap<Integer, Long>> offsetTable =
+            new ConcurrentHashMap<String, ConcurrentMap<Integer, Long>>();
+        store = new ConsumerOffsetBinaryStore(this.slotPath, this.dictPath);
+        assertThat(store.load(offsetTable)).isFalse();
+        assertThat(offsetTable).isEmpty();
+        store.put("TOPIC_A@GROUP_B", 0, 200);
+        store.completeImport();
+        store.put("TOPIC_A@GROUP_B", 1, 300);
+        store.shutdown();
+
+        offsetTable = this.reload();
+        assertThat(offsetTable).hasSize(1);
+        assertThat(offsetTable.get("TOPIC_A@GROUP_B")).containsEntry(0, 200L).containsEntry(1, 300L).hasSize(2);
+    }
+
+    @Test
+    public void testPartlyWrittenRecord() throws Exception {
+        ConsumerOffsetBinaryStore store = new ConsumerOffsetBinaryStore(this.slotPath, this.dictPath);
+        store.load(new ConcurrentHashMap<String, ConcurrentMap<Integer, Long>>());
+        store.completeImport();
+        store.put("TOPIC_A@GROUP_A", 0, 100);
+        store.put("TOPIC_A@GROUP_A", 1, 200);
+        store.shutdown();
+
+        RandomAccessFile dictFile = new RandomAccessFile(this.dictPath, "rw");
+        dictFile.setLength(dictFile.length() - 3);
+        dictFile.close();
+
+        // The slot of queue 1 is lost and taken again
+        ConcurrentMap<String, ConcurrentMap<Integer, Long>> offsetTable = this.reload();
+        assertThat(offsetTable.get("TOPIC_A@GROUP_A")).containsEntry(0, 100L).hasSize(1);
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        ConsumerOffsetBinaryStore store = new ConsumerOffsetBinaryStore(this.slotPath, this.dictPath);
+        store.load(new ConcurrentHashMap<String, ConcurrentMap<Integer, Long>>());
+        store.completeImport();
+        for (int i = 0; i < 2000; i++) {
+            store.put("TOPIC_A@GROUP_" + i, 0, i);
+            if (i > 0) {
+                store.remove("TOPIC_A@GROUP_" + (i - 1));
+            }
+        }
+        store.shutdown();
+        long size = new File(this.dictPath).length();
+
+        ConcurrentMap<String, ConcurrentMap<Integer, Long>> offsetTable = this.reload();
+        assertThat(new File(this.dictPath).length()).isLessThan(size);
+        assertThat(offsetTable).hasSize(1);
+        assertThat(offsetTable.get("TOPIC_A@GROUP_1999")).containsEntry(0, 1999L);
+        assertThat(this.reload()).isEqualTo(offsetTable);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.broker.out;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.common.DataVersion;
+import org.apache.rocketmq.common.TopicConfig;
+import org.apache.rocketmq.common.namesrv.RegisterBrokerResult;
+import org.apache.rocketmq.common.protocol.ResponseCode;
+import org.apache.rocketmq.common.protocol.body.RegisterBrokerBody;
+import org.apache.rocketmq.common.protocol.body.TopicConfigSerializeWrapper;
+import org.apache.rocketmq.common.protocol.header.namesrv.RegisterBrokerResponseHeader;
+import org.apache.rocketmq.remoting.RemotingClient;
+import org.apache.rocketmq.remoting.netty.NettyClientConfig;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BrokerOuterAPITest {
+    private static final String NAMESRV_ADDR = "127.0.0.1:9876";
+    @Mock
+    private RemotingClient remotingClient;
+    private BrokerOuterAPI brokerOuterAPI;
+    private final List<RegisterBrokerBody> requestBodies = new ArrayList<RegisterBrokerBody>();
+    private final ConcurrentMap<String, TopicConfig> topicConfigTable = new ConcurrentHashMap<String, TopicConfig>();
+    private final DataVersion dataVersion = new DataVersion();
+    private boolean lostBroker = false;
+
+    @Before
+    public void init() throws Exception {
+        brokerOuterAPI = new BrokerOuterAPI(new NettyClientConfig());
+        Field field = BrokerOuterAPI.class.getDeclaredField("remotingClient");
+        field.setAccessible(true);
+        field.set(brokerOuterAPI, remotingClient);
+
+        when(remotingClient.getNameServerAddressList()).thenReturn(Collections.singletonList(NAMESRV_ADDR));
+        mockRegisterResponse();
+    }
+
+    @Test
+    public void testRegisterChangedTopics() {
+        // Nothing acknowledged yet, all topics are sent
+        Set<String> changedTopics = createTopics("TopicA", "TopicB");
+        assertThat(register(changedTopics)).isNotNull();
+        RegisterBrokerBody requestBody = lastRequestBody();
+        assertThat(requestBody.getBaseDataVersion()).isNull();
+        assertThat(requestBody.getTopicConfigSerializeWrapper().getTopicConfigTable().keySet()).containsOnly("TopicA", "TopicB");
+        long ackedCounter = dataVersion.getCounter().get();
+
+        // Only the changed topics are sent, based on the acknowledged data version
+        changedTopics = createTopics("TopicC");
+        register(changedTopics);
+        requestBody = lastRequestBody();
+        assertThat(requestBody.getBaseDataVersion().getCounter().get()).isEqualTo(ackedCounter);
+        assertThat(requestBody.getTopicConfigSerializeWrapper().getTopicConfigTable().keySet()).containsOnly("TopicC");
+        assertThat(requestBody.getTopicConfigSerializeWrapper().getDataVersion().getCounter().get())
+            .isEqualTo(dataVersion.getCounter().get());
+        assertThat(requestBody.getDeletedTopicList()).isEmpty();
+
+        // A changed topic missing from the wrapper has been deleted
+        topicConfigTable.remove("TopicB");
+        dataVersion.nextVersion();
+        register(new HashSet<String>(Collections.singletonList("TopicB")));
+        requestBody = lastRequestBody();
+        assertThat(requestBody.getTopicConfigSerializeWrapper().getTopicConfigTable()).isEmpty();
+        assertThat(requestBody.getDeletedTopicList()).containsOnly("TopicB");
+
+        // Nothing changed
+        register(new HashSet<String>());
+        requestBody = lastRequestBody();
+        assertThat(requestBody.getBaseDataVersion()).isNotNull();
+        assertThat(requestBody.getTopicConfigSerializeWrapper().getTopicConfigTable()).isEmpty();
+        assertThat(requestBody.getDeletedTopicList()).isEmpty();
+
+        // All topics are sent when the changed ones are unknown
+        register(null);
+        requestBody = lastRequestBody();
+        assertThat(requestBody.getBaseDataVersion()).isNull();
+        assertThat(requestBody.getTopicConfigSerializeWrapper().getTopicConfigTable().keySet()).containsOnly("TopicA", "TopicC");
+    }
+
+    @Test
+    public void testRegisterAllOnFullSyncRequired() {
+        register(createTopics("TopicA", "TopicB"));
+
+        lostBroker = true;
+        int requests = requestBodies.size();
+        RegisterBrokerResult result = register(createTopics("TopicC"));
+        assertThat(result).isNotNull();
+        assertThat(result.isFullSyncRequired()).isFalse();
+
+        // The refused delta is followed by all topics
+        assertThat(requestBodies).hasSize(requests + 2);
+        assertThat(requestBodies.get(requests).getBaseDataVersion()).isNotNull();
+        RegisterBrokerBody requestBody = lastRequestBody();
+        assertThat(requestBody.getBaseDataVersion()).isNull();
+        assertThat(requestBody.getTopicConfigSerializeWrapper().getTopicConfigTable().keySet())
+            .containsOnly("TopicA", "TopicB", "TopicC");
+
+        // Deltas again once all topics are acknowledged
+        register(createTopics("TopicD"));
+        requestBody = lastRequestBody();
+        assertThat(requestBody.getBaseDataVersion()).isNotNull();
+        assertThat(requestBody.getTopicConfigSerializeWrapper().getTopicConfigTable().keySet()).containsOnly("TopicD");
+    }
+
+    @Test
+    public void testResendTopicsOfFailedRegistration() throws Exception {
+        register(createTopics("TopicA"));
+
+        doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock mock) throws Throwable {
+                throw new IllegalStateException("name server unreachable");
+            }
+        }).when(remotingClient).invokeSync(anyString(), any(RemotingCommand.class), anyLong());
+        int requests = requestBodies.size();
+        assertThat(register(createTopics("TopicB"))).isNull();
+        assertThat(requestBodies).hasSize(requests);
+
+        mockRegisterResponse();
+        register(createTopics("TopicC"));
+        RegisterBrokerBody requestBody = lastRequestBody();
+        assertThat(requestBody.getBaseDataVersion()).isNotNull();
+        assertThat(requestBody.getTopicConfigSerializeWrapper().getTopicConfigTable().keySet()).containsOnly("TopicB", "TopicC");
+    }
+
+    private void mockRegisterResponse() throws Exception {
+        doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock mock) throws Throwable {
+                RemotingCommand request = mock.getArgument(1);
+                RegisterBrokerBody requestBody = RegisterBrokerBody.decode(request.getBody(), RegisterBrokerBody.class);
+                requestBodies.add(requestBody);
+
+                RemotingCommand response = RemotingCommand.createResponseCommand(RegisterBrokerResponseHeader.class);
+                RegisterBrokerResponseHeader responseHeader = (RegisterBrokerResponseHeader) response.readCustomHeader();
+                // A name server which has lost the broker refuses a delta until it is sent all topics
+                if (requestBody.getBaseDataVersion() != null && lostBroker) {
+                    responseHeader.setFullSyncRequired(true);
+                } else {
+                    lostBroker = false;
+                }
+                response.makeCustomHeaderToNet();
+                response.setCode(ResponseCode.SUCCESS);
+                return response;
+            }
+        }).when(remotingClient).invokeSync(anyString(), any(RemotingCommand.class), anyLong());
+    }
+
+    private Set<String> createTopics(String... topics) {
+        for (String topic : topics) {
+            topicConfigTable.put(topic, new TopicConfig(topic, 4, 4, 6));
+        }
+        dataVersion.nextVersion();
+        return new HashSet<String>(Arrays.asList(topics));
+    }
+
+    private RegisterBrokerResult register(Set<String> changedTopics) {
+        TopicConfigSerializeWrapper topicConfigWrapper = new TopicConfigSerializeWrapper();
+        topicConfigWrapper.setTopicConfigTable(new ConcurrentHashMap<String, TopicConfig>(topicConfigTable));
+        DataVersion wrapperDataVersion = new DataVersion();
+        wrapperDataVersion.assignNewOne(dataVersion);
+        topicConfigWrapper.setDataVersion(wrapperDataVersion);
+        return brokerOuterAPI.registerBrokerAll("DefaultCluster", "127.0.0.1:10911", "BrokerA", 0, "127.0.0.1:10912",
+            topicConfigWrapper, changedTopics, new ArrayList<String>(), false, 3000, false);
+    }
+
+    private RegisterBrokerBody lastRequestBody() {
+        return requestBodies.get(requestBodies.size() - 1);
+    }
+}
@@ -117,6 +117,14 @@ public class DefaultMQProducer extends ClientConfig implements MQProducer {
      */
     private int maxMessageSize = 1024 * 1024 * 4; // 4M
 
+    /**
+     * Encode batches in the broker's storage layout, which lets the broker append them without re-encoding.
+     * </p>
+     *
+     * Only enable it if every broker of the cluster understands this layout.
+     */
+    private boolean sendBatchInStoreLayout = false;
+
     /**
      * Default constructor.
      */
@@ -638,7 +646,7 @@ public class DefaultMQProducer extends ClientConfig implements MQProducer {
                 Validators.checkMessage(message, this);
                 MessageClientIDSetter.setUniqID(message);
             }
-            msgBatch.setBody(msgBatch.encode());
+            msgBatch.setBody(this.sendBatchInStoreLayout ? msgBatch.encodeInStoreLayout() : msgBatch.encode());
         } catch (Exception e) {
             throw new MQClientException("Failed to initiate the MessageBatch", e);
         }
@@ -697,6 +705,14 @@ public class DefaultMQProducer extends ClientConfig implements MQProducer {
         this.maxMessageSize = maxMessageSize;
     }
 
+    public boolean isSendBatchInStoreLayout() {
+        return sendBatchInStoreLayout;
+    }
+
+    public void setSendBatchInStoreLayout(boolean sendBatchInStoreLayout) {
+        this.sendBatchInStoreLayout = sendBatchInStoreLayout;
+    }
+
     public int getDefaultTopicQueueNums() {
         return defaultTopicQueueNums;
     }
@@ -67,6 +67,20 @@ public class BrokerConfig {
 
     private int flushConsumerOffsetHistoryInterval = 1000 * 60;
 
+    /**
+     * Keep consumer offsets in a memory mapped file of fixed size slots instead of rewriting consumerOffset.json, which
+     * is imported on first start and still written on shutdown
+     */
+    private boolean consumerOffsetBinaryEnable = false;
+
+    /**
+     * Append changed topic and subscription group configs to a log forced every flushConfigLogInterval, instead of
+     * rewriting topics.json and subscriptionGroup.json on each change
+     */
+    private boolean configLogEnable = false;
+
+    private int flushConfigLogInterval = 1000;
+
     @ImportantField
     private boolean rejectTransactionMessage = false;
     @ImportantField
@@ -98,6 +112,13 @@ public class BrokerConfig {
     private String regionId = MixAll.DEFAULT_TRACE_REGION_ID;
     private int registerBrokerTimeoutMills = 6000;
 
+    /**
+     * Register only the topics changed since the data version a name server has acknowledged, all name servers must
+     * support it
+     */
+    private boolean deltaRegisterEnable = false;
+    private boolean compressedRegister = false;
+
     private boolean slaveReadEnable = false;
 
     private boolean disableConsumeIfConsumerReadSlowly = false;
@@ -128,6 +149,13 @@ public class BrokerConfig {
     private boolean filterSupportRetry = false;
     private boolean enablePropertyFilter = false;
 
+    // Serialize messages into the store layout on the send thread, before they reach the put message lock.
+    private boolean preEncodeMessageEnable = false;
+
+    // Answer sends from the store completion callback instead of blocking the send thread on disk flush or slave ack,
+    // so a few send threads are enough with SYNC_FLUSH or SYNC_MASTER.
+    private boolean asyncSendEnable = false;
+
     public boolean isTraceOn() {
         return traceOn;
     }
@@ -194,6 +222,22 @@ public class BrokerConfig {
         this.registerBrokerTimeoutMills = registerBrokerTimeoutMills;
     }
 
+    public boolean isDeltaRegisterEnable() {
+        return deltaRegisterEnable;
+    }
+
+    public void setDeltaRegisterEnable(boolean deltaRegisterEnable) {
+        this.deltaRegisterEnable = deltaRegisterEnable;
+    }
+
+    public boolean isCompressedRegister() {
+        return compressedRegister;
+    }
+
+    public void setCompressedRegister(boolean compressedRegister) {
+        this.compressedRegister = compressedRegister;
+    }
+
     public String getRegionId() {
         return regionId;
     }
@@ -322,6 +366,30 @@ public class BrokerConfig {
         this.flushConsumerOffsetInterval = flushConsumerOffsetInterval;
     }
 
+    public boolean isConsumerOffsetBinaryEnable() {
+        return consumerOffsetBinaryEnable;
+    }
+
+    public void setConsumerOffsetBinaryEnable(boolean consumerOffsetBinaryEnable) {
+        this.consumerOffsetBinaryEnable = consumerOffsetBinaryEnable;
+    }
+
+    public boolean isConfigLogEnable() {
+        return configLogEnable;
+    }
+
+    public void setConfigLogEnable(boolean configLogEnable) {
+        this.configLogEnable = configLogEnable;
+    }
+
+    public int getFlushConfigLogInterval() {
+        return flushConfigLogInterval;
+    }
+
+    public void setFlushConfigLogInterval(int flushConfigLogInterval) {
+        this.flushConfigLogInterval = flushConfigLogInterval;
+    }
+
     public int getFlushConsumerOffsetHistoryInterval() {
         return flushConsumerOffsetHistoryInterval;
     }
@@ -561,4 +629,20 @@ public class BrokerConfig {
     public void setEnablePropertyFilter(boolean enablePropertyFilter) {
         this.enablePropertyFilter = enablePropertyFilter;
     }
+
+    public boolean isPreEncodeMessageEnable() {
+        return preEncodeMessageEnable;
+    }
+
+    public void setPreEncodeMessageEnable(boolean preEncodeMessageEnable) {
+        this.preEncodeMessageEnable = preEncodeMessageEnable;
+    }
+
+    public boolean isAsyncSendEnable() {
+        return asyncSendEnable;
+    }
+
+    public void setAsyncSendEnable(boolean asyncSendEnable) {
+        this.asyncSendEnable = asyncSendEnable;
+    }
 }
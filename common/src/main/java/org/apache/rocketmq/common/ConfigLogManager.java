@@ -0,0 +1,345 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.remoting.protocol.RemotingSerializable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Config manager which persists a change of one entry by appending a record to a log, instead of rewriting the whole
+ * config file.
+ * <p>
+ * The config file is a snapshot of the table, and the log holds the changes made after it was written. Records are
+ * appended to the page cache and forced in batches by {@link #flush()}, which also writes the snapshot again and
+ * truncates the log once it holds twice as many records as there are entries. Keys of the changed entries are kept
+ * until {@link #takeChangedKeys()}, so that only those entries need to be sent to others.
+ * </p>
+ */
+public abstract class ConfigLogManager<V> extends ConfigManager {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.COMMON_LOGGER_NAME);
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    // body size + body crc, followed by the body
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+    private static final int MAX_RECORD_BODY_SIZE = 1024 * 1024 * 4;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    // type + data version timestamp + data version counter + key length, followed by the key and the value
+    private static final byte RECORD_PUT = 1;
+    // the same as a put record without a value
+    private static final byte RECORD_DELETE = 2;
+
+    private transient final Class<V> valueClass;
+    private transient final Set<String> changedKeys =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private transient FileChannel logChannel;
+    private transient int logRecords = 0;
+    private transient boolean dirty = false;
+
+    protected ConfigLogManager(final Class<V> valueClass) {
+        this.valueClass = valueClass;
+    }
+
+    protected abstract ConcurrentMap<String, V> getConfigTable();
+
+    public abstract DataVersion getDataVersion();
+
+    /**
+     * @return false to persist every change by rewriting the config file
+     */
+    protected boolean isConfigLogEnable() {
+        return false;
+    }
+
+    protected String configLogFilePath() {
+        return this.configFilePath() + ".log";
+    }
+
+    /**
+     * Load the config file, then replay the log written after it. The log left by a config log enabled broker is
+     * replayed even if it is disabled now, and written into the config file.
+     */
+    @Override
+    public boolean load() {
+        if (!super.load()) {
+            return false;
+        }
+
+        File logFile = new File(this.configLogFilePath());
+        if (!this.isConfigLogEnable() && !logFile.exists()) {
+            return true;
+        }
+
+        try {
+            this.replay(logFile);
+            if (!this.isConfigLogEnable()) {
+                this.compact();
+                this.closeLog();
+                if (!logFile.delete()) {
+                    log.warn("delete config log [{}] failed", logFile);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("replay config log [{}] failed", logFile, e);
+            return false;
+        }
+    }
+
+    private synchronized void replay(final File logFile) throws IOException {
+        this.openLog(logFile);
+
+        long validSize = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        try {
+            while (true) {
+                int bodySize = in.readInt();
+                int bodyCRC = in.readInt();
+                if (bodySize <= 0 || bodySize > MAX_RECORD_BODY_SIZE) {
+                    log.warn("illegal record body size {} in {} at {}", bodySize, logFile, validSize);
+                    break;
+                }
+
+                byte[] body = new byte[bodySize];
+                in.readFully(body);
+                if (UtilAll.crc32(body) != bodyCRC) {
+                    log.warn("record crc check failed in {} at {}", logFile, validSize);
+                    break;
+                }
+
+                this.apply(ByteBuffer.wrap(body));
+                this.logRecords++;
+                validSize += RECORD_HEADER_SIZE + bodySize;
+            }
+        } catch (EOFException ignored) {
+            // the last record may be written partly
+        } finally {
+            in.close();
+        }
+
+        if (validSize < this.logChannel.size()) {
+            log.warn("truncate config log {} from {} to {}", logFile, this.logChannel.size(), validSize);
+            this.logChannel.truncate(validSize);
+        }
+        this.logChannel.position(validSize);
+        log.info("replay {} records of config log {} OK", this.logRecords, logFile);
+    }
+
+    private void apply(final ByteBuffer body) {
+        byte type = body.get();
+        DataVersion dataVersion = new DataVersion();
+        dataVersion.setTimestamp(body.getLong());
+        dataVersion.setCounter(new AtomicLong(body.getLong()));
+        byte[] key = new byte[body.getShort()];
+        body.get(key);
+
+        String configKey = new String(key, CHARSET);
+        if (RECORD_PUT == type) {
+            byte[] value = new byte[body.remaining()];
+            body.get(value);
+            this.getConfigTable().put(configKey, RemotingSerializable.decode(value, this.valueClass));
+        } else {
+            this.getConfigTable().remove(configKey);
+        }
+        this.getDataVersion().assignNewOne(dataVersion);
+    }
+
+    /**
+     * Persist the change of one entry, whether it was put or removed.
+     */
+    protected void persist(final String key) {
+        this.persist(Collections.singleton(key));
+    }
+
+    protected void persist(final Collection<String> keys) {
+        this.changedKeys.addAll(keys);
+        if (!this.isConfigLogEnable()) {
+            this.persist();
+            return;
+        }
+
+        for (String key : keys) {
+            this.append(key);
+        }
+    }
+
+    private synchronized void append(final String key) {
+        if (null == this.logChannel) {
+            this.compact();
+            return;
+        }
+
+        // the latest value is written, whichever change comes last
+        V value = this.getConfigTable().get(key);
+        byte[] keyBytes = key.getBytes(CHARSET);
+        byte[] valueBytes = value != null ? RemotingSerializable.encode(value) : new byte[0];
+        DataVersion dataVersion = this.getDataVersion();
+
+        int bodySize = 1 + 8 + 8 + 2 + keyBytes.length + valueBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodySize);
+        record.position(RECORD_HEADER_SIZE);
+        record.put(value != null ? RECORD_PUT : RECORD_DELETE);
+        record.putLong(dataVersion.getTimestamp());
+        record.putLong(dataVersion.getCounter().get());
+        record.putShort((short) keyBytes.length);
+        record.put(keyBytes);
+        record.put(valueBytes);
+        record.putInt(0, bodySize);
+        record.putInt(4, UtilAll.crc32(record.array(), RECORD_HEADER_SIZE, bodySize));
+        record.flip();
+
+        try {
+            while (record.hasRemaining()) {
+                this.logChannel.write(record);
+            }
+            this.logRecords++;
+            this.dirty = true;
+        } catch (IOException e) {
+            log.error("append config log [{}] exception", this.configLogFilePath(), e);
+        }
+    }
+
+    /**
+     * Write the config file, and truncate the log if enabled.
+     */
+    @Override
+    public synchronized void persist() {
+        if (!this.isConfigLogEnable()) {
+            super.persist();
+            return;
+        }
+
+        this.compact();
+    }
+
+    /**
+     * Force the records appended since the last time, or compact the log if it holds too many of them.
+     */
+    public synchronized void flush() {
+        if (null == this.logChannel) {
+            return;
+        }
+
+        if (this.logRecords > this.getConfigTable().size() * 2 + COMPACT_MIN_RECORDS) {
+            this.compact();
+            return;
+        }
+
+        if (this.dirty) {
+            try {
+                this.logChannel.force(false);
+                this.dirty = false;
+            } catch (IOException e) {
+                log.error("flush config log [{}] exception", this.configLogFilePath(), e);
+            }
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (this.isConfigLogEnable()) {
+            this.compact();
+        }
+        this.closeLog();
+    }
+
+    /**
+     * @return keys of the entries changed since the last time
+     */
+    public Set<String> takeChangedKeys() {
+        Set<String> keys = new HashSet<String>();
+        Iterator<String> it = this.changedKeys.iterator();
+        while (it.hasNext()) {
+            keys.add(it.next());
+            it.remove();
+        }
+        return keys;
+    }
+
+    private synchronized void compact() {
+        String fileName = this.configFilePath();
+        String jsonString = this.encode(true);
+        if (null == jsonString) {
+            return;
+        }
+
+        try {
+            // the snapshot must be on disk before the log is truncated
+            File tmpFile = new File(fileName + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            try {
+                out.write(jsonString.getBytes(CHARSET));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), new File(fileName).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            if (null == this.logChannel) {
+                this.openLog(new File(this.configLogFilePath()));
+            }
+            this.logChannel.truncate(0);
+            this.logChannel.position(0);
+            this.logChannel.force(true);
+            this.logRecords = 0;
+            this.dirty = false;
+        } catch (IOException e) {
+            log.error("persist file [{}] exception", fileName, e);
+        }
+    }
+
+    private void openLog(final File logFile) throws IOException {
+        if (logFile.getParentFile() != null) {
+            logFile.getParentFile().mkdirs();
+        }
+        this.logChannel = new RandomAccessFile(logFile, "rw").getChannel();
+    }
+
+    private void closeLog() {
+        if (this.logChannel != null) {
+            try {
+                this.logChannel.close();
+            } catch (IOException e) {
+                log.warn("close config log [{}] exception", this.configLogFilePath(), e);
+            }
+            this.logChannel = null;
+        }
+    }
+}
@@ -35,6 +35,10 @@ public class MessageBatch extends Message implements Iterable<Message> {
         return MessageDecoder.encodeMessages(messages);
     }
 
+    public byte[] encodeInStoreLayout() {
+        return MessageDecoder.encodeMessagesInStoreLayout(messages, getTopic());
+    }
+
     public Iterator<Message> iterator() {
         return messages.iterator();
     }
@@ -37,6 +37,7 @@ public class MessageDecoder {
     public final static int MESSAGE_MAGIC_CODE_POSTION = 4;
     public final static int MESSAGE_FLAG_POSTION = 16;
     public final static int MESSAGE_PHYSIC_OFFSET_POSTION = 28;
+    public final static int MESSAGE_SYSFLAG_POSITION = 36;
     public final static int MESSAGE_STORE_TIMESTAMP_POSTION = 56;
     public final static int MESSAGE_MAGIC_CODE = 0xAABBCCDD ^ 1880681586 + 8;
     public static final char NAME_VALUE_SEPARATOR = 1;
@@ -500,6 +501,53 @@ public class MessageDecoder {
         return allBytes;
     }
 
+    /**
+     * Encode a batch the way the broker stores it, so that the broker only has to fill in queue id, offsets, hosts
+     * and timestamps before copying the whole batch into the commit log at once.
+     * <p>
+     * Only understood by brokers which recognize the MESSAGE_MAGIC_CODE of the first record, see
+     * CommitLog.MessageExtBatchEncoder.
+     */
+    public static byte[] encodeMessagesInStoreLayout(List<Message> messages, String topic) {
+        byte[] topicData = topic.getBytes(CHARSET_UTF8);
+        List<byte[]> propertiesList = new ArrayList<byte[]>(messages.size());
+        int allSize = 0;
+        for (Message message : messages) {
+            byte[] propertiesBytes = messageProperties2String(message.getProperties()).getBytes(CHARSET_UTF8);
+            propertiesList.add(propertiesBytes);
+            allSize += BODY_SIZE_POSITION + 4 + message.getBody().length + 1 + topicData.length + 2 + propertiesBytes.length;
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(allSize);
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            byte[] body = message.getBody();
+            byte[] propertiesBytes = propertiesList.get(i);
+            // 1 TOTALSIZE
+            byteBuffer.putInt(BODY_SIZE_POSITION + 4 + body.length + 1 + topicData.length + 2 + propertiesBytes.length);
+            // 2 MAGICCODE
+            byteBuffer.putInt(MESSAGE_MAGIC_CODE);
+            // 3 BODYCRC
+            byteBuffer.putInt(UtilAll.crc32(body));
+            // 4 QUEUEID, filled in by the broker
+            byteBuffer.putInt(0);
+            // 5 FLAG
+            byteBuffer.putInt(message.getFlag());
+            // 6 QUEUEOFFSET to 14 Prepared Transaction Offset, filled in by the broker
+            byteBuffer.position(byteBuffer.position() + BODY_SIZE_POSITION - MESSAGE_FLAG_POSTION - 4);
+            // 15 BODY
+            byteBuffer.putInt(body.length);
+            byteBuffer.put(body);
+            // 16 TOPIC
+            byteBuffer.put((byte) topicData.length);
+            byteBuffer.put(topicData);
+            // 17 PROPERTIES
+            byteBuffer.putShort((short) propertiesBytes.length);
+            byteBuffer.put(propertiesBytes);
+        }
+        return byteBuffer.array();
+    }
+
     public static List<Message> decodeMessages(ByteBuffer byteBuffer) throws Exception {
         //TO DO add a callback for processing,  avoid creating lists
         List<Message> msgs = new ArrayList<Message>();
@@ -30,6 +30,12 @@ public class MessageExtBatch extends MessageExt {
 
     private ByteBuffer encodedBuff;
 
+    /**
+     * Set by the broker when the body holds full store layout records whose own sys flag, born timestamp, born host
+     * and reconsume times must be kept instead of being overwritten with the batch's.
+     */
+    private boolean completeRecords = false;
+
     public ByteBuffer getEncodedBuff() {
         return encodedBuff;
     }
@@ -37,4 +43,12 @@ public class MessageExtBatch extends MessageExt {
     public void setEncodedBuff(ByteBuffer encodedBuff) {
         this.encodedBuff = encodedBuff;
     }
+
+    public boolean isCompleteRecords() {
+        return completeRecords;
+    }
+
+    public void setCompleteRecords(boolean completeRecords) {
+        this.completeRecords = completeRecords;
+    }
 }
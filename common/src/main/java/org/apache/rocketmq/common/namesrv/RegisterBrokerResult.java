@@ -23,6 +23,7 @@ public class RegisterBrokerResult {
     private String haServerAddr;
     private String masterAddr;
     private KVTable kvTable;
+    private boolean fullSyncRequired = false;
 
     public String getHaServerAddr() {
         return haServerAddr;
@@ -47,4 +48,12 @@ public class RegisterBrokerResult {
     public void setKvTable(KVTable kvTable) {
         this.kvTable = kvTable;
     }
+
+    public boolean isFullSyncRequired() {
+        return fullSyncRequired;
+    }
+
+    public void setFullSyncRequired(boolean fullSyncRequired) {
+        this.fullSyncRequired = fullSyncRequired;
+    }
 }
@@ -19,11 +19,17 @@ package org.apache.rocketmq.common.protocol.body;
 
 import java.util.ArrayList;
 import java.util.List;
+import org.apache.rocketmq.common.DataVersion;
 import org.apache.rocketmq.remoting.protocol.RemotingSerializable;
 
 public class RegisterBrokerBody extends RemotingSerializable {
     private TopicConfigSerializeWrapper topicConfigSerializeWrapper = new TopicConfigSerializeWrapper();
     private List<String> filterServerList = new ArrayList<String>();
+    /**
+     * Data version the topic configs are changed from, null if they are all of the topic configs
+     */
+    private DataVersion baseDataVersion;
+    private List<String> deletedTopicList;
 
     public TopicConfigSerializeWrapper getTopicConfigSerializeWrapper() {
         return topicConfigSerializeWrapper;
@@ -40,4 +46,20 @@ public class RegisterBrokerBody extends RemotingSerializable {
     public void setFilterServerList(List<String> filterServerList) {
         this.filterServerList = filterServerList;
     }
+
+    public DataVersion getBaseDataVersion() {
+        return baseDataVersion;
+    }
+
+    public void setBaseDataVersion(DataVersion baseDataVersion) {
+        this.baseDataVersion = baseDataVersion;
+    }
+
+    public List<String> getDeletedTopicList() {
+        return deletedTopicList;
+    }
+
+    public void setDeletedTopicList(List<String> deletedTopicList) {
+        this.deletedTopicList = deletedTopicList;
+    }
 }
@@ -26,6 +26,8 @@ public class RegisterBrokerResponseHeader implements CommandCustomHeader {
     private String haServerAddr;
     @CFNullable
     private String masterAddr;
+    @CFNullable
+    private Boolean fullSyncRequired;
 
     @Override
     public void checkFields() throws RemotingCommandException {
@@ -46,4 +48,12 @@ public class RegisterBrokerResponseHeader implements CommandCustomHeader {
     public void setMasterAddr(String masterAddr) {
         this.masterAddr = masterAddr;
     }
+
+    public Boolean getFullSyncRequired() {
+        return fullSyncRequired;
+    }
+
+    public void setFullSyncRequired(Boolean fullSyncRequired) {
+        this.fullSyncRequired = fullSyncRequired;
+    }
 }
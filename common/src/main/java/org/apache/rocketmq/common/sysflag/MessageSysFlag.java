@@ -23,6 +23,11 @@ public class MessageSysFlag {
     public final static int TRANSACTION_PREPARED_TYPE = 0x1 << 2;
     public final static int TRANSACTION_COMMIT_TYPE = 0x2 << 2;
     public final static int TRANSACTION_ROLLBACK_TYPE = 0x3 << 2;
+    /**
+     * Set by the store on records it could not write completely, they keep the CommitLog and consume queue offsets in
+     * order but are never delivered
+     */
+    public final static int FILLER_FLAG = 0x1 << 4;
 
     public static int getTransactionValue(final int flag) {
         return flag & TRANSACTION_ROLLBACK_TYPE;
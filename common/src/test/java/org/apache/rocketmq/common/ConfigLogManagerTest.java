@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.common;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.common.protocol.body.TopicConfigSerializeWrapper;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConfigLogManagerTest {
+    private final String storePath = System.getProperty("java.io.tmpdir") + File.separator + "ConfigLogManagerTest";
+
+    @After
+    public void destroy() {
+        UtilAll.deleteFile(new File(this.storePath));
+    }
+
+    @Test
+    public void testReplay() {
+        TopicConfigLogManager manager = this.newManager(true);
+        manager.put(new TopicConfig("TOPIC_A", 4, 4, 6));
+        manager.put(new TopicConfig("TOPIC_B", 8, 8, 6));
+        manager.put(new TopicConfig("TOPIC_A", 16, 16, 6));
+        manager.remove("TOPIC_B");
+        manager.flush();
+        assertThat(manager.takeChangedKeys()).containsOnly("TOPIC_A", "TOPIC_B");
+        assertThat(manager.takeChangedKeys()).isEmpty();
+
+        // Only the log is written
+        assertThat(new File(manager.configFilePath()).exists()).isFalse();
+
+        TopicConfigLogManager loaded = this.newManager(true);
+        assertThat(loaded.getConfigTable()).containsOnlyKeys("TOPIC_A");
+        assertThat(loaded.getConfigTable().get("TOPIC_A").getWriteQueueNums()).isEqualTo(16);
+        assertThat(loaded.getDataVersion()).isEqualTo(manager.getDataVersion());
+    }
+
+    @Test
+    public void testPartlyWrittenRecord() throws Exception {
+        TopicConfigLogManager manager = this.newManager(true);
+        manager.put(new TopicConfig("TOPIC_A", 4, 4, 6));
+        manager.put(new TopicConfig("TOPIC_B", 8, 8, 6));
+        manager.flush();
+
+        RandomAccessFile logFile = new RandomAccessFile(manager.configLogFilePath(), "rw");
+        logFile.setLength(logFile.length() - 3);
+        logFile.close();
+
+        TopicConfigLogManager loaded = this.newManager(true);
+        assertThat(loaded.getConfigTable()).containsOnlyKeys("TOPIC_A");
+
+        // Appended after the truncated record
+        loaded.put(new TopicConfig("TOPIC_C", 8, 8, 6));
+        loaded.flush();
+        assertThat(this.newManager(true).getConfigTable()).containsOnlyKeys("TOPIC_A", "TOPIC_C");
+    }
+
+    @Test
+    public void testCompact() {
+        TopicConfigLogManager manager = this.newManager(true);
+        for (int i = 0; i < 2000; i++) {
+            manager.put(new TopicConfig("TOPIC_" + i, 4, 4, 6));
+            manager.remove("TOPIC_" + (i - 1));
+        }
+        manager.flush();
+        assertThat(new File(manager.configFilePath()).exists()).isTrue();
+        assertThat(new File(manager.configLogFilePath()).length()).isEqualTo(0);
+
+        manager.put(new TopicConfig("TOPIC_A", 4, 4, 6));
+        manager.flush();
+        TopicConfigLogManager loaded = this.newManager(true);
+        assertThat(loaded.getConfigTable()).containsOnlyKeys("TOPIC_1999", "TOPIC_A");
+        assertThat(loaded.getDataVersion()).isEqualTo(manager.getDataVersion());
+
+        // Written into the config file once disabled
+        loaded = this.newManager(false);
+        assertThat(loaded.getConfigTable()).containsOnlyKeys("TOPIC_1999", "TOPIC_A");
+        assertThat(new File(manager.configLogFilePath()).exists()).isFalse();
+    }
+
+    private TopicConfigLogManager newManager(final boolean configLogEnable) {
+        TopicConfigLogManager manager = new TopicConfigLogManager(this.storePath + File.separator + "topics.json",
+            configLogEnable);
+        assertThat(manager.load()).isTrue();
+        return manager;
+    }
+
+    static class TopicConfigLogManager extends ConfigLogManager<TopicConfig> {
+        private final ConcurrentMap<String, TopicConfig> topicConfigTable = new ConcurrentHashMap<String, TopicConfig>();
+        private final DataVersion dataVersion = new DataVersion();
+        private final String configFilePath;
+        private final boolean configLogEnable;
+
+        TopicConfigLogManager(final String configFilePath, final boolean configLogEnable) {
+            super(TopicConfig.class);
+            this.configFilePath = configFilePath;
+            this.configLogEnable = configLogEnable;
+        }
+
+        void put(final TopicConfig topicConfig) {
+            this.topicConfigTable.put(topicConfig.getTopicName(), topicConfig);
+            this.dataVersion.nextVersion();
+            this.persist(topicConfig.getTopicName());
+        }
+
+        void remove(final String topic) {
+            if (this.topicConfigTable.remove(topic) != null) {
+                this.dataVersion.nextVersion();
+                this.persist(topic);
+            }
+        }
+
+        @Override
+        protected ConcurrentMap<String, TopicConfig> getConfigTable() {
+            return this.topicConfigTable;
+        }
+
+        @Override
+        public DataVersion getDataVersion() {
+            return this.dataVersion;
+        }
+
+        @Override
+        protected boolean isConfigLogEnable() {
+            return this.configLogEnable;
+        }
+
+        @Override
+        public String configFilePath() {
+            return this.configFilePath;
+        }
+
+        @Override
+        public String encode() {
+            return this.encode(false);
+        }
+
+        @Override
+        public String encode(final boolean prettyFormat) {
+            TopicConfigSerializeWrapper topicConfigSerializeWrapper = new TopicConfigSerializeWrapper();
+            topicConfigSerializeWrapper.setTopicConfigTable(this.topicConfigTable);
+            topicConfigSerializeWrapper.setDataVersion(this.dataVersion);
+            return topicConfigSerializeWrapper.toJson(prettyFormat);
+        }
+
+        @Override
+        public void decode(final String jsonString) {
+            TopicConfigSerializeWrapper topicConfigSerializeWrapper =
+                TopicConfigSerializeWrapper.fromJson(jsonString, TopicConfigSerializeWrapper.class);
+            if (topicConfigSerializeWrapper != null) {
+                this.topicConfigTable.putAll(topicConfigSerializeWrapper.getTopicConfigTable());
+                this.dataVersion.assignNewOne(topicConfigSerializeWrapper.getDataVersion());
+            }
+        }
+    }
+}
@@ -17,12 +17,14 @@
 package org.apache.rocketmq.namesrv.processor;
 
 import io.netty.channel.ChannelHandlerContext;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
 import org.apache.rocketmq.common.MQVersion;
 import org.apache.rocketmq.common.MQVersion.Version;
 import org.apache.rocketmq.common.MixAll;
+import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.common.help.FAQUrl;
 import org.apache.rocketmq.common.namesrv.NamesrvUtil;
@@ -192,7 +194,15 @@ public class DefaultRequestProcessor implements NettyRequestProcessor {
         RegisterBrokerBody registerBrokerBody = new RegisterBrokerBody();
 
         if (request.getBody() != null) {
-            registerBrokerBody = RegisterBrokerBody.decode(request.getBody(), RegisterBrokerBody.class);
+            byte[] body = request.getBody();
+            if (Boolean.TRUE.equals(requestHeader.getCompressed())) {
+                try {
+                    body = UtilAll.uncompress(body);
+                } catch (IOException e) {
+                    throw new RemotingCommandException("uncompress register broker body failed", e);
+                }
+            }
+            registerBrokerBody = RegisterBrokerBody.decode(body, RegisterBrokerBody.class);
         } else {
             registerBrokerBody.getTopicConfigSerializeWrapper().getDataVersion().setCounter(new AtomicLong(0));
             registerBrokerBody.getTopicConfigSerializeWrapper().getDataVersion().setTimestamp(0);
@@ -205,11 +215,16 @@ public class DefaultRequestProcessor implements NettyRequestProcessor {
             requestHeader.getBrokerId(),
             requestHeader.getHaServerAddr(),
             registerBrokerBody.getTopicConfigSerializeWrapper(),
+            registerBrokerBody.getBaseDataVersion(),
+            registerBrokerBody.getDeletedTopicList(),
             registerBrokerBody.getFilterServerList(),
             ctx.channel());
 
         responseHeader.setHaServerAddr(result.getHaServerAddr());
         responseHeader.setMasterAddr(result.getMasterAddr());
+        if (result.isFullSyncRequired()) {
+            responseHeader.setFullSyncRequired(true);
+        }
 
         byte[] jsonValue = this.namesrvController.getKvConfigManager().getKVListByNamespace(NamesrvUtil.NAMESPACE_ORDER_TOPIC_CONFIG);
         response.setBody(jsonValue);
@@ -279,17 +294,26 @@ public class DefaultRequestProcessor implements NettyRequestProcessor {
         final GetRouteInfoRequestHeader requestHeader =
             (GetRouteInfoRequestHeader) request.decodeCommandCustomHeader(GetRouteInfoRequestHeader.class);
 
-        TopicRouteData topicRouteData = this.namesrvController.getRouteInfoManager().pickupTopicRouteData(requestHeader.getTopic());
+        String orderTopicConf = null;
+        if (this.namesrvController.getNamesrvConfig().isOrderMessageEnable()) {
+            orderTopicConf =
+                this.namesrvController.getKvConfigManager().getKVConfig(NamesrvUtil.NAMESPACE_ORDER_TOPIC_CONFIG,
+                    requestHeader.getTopic());
+        }
 
-        if (topicRouteData != null) {
-            if (this.namesrvController.getNamesrvConfig().isOrderMessageEnable()) {
-                String orderTopicConf =
-                    this.namesrvController.getKvConfigManager().getKVConfig(NamesrvUtil.NAMESPACE_ORDER_TOPIC_CONFIG,
-                        requestHeader.getTopic());
+        // The route is encoded once until it changes, unless it is extended with the order topic config
+        byte[] content = null;
+        if (null == orderTopicConf) {
+            content = this.namesrvController.getRouteInfoManager().pickupTopicRouteBody(requestHeader.getTopic());
+        } else {
+            TopicRouteData topicRouteData = this.namesrvController.getRouteInfoManager().pickupTopicRouteData(requestHeader.getTopic());
+            if (topicRouteData != null) {
                 topicRouteData.setOrderTopicConf(orderTopicConf);
+                content = topicRouteData.encode();
             }
+        }
 
-            byte[] content = topicRouteData.encode();
+        if (content != null) {
             response.setBody(content);
             response.setCode(ResponseCode.SUCCESS);
             response.setRemark(null);
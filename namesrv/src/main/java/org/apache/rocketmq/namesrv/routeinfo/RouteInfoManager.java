@@ -17,6 +17,7 @@
 package org.apache.rocketmq.namesrv.routeinfo;
 
 import io.netty.channel.Channel;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -25,6 +26,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -54,6 +56,12 @@ public class RouteInfoManager {
     private final HashMap<String/* clusterName */, Set<String/* brokerName */>> clusterAddrTable;
     private final HashMap<String/* brokerAddr */, BrokerLiveInfo> brokerLiveTable;
     private final HashMap<String/* brokerAddr */, List<String>/* Filter Server */> filterServerTable;
+    /**
+     * Routes picked up since they last changed, so that reading them takes no lock. They are built under the read lock
+     * and dropped under the write lock, thus none outlives a change of the tables.
+     */
+    private final ConcurrentMap<String/* topic */, TopicRouteSnapshot> topicRouteSnapshotTable =
+        new ConcurrentHashMap<String, TopicRouteSnapshot>(1024);
 
     public RouteInfoManager() {
         this.topicQueueTable = new HashMap<String, List<QueueData>>(1024);
@@ -75,6 +83,7 @@ public class RouteInfoManager {
             try {
                 this.lock.writeLock().lockInterruptibly();
                 this.topicQueueTable.remove(topic);
+                this.topicRouteSnapshotTable.remove(topic);
             } finally {
                 this.lock.writeLock().unlock();
             }
@@ -108,11 +117,36 @@ public class RouteInfoManager {
         final TopicConfigSerializeWrapper topicConfigWrapper,
         final List<String> filterServerList,
         final Channel channel) {
+        return this.registerBroker(clusterName, brokerAddr, brokerName, brokerId, haServerAddr, topicConfigWrapper,
+            null, null, filterServerList, channel);
+    }
+
+    /**
+     * @param baseDataVersion if not null, topicConfigWrapper and deletedTopicList only hold the topics changed since
+     * it, and all topics are required unless the broker has registered a data version not before it
+     */
+    public RegisterBrokerResult registerBroker(
+        final String clusterName,
+        final String brokerAddr,
+        final String brokerName,
+        final long brokerId,
+        final String haServerAddr,
+        final TopicConfigSerializeWrapper topicConfigWrapper,
+        final DataVersion baseDataVersion,
+        final List<String> deletedTopicList,
+        final List<String> filterServerList,
+        final Channel channel) {
         RegisterBrokerResult result = new RegisterBrokerResult();
         try {
             try {
                 this.lock.writeLock().lockInterruptibly();
 
+                if (baseDataVersion != null && this.isBrokerTopicConfigBehind(brokerAddr, baseDataVersion)) {
+                    log.info("broker {} registers topics changed since {}, require all of them", brokerAddr, baseDataVersion);
+                    result.setFullSyncRequired(true);
+                    return result;
+                }
+
                 Set<String> brokerNames = this.clusterAddrTable.get(clusterName);
                 if (null == brokerNames) {
                     brokerNames = new HashSet<String>();
@@ -130,10 +164,26 @@ public class RouteInfoManager {
                 }
                 String oldAddr = brokerData.getBrokerAddrs().put(brokerId, brokerAddr);
                 registerFirst = registerFirst || (null == oldAddr);
+                if (!brokerAddr.equals(oldAddr)) {
+                    this.topicRouteSnapshotTable.clear();
+                }
 
                 if (null != topicConfigWrapper
                     && MixAll.MASTER_ID == brokerId) {
-                    if (this.isBrokerTopicConfigChanged(brokerAddr, topicConfigWrapper.getDataVersion())
+                    if (baseDataVersion != null) {
+                        ConcurrentMap<String, TopicConfig> tcTable =
+                            topicConfigWrapper.getTopicConfigTable();
+                        if (tcTable != null) {
+                            for (Map.Entry<String, TopicConfig> entry : tcTable.entrySet()) {
+                                this.createAndUpdateQueueData(brokerName, entry.getValue());
+                            }
+                        }
+                        if (deletedTopicList != null) {
+                            for (String topic : deletedTopicList) {
+                                this.removeQueueData(brokerName, topic);
+                            }
+                        }
+                    } else if (this.isBrokerTopicConfigChanged(brokerAddr, topicConfigWrapper.getDataVersion())
                         || registerFirst) {
                         ConcurrentMap<String, TopicConfig> tcTable =
                             topicConfigWrapper.getTopicConfigTable();
@@ -156,10 +206,14 @@ public class RouteInfoManager {
                 }
 
                 if (filterServerList != null) {
+                    List<String> prevFilterServerList;
                     if (filterServerList.isEmpty()) {
-                        this.filterServerTable.remove(brokerAddr);
+                        prevFilterServerList = this.filterServerTable.remove(brokerAddr);
                     } else {
-                        this.filterServerTable.put(brokerAddr, filterServerList);
+                        prevFilterServerList = this.filterServerTable.put(brokerAddr, filterServerList);
+                    }
+                    if (null == prevFilterServerList ? !filterServerList.isEmpty() : !prevFilterServerList.equals(filterServerList)) {
+                        this.topicRouteSnapshotTable.clear();
                     }
                 }
 
@@ -192,6 +246,33 @@ public class RouteInfoManager {
         return false;
     }
 
+    /**
+     * A broker which has registered a data version before the base one has missed some of the changes since it
+     */
+    private boolean isBrokerTopicConfigBehind(final String brokerAddr, final DataVersion baseDataVersion) {
+        BrokerLiveInfo prev = this.brokerLiveTable.get(brokerAddr);
+        return null == prev || prev.getDataVersion().getCounter().get() < baseDataVersion.getCounter().get();
+    }
+
+    private void removeQueueData(final String brokerName, final String topic) {
+        List<QueueData> queueDataList = this.topicQueueTable.get(topic);
+        if (queueDataList != null) {
+            Iterator<QueueData> it = queueDataList.iterator();
+            while (it.hasNext()) {
+                QueueData qd = it.next();
+                if (qd.getBrokerName().equals(brokerName)) {
+                    log.info("topic deleted from broker, {} {}", topic, qd);
+                    it.remove();
+                    this.topicRouteSnapshotTable.remove(topic);
+                }
+            }
+
+            if (queueDataList.isEmpty()) {
+                this.topicQueueTable.remove(topic);
+            }
+        }
+    }
+
     private void createAndUpdateQueueData(final String brokerName, final TopicConfig topicConfig) {
         QueueData queueData = new QueueData();
         queueData.setBrokerName(brokerName);
@@ -205,6 +286,7 @@ public class RouteInfoManager {
             queueDataList = new LinkedList<QueueData>();
             queueDataList.add(queueData);
             this.topicQueueTable.put(topicConfig.getTopicName(), queueDataList);
+            this.topicRouteSnapshotTable.remove(topicConfig.getTopicName());
             log.info("new topic registerd, {} {}", topicConfig.getTopicName(), queueData);
         } else {
             boolean addNewOne = true;
@@ -225,6 +307,7 @@ public class RouteInfoManager {
 
             if (addNewOne) {
                 queueDataList.add(queueData);
+                this.topicRouteSnapshotTable.remove(topicConfig.getTopicName());
             }
         }
     }
@@ -259,6 +342,7 @@ public class RouteInfoManager {
                     perm &= ~PermName.PERM_WRITE;
                     qd.setPerm(perm);
                     wipeTopicCnt++;
+                    this.topicRouteSnapshotTable.remove(entry.getKey());
                 }
             }
         }
@@ -274,6 +358,7 @@ public class RouteInfoManager {
         try {
             try {
                 this.lock.writeLock().lockInterruptibly();
+                this.topicRouteSnapshotTable.clear();
                 BrokerLiveInfo brokerLiveInfo = this.brokerLiveTable.remove(brokerAddr);
                 log.info("unregisterBroker, remove from brokerLiveTable {}, {}",
                     brokerLiveInfo != null ? "OK" : "Failed",
@@ -349,7 +434,32 @@ public class RouteInfoManager {
         }
     }
 
+    /**
+     * @return a copy of the route of the topic, null if it has none
+     */
     public TopicRouteData pickupTopicRouteData(final String topic) {
+        TopicRouteSnapshot snapshot = this.pickupTopicRouteSnapshot(topic);
+        return snapshot != null ? snapshot.topicRouteData.cloneTopicRouteData() : null;
+    }
+
+    /**
+     * @return the encoded route of the topic, null if it has none
+     */
+    public byte[] pickupTopicRouteBody(final String topic) {
+        TopicRouteSnapshot snapshot = this.pickupTopicRouteSnapshot(topic);
+        return snapshot != null ? snapshot.encode() : null;
+    }
+
+    private TopicRouteSnapshot pickupTopicRouteSnapshot(final String topic) {
+        if (null == topic) {
+            return null;
+        }
+
+        TopicRouteSnapshot snapshot = this.topicRouteSnapshotTable.get(topic);
+        if (snapshot != null) {
+            return snapshot;
+        }
+
         TopicRouteData topicRouteData = new TopicRouteData();
         boolean foundQueueData = false;
         boolean foundBrokerData = false;
@@ -365,13 +475,15 @@ public class RouteInfoManager {
                 this.lock.readLock().lockInterruptibly();
                 List<QueueData> queueDataList = this.topicQueueTable.get(topic);
                 if (queueDataList != null) {
-                    topicRouteData.setQueueDatas(queueDataList);
+                    List<QueueData> queueDataListClone = new ArrayList<QueueData>(queueDataList.size());
+                    topicRouteData.setQueueDatas(queueDataListClone);
                     foundQueueData = true;
 
                     Iterator<QueueData> it = queueDataList.iterator();
                     while (it.hasNext()) {
                         QueueData qd = it.next();
                         brokerNameSet.add(qd.getBrokerName());
+                        queueDataListClone.add(this.cloneQueueData(qd));
                     }
 
                     for (String brokerName : brokerNameSet) {
@@ -388,6 +500,11 @@ public class RouteInfoManager {
                         }
                     }
                 }
+
+                if (foundBrokerData && foundQueueData) {
+                    snapshot = new TopicRouteSnapshot(topicRouteData);
+                    this.topicRouteSnapshotTable.put(topic, snapshot);
+                }
             } finally {
                 this.lock.readLock().unlock();
             }
@@ -399,11 +516,17 @@ public class RouteInfoManager {
             log.debug("pickupTopicRouteData {} {}", topic, topicRouteData);
         }
 
-        if (foundBrokerData && foundQueueData) {
-            return topicRouteData;
-        }
+        return snapshot;
+    }
 
-        return null;
+    private QueueData cloneQueueData(final QueueData queueData) {
+        QueueData queueDataClone = new QueueData();
+        queueDataClone.setBrokerName(queueData.getBrokerName());
+        queueDataClone.setReadQueueNums(queueData.getReadQueueNums());
+        queueDataClone.setWriteQueueNums(queueData.getWriteQueueNums());
+        queueDataClone.setPerm(queueData.getPerm());
+        queueDataClone.setTopicSynFlag(queueData.getTopicSynFlag());
+        return queueDataClone;
     }
 
     public void scanNotActiveBroker() {
@@ -454,6 +577,7 @@ public class RouteInfoManager {
             try {
                 try {
                     this.lock.writeLock().lockInterruptibly();
+                    this.topicRouteSnapshotTable.clear();
                     this.brokerLiveTable.remove(brokerAddrFound);
                     this.filterServerTable.remove(brokerAddrFound);
                     String brokerNameFound = null;
@@ -784,3 +908,24 @@ class BrokerLiveInfo {
             + ", channel=" + channel + ", haServerAddr=" + haServerAddr + "]";
     }
 }
+
+/**
+ * Route of a topic which is never changed, encoded once it is read.
+ */
+class TopicRouteSnapshot {
+    final TopicRouteData topicRouteData;
+    private volatile byte[] body;
+
+    TopicRouteSnapshot(final TopicRouteData topicRouteData) {
+        this.topicRouteData = topicRouteData;
+    }
+
+    byte[] encode() {
+        byte[] result = this.body;
+        if (null == result) {
+            result = this.topicRouteData.encode();
+            this.body = result;
+        }
+        return result;
+    }
+}
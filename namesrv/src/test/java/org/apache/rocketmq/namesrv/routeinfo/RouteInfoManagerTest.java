@@ -18,7 +18,10 @@ package org.apache.rocketmq.namesrv.routeinfo;
 
 import io.netty.channel.Channel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
+import org.apache.rocketmq.common.DataVersion;
+import org.apache.rocketmq.common.MixAll;
 import org.apache.rocketmq.common.TopicConfig;
 import org.apache.rocketmq.common.namesrv.RegisterBrokerResult;
 import org.apache.rocketmq.common.protocol.body.TopicConfigSerializeWrapper;
@@ -78,6 +81,73 @@ public class RouteInfoManagerTest {
         assertThat(registerBrokerResult).isNotNull();
     }
 
+    @Test
+    public void testRegisterBrokerDelta() {
+        Channel channel = mock(Channel.class);
+        TopicConfigSerializeWrapper topicConfigWrapper = new TopicConfigSerializeWrapper();
+        topicConfigWrapper.getTopicConfigTable().put("TOPIC_A", new TopicConfig("TOPIC_A", 8, 8, 6));
+        DataVersion baseDataVersion = new DataVersion();
+        baseDataVersion.assignNewOne(topicConfigWrapper.getDataVersion());
+
+        // Changes are not taken before all topics are registered
+        RegisterBrokerResult result = routeInfoManager.registerBroker("default-cluster", "127.0.0.1:10921", "delta-broker",
+            MixAll.MASTER_ID, "127.0.0.1:1001", topicConfigWrapper, baseDataVersion, null, null, channel);
+        assertThat(result.isFullSyncRequired()).isTrue();
+        result = routeInfoManager.registerBroker("default-cluster", "127.0.0.1:10921", "delta-broker",
+            MixAll.MASTER_ID, "127.0.0.1:1001", topicConfigWrapper, null, channel);
+        assertThat(result.isFullSyncRequired()).isFalse();
+        assertThat(routeInfoManager.pickupTopicRouteData("TOPIC_A")).isNotNull();
+
+        TopicConfigSerializeWrapper deltaWrapper = new TopicConfigSerializeWrapper();
+        deltaWrapper.getTopicConfigTable().put("TOPIC_B", new TopicConfig("TOPIC_B", 4, 4, 6));
+        deltaWrapper.getDataVersion().assignNewOne(baseDataVersion);
+        deltaWrapper.getDataVersion().nextVersion();
+        result = routeInfoManager.registerBroker("default-cluster", "127.0.0.1:10921", "delta-broker",
+            MixAll.MASTER_ID, "127.0.0.1:1001", deltaWrapper, baseDataVersion, Collections.singletonList("TOPIC_A"),
+            null, channel);
+        assertThat(result.isFullSyncRequired()).isFalse();
+        assertThat(routeInfoManager.pickupTopicRouteData("TOPIC_A")).isNull();
+        assertThat(routeInfoManager.pickupTopicRouteData("TOPIC_B").getQueueDatas().get(0).getWriteQueueNums()).isEqualTo(4);
+
+        // Changes since a data version the broker has not registered are missing some
+        DataVersion unknownDataVersion = new DataVersion();
+        unknownDataVersion.assignNewOne(deltaWrapper.getDataVersion());
+        unknownDataVersion.nextVersion();
+        result = routeInfoManager.registerBroker("default-cluster", "127.0.0.1:10921", "delta-broker",
+            MixAll.MASTER_ID, "127.0.0.1:1001", new TopicConfigSerializeWrapper(), unknownDataVersion, null, null, channel);
+        assertThat(result.isFullSyncRequired()).isTrue();
+
+        routeInfoManager.unregisterBroker("default-cluster", "127.0.0.1:10921", "delta-broker", MixAll.MASTER_ID);
+    }
+
+    @Test
+    public void testPickupTopicRouteSnapshot() {
+        Channel channel = mock(Channel.class);
+        TopicConfigSerializeWrapper topicConfigWrapper = new TopicConfigSerializeWrapper();
+        topicConfigWrapper.getTopicConfigTable().put("TOPIC_A", new TopicConfig("TOPIC_A", 8, 8, 6));
+        routeInfoManager.registerBroker("default-cluster", "127.0.0.1:10931", "snapshot-broker", MixAll.MASTER_ID,
+            "127.0.0.1:1001", topicConfigWrapper, null, channel);
+
+        // Encoded once and kept while the route does not change
+        byte[] body = routeInfoManager.pickupTopicRouteBody("TOPIC_A");
+        assertThat(routeInfoManager.pickupTopicRouteBody("TOPIC_A")).isSameAs(body);
+        topicConfigWrapper.getDataVersion().nextVersion();
+        routeInfoManager.registerBroker("default-cluster", "127.0.0.1:10931", "snapshot-broker", MixAll.MASTER_ID,
+            "127.0.0.1:1001", topicConfigWrapper, null, channel);
+        assertThat(routeInfoManager.pickupTopicRouteBody("TOPIC_A")).isSameAs(body);
+
+        // Copies are handed out, the snapshot is left as it is
+        routeInfoManager.pickupTopicRouteData("TOPIC_A").getQueueDatas().clear();
+        assertThat(routeInfoManager.pickupTopicRouteData("TOPIC_A").getQueueDatas()).hasSize(1);
+
+        routeInfoManager.wipeWritePermOfBrokerByLock("snapshot-broker");
+        assertThat(routeInfoManager.pickupTopicRouteBody("TOPIC_A")).isNotSameAs(body);
+        assertThat(routeInfoManager.pickupTopicRouteData("TOPIC_A").getQueueDatas().get(0).getPerm()).isEqualTo(4);
+
+        routeInfoManager.unregisterBroker("default-cluster", "127.0.0.1:10931", "snapshot-broker", MixAll.MASTER_ID);
+        assertThat(routeInfoManager.pickupTopicRouteBody("TOPIC_A")).isNull();
+    }
+
     @Test
     public void testWipeWritePermOfBrokerByLock() {
         int result = routeInfoManager.wipeWritePermOfBrokerByLock("default-broker");
@@ -163,14 +163,18 @@ public class RemotingUtil {
     }
 
     public static SocketChannel connect(SocketAddress remote, final int timeoutMillis) {
+        return connect(remote, timeoutMillis, 1024 * 64);
+    }
+
+    public static SocketChannel connect(SocketAddress remote, final int timeoutMillis, final int socketBufferSize) {
         SocketChannel sc = null;
         try {
             sc = SocketChannel.open();
             sc.configureBlocking(true);
             sc.socket().setSoLinger(false, -1);
             sc.socket().setTcpNoDelay(true);
-            sc.socket().setReceiveBufferSize(1024 * 64);
-            sc.socket().setSendBufferSize(1024 * 64);
+            sc.socket().setReceiveBufferSize(socketBufferSize);
+            sc.socket().setSendBufferSize(socketBufferSize);
             sc.socket().connect(remote, timeoutMillis);
             sc.configureBlocking(false);
             return sc;
@@ -18,12 +18,18 @@ package org.apache.rocketmq.store;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.ThreadFactoryImpl;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.common.message.MessageAccessor;
@@ -34,8 +40,11 @@ import org.apache.rocketmq.common.message.MessageExtBatch;
 import org.apache.rocketmq.common.sysflag.MessageSysFlag;
 import org.apache.rocketmq.store.config.BrokerRole;
 import org.apache.rocketmq.store.config.FlushDiskType;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
 import org.apache.rocketmq.store.ha.HAService;
 import org.apache.rocketmq.store.schedule.ScheduleMessageService;
+import org.apache.rocketmq.store.tiered.TieredStoreService;
+import org.apache.rocketmq.store.timer.TimerMessageStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +57,15 @@ public class CommitLog {
     private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
     // End of file empty MAGIC CODE cbd43194
     private final static int BLANK_MAGIC_CODE = 0xBBCCDDEE ^ 1880681586 + 8;
+    // Positions of the fields of a stored message, see MessageDecoder for the others
+    private final static int MESSAGE_BODY_CRC_POSITION = 8;
+    private final static int MESSAGE_QUEUE_ID_POSITION = 12;
+    private final static int MESSAGE_QUEUE_OFFSET_POSITION = 20;
+    private final static int MESSAGE_BORN_TIMESTAMP_POSITION = 40;
+    private final static int MESSAGE_BORN_HOST_POSITION = 48;
+    private final static int MESSAGE_STORE_HOST_POSITION = 64;
+    private final static int MESSAGE_RECONSUME_TIMES_POSITION = 72;
+    private final static int MESSAGE_PREPARED_TRANSACTION_OFFSET_POSITION = 76;
     private final MappedFileQueue mappedFileQueue;
     private final DefaultMessageStore defaultMessageStore;
     private final FlushCommitLogService flushCommitLogService;
@@ -57,16 +75,34 @@ public class CommitLog {
 
     private final AppendMessageCallback appendMessageCallback;
     private final ThreadLocal<MessageExtBatchEncoder> batchEncoderThreadLocal;
-    private HashMap<String/* topic-queueid */, Long/* offset */> topicQueueTable = new HashMap<String, Long>(1024);
+    private final ThreadLocal<MessageExtEncoder> encoderThreadLocal;
+    // Completes asynchronous puts still waiting for the disk or the slave after syncFlushTimeout
+    private final ScheduledThreadPoolExecutor putMessageTimeoutExecutor;
+    private QueueOffsetTable topicQueueTable;
     private volatile long confirmOffset = -1L;
 
     private volatile long beginTimeInLock = 0;
     private final PutMessageLock putMessageLock;
+    // Only reserve space while holding putMessageLock, encode and copy outside of it
+    private final boolean multiWriterAppend;
+    // Index of this CommitLog among the shards of the store and the first physical offset it owns
+    private final int shardIndex;
+    private final long baseOffset;
 
     public CommitLog(final DefaultMessageStore defaultMessageStore) {
-        this.mappedFileQueue = new MappedFileQueue(defaultMessageStore.getMessageStoreConfig().getStorePathCommitLog(),
+        this(defaultMessageStore, defaultMessageStore.getMessageStoreConfig().getStorePathCommitLog(), 0, 0);
+    }
+
+    protected CommitLog(final DefaultMessageStore defaultMessageStore, final String storePath, final int shardIndex,
+        final long baseOffset) {
+        this.mappedFileQueue = new MappedFileQueue(storePath,
             defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog(), defaultMessageStore.getAllocateMappedFileService());
         this.defaultMessageStore = defaultMessageStore;
+        this.shardIndex = shardIndex;
+        this.baseOffset = baseOffset;
+        this.mappedFileQueue.setFlushedWhere(baseOffset);
+        this.mappedFileQueue.setCommittedWhere(baseOffset);
+        this.topicQueueTable = new QueueOffsetTable(1024);
 
         if (FlushDiskType.SYNC_FLUSH == defaultMessageStore.getMessageStoreConfig().getFlushDiskType()) {
             this.flushCommitLogService = new GroupCommitService();
@@ -83,8 +119,36 @@ public class CommitLog {
                 return new MessageExtBatchEncoder(defaultMessageStore.getMessageStoreConfig().getMaxMessageSize());
             }
         };
+        encoderThreadLocal = new ThreadLocal<MessageExtEncoder>() {
+            @Override
+            protected MessageExtEncoder initialValue() {
+                return new MessageExtEncoder(defaultMessageStore.getMessageStoreConfig().getMaxMessageSize());
+            }
+        };
+        this.putMessageTimeoutExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryImpl("PutMessageTimeoutThread_"));
+        this.putMessageTimeoutExecutor.setRemoveOnCancelPolicy(true);
         this.putMessageLock = defaultMessageStore.getMessageStoreConfig().isUseReentrantLockWhenPutMessage() ? new PutMessageReentrantLock() : new PutMessageSpinLock();
+        this.multiWriterAppend = defaultMessageStore.getMessageStoreConfig().isMultiWriterAppendEnable();
+
+    }
 
+    /**
+     * For {@link ShardedCommitLog}, which routes every call to its shards and has no files, services or offset table
+     * of its own
+     */
+    CommitLog(final DefaultMessageStore defaultMessageStore, final boolean routing) {
+        this.defaultMessageStore = defaultMessageStore;
+        this.mappedFileQueue = null;
+        this.shardIndex = 0;
+        this.baseOffset = 0;
+        this.flushCommitLogService = null;
+        this.commitLogService = null;
+        this.appendMessageCallback = null;
+        this.batchEncoderThreadLocal = null;
+        this.encoderThreadLocal = null;
+        this.putMessageTimeoutExecutor = null;
+        this.putMessageLock = null;
+        this.multiWriterAppend = false;
     }
 
     public boolean load() {
@@ -96,17 +160,29 @@ public class CommitLog {
     public void start() {
         this.flushCommitLogService.start();
 
-        if (defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+        if (this.isCommitRealTime()) {
             this.commitLogService.start();
         }
     }
 
     public void shutdown() {
-        if (defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+        if (this.isCommitRealTime()) {
             this.commitLogService.shutdown();
         }
 
         this.flushCommitLogService.shutdown();
+        // Pending timeouts still run, so no asynchronous put is left uncompleted
+        this.putMessageTimeoutExecutor.shutdown();
+    }
+
+    /**
+     * Data sits in a write buffer until CommitRealTimeService commits it, with SYNC_FLUSH GroupCommitService commits
+     * direct I/O files itself
+     */
+    private boolean isCommitRealTime() {
+        MessageStoreConfig messageStoreConfig = this.defaultMessageStore.getMessageStoreConfig();
+        return messageStoreConfig.isTransientStorePoolEnable()
+            || messageStoreConfig.isDirectIOFlushEnable() && FlushDiskType.ASYNC_FLUSH == messageStoreConfig.getFlushDiskType();
     }
 
     public long flush() {
@@ -116,7 +192,7 @@ public class CommitLog {
     }
 
     public long getMaxOffset() {
-        return this.mappedFileQueue.getMaxOffset();
+        return Math.max(this.baseOffset, this.mappedFileQueue.getMaxOffset());
     }
 
     public long remainHowManyDataToCommit() {
@@ -133,14 +209,20 @@ public class CommitLog {
         final long intervalForcibly,
         final boolean cleanImmediately
     ) {
-        return this.mappedFileQueue.deleteExpiredFileByTime(expiredTime, deleteFilesInterval, intervalForcibly, cleanImmediately);
+        long maxDeletableOffset = Long.MAX_VALUE;
+        TieredStoreService tieredStoreService = this.defaultMessageStore.getTieredStoreService();
+        if (tieredStoreService != null) {
+            maxDeletableOffset = tieredStoreService.getMaxDeletableOffset(TieredStoreService.commitLogPrefix(this.shardIndex), this.mappedFileQueue);
+        }
+        return this.mappedFileQueue.deleteExpiredFileByTime(expiredTime, deleteFilesInterval, intervalForcibly, cleanImmediately,
+            maxDeletableOffset);
     }
 
     /**
      * Read CommitLog data, use data replication
      */
     public SelectMappedBufferResult getData(final long offset) {
-        return this.getData(offset, offset == 0);
+        return this.getData(offset, offset == this.baseOffset);
     }
 
     public SelectMappedBufferResult getData(final long offset, final boolean returnFirstOnNotFound) {
@@ -326,6 +408,15 @@ public class CommitLog {
                                 storeTimestamp);
                         }
                     }
+
+                    String deliverMs = propertiesMap.get(MessageConst.PROPERTY_TIMER_DELIVER_MS);
+                    if (TimerMessageStore.TIMER_TOPIC.equals(topic) && deliverMs != null) {
+                        try {
+                            tagsCode = Long.parseLong(deliverMs);
+                        } catch (NumberFormatException e) {
+                            tagsCode = storeTimestamp;
+                        }
+                    }
                 }
             }
 
@@ -362,7 +453,7 @@ public class CommitLog {
         return new DispatchRequest(-1, false /* success */);
     }
 
-    private static int calMsgLength(int bodyLength, int topicLength, int propertiesLength) {
+    static int calMsgLength(int bodyLength, int topicLength, int propertiesLength) {
         final int msgLen = 4 //TOTALSIZE
             + 4 //MAGICCODE
             + 4 //BODYCRC
@@ -398,11 +489,19 @@ public class CommitLog {
         final List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
         if (!mappedFiles.isEmpty()) {
             // Looking beginning to recover from which file
+            final long checkpointOffset = this.getRecoverCheckpointOffset();
             int index = mappedFiles.size() - 1;
             MappedFile mappedFile = null;
+            int position = 0;
             for (; index >= 0; index--) {
                 mappedFile = mappedFiles.get(index);
-                if (this.isMappedFileMatchedRecover(mappedFile)) {
+                if (checkpointOffset >= 0) {
+                    if (checkpointOffset >= mappedFile.getFileFromOffset()) {
+                        log.info("recover from checkpoint offset {} of maped file {}", checkpointOffset, mappedFile.getFileName());
+                        position = (int) (checkpointOffset - mappedFile.getFileFromOffset());
+                        break;
+                    }
+                } else if (this.isMappedFileMatchedRecover(mappedFile)) {
                     log.info("recover from this maped file " + mappedFile.getFileName());
                     break;
                 }
@@ -413,12 +512,24 @@ public class CommitLog {
                 mappedFile = mappedFiles.get(index);
             }
 
+            final int fromIndex = index;
+            int[] verifiedSizes = null;
+            if (checkCRCOnRecover && this.defaultMessageStore.getMessageStoreConfig().isParallelRecoverEnable()
+                && mappedFiles.size() - fromIndex > 1) {
+                verifiedSizes = this.verifyMappedFiles(mappedFiles, fromIndex, position);
+            }
+
             ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            byteBuffer.position(position);
             long processOffset = mappedFile.getFileFromOffset();
-            long mappedFileOffset = 0;
+            long mappedFileOffset = position;
             while (true) {
-                DispatchRequest dispatchRequest = this.checkMessageAndReturnSize(byteBuffer, checkCRCOnRecover);
+                DispatchRequest dispatchRequest = this.checkMessageAndReturnSize(byteBuffer, checkCRCOnRecover && null == verifiedSizes);
                 int size = dispatchRequest.getMsgSize();
+                // The CRC check of the rest of the file has failed
+                if (verifiedSizes != null && size > 0 && mappedFileOffset >= verifiedSizes[index - fromIndex]) {
+                    size = -1;
+                }
 
                 // Normal data
                 if (size > 0) {
@@ -467,9 +578,72 @@ public class CommitLog {
         }
         // Commitlog case files are deleted
         else {
-            this.mappedFileQueue.setFlushedWhere(0);
-            this.mappedFileQueue.setCommittedWhere(0);
-            this.defaultMessageStore.destroyLogics();
+            this.mappedFileQueue.setFlushedWhere(this.baseOffset);
+            this.mappedFileQueue.setCommittedWhere(this.baseOffset);
+            if (this.baseOffset == 0) {
+                this.defaultMessageStore.destroyLogics();
+            } else {
+                // Other shards still own their consume queues, only drop the ones of this shard
+                this.defaultMessageStore.truncateDirtyLogicFiles(this.baseOffset);
+            }
+        }
+    }
+
+    /**
+     * @return the CommitLog offset kept by the checkpoint, below which messages are flushed and dispatched, -1 if it
+     * can not be used
+     */
+    private long getRecoverCheckpointOffset() {
+        // The offset does not cover the index
+        if (this.defaultMessageStore.getMessageStoreConfig().isMessageIndexEnable()
+            && this.defaultMessageStore.getMessageStoreConfig().isMessageIndexSafe()) {
+            return -1;
+        }
+
+        long offset = this.defaultMessageStore.getStoreCheckpoint().getMinOffset(this.shardIndex);
+        if (offset < this.mappedFileQueue.getMinOffset() || offset > this.mappedFileQueue.getMaxOffset()) {
+            return -1;
+        }
+        return offset;
+    }
+
+    /**
+     * Check messages of the mapped files from fromIndex on, every file in one recover thread.
+     *
+     * @return size of the messages passed the check at the beginning of every file, null if the check failed to run
+     */
+    private int[] verifyMappedFiles(final List<MappedFile> mappedFiles, final int fromIndex, final int fromPosition) {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = fromIndex; i < mappedFiles.size(); i++) {
+            final MappedFile mappedFile = mappedFiles.get(i);
+            final int position = i == fromIndex ? fromPosition : 0;
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+                    byteBuffer.position(position);
+                    int verifiedSize = position;
+                    for (int size = 1; size > 0; ) {
+                        size = CommitLog.this.checkMessageAndReturnSize(byteBuffer, true).getMsgSize();
+                        if (size > 0) {
+                            verifiedSize += size;
+                        }
+                    }
+                    return verifiedSize;
+                }
+            });
+        }
+
+        try {
+            List<Integer> results = this.defaultMessageStore.runRecoverTasks(tasks);
+            int[] verifiedSizes = new int[results.size()];
+            for (int i = 0; i < verifiedSizes.length; i++) {
+                verifiedSizes[i] = results.get(i);
+            }
+            return verifiedSizes;
+        } catch (Exception e) {
+            log.warn("check physics files in parallel failed, check them one by one", e);
+            return null;
         }
     }
 
@@ -488,14 +662,14 @@ public class CommitLog {
 
         if (this.defaultMessageStore.getMessageStoreConfig().isMessageIndexEnable()
             && this.defaultMessageStore.getMessageStoreConfig().isMessageIndexSafe()) {
-            if (storeTimestamp <= this.defaultMessageStore.getStoreCheckpoint().getMinTimestampIndex()) {
+            if (storeTimestamp <= this.defaultMessageStore.getStoreCheckpoint().getMinTimestampIndex(this.shardIndex)) {
                 log.info("find check timestamp, {} {}",
                     storeTimestamp,
                     UtilAll.timeMillisToHumanString(storeTimestamp));
                 return true;
             }
         } else {
-            if (storeTimestamp <= this.defaultMessageStore.getStoreCheckpoint().getMinTimestamp()) {
+            if (storeTimestamp <= this.defaultMessageStore.getStoreCheckpoint().getMinTimestamp(this.shardIndex)) {
                 log.info("find check timestamp, {} {}",
                     storeTimestamp,
                     UtilAll.timeMillisToHumanString(storeTimestamp));
@@ -519,11 +693,54 @@ public class CommitLog {
     }
 
     public PutMessageResult putMessage(final MessageExtBrokerInner msg) {
+        PutMessageResult putMessageResult = this.appendMessage(msg);
+        if (PutMessageStatus.PUT_OK == putMessageResult.getPutMessageStatus()) {
+            handleDiskFlush(putMessageResult.getAppendMessageResult(), putMessageResult, msg);
+            handleHA(putMessageResult.getAppendMessageResult(), putMessageResult, msg);
+        }
+        return putMessageResult;
+    }
+
+    /**
+     * Same as {@link #putMessage(MessageExtBrokerInner)}, but instead of waiting for the disk flush and the slave the
+     * returned future is completed by GroupCommitService and GroupTransferService.
+     */
+    public PutMessageFuture asyncPutMessage(final MessageExtBrokerInner msg) {
+        PutMessageResult putMessageResult = this.appendMessage(msg);
+        if (PutMessageStatus.PUT_OK != putMessageResult.getPutMessageStatus()) {
+            return PutMessageFuture.completed(putMessageResult);
+        }
+        return this.submitFlushAndReplicate(putMessageResult, msg);
+    }
+
+    public PutMessageResult putMessages(final MessageExtBatch messageExtBatch) {
+        PutMessageResult putMessageResult = this.appendMessages(messageExtBatch);
+        if (PutMessageStatus.PUT_OK == putMessageResult.getPutMessageStatus()) {
+            handleDiskFlush(putMessageResult.getAppendMessageResult(), putMessageResult, messageExtBatch);
+            handleHA(putMessageResult.getAppendMessageResult(), putMessageResult, messageExtBatch);
+        }
+        return putMessageResult;
+    }
+
+    public PutMessageFuture asyncPutMessages(final MessageExtBatch messageExtBatch) {
+        PutMessageResult putMessageResult = this.appendMessages(messageExtBatch);
+        if (PutMessageStatus.PUT_OK != putMessageResult.getPutMessageStatus()) {
+            return PutMessageFuture.completed(putMessageResult);
+        }
+        return this.submitFlushAndReplicate(putMessageResult, messageExtBatch);
+    }
+
+    /**
+     * Append the message to the end of the CommitLog, without waiting for it to be flushed or replicated
+     */
+    private PutMessageResult appendMessage(final MessageExtBrokerInner msg) {
         // Set the storage time
         msg.setStoreTimestamp(System.currentTimeMillis());
         // Set the message body BODY CRC (consider the most appropriate setting
         // on the client)
-        msg.setBodyCRC(UtilAll.crc32(msg.getBody()));
+        if (null == msg.getEncodedBuff()) {
+            msg.setBodyCRC(UtilAll.crc32(msg.getBody()));
+        }
         // Back to Results
         AppendMessageResult result = null;
 
@@ -535,15 +752,28 @@ public class CommitLog {
         final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
         if (tranType == MessageSysFlag.TRANSACTION_NOT_TYPE
             || tranType == MessageSysFlag.TRANSACTION_COMMIT_TYPE) {
+            TimerMessageStore timerMessageStore = this.defaultMessageStore.getTimerMessageStore();
+            boolean delayed = true;
             // Delay Delivery
-            if (msg.getDelayTimeLevel() > 0) {
+            if (timerMessageStore != null && timerMessageStore.isTimerMessage(msg)) {
+                long deliverTimestamp = timerMessageStore.computeDeliverTimestamp(msg, msg.getStoreTimestamp());
+                MessageAccessor.clearProperty(msg, MessageConst.PROPERTY_DELAY_TIME_LEVEL);
+                MessageAccessor.putProperty(msg, MessageConst.PROPERTY_TIMER_DELIVER_MS, String.valueOf(deliverTimestamp));
+
+                topic = TimerMessageStore.TIMER_TOPIC;
+                queueId = TimerMessageStore.TIMER_QUEUE_ID;
+            } else if (msg.getDelayTimeLevel() > 0) {
                 if (msg.getDelayTimeLevel() > this.defaultMessageStore.getScheduleMessageService().getMaxDelayLevel()) {
                     msg.setDelayTimeLevel(this.defaultMessageStore.getScheduleMessageService().getMaxDelayLevel());
                 }
 
                 topic = ScheduleMessageService.SCHEDULE_TOPIC;
                 queueId = ScheduleMessageService.delayLevel2QueueId(msg.getDelayTimeLevel());
+            } else {
+                delayed = false;
+            }
 
+            if (delayed) {
                 // Backup real topic, queueId
                 MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, msg.getTopic());
                 MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_QUEUE_ID, String.valueOf(msg.getQueueId()));
@@ -551,9 +781,16 @@ public class CommitLog {
 
                 msg.setTopic(topic);
                 msg.setQueueId(queueId);
+
+                // Topic and properties changed, the pre-encoded record is stale
+                msg.setEncodedBuff(null);
             }
         }
 
+        if (this.multiWriterAppend) {
+            return this.putMessageWithReservation(msg);
+        }
+
         long eclipseTimeInLock = 0;
         MappedFile unlockMappedFile = null;
         MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
@@ -568,7 +805,7 @@ public class CommitLog {
             msg.setStoreTimestamp(beginLockTimestamp);
 
             if (null == mappedFile || mappedFile.isFull()) {
-                mappedFile = this.mappedFileQueue.getLastMappedFile(0); // Mark: NewFile may be cause noise
+                mappedFile = this.mappedFileQueue.getLastMappedFile(this.baseOffset); // Mark: NewFile may be cause noise
             }
             if (null == mappedFile) {
                 log.error("create maped file1 error, topic: " + msg.getTopic() + " clientAddr: " + msg.getBornHostString());
@@ -583,7 +820,7 @@ public class CommitLog {
                 case END_OF_FILE:
                     unlockMappedFile = mappedFile;
                     // Create a new file, re-write the message
-                    mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+                    mappedFile = this.mappedFileQueue.getLastMappedFile(this.baseOffset);
                     if (null == mappedFile) {
                         // XXX: warn and notify me
                         log.error("create maped file2 error, topic: " + msg.getTopic() + " clientAddr: " + msg.getBornHostString());
@@ -608,6 +845,7 @@ public class CommitLog {
             beginTimeInLock = 0;
         } finally {
             putMessageLock.unlock();
+            msg.setEncodedBuff(null);
         }
 
         if (eclipseTimeInLock > 500) {
@@ -624,9 +862,6 @@ public class CommitLog {
         storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic()).incrementAndGet();
         storeStatsService.getSinglePutMessageTopicSizeTotal(topic).addAndGet(result.getWroteBytes());
 
-        handleDiskFlush(result, putMessageResult, msg);
-        handleHA(result, putMessageResult, msg);
-
         return putMessageResult;
     }
 
@@ -649,7 +884,7 @@ public class CommitLog {
         }
         // Asynchronous flush
         else {
-            if (!this.defaultMessageStore.getMessageStoreConfig().isTransientStorePoolEnable()) {
+            if (!this.isCommitRealTime()) {
                 flushCommitLogService.wakeup();
             } else {
                 commitLogService.wakeup();
@@ -684,7 +919,91 @@ public class CommitLog {
 
     }
 
-    public PutMessageResult putMessages(final MessageExtBatch messageExtBatch) {
+    private PutMessageFuture submitFlushAndReplicate(final PutMessageResult putMessageResult,
+        final MessageExt messageExt) {
+        final AppendMessageResult result = putMessageResult.getAppendMessageResult();
+        final PutMessageFuture future = new PutMessageFuture();
+
+        if (FlushDiskType.SYNC_FLUSH == this.defaultMessageStore.getMessageStoreConfig().getFlushDiskType()
+            && messageExt.isWaitStoreMsgOK()) {
+            GroupCommitService service = (GroupCommitService) this.flushCommitLogService;
+            final ScheduledFuture<?> flushTimeout =
+                this.scheduleTimeout(future, putMessageResult, messageExt, PutMessageStatus.FLUSH_DISK_TIMEOUT);
+            service.putRequest(new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes(), new GroupCommitCallback() {
+                @Override
+                public void onComplete(boolean flushOK) {
+                    flushTimeout.cancel(false);
+                    if (future.isDone()) {
+                        // Already completed with FLUSH_DISK_TIMEOUT
+                        return;
+                    }
+                    if (!flushOK) {
+                        log.error("do groupcommit, wait for flush failed, topic: " + messageExt.getTopic() + " tags: " + messageExt.getTags()
+                            + " client address: " + messageExt.getBornHostString());
+                        putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_DISK_TIMEOUT);
+                    }
+                    submitReplicate(result, putMessageResult, messageExt, future);
+                }
+            }));
+        } else {
+            // Only wakes up the flush service
+            this.handleDiskFlush(result, putMessageResult, messageExt);
+            this.submitReplicate(result, putMessageResult, messageExt, future);
+        }
+        return future;
+    }
+
+    private void submitReplicate(final AppendMessageResult result, final PutMessageResult putMessageResult,
+        final MessageExt messageExt, final PutMessageFuture future) {
+        if (BrokerRole.SYNC_MASTER == this.defaultMessageStore.getMessageStoreConfig().getBrokerRole()
+            && messageExt.isWaitStoreMsgOK()) {
+            HAService service = this.defaultMessageStore.getHaService();
+            if (service.isSlaveOK(result.getWroteOffset() + result.getWroteBytes())) {
+                final ScheduledFuture<?> transferTimeout =
+                    this.scheduleTimeout(future, putMessageResult, messageExt, PutMessageStatus.FLUSH_SLAVE_TIMEOUT);
+                service.putRequest(new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes(), new GroupCommitCallback() {
+                    @Override
+                    public void onComplete(boolean transferOK) {
+                        transferTimeout.cancel(false);
+                        if (!transferOK) {
+                            log.error("do sync transfer other node, wait return, but failed, topic: " + messageExt.getTopic() + " tags: "
+                                + messageExt.getTags() + " client address: " + messageExt.getBornHostNameString());
+                            putMessageResult.setPutMessageStatus(PutMessageStatus.FLUSH_SLAVE_TIMEOUT);
+                        }
+                        future.complete(putMessageResult);
+                    }
+                }));
+                service.getWaitNotifyObject().wakeupAll();
+                return;
+            }
+
+            // Tell the producer, slave not available
+            putMessageResult.setPutMessageStatus(PutMessageStatus.SLAVE_NOT_AVAILABLE);
+        }
+        future.complete(putMessageResult);
+    }
+
+    /**
+     * Complete the future with the timeout status if the flush or the replication is not done within syncFlushTimeout,
+     * like {@link #handleDiskFlush} and {@link #handleHA} stop waiting for it
+     */
+    private ScheduledFuture<?> scheduleTimeout(final PutMessageFuture future, final PutMessageResult putMessageResult,
+        final MessageExt messageExt, final PutMessageStatus timeoutStatus) {
+        return this.putMessageTimeoutExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                log.error("async put wait for " + timeoutStatus + ", topic: " + messageExt.getTopic() + " tags: "
+                    + messageExt.getTags() + " client address: " + messageExt.getBornHostNameString());
+                // A copy, the service thread may still update the shared result when it gets to the request
+                future.complete(new PutMessageResult(timeoutStatus, putMessageResult.getAppendMessageResult()));
+            }
+        }, this.defaultMessageStore.getMessageStoreConfig().getSyncFlushTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    private PutMessageResult appendMessages(final MessageExtBatch messageExtBatch) {
         messageExtBatch.setStoreTimestamp(System.currentTimeMillis());
         AppendMessageResult result;
 
@@ -707,6 +1026,13 @@ public class CommitLog {
         MessageExtBatchEncoder batchEncoder = batchEncoderThreadLocal.get();
 
         messageExtBatch.setEncodedBuff(batchEncoder.encode(messageExtBatch));
+        if (null == messageExtBatch.getEncodedBuff()) {
+            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+        }
+
+        if (this.multiWriterAppend) {
+            return this.putMessagesWithReservation(messageExtBatch);
+        }
 
         putMessageLock.lock();
         try {
@@ -718,7 +1044,7 @@ public class CommitLog {
             messageExtBatch.setStoreTimestamp(beginLockTimestamp);
 
             if (null == mappedFile || mappedFile.isFull()) {
-                mappedFile = this.mappedFileQueue.getLastMappedFile(0); // Mark: NewFile may be cause noise
+                mappedFile = this.mappedFileQueue.getLastMappedFile(this.baseOffset); // Mark: NewFile may be cause noise
             }
             if (null == mappedFile) {
                 log.error("Create maped file1 error, topic: {} clientAddr: {}", messageExtBatch.getTopic(), messageExtBatch.getBornHostString());
@@ -733,7 +1059,7 @@ public class CommitLog {
                 case END_OF_FILE:
                     unlockMappedFile = mappedFile;
                     // Create a new file, re-write the message
-                    mappedFile = this.mappedFileQueue.getLastMappedFile(0);
+                    mappedFile = this.mappedFileQueue.getLastMappedFile(this.baseOffset);
                     if (null == mappedFile) {
                         // XXX: warn and notify me
                         log.error("Create maped file2 error, topic: {} clientAddr: {}", messageExtBatch.getTopic(), messageExtBatch.getBornHostString());
@@ -774,13 +1100,264 @@ public class CommitLog {
         storeStatsService.getSinglePutMessageTopicTimesTotal(messageExtBatch.getTopic()).addAndGet(result.getMsgNum());
         storeStatsService.getSinglePutMessageTopicSizeTotal(messageExtBatch.getTopic()).addAndGet(result.getWroteBytes());
 
-        handleDiskFlush(result, putMessageResult, messageExtBatch);
+        return putMessageResult;
+    }
+
+    /**
+     * Multi-writer variant of putMessage: the record is serialized before taking the lock, the lock only assigns the
+     * queue offset and reserves space in the MappedFile, and the copy happens concurrently with other writers.
+     */
+    private PutMessageResult putMessageWithReservation(final MessageExtBrokerInner msg) {
+        StoreStatsService storeStatsService = this.defaultMessageStore.getStoreStatsService();
+        MessageExtEncoder encoder = this.encoderThreadLocal.get();
+
+        final ByteBuffer encoded = null != msg.getEncodedBuff() ? msg.getEncodedBuff() : encoder.encode(msg);
+        msg.setEncodedBuff(null);
+        if (null == encoded) {
+            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+        }
+        final int msgLen = encoded.limit();
+        final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
+
+        long eclipseTimeInLock = 0;
+        long queueOffset;
+        ReservedRegion region;
+
+        putMessageLock.lock();
+        try {
+            long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
+            this.beginTimeInLock = beginLockTimestamp;
+
+            // Here settings are stored timestamp, in order to ensure an orderly
+            // global
+            msg.setStoreTimestamp(beginLockTimestamp);
+
+            region = this.reserve(msgLen);
+            if (null == region.mappedFile) {
+                log.error("create maped file error, topic: " + msg.getTopic() + " clientAddr: " + msg.getBornHostString());
+                beginTimeInLock = 0;
+                return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
+            }
+
+            queueOffset = this.topicQueueTable.get(msg.getTopic(), msg.getQueueId());
+            switch (tranType) {
+                // Prepared and Rollback message is not consumed, will not enter the
+                // consumer queue
+                case MessageSysFlag.TRANSACTION_PREPARED_TYPE:
+                case MessageSysFlag.TRANSACTION_ROLLBACK_TYPE:
+                    queueOffset = 0L;
+                    break;
+                case MessageSysFlag.TRANSACTION_NOT_TYPE:
+                case MessageSysFlag.TRANSACTION_COMMIT_TYPE:
+                default:
+                    this.topicQueueTable.put(msg.getTopic(), msg.getQueueId(), queueOffset + 1);
+                    break;
+            }
+
+            eclipseTimeInLock = this.defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
+            beginTimeInLock = 0;
+        } finally {
+            putMessageLock.unlock();
+        }
+
+        if (eclipseTimeInLock > 500) {
+            log.warn("[NOTIFYME]putMessage in lock cost time(ms)={}, bodyLength={}", eclipseTimeInLock, msg.getBody().length);
+        }
+
+        final long beginTimeMills = this.defaultMessageStore.now();
+        final long wroteOffset = region.mappedFile.getFileFromOffset() + region.position;
+        String msgId = null;
+        try {
+            encoded.putLong(MESSAGE_QUEUE_OFFSET_POSITION, queueOffset);
+            encoded.putLong(MessageDecoder.MESSAGE_PHYSIC_OFFSET_POSTION, wroteOffset);
+            encoded.putLong(MessageDecoder.MESSAGE_STORE_TIMESTAMP_POSTION, msg.getStoreTimestamp());
+            msgId = encoder.createMessageId(msg, wroteOffset);
+            encoded.position(0);
+            region.mappedFile.writeReserved(region.position, encoded);
+        } catch (Throwable e) {
+            log.error("write message to reserved region failed, topic: {} offset: {}", msg.getTopic(), wroteOffset, e);
+            msgId = null;
+            this.fillReserved(region, encoded);
+        } finally {
+            // Always publish, otherwise every writer behind this region would wait forever
+            region.mappedFile.publish(region.position, msgLen, msg.getStoreTimestamp());
+        }
+
+        if (null != region.unlockMappedFile && this.defaultMessageStore.getMessageStoreConfig().isWarmMapedFileEnable()) {
+            this.defaultMessageStore.unlockMappedFile(region.unlockMappedFile);
+        }
+        if (null == msgId) {
+            return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, null);
+        }
+
+        AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen, msgId,
+            msg.getStoreTimestamp(), queueOffset, this.defaultMessageStore.now() - beginTimeMills);
+
+        PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, result);
+
+        // Statistics
+        storeStatsService.getSinglePutMessageTopicTimesTotal(msg.getTopic()).incrementAndGet();
+        storeStatsService.getSinglePutMessageTopicSizeTotal(msg.getTopic()).addAndGet(result.getWroteBytes());
+
+        return putMessageResult;
+    }
+
+    /**
+     * Multi-writer variant of putMessages, the batch has already been encoded by {@link MessageExtBatchEncoder}.
+     */
+    private PutMessageResult putMessagesWithReservation(final MessageExtBatch messageExtBatch) {
+        StoreStatsService storeStatsService = this.defaultMessageStore.getStoreStatsService();
+
+        final ByteBuffer encoded = messageExtBatch.getEncodedBuff();
+        final int totalMsgLen = encoded.limit();
+        int msgNum = 0;
+        for (int pos = 0; pos < totalMsgLen; pos += encoded.getInt(pos)) {
+            msgNum++;
+        }
+
+        long eclipseTimeInLock = 0;
+        long beginQueueOffset;
+        ReservedRegion region;
+
+        putMessageLock.lock();
+        try {
+            long beginLockTimestamp = this.defaultMessageStore.getSystemClock().now();
+            this.beginTimeInLock = beginLockTimestamp;
+
+            // Here settings are stored timestamp, in order to ensure an orderly
+            // global
+            messageExtBatch.setStoreTimestamp(beginLockTimestamp);
+
+            region = this.reserve(totalMsgLen);
+            if (null == region.mappedFile) {
+                log.error("Create maped file error, topic: {} clientAddr: {}", messageExtBatch.getTopic(), messageExtBatch.getBornHostString());
+                beginTimeInLock = 0;
+                return new PutMessageResult(PutMessageStatus.CREATE_MAPEDFILE_FAILED, null);
+            }
+
+            beginQueueOffset = this.topicQueueTable.get(messageExtBatch.getTopic(), messageExtBatch.getQueueId());
+            this.topicQueueTable.put(messageExtBatch.getTopic(), messageExtBatch.getQueueId(), beginQueueOffset + msgNum);
+
+            eclipseTimeInLock = this.defaultMessageStore.getSystemClock().now() - beginLockTimestamp;
+            beginTimeInLock = 0;
+        } finally {
+            putMessageLock.unlock();
+        }
+
+        if (eclipseTimeInLock > 500) {
+            log.warn("[NOTIFYME]putMessages in lock cost time(ms)={}, bodyLength={}", eclipseTimeInLock, messageExtBatch.getBody().length);
+        }
+
+        final long beginTimeMills = this.defaultMessageStore.now();
+        final long wroteOffset = region.mappedFile.getFileFromOffset() + region.position;
+        StringBuilder msgIdBuilder = new StringBuilder();
+        boolean written = false;
+        try {
+            MessageExtEncoder encoder = this.encoderThreadLocal.get();
+            long queueOffset = beginQueueOffset;
+            for (int pos = 0; pos < totalMsgLen; pos += encoded.getInt(pos)) {
+                encoded.putLong(pos + MESSAGE_QUEUE_OFFSET_POSITION, queueOffset++);
+                encoded.putLong(pos + MessageDecoder.MESSAGE_PHYSIC_OFFSET_POSTION, wroteOffset + pos);
+                encoded.putLong(pos + MessageDecoder.MESSAGE_STORE_TIMESTAMP_POSTION, messageExtBatch.getStoreTimestamp());
+                if (msgIdBuilder.length() > 0) {
+                    msgIdBuilder.append(',');
+                }
+                msgIdBuilder.append(encoder.createMessageId(messageExtBatch, wroteOffset + pos));
+            }
+            encoded.position(0);
+            region.mappedFile.writeReserved(region.position, encoded);
+            written = true;
+        } catch (Throwable e) {
+            log.error("write messages to reserved region failed, topic: {} offset: {}", messageExtBatch.getTopic(), wroteOffset, e);
+            this.fillReserved(region, encoded);
+        } finally {
+            // Always publish, otherwise every writer behind this region would wait forever
+            region.mappedFile.publish(region.position, totalMsgLen, messageExtBatch.getStoreTimestamp());
+            messageExtBatch.setEncodedBuff(null);
+        }
+
+        if (null != region.unlockMappedFile && this.defaultMessageStore.getMessageStoreConfig().isWarmMapedFileEnable()) {
+            this.defaultMessageStore.unlockMappedFile(region.unlockMappedFile);
+        }
+        if (!written) {
+            return new PutMessageResult(PutMessageStatus.UNKNOWN_ERROR, null);
+        }
+
+        AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, totalMsgLen, msgIdBuilder.toString(),
+            messageExtBatch.getStoreTimestamp(), beginQueueOffset, this.defaultMessageStore.now() - beginTimeMills);
+        result.setMsgNum(msgNum);
 
-        handleHA(result, putMessageResult, messageExtBatch);
+        PutMessageResult putMessageResult = new PutMessageResult(PutMessageStatus.PUT_OK, result);
+
+        // Statistics
+        storeStatsService.getSinglePutMessageTopicTimesTotal(messageExtBatch.getTopic()).addAndGet(result.getMsgNum());
+        storeStatsService.getSinglePutMessageTopicSizeTotal(messageExtBatch.getTopic()).addAndGet(result.getWroteBytes());
 
         return putMessageResult;
     }
 
+    /**
+     * Overwrite a region whose records could not be written with the same records flagged as
+     * {@link MessageSysFlag#FILLER_FLAG}. Readers still parse them and consume queues keep their offsets, but they are
+     * never delivered, indexed or retried.
+     */
+    private void fillReserved(final ReservedRegion region, final ByteBuffer encoded) {
+        try {
+            for (int pos = 0; pos < encoded.limit(); pos += encoded.getInt(pos)) {
+                int sysFlag = encoded.getInt(pos + MessageDecoder.MESSAGE_SYSFLAG_POSITION);
+                encoded.putInt(pos + MessageDecoder.MESSAGE_SYSFLAG_POSITION, sysFlag | MessageSysFlag.FILLER_FLAG);
+            }
+            encoded.position(0);
+            region.mappedFile.writeReserved(region.position, encoded);
+        } catch (Throwable e) {
+            log.error("[BUG] fill reserved region failed, file: {} position: {}", region.mappedFile.getFileName(), region.position, e);
+        }
+    }
+
+    /**
+     * Reserve space for a record of the given length, rolling to a new file when the current one does not have room
+     * for it. Must be called while holding putMessageLock.
+     */
+    private ReservedRegion reserve(final int msgLen) {
+        ReservedRegion region = new ReservedRegion();
+        MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
+        if (null == mappedFile || mappedFile.isFull() || mappedFile.isReservedFull()) {
+            mappedFile = this.mappedFileQueue.getLastMappedFile(this.baseOffset); // Mark: NewFile may be cause noise
+        }
+        if (null == mappedFile) {
+            return region;
+        }
+
+        // Determines whether there is sufficient free space, otherwise the rest of the file is filled with a blank
+        // record in order, and the message goes to the head of the next file
+        final int maxBlank = mappedFile.getReservableSize();
+        if ((msgLen + DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH) > maxBlank) {
+            final int blankPos = mappedFile.reserve(maxBlank);
+            ByteBuffer blank = ByteBuffer.allocate(DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+            // 1 TOTALSIZE
+            blank.putInt(maxBlank);
+            // 2 MAGICCODE
+            blank.putInt(CommitLog.BLANK_MAGIC_CODE);
+            blank.flip();
+            try {
+                mappedFile.writeReserved(blankPos, blank);
+            } finally {
+                mappedFile.publish(blankPos, maxBlank, 0);
+            }
+            region.unlockMappedFile = mappedFile;
+
+            // Create a new file, re-write the message
+            mappedFile = this.mappedFileQueue.getLastMappedFile(this.baseOffset);
+            if (null == mappedFile) {
+                return region;
+            }
+        }
+
+        region.position = mappedFile.reserve(msgLen);
+        region.mappedFile = mappedFile;
+        return region;
+    }
+
     /**
      * According to receive certain message or offset storage time if an error occurs, it returns -1
      */
@@ -814,7 +1391,7 @@ public class CommitLog {
 
     public SelectMappedBufferResult getMessage(final long offset, final int size) {
         int mappedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog();
-        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset, offset == 0);
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset, offset == this.baseOffset);
         if (mappedFile != null) {
             int pos = (int) (offset % mappedFileSize);
             return mappedFile.selectMappedBuffer(pos, size);
@@ -827,12 +1404,65 @@ public class CommitLog {
         return offset + mappedFileSize - offset % mappedFileSize;
     }
 
+    /**
+     * Ask the OS to read the data of [offset, offset + size) into the page cache without waiting for it
+     *
+     * @return how many bytes were advised
+     */
+    public long readAhead(final long offset, final long size) {
+        int mappedFileSize = this.defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog();
+        long advised = 0;
+        while (advised < size) {
+            long current = offset + advised;
+            MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(current);
+            if (null == mappedFile) {
+                break;
+            }
+            int pos = (int) (current % mappedFileSize);
+            int length = (int) Math.min(size - advised, mappedFile.getReadPosition() - pos);
+            if (length <= 0 || !mappedFile.adviseWillNeed(pos, length)) {
+                break;
+            }
+            advised += length;
+            if (pos + length < mappedFileSize) {
+                break;
+            }
+        }
+        return advised;
+    }
+
+    /**
+     * The CommitLog which stores the messages of the given queue, always itself unless the store is sharded
+     */
+    public CommitLog shardOf(final String topic, final int queueId) {
+        return this;
+    }
+
+    /**
+     * The CommitLog which owns the given physical offset, always itself unless the store is sharded
+     */
+    public CommitLog shardOfOffset(final long offset) {
+        return this;
+    }
+
+    public List<CommitLog> getShards() {
+        return Collections.singletonList(this);
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    public MappedFileQueue getMappedFileQueue() {
+        return mappedFileQueue;
+    }
+
     public HashMap<String, Long> getTopicQueueTable() {
-        return topicQueueTable;
+        return topicQueueTable.toMap();
     }
 
     public void setTopicQueueTable(HashMap<String, Long> topicQueueTable) {
-        this.topicQueueTable = topicQueueTable;
+        this.topicQueueTable = QueueOffsetTable.fromMap(topicQueueTable);
     }
 
     public void destroy() {
@@ -859,9 +1489,11 @@ public class CommitLog {
     }
 
     public void removeQueueFromTopicQueueTable(final String topic, final int queueId) {
-        String key = topic + "-" + queueId;
-        synchronized (this) {
-            this.topicQueueTable.remove(key);
+        putMessageLock.lock();
+        try {
+            this.topicQueueTable.remove(topic, queueId);
+        } finally {
+            putMessageLock.unlock();
         }
 
         log.info("removeQueueFromTopicQueueTable OK Topic: {} QueueId: {}", topic, queueId);
@@ -983,7 +1615,9 @@ public class CommitLog {
                     CommitLog.this.mappedFileQueue.flush(flushPhysicQueueLeastPages);
                     long storeTimestamp = CommitLog.this.mappedFileQueue.getStoreTimestamp();
                     if (storeTimestamp > 0) {
-                        CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(storeTimestamp);
+                        CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(CommitLog.this.shardIndex, storeTimestamp);
+                        CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgOffset(CommitLog.this.shardIndex,
+                            CommitLog.this.mappedFileQueue.getFlushedWhere());
                     }
                     long past = System.currentTimeMillis() - begin;
                     if (past > 500) {
@@ -1023,13 +1657,32 @@ public class CommitLog {
         }
     }
 
+    /**
+     * Notified by the service thread once a flush or replication request completes, must not block
+     */
+    public interface GroupCommitCallback {
+        void onComplete(boolean flushOK);
+    }
+
     public static class GroupCommitRequest {
         private final long nextOffset;
-        private final CountDownLatch countDownLatch = new CountDownLatch(1);
+        private final GroupCommitCallback callback;
+        private final CountDownLatch countDownLatch;
         private volatile boolean flushOK = false;
 
         public GroupCommitRequest(long nextOffset) {
             this.nextOffset = nextOffset;
+            this.callback = null;
+            this.countDownLatch = new CountDownLatch(1);
+        }
+
+        /**
+         * A request completed through the callback only, nobody waits on it
+         */
+        public GroupCommitRequest(long nextOffset, GroupCommitCallback callback) {
+            this.nextOffset = nextOffset;
+            this.callback = callback;
+            this.countDownLatch = null;
         }
 
         public long getNextOffset() {
@@ -1038,10 +1691,22 @@ public class CommitLog {
 
         public void wakeupCustomer(final boolean flushOK) {
             this.flushOK = flushOK;
-            this.countDownLatch.countDown();
+            if (this.callback != null) {
+                try {
+                    this.callback.onComplete(flushOK);
+                } catch (Throwable e) {
+                    log.warn("group commit callback threw exception, nextOffset: " + this.nextOffset, e);
+                }
+            } else {
+                this.countDownLatch.countDown();
+            }
         }
 
         public boolean waitForFlush(long timeout) {
+            if (null == this.countDownLatch) {
+                throw new IllegalStateException("callback request can not be waited for");
+            }
+
             try {
                 this.countDownLatch.await(timeout, TimeUnit.MILLISECONDS);
                 return this.flushOK;
@@ -1059,15 +1724,78 @@ public class CommitLog {
         private volatile List<GroupCommitRequest> requestsWrite = new ArrayList<GroupCommitRequest>();
         private volatile List<GroupCommitRequest> requestsRead = new ArrayList<GroupCommitRequest>();
 
+        // Moving averages in nanoseconds, only maintained with adaptive group commit
+        private volatile long requestIntervalAvg = Long.MAX_VALUE;
+        private volatile long flushTimeAvg = 0;
+        private long lastRequestTimestamp = 0;
+
         public synchronized void putRequest(final GroupCommitRequest request) {
             synchronized (this.requestsWrite) {
                 this.requestsWrite.add(request);
             }
+            if (CommitLog.this.defaultMessageStore.getMessageStoreConfig().isGroupCommitAdaptiveEnable()) {
+                this.recordRequest(System.nanoTime());
+            }
             if (hasNotified.compareAndSet(false, true)) {
                 waitPoint.countDown(); // notify
             }
         }
 
+        void recordRequest(final long now) {
+            if (this.lastRequestTimestamp != 0) {
+                this.requestIntervalAvg = movingAverage(this.requestIntervalAvg, now - this.lastRequestTimestamp);
+            }
+            this.lastRequestTimestamp = now;
+        }
+
+        void recordFlushTime(final long flushTime) {
+            this.flushTimeAvg = this.movingAverage(this.flushTimeAvg, flushTime);
+            CommitLog.this.defaultMessageStore.getStoreStatsService()
+                .setGroupCommitFlushTime(TimeUnit.NANOSECONDS.toMicros(flushTime));
+        }
+
+        private long movingAverage(long average, long sample) {
+            if (average == Long.MAX_VALUE || average == 0) {
+                return sample;
+            }
+            return average + ((sample - average) >> 3);
+        }
+
+        /**
+         * How long to keep the batch open before flushing. Under light load a request would wait for nothing, so
+         * flush at once; when several requests are expected to arrive within one flush, wait about one flush time to
+         * take them into the same flush.
+         */
+        long batchWindowNanos() {
+            long flushTime = this.flushTimeAvg;
+            long requestInterval = this.requestIntervalAvg;
+            if (requestInterval == Long.MAX_VALUE || flushTime <= requestInterval) {
+                return 0;
+            }
+
+            long maxWait = TimeUnit.MICROSECONDS.toNanos(
+                CommitLog.this.defaultMessageStore.getMessageStoreConfig().getGroupCommitMaxWaitMicros());
+            return Math.min(flushTime, maxWait);
+        }
+
+        private void waitForBatch() {
+            long window = this.batchWindowNanos();
+            if (window <= 0 || this.requestsRead.isEmpty()) {
+                return;
+            }
+
+            LockSupport.parkNanos(window);
+
+            synchronized (this) {
+                synchronized (this.requestsWrite) {
+                    this.requestsRead.addAll(this.requestsWrite);
+                    this.requestsWrite.clear();
+                }
+                // Requests which arrived during the window are taken already
+                hasNotified.set(false);
+            }
+        }
+
         private void swapRequests() {
             List<GroupCommitRequest> tmp = this.requestsWrite;
             this.requestsWrite = this.requestsRead;
@@ -1077,6 +1805,9 @@ public class CommitLog {
         private void doCommit() {
             synchronized (this.requestsRead) {
                 if (!this.requestsRead.isEmpty()) {
+                    // Only the flushes, waking up the requests may take long and does not depend on the disk
+                    long flushTime = 0;
+                    boolean flushed = false;
                     for (GroupCommitRequest req : this.requestsRead) {
                         // There may be a message in the next file, so a maximum of
                         // two times the flush
@@ -1085,33 +1816,53 @@ public class CommitLog {
                             flushOK = CommitLog.this.mappedFileQueue.getFlushedWhere() >= req.getNextOffset();
 
                             if (!flushOK) {
-                                CommitLog.this.mappedFileQueue.flush(0);
+                                long beginTime = System.nanoTime();
+                                this.commitAndFlush();
+                                flushTime += System.nanoTime() - beginTime;
+                                flushed = true;
                             }
                         }
 
                         req.wakeupCustomer(flushOK);
                     }
 
+                    if (flushed) {
+                        this.recordFlushTime(flushTime);
+                    }
+
                     long storeTimestamp = CommitLog.this.mappedFileQueue.getStoreTimestamp();
                     if (storeTimestamp > 0) {
-                        CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(storeTimestamp);
+                        CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgTimestamp(CommitLog.this.shardIndex, storeTimestamp);
+                        CommitLog.this.defaultMessageStore.getStoreCheckpoint().setPhysicMsgOffset(CommitLog.this.shardIndex,
+                            CommitLog.this.mappedFileQueue.getFlushedWhere());
                     }
 
                     this.requestsRead.clear();
                 } else {
                     // Because of individual messages is set to not sync flush, it
                     // will come to this process
-                    CommitLog.this.mappedFileQueue.flush(0);
+                    this.commitAndFlush();
                 }
             }
         }
 
+        private void commitAndFlush() {
+            // Direct I/O files keep messages in their write buffer until committed
+            if (CommitLog.this.defaultMessageStore.getMessageStoreConfig().isDirectIOFlushEnable()) {
+                CommitLog.this.mappedFileQueue.commit(0);
+            }
+            CommitLog.this.mappedFileQueue.flush(0);
+        }
+
         public void run() {
             CommitLog.log.info(this.getServiceName() + " service started");
 
             while (!this.isStopped()) {
                 try {
                     this.waitForRunning(10);
+                    if (CommitLog.this.defaultMessageStore.getMessageStoreConfig().isGroupCommitAdaptiveEnable()) {
+                        this.waitForBatch();
+                    }
                     this.doCommit();
                 } catch (Exception e) {
                     CommitLog.log.warn(this.getServiceName() + " service has exception. ", e);
@@ -1159,9 +1910,6 @@ public class CommitLog {
         private final ByteBuffer msgStoreItemMemory;
         // The maximum length of the message
         private final int maxMessageSize;
-        // Build Message Key
-        private final StringBuilder keyBuilder = new StringBuilder();
-
         private final StringBuilder msgIdBuilder = new StringBuilder();
 
         private final ByteBuffer hostHolder = ByteBuffer.allocate(8);
@@ -1187,16 +1935,7 @@ public class CommitLog {
             String msgId = MessageDecoder.createMessageId(this.msgIdMemory, msgInner.getStoreHostBytes(hostHolder), wroteOffset);
 
             // Record ConsumeQueue information
-            keyBuilder.setLength(0);
-            keyBuilder.append(msgInner.getTopic());
-            keyBuilder.append('-');
-            keyBuilder.append(msgInner.getQueueId());
-            String key = keyBuilder.toString();
-            Long queueOffset = CommitLog.this.topicQueueTable.get(key);
-            if (null == queueOffset) {
-                queueOffset = 0L;
-                CommitLog.this.topicQueueTable.put(key, queueOffset);
-            }
+            long queueOffset = CommitLog.this.topicQueueTable.get(msgInner.getTopic(), msgInner.getQueueId());
 
             // Transaction messages that require special handling
             final int tranType = MessageSysFlag.getTransactionValue(msgInner.getSysFlag());
@@ -1213,6 +1952,10 @@ public class CommitLog {
                     break;
             }
 
+            if (msgInner.getEncodedBuff() != null) {
+                return this.doAppendEncoded(wroteOffset, msgId, queueOffset, tranType, byteBuffer, maxBlank, msgInner);
+            }
+
             /**
              * Serialize message
              */
@@ -1271,8 +2014,8 @@ public class CommitLog {
             this.msgStoreItemMemory.putLong(queueOffset);
             // 7 PHYSICALOFFSET
             this.msgStoreItemMemory.putLong(fileFromOffset + byteBuffer.position());
-            // 8 SYSFLAG
-            this.msgStoreItemMemory.putInt(msgInner.getSysFlag());
+            // 8 SYSFLAG, only the store marks fillers, readers would skip a client message carrying the flag
+            this.msgStoreItemMemory.putInt(msgInner.getSysFlag() & ~MessageSysFlag.FILLER_FLAG);
             // 9 BORNTIMESTAMP
             this.msgStoreItemMemory.putLong(msgInner.getBornTimestamp());
             // 10 BORNHOST
@@ -1314,7 +2057,61 @@ public class CommitLog {
                 case MessageSysFlag.TRANSACTION_NOT_TYPE:
                 case MessageSysFlag.TRANSACTION_COMMIT_TYPE:
                     // The next update ConsumeQueue information
-                    CommitLog.this.topicQueueTable.put(key, ++queueOffset);
+                    CommitLog.this.topicQueueTable.put(msgInner.getTopic(), msgInner.getQueueId(), ++queueOffset);
+                    break;
+                default:
+                    break;
+            }
+            return result;
+        }
+
+        /**
+         * The record was serialized by {@link MessageExtEncoder} before the lock, only the position dependent fields
+         * are patched here before one bulk copy.
+         */
+        private AppendMessageResult doAppendEncoded(final long wroteOffset, final String msgId, final long queueOffset,
+            final int tranType, final ByteBuffer byteBuffer, final int maxBlank, final MessageExtBrokerInner msgInner) {
+            final ByteBuffer encoded = msgInner.getEncodedBuff();
+            final int msgLen = encoded.limit();
+
+            // Determines whether there is sufficient free space
+            if ((msgLen + END_FILE_MIN_BLANK_LENGTH) > maxBlank) {
+                this.resetByteBuffer(this.msgStoreItemMemory, maxBlank);
+                // 1 TOTALSIZE
+                this.msgStoreItemMemory.putInt(maxBlank);
+                // 2 MAGICCODE
+                this.msgStoreItemMemory.putInt(CommitLog.BLANK_MAGIC_CODE);
+                // 3 The remaining space may be any value
+                // Here the length of the specially set maxBlank
+                final long beginTimeMills = CommitLog.this.defaultMessageStore.now();
+                byteBuffer.put(this.msgStoreItemMemory.array(), 0, maxBlank);
+                return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank, msgId, msgInner.getStoreTimestamp(),
+                    queueOffset, CommitLog.this.defaultMessageStore.now() - beginTimeMills);
+            }
+
+            // 6 QUEUEOFFSET
+            encoded.putLong(MESSAGE_QUEUE_OFFSET_POSITION, queueOffset);
+            // 7 PHYSICALOFFSET
+            encoded.putLong(MessageDecoder.MESSAGE_PHYSIC_OFFSET_POSTION, wroteOffset);
+            // 11 STORETIMESTAMP
+            encoded.putLong(MessageDecoder.MESSAGE_STORE_TIMESTAMP_POSTION, msgInner.getStoreTimestamp());
+
+            final long beginTimeMills = CommitLog.this.defaultMessageStore.now();
+            // Write messages to the queue buffer
+            encoded.position(0);
+            byteBuffer.put(encoded);
+
+            AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen, msgId,
+                msgInner.getStoreTimestamp(), queueOffset, CommitLog.this.defaultMessageStore.now() - beginTimeMills);
+
+            switch (tranType) {
+                case MessageSysFlag.TRANSACTION_PREPARED_TYPE:
+                case MessageSysFlag.TRANSACTION_ROLLBACK_TYPE:
+                    break;
+                case MessageSysFlag.TRANSACTION_NOT_TYPE:
+                case MessageSysFlag.TRANSACTION_COMMIT_TYPE:
+                    // The next update ConsumeQueue information
+                    CommitLog.this.topicQueueTable.put(msgInner.getTopic(), msgInner.getQueueId(), queueOffset + 1);
                     break;
                 default:
                     break;
@@ -1328,16 +2125,7 @@ public class CommitLog {
             //physical offset
             long wroteOffset = fileFromOffset + byteBuffer.position();
             // Record ConsumeQueue information
-            keyBuilder.setLength(0);
-            keyBuilder.append(messageExtBatch.getTopic());
-            keyBuilder.append('-');
-            keyBuilder.append(messageExtBatch.getQueueId());
-            String key = keyBuilder.toString();
-            Long queueOffset = CommitLog.this.topicQueueTable.get(key);
-            if (null == queueOffset) {
-                queueOffset = 0L;
-                CommitLog.this.topicQueueTable.put(key, queueOffset);
-            }
+            long queueOffset = CommitLog.this.topicQueueTable.get(messageExtBatch.getTopic(), messageExtBatch.getQueueId());
             long beginQueueOffset = queueOffset;
             int totalMsgLen = 0;
             int msgNum = 0;
@@ -1399,7 +2187,7 @@ public class CommitLog {
             AppendMessageResult result = new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, totalMsgLen, msgIdBuilder.toString(),
                 messageExtBatch.getStoreTimestamp(), beginQueueOffset, CommitLog.this.defaultMessageStore.now() - beginTimeMills);
             result.setMsgNum(msgNum);
-            CommitLog.this.topicQueueTable.put(key, queueOffset);
+            CommitLog.this.topicQueueTable.put(messageExtBatch.getTopic(), messageExtBatch.getQueueId(), queueOffset);
 
             return result;
         }
@@ -1425,9 +2213,14 @@ public class CommitLog {
         }
 
         public ByteBuffer encode(final MessageExtBatch messageExtBatch) {
+            ByteBuffer messagesByteBuff = messageExtBatch.wrap();
+            if (messagesByteBuff.remaining() >= 8
+                && messagesByteBuff.getInt(MessageDecoder.MESSAGE_MAGIC_CODE_POSTION) == MESSAGE_MAGIC_CODE) {
+                return this.fillStoreLayout(messageExtBatch, messagesByteBuff);
+            }
+
             msgBatchMemory.clear(); //not thread-safe
             int totalMsgLen = 0;
-            ByteBuffer messagesByteBuff = messageExtBatch.wrap();
             while (messagesByteBuff.hasRemaining()) {
                 // 1 TOTALSIZE
                 messagesByteBuff.getInt();
@@ -1481,7 +2274,7 @@ public class CommitLog {
                 // 7 PHYSICALOFFSET
                 this.msgBatchMemory.putLong(0);
                 // 8 SYSFLAG
-                this.msgBatchMemory.putInt(messageExtBatch.getSysFlag());
+                this.msgBatchMemory.putInt(messageExtBatch.getSysFlag() & ~MessageSysFlag.FILLER_FLAG);
                 // 9 BORNTIMESTAMP
                 this.msgBatchMemory.putLong(messageExtBatch.getBornTimestamp());
                 // 10 BORNHOST
@@ -1512,10 +2305,94 @@ public class CommitLog {
             return msgBatchMemory;
         }
 
+        /**
+         * The client laid the batch out in store layout already, see MessageDecoder#encodeMessagesInStoreLayout. Check
+         * every record and fill in what only the broker knows in place, so the request body itself gets appended.
+         *
+         * @return the request body, or null if the batch is malformed
+         */
+        private ByteBuffer fillStoreLayout(final MessageExtBatch messageExtBatch, final ByteBuffer messagesByteBuff) {
+            final int totalMsgLen = messagesByteBuff.limit();
+            if (totalMsgLen > this.maxMessageSize) {
+                CommitLog.log.warn("message batch size exceeded, total size: " + totalMsgLen + ", maxMessageSize: " + this.maxMessageSize);
+                return null;
+            }
+
+            final byte[] topicData = messageExtBatch.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
+            final int minMsgLen = calMsgLength(0, topicData.length, 0);
+            this.resetByteBuffer(hostHolder, 8);
+            final long bornHost = messageExtBatch.getBornHostBytes(hostHolder).getLong(0);
+            this.resetByteBuffer(hostHolder, 8);
+            final long storeHost = messageExtBatch.getStoreHostBytes(hostHolder).getLong(0);
+
+            for (int msgPos = 0; msgPos < totalMsgLen; ) {
+                // 1 TOTALSIZE
+                final int msgLen = totalMsgLen - msgPos >= 4 ? messagesByteBuff.getInt(msgPos) : -1;
+                if (msgLen < minMsgLen || msgLen > totalMsgLen - msgPos) {
+                    CommitLog.log.warn("illegal message length in batch, topic: {}, position: {}, length: {}", messageExtBatch.getTopic(), msgPos, msgLen);
+                    return null;
+                }
+                final int bodyLen = messagesByteBuff.getInt(msgPos + MessageDecoder.BODY_SIZE_POSITION);
+                final int topicPos = msgPos + MessageDecoder.BODY_SIZE_POSITION + 4 + bodyLen;
+                if (messagesByteBuff.getInt(msgPos + MessageDecoder.MESSAGE_MAGIC_CODE_POSTION) != MESSAGE_MAGIC_CODE || bodyLen < 0 || bodyLen > msgLen - minMsgLen
+                    || messagesByteBuff.get(topicPos) != topicData.length) {
+                    CommitLog.log.warn("illegal message in batch, topic: {}, position: {}", messageExtBatch.getTopic(), msgPos);
+                    return null;
+                }
+                for (int i = 0; i < topicData.length; i++) {
+                    if (messagesByteBuff.get(topicPos + 1 + i) != topicData[i]) {
+                        CommitLog.log.warn("message in batch does not belong to topic {}, position: {}", messageExtBatch.getTopic(), msgPos);
+                        return null;
+                    }
+                }
+                final short propertiesLen = messagesByteBuff.getShort(topicPos + 1 + topicData.length);
+                if (propertiesLen < 0 || calMsgLength(bodyLen, topicData.length, propertiesLen) != msgLen) {
+                    CommitLog.log.warn("illegal properties length in batch, topic: {}, position: {}", messageExtBatch.getTopic(), msgPos);
+                    return null;
+                }
+
+                // 3 BODYCRC, never trust the client's, recovery cuts the CommitLog at the first mismatch
+                final int bodyPos = msgPos + MessageDecoder.BODY_SIZE_POSITION + 4;
+                messagesByteBuff.putInt(msgPos + MESSAGE_BODY_CRC_POSITION,
+                    UtilAll.crc32(messagesByteBuff.array(), messagesByteBuff.arrayOffset() + bodyPos, bodyLen));
+                // 4 QUEUEID
+                messagesByteBuff.putInt(msgPos + MESSAGE_QUEUE_ID_POSITION, messageExtBatch.getQueueId());
+                if (!messageExtBatch.isCompleteRecords()) {
+                    // 8 SYSFLAG
+                    messagesByteBuff.putInt(msgPos + MessageDecoder.MESSAGE_SYSFLAG_POSITION, messageExtBatch.getSysFlag() & ~MessageSysFlag.FILLER_FLAG);
+                    // 9 BORNTIMESTAMP
+                    messagesByteBuff.putLong(msgPos + MESSAGE_BORN_TIMESTAMP_POSITION, messageExtBatch.getBornTimestamp());
+                    // 10 BORNHOST
+                    messagesByteBuff.putLong(msgPos + MESSAGE_BORN_HOST_POSITION, bornHost);
+                }
+                // 11 STORETIMESTAMP
+                messagesByteBuff.putLong(msgPos + MessageDecoder.MESSAGE_STORE_TIMESTAMP_POSTION, messageExtBatch.getStoreTimestamp());
+                // 12 STOREHOSTADDRESS
+                messagesByteBuff.putLong(msgPos + MESSAGE_STORE_HOST_POSITION, storeHost);
+                if (!messageExtBatch.isCompleteRecords()) {
+                    // 13 RECONSUMETIMES
+                    messagesByteBuff.putInt(msgPos + MESSAGE_RECONSUME_TIMES_POSITION, messageExtBatch.getReconsumeTimes());
+                }
+                // 14 Prepared Transaction Offset, batch does not support transaction
+                messagesByteBuff.putLong(msgPos + MESSAGE_PREPARED_TRANSACTION_OFFSET_POSITION, 0);
+                // 6 QUEUEOFFSET and 7 PHYSICALOFFSET are set in lock by doAppend
+
+                msgPos += msgLen;
+            }
+            return messagesByteBuff;
+        }
+
         private void resetByteBuffer(final ByteBuffer byteBuffer, final int limit) {
             byteBuffer.flip();
             byteBuffer.limit(limit);
         }
 
     }
+
+    static class ReservedRegion {
+        private MappedFile mappedFile;
+        private int position;
+        // The file closed by this reservation, if any
+        private MappedFile unlockMappedFile;
+    }
 }
@@ -21,6 +21,7 @@ import java.nio.ByteBuffer;
 import java.util.List;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.store.config.StorePathConfigHelper;
+import org.apache.rocketmq.store.tiered.TieredStoreService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +43,7 @@ public class ConsumeQueue {
     private long maxPhysicOffset = -1;
     private volatile long minLogicOffset = 0;
     private ConsumeQueueExt consumeQueueExt = null;
+    private ConsumeQueueTimeIndex timeIndex = null;
 
     public ConsumeQueue(
         final String topic,
@@ -60,7 +62,8 @@ public class ConsumeQueue {
             + File.separator + topic
             + File.separator + queueId;
 
-        this.mappedFileQueue = new MappedFileQueue(queueDir, mappedFileSize, null);
+        this.mappedFileQueue = new MappedFileQueue(queueDir, mappedFileSize, null,
+            defaultMessageStore.getConsumeQueueMappedFileBudget());
 
         this.byteBufferIndex = ByteBuffer.allocate(CQ_STORE_UNIT_SIZE);
 
@@ -70,7 +73,19 @@ public class ConsumeQueue {
                 queueId,
                 StorePathConfigHelper.getStorePathConsumeQueueExt(defaultMessageStore.getMessageStoreConfig().getStorePathRootDir()),
                 defaultMessageStore.getMessageStoreConfig().getMappedFileSizeConsumeQueueExt(),
-                defaultMessageStore.getMessageStoreConfig().getBitMapLengthConsumeQueueExt()
+                defaultMessageStore.getMessageStoreConfig().getBitMapLengthConsumeQueueExt(),
+                defaultMessageStore.getConsumeQueueMappedFileBudget()
+            );
+        }
+
+        if (defaultMessageStore.getMessageStoreConfig().isEnableConsumeQueueTimeIndex()) {
+            this.timeIndex = new ConsumeQueueTimeIndex(
+                topic,
+                queueId,
+                StorePathConfigHelper.getStorePathConsumeQueueTimeIndex(defaultMessageStore.getMessageStoreConfig().getStorePathRootDir()),
+                mappedFileSize,
+                defaultMessageStore.getMessageStoreConfig().getConsumeQueueTimeIndexInterval(),
+                defaultMessageStore.getConsumeQueueMappedFileBudget()
             );
         }
     }
@@ -81,6 +96,9 @@ public class ConsumeQueue {
         if (isExtReadEnable()) {
             result &= this.consumeQueueExt.load();
         }
+        if (this.timeIndex != null) {
+            result &= this.timeIndex.load();
+        }
         return result;
     }
 
@@ -94,27 +112,31 @@ public class ConsumeQueue {
 
             int mappedFileSizeLogics = this.mappedFileSize;
             MappedFile mappedFile = mappedFiles.get(index);
-            ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+            ByteBuffer byteBuffer = mappedFile.holdSliceByteBuffer();
             long processOffset = mappedFile.getFileFromOffset();
             long mappedFileOffset = 0;
             long maxExtAddr = 1;
-            while (true) {
-                for (int i = 0; i < mappedFileSizeLogics; i += CQ_STORE_UNIT_SIZE) {
-                    long offset = byteBuffer.getLong();
-                    int size = byteBuffer.getInt();
-                    long tagsCode = byteBuffer.getLong();
-
-                    if (offset >= 0 && size > 0) {
-                        mappedFileOffset = i + CQ_STORE_UNIT_SIZE;
-                        this.maxPhysicOffset = offset;
-                        if (isExtAddr(tagsCode)) {
-                            maxExtAddr = tagsCode;
+            while (byteBuffer != null) {
+                try {
+                    for (int i = 0; i < mappedFileSizeLogics; i += CQ_STORE_UNIT_SIZE) {
+                        long offset = byteBuffer.getLong();
+                        int size = byteBuffer.getInt();
+                        long tagsCode = byteBuffer.getLong();
+
+                        if (offset >= 0 && size > 0) {
+                            mappedFileOffset = i + CQ_STORE_UNIT_SIZE;
+                            this.maxPhysicOffset = offset;
+                            if (isExtAddr(tagsCode)) {
+                                maxExtAddr = tagsCode;
+                            }
+                        } else {
+                            log.info("recover current consume queue file over,  " + mappedFile.getFileName() + " "
+                                + offset + " " + size + " " + tagsCode);
+                            break;
                         }
-                    } else {
-                        log.info("recover current consume queue file over,  " + mappedFile.getFileName() + " "
-                            + offset + " " + size + " " + tagsCode);
-                        break;
                     }
+                } finally {
+                    mappedFile.release();
                 }
 
                 if (mappedFileOffset == mappedFileSizeLogics) {
@@ -126,7 +148,7 @@ public class ConsumeQueue {
                         break;
                     } else {
                         mappedFile = mappedFiles.get(index);
-                        byteBuffer = mappedFile.sliceByteBuffer();
+                        byteBuffer = mappedFile.holdSliceByteBuffer();
                         processOffset = mappedFile.getFileFromOffset();
                         mappedFileOffset = 0;
                         log.info("recover next consume queue file, " + mappedFile.getFileName());
@@ -149,9 +171,47 @@ public class ConsumeQueue {
                 this.consumeQueueExt.truncateByMaxAddress(maxExtAddr);
             }
         }
+
+        if (this.timeIndex != null) {
+            this.timeIndex.recover();
+            this.recoverTimeIndex();
+        }
+    }
+
+    /**
+     * The time index is flushed apart from the consume queue, drop what it has beyond the consume queue and fill in what
+     * it lost from the CommitLog.
+     */
+    private void recoverTimeIndex() {
+        final long maxOffset = this.getMaxOffsetInQueue();
+        final int interval = this.timeIndex.getInterval();
+        this.timeIndex.truncateByMaxOffset(maxOffset);
+
+        final long indexNum = (maxOffset + interval - 1) / interval;
+        final long maxIndex = this.timeIndex.getMaxIndex();
+        if (0 == maxIndex || indexNum - maxIndex > this.mappedFileSize / CQ_STORE_UNIT_SIZE) {
+            // not indexed yet, or too far behind, it begins again with the next message
+            return;
+        }
+
+        for (long index = maxIndex; index < indexNum; index++) {
+            long storeTime = this.pickupStoreTimestamp(index * interval);
+            if (storeTime < 0 || !this.timeIndex.put(index * interval, storeTime)) {
+                break;
+            }
+        }
+        log.info("recover consume queue time index {}-{} from {} to {}", this.topic, this.queueId, maxIndex,
+            this.timeIndex.getMaxIndex());
     }
 
     public long getOffsetInQueueByTime(final long timestamp) {
+        if (this.timeIndex != null) {
+            long offset = this.getOffsetInQueueByTimeIndex(timestamp);
+            if (offset >= 0) {
+                return offset;
+            }
+        }
+
         MappedFile mappedFile = this.mappedFileQueue.getMappedFileByTime(timestamp);
         if (mappedFile != null) {
             long offset = 0;
@@ -159,7 +219,7 @@ public class ConsumeQueue {
             int high = 0;
             int midOffset = -1, targetOffset = -1, leftOffset = -1, rightOffset = -1;
             long leftIndexValue = -1L, rightIndexValue = -1L;
-            long minPhysicOffset = this.defaultMessageStore.getMinPhyOffset();
+            long minPhysicOffset = this.defaultMessageStore.getCommitLog().shardOf(topic, queueId).getMinOffset();
             SelectMappedBufferResult sbr = mappedFile.selectMappedBuffer(0);
             if (null != sbr) {
                 ByteBuffer byteBuffer = sbr.getByteBuffer();
@@ -220,6 +280,93 @@ public class ConsumeQueue {
         return 0;
     }
 
+    /**
+     * Search the time index for the message stored nearest to the timestamp, only the messages between two entries of
+     * a sparse index are read from the CommitLog.
+     *
+     * @return -1 if the index does not cover the queue
+     */
+    private long getOffsetInQueueByTimeIndex(final long timestamp) {
+        final int interval = this.timeIndex.getInterval();
+        final long minOffset = this.getMinOffsetInQueue();
+        final long maxOffset = this.getMaxOffsetInQueue();
+        final long fromIndex = (minOffset + interval - 1) / interval;
+        final long toIndex = this.timeIndex.getMaxIndex() - 1;
+        if (minOffset >= maxOffset || fromIndex > toIndex
+            || this.timeIndex.getMinIndex() > fromIndex || (toIndex + 1) * interval < maxOffset) {
+            return -1;
+        }
+
+        long index = this.timeIndex.searchIndex(timestamp, fromIndex, toIndex);
+        if (-2 == index) {
+            return -1;
+        } else if (-1 == index) {
+            return minOffset;
+        }
+
+        long leftOffset = index * interval;
+        long leftIndexValue = this.timeIndex.getTimestamp(index);
+        long rightOffset = -1, rightIndexValue = -1;
+        if (index < toIndex) {
+            rightOffset = (index + 1) * interval;
+            rightIndexValue = this.timeIndex.getTimestamp(index + 1);
+        }
+
+        long low = leftOffset + 1;
+        long high = (rightOffset >= 0 ? rightOffset : maxOffset) - 1;
+        while (low <= high) {
+            long midOffset = (low + high) >>> 1;
+            long storeTime = this.pickupStoreTimestamp(midOffset);
+            if (storeTime < 0) {
+                break;
+            } else if (storeTime == timestamp) {
+                return midOffset;
+            } else if (storeTime > timestamp) {
+                high = midOffset - 1;
+                rightOffset = midOffset;
+                rightIndexValue = storeTime;
+            } else {
+                low = midOffset + 1;
+                leftOffset = midOffset;
+                leftIndexValue = storeTime;
+            }
+        }
+
+        if (rightOffset < 0) {
+            return leftOffset;
+        }
+        return Math.abs(timestamp - leftIndexValue) > Math.abs(timestamp - rightIndexValue) ? rightOffset : leftOffset;
+    }
+
+    /**
+     * Store time of the message at the consume queue offset, from the time index if it is indexed
+     */
+    public long getMessageStoreTimeStamp(final long cqOffset) {
+        if (this.timeIndex != null && cqOffset % this.timeIndex.getInterval() == 0) {
+            long storeTime = this.timeIndex.getTimestamp(cqOffset / this.timeIndex.getInterval());
+            if (storeTime > 0) {
+                return storeTime;
+            }
+        }
+
+        return this.pickupStoreTimestamp(cqOffset);
+    }
+
+    private long pickupStoreTimestamp(final long cqOffset) {
+        SelectMappedBufferResult result = this.getIndexBuffer(cqOffset);
+        if (result != null) {
+            try {
+                final long phyOffset = result.getByteBuffer().getLong();
+                final int size = result.getByteBuffer().getInt();
+                return this.defaultMessageStore.getCommitLog().pickupStoreTimestamp(phyOffset, size);
+            } catch (Exception e) {
+            } finally {
+                result.release();
+            }
+        }
+        return -1;
+    }
+
     public void truncateDirtyLogicFiles(long phyOffet) {
 
         int logicFileSize = this.mappedFileSize;
@@ -229,56 +376,69 @@ public class ConsumeQueue {
         while (true) {
             MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile();
             if (mappedFile != null) {
-                ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
-
-                mappedFile.setWrotePosition(0);
-                mappedFile.setCommittedPosition(0);
-                mappedFile.setFlushedPosition(0);
-
-                for (int i = 0; i < logicFileSize; i += CQ_STORE_UNIT_SIZE) {
-                    long offset = byteBuffer.getLong();
-                    int size = byteBuffer.getInt();
-                    long tagsCode = byteBuffer.getLong();
+                ByteBuffer byteBuffer = mappedFile.holdSliceByteBuffer();
+                if (null == byteBuffer) {
+                    break;
+                }
 
-                    if (0 == i) {
-                        if (offset >= phyOffet) {
-                            this.mappedFileQueue.deleteLastMappedFile();
-                            break;
-                        } else {
-                            int pos = i + CQ_STORE_UNIT_SIZE;
-                            mappedFile.setWrotePosition(pos);
-                            mappedFile.setCommittedPosition(pos);
-                            mappedFile.setFlushedPosition(pos);
-                            this.maxPhysicOffset = offset;
-                            // This maybe not take effect, when not every consume queue has extend file.
-                            if (isExtAddr(tagsCode)) {
-                                maxExtAddr = tagsCode;
-                            }
-                        }
-                    } else {
+                boolean deleteFile = false;
+                try {
+                    mappedFile.setWrotePosition(0);
+                    mappedFile.setCommittedPosition(0);
+                    mappedFile.setFlushedPosition(0);
 
-                        if (offset >= 0 && size > 0) {
+                    for (int i = 0; i < logicFileSize; i += CQ_STORE_UNIT_SIZE) {
+                        long offset = byteBuffer.getLong();
+                        int size = byteBuffer.getInt();
+                        long tagsCode = byteBuffer.getLong();
 
+                        if (0 == i) {
                             if (offset >= phyOffet) {
-                                return;
-                            }
-
-                            int pos = i + CQ_STORE_UNIT_SIZE;
-                            mappedFile.setWrotePosition(pos);
-                            mappedFile.setCommittedPosition(pos);
-                            mappedFile.setFlushedPosition(pos);
-                            this.maxPhysicOffset = offset;
-                            if (isExtAddr(tagsCode)) {
-                                maxExtAddr = tagsCode;
+                                deleteFile = true;
+                                break;
+                            } else {
+                                int pos = i + CQ_STORE_UNIT_SIZE;
+                                mappedFile.setWrotePosition(pos);
+                                mappedFile.setCommittedPosition(pos);
+                                mappedFile.setFlushedPosition(pos);
+                                this.maxPhysicOffset = offset;
+                                // This maybe not take effect, when not every consume queue has extend file.
+                                if (isExtAddr(tagsCode)) {
+                                    maxExtAddr = tagsCode;
+                                }
                             }
+                        } else {
 
-                            if (pos == logicFileSize) {
+                            if (offset >= 0 && size > 0) {
+
+                                if (offset >= phyOffet) {
+                                    return;
+                                }
+
+                                int pos = i + CQ_STORE_UNIT_SIZE;
+                                mappedFile.setWrotePosition(pos);
+                                mappedFile.setCommittedPosition(pos);
+                                mappedFile.setFlushedPosition(pos);
+                                this.maxPhysicOffset = offset;
+                                if (isExtAddr(tagsCode)) {
+                                    maxExtAddr = tagsCode;
+                                }
+
+                                if (pos == logicFileSize) {
+                                    return;
+                                }
+                            } else {
                                 return;
                             }
-                        } else {
-                            return;
                         }
                     }
+                } finally {
+                    mappedFile.release();
+                }
+
+                // Destroyed only once released, it would not be cleaned up while held
+                if (deleteFile) {
+                    this.mappedFileQueue.deleteLastMappedFile();
                 }
             } else {
                 break;
@@ -288,6 +448,9 @@ public class ConsumeQueue {
         if (isExtReadEnable()) {
             this.consumeQueueExt.truncateByMaxAddress(maxExtAddr);
         }
+        if (this.timeIndex != null) {
+            this.timeIndex.truncateByMaxOffset(this.getMaxOffsetInQueue());
+        }
     }
 
     public long getLastOffset() {
@@ -302,17 +465,23 @@ public class ConsumeQueue {
             if (position < 0)
                 position = 0;
 
-            ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
-            byteBuffer.position(position);
-            for (int i = 0; i < logicFileSize; i += CQ_STORE_UNIT_SIZE) {
-                long offset = byteBuffer.getLong();
-                int size = byteBuffer.getInt();
-                byteBuffer.getLong();
+            ByteBuffer byteBuffer = mappedFile.holdSliceByteBuffer();
+            if (byteBuffer != null) {
+                try {
+                    byteBuffer.position(position);
+                    for (int i = 0; i < logicFileSize; i += CQ_STORE_UNIT_SIZE) {
+                        long offset = byteBuffer.getLong();
+                        int size = byteBuffer.getInt();
+                        byteBuffer.getLong();
 
-                if (offset >= 0 && size > 0) {
-                    lastOffset = offset + size;
-                } else {
-                    break;
+                        if (offset >= 0 && size > 0) {
+                            lastOffset = offset + size;
+                        } else {
+                            break;
+                        }
+                    }
+                } finally {
+                    mappedFile.release();
                 }
             }
         }
@@ -325,12 +494,21 @@ public class ConsumeQueue {
         if (isExtReadEnable()) {
             result = result & this.consumeQueueExt.flush(flushLeastPages);
         }
+        if (this.timeIndex != null) {
+            result = result & this.timeIndex.flush(flushLeastPages);
+        }
 
         return result;
     }
 
     public int deleteExpiredFile(long offset) {
-        int cnt = this.mappedFileQueue.deleteExpiredFileByOffset(offset, CQ_STORE_UNIT_SIZE);
+        long maxDeletableOffset = Long.MAX_VALUE;
+        TieredStoreService tieredStoreService = this.defaultMessageStore.getTieredStoreService();
+        if (tieredStoreService != null) {
+            maxDeletableOffset = tieredStoreService.getMaxDeletableOffset(TieredStoreService.consumeQueuePrefix(this.topic, this.queueId),
+                this.mappedFileQueue);
+        }
+        int cnt = this.mappedFileQueue.deleteExpiredFileByOffset(offset, CQ_STORE_UNIT_SIZE, maxDeletableOffset);
         this.correctMinOffset(offset);
         return cnt;
     }
@@ -339,6 +517,10 @@ public class ConsumeQueue {
         MappedFile mappedFile = this.mappedFileQueue.getFirstMappedFile();
         long minExtAddr = 1;
         if (mappedFile != null) {
+            // Files still waiting to be offloaded to the tiered store may only hold entries below phyMinOffset
+            if (this.minLogicOffset < mappedFile.getFileFromOffset()) {
+                this.minLogicOffset = mappedFile.getFileFromOffset();
+            }
             SelectMappedBufferResult result = mappedFile.selectMappedBuffer(0);
             if (result != null) {
                 try {
@@ -369,6 +551,9 @@ public class ConsumeQueue {
         if (isExtReadEnable()) {
             this.consumeQueueExt.truncateByMinAddress(minExtAddr);
         }
+        if (this.timeIndex != null) {
+            this.timeIndex.deleteExpiredFile(this.getMinOffsetInQueue());
+        }
     }
 
     public long getMinOffsetInQueue() {
@@ -397,7 +582,15 @@ public class ConsumeQueue {
             boolean result = this.putMessagePositionInfo(request.getCommitLogOffset(),
                 request.getMsgSize(), tagsCode, request.getConsumeQueueOffset());
             if (result) {
-                this.defaultMessageStore.getStoreCheckpoint().setLogicsMsgTimestamp(request.getStoreTimestamp());
+                if (this.timeIndex != null && !this.timeIndex.put(request.getConsumeQueueOffset(), request.getStoreTimestamp())) {
+                    log.warn("Save consume queue time index fail, topic:{}, queueId:{}, offset:{}", topic, queueId,
+                        request.getConsumeQueueOffset());
+                }
+                // Dispatched in parallel, FlushConsumeQueueService takes the timestamp all workers have reached
+                if (!this.defaultMessageStore.getMessageStoreConfig().isParallelDispatchEnable()) {
+                    this.defaultMessageStore.getStoreCheckpoint().setLogicsMsgTimestamp(
+                        this.defaultMessageStore.getCommitLog().shardOf(topic, queueId).getShardIndex(), request.getStoreTimestamp());
+                }
                 return;
             } else {
                 // XXX: warn and notify me
@@ -523,6 +716,10 @@ public class ConsumeQueue {
         return index + totalUnitsInFile - index % totalUnitsInFile;
     }
 
+    public MappedFileQueue getMappedFileQueue() {
+        return mappedFileQueue;
+    }
+
     public String getTopic() {
         return topic;
     }
@@ -546,6 +743,9 @@ public class ConsumeQueue {
         if (isExtReadEnable()) {
             this.consumeQueueExt.destroy();
         }
+        if (this.timeIndex != null) {
+            this.timeIndex.destroy();
+        }
     }
 
     public long getMessageTotalInQueue() {
@@ -561,6 +761,9 @@ public class ConsumeQueue {
         if (isExtReadEnable()) {
             this.consumeQueueExt.checkSelf();
         }
+        if (this.timeIndex != null) {
+            this.timeIndex.checkSelf();
+        }
     }
 
     protected boolean isExtReadEnable() {
@@ -69,6 +69,25 @@ public class ConsumeQueueExt {
         final String storePath,
         final int mappedFileSize,
         final int bitMapLength) {
+        this(topic, queueId, storePath, mappedFileSize, bitMapLength, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param topic topic
+     * @param queueId id of queue
+     * @param storePath root dir of files to store.
+     * @param mappedFileSize file size
+     * @param bitMapLength bit map length.
+     * @param mappedFileBudget files are mapped on first access and bounded by it, if not null.
+     */
+    public ConsumeQueueExt(final String topic,
+        final int queueId,
+        final String storePath,
+        final int mappedFileSize,
+        final int bitMapLength,
+        final MappedFileBudget mappedFileBudget) {
 
         this.storePath = storePath;
         this.mappedFileSize = mappedFileSize;
@@ -80,7 +99,7 @@ public class ConsumeQueueExt {
             + File.separator + topic
             + File.separator + queueId;
 
-        this.mappedFileQueue = new MappedFileQueue(queueDir, mappedFileSize, null);
+        this.mappedFileQueue = new MappedFileQueue(queueDir, mappedFileSize, null, mappedFileBudget);
 
         if (bitMapLength > 0) {
             this.tempContainer = ByteBuffer.allocate(
@@ -237,11 +256,17 @@ public class ConsumeQueueExt {
     }
 
     protected void fullFillToEnd(final MappedFile mappedFile, final int wrotePosition) {
-        ByteBuffer mappedFileBuffer = mappedFile.sliceByteBuffer();
-        mappedFileBuffer.position(wrotePosition);
-
-        // ending.
-        mappedFileBuffer.putShort((short) -1);
+        ByteBuffer mappedFileBuffer = mappedFile.holdSliceByteBuffer();
+        if (mappedFileBuffer != null) {
+            try {
+                mappedFileBuffer.position(wrotePosition);
+
+                // ending.
+                mappedFileBuffer.putShort((short) -1);
+            } finally {
+                mappedFile.release();
+            }
+        }
 
         mappedFile.setWrotePosition(this.mappedFileSize);
     }
@@ -275,23 +300,27 @@ public class ConsumeQueueExt {
         int index = 0;
 
         MappedFile mappedFile = mappedFiles.get(index);
-        ByteBuffer byteBuffer = mappedFile.sliceByteBuffer();
+        ByteBuffer byteBuffer = mappedFile.holdSliceByteBuffer();
         long processOffset = mappedFile.getFileFromOffset();
         long mappedFileOffset = 0;
         CqExtUnit extUnit = new CqExtUnit();
-        while (true) {
-            extUnit.readBySkip(byteBuffer);
-
-            // check whether write sth.
-            if (extUnit.getSize() > 0) {
-                mappedFileOffset += extUnit.getSize();
-                continue;
+        while (byteBuffer != null) {
+            try {
+                extUnit.readBySkip(byteBuffer);
+
+                // check whether write sth.
+                while (extUnit.getSize() > 0) {
+                    mappedFileOffset += extUnit.getSize();
+                    extUnit.readBySkip(byteBuffer);
+                }
+            } finally {
+                mappedFile.release();
             }
 
             index++;
             if (index < mappedFiles.size()) {
                 mappedFile = mappedFiles.get(index);
-                byteBuffer = mappedFile.sliceByteBuffer();
+                byteBuffer = mappedFile.holdSliceByteBuffer();
                 processOffset = mappedFile.getFileFromOffset();
                 mappedFileOffset = 0;
                 log.info("Recover next consume queue extend file, " + mappedFile.getFileName());
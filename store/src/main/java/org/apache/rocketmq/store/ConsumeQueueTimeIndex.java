@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Store time index of a consume queue, so that it can be searched by time without reading the CommitLog.
+ * <p>
+ * Entry i is the store timestamp of the message at consume queue offset i * interval, at file offset i * 8. Only the
+ * first file may begin with blank(0) entries, written before the index was created, a gap in the middle of the index
+ * is never left: the index is dropped and begins again instead.
+ * </p>
+ * <li>1. This class is used only by {@link ConsumeQueue}</li>
+ * <li>2. And is weak reliable, it is rebuilt from the CommitLog when it falls behind the consume queue.</li>
+ */
+public class ConsumeQueueTimeIndex {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    public static final int UNIT_SIZE = 8;
+
+    private final MappedFileQueue mappedFileQueue;
+    private final String topic;
+    private final int queueId;
+    private final int interval;
+    private final int mappedFileSize;
+    private final ByteBuffer byteBufferIndex;
+
+    // First entry after the blank ones
+    private volatile long minIndex = 0;
+
+    /**
+     * @param mappedFileSizeConsumeQueue file size of the consume queue, files of the index cover as many units
+     * @param interval index one message of every interval ones
+     * @param mappedFileBudget files are mapped on first access and bounded by it, if not null
+     */
+    public ConsumeQueueTimeIndex(final String topic,
+        final int queueId,
+        final String storePath,
+        final int mappedFileSizeConsumeQueue,
+        final int interval,
+        final MappedFileBudget mappedFileBudget) {
+        this.topic = topic;
+        this.queueId = queueId;
+        this.interval = Math.max(1, interval);
+        this.mappedFileSize = mappedFileSizeConsumeQueue / ConsumeQueue.CQ_STORE_UNIT_SIZE * UNIT_SIZE;
+
+        String queueDir = storePath
+            + File.separator + topic
+            + File.separator + queueId;
+
+        this.mappedFileQueue = new MappedFileQueue(queueDir, this.mappedFileSize, null, mappedFileBudget);
+        this.byteBufferIndex = ByteBuffer.allocate(UNIT_SIZE);
+    }
+
+    public boolean load() {
+        boolean result = this.mappedFileQueue.load();
+        log.info("load consume queue time index " + this.topic + "-" + this.queueId + " " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+    public void checkSelf() {
+        this.mappedFileQueue.checkSelf();
+    }
+
+    public void recover() {
+        final List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
+        if (mappedFiles.isEmpty()) {
+            return;
+        }
+
+        int index = mappedFiles.size() - 3;
+        if (index < 0)
+            index = 0;
+
+        MappedFile mappedFile = mappedFiles.get(index);
+        ByteBuffer byteBuffer = mappedFile.holdSliceByteBuffer();
+        long processOffset = mappedFile.getFileFromOffset();
+        long mappedFileOffset = 0;
+        // blank entries are only found at the head of the first file
+        boolean head = 0 == index;
+        while (byteBuffer != null) {
+            try {
+                for (int i = 0; i < this.mappedFileSize; i += UNIT_SIZE) {
+                    long storeTimestamp = byteBuffer.getLong();
+                    if (storeTimestamp > 0) {
+                        head = false;
+                        mappedFileOffset = i + UNIT_SIZE;
+                    } else if (!head) {
+                        break;
+                    }
+                }
+            } finally {
+                mappedFile.release();
+            }
+
+            if (mappedFileOffset == this.mappedFileSize && index + 1 < mappedFiles.size()) {
+                index++;
+                mappedFile = mappedFiles.get(index);
+                byteBuffer = mappedFile.holdSliceByteBuffer();
+                processOffset = mappedFile.getFileFromOffset();
+                mappedFileOffset = 0;
+            } else {
+                log.info("recover consume queue time index over " + mappedFile.getFileName() + " "
+                    + (processOffset + mappedFileOffset));
+                break;
+            }
+        }
+
+        processOffset += mappedFileOffset;
+        this.mappedFileQueue.setFlushedWhere(processOffset);
+        this.mappedFileQueue.setCommittedWhere(processOffset);
+        this.mappedFileQueue.truncateDirtyFiles(processOffset);
+        this.correctMinIndex();
+    }
+
+    /**
+     * Index the message of the consume queue offset, if it is one of every interval ones.
+     *
+     * @return false if the index could not be written
+     */
+    public boolean put(final long cqOffset, final long storeTimestamp) {
+        if (cqOffset % this.interval != 0 || storeTimestamp <= 0) {
+            return true;
+        }
+
+        final long expectOffset = cqOffset / this.interval * UNIT_SIZE;
+        MappedFile mappedFile = this.mappedFileQueue.getLastMappedFile(expectOffset);
+        if (null == mappedFile) {
+            return false;
+        }
+
+        long currentOffset = mappedFile.getFileFromOffset() + mappedFile.getWrotePosition();
+        if (expectOffset < currentOffset) {
+            // dispatched again during recovery
+            return true;
+        }
+
+        boolean newIndex = mappedFile.isFirstCreateInQueue() && mappedFile.getWrotePosition() == 0
+            && expectOffset < mappedFile.getFileFromOffset() + this.mappedFileSize;
+        if (!newIndex && expectOffset != currentOffset) {
+            log.warn("consume queue time index of {}-{} has a gap, expectOffset: {} currentOffset: {}, index it again",
+                this.topic, this.queueId, expectOffset, currentOffset);
+            this.mappedFileQueue.destroy();
+            mappedFile = this.mappedFileQueue.getLastMappedFile(expectOffset);
+            if (null == mappedFile) {
+                return false;
+            }
+            newIndex = true;
+        }
+
+        if (newIndex) {
+            // a new file is blank already
+            int pos = (int) (expectOffset % this.mappedFileSize);
+            mappedFile.setWrotePosition(pos);
+            mappedFile.setCommittedPosition(pos);
+            mappedFile.setFlushedPosition(pos);
+            this.mappedFileQueue.setFlushedWhere(expectOffset);
+            this.mappedFileQueue.setCommittedWhere(expectOffset);
+            this.minIndex = expectOffset / UNIT_SIZE;
+        }
+
+        this.byteBufferIndex.clear();
+        this.byteBufferIndex.putLong(storeTimestamp);
+        return mappedFile.appendMessage(this.byteBufferIndex.array());
+    }
+
+    /**
+     * @return store timestamp of entry index, -1 if it is not indexed
+     */
+    public long getTimestamp(final long index) {
+        if (index < this.minIndex) {
+            return -1;
+        }
+
+        final long offset = index * UNIT_SIZE;
+        MappedFile mappedFile = this.mappedFileQueue.findMappedFileByOffset(offset);
+        if (mappedFile != null) {
+            SelectMappedBufferResult result = mappedFile.selectMappedBuffer((int) (offset % this.mappedFileSize), UNIT_SIZE);
+            if (result != null) {
+                try {
+                    long storeTimestamp = result.getByteBuffer().getLong();
+                    return storeTimestamp > 0 ? storeTimestamp : -1;
+                } finally {
+                    result.release();
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Last entry in [fromIndex, toIndex] stored before the timestamp
+     *
+     * @return -1 if none of them was stored before it, -2 if one of them is not indexed
+     */
+    public long searchIndex(final long timestamp, final long fromIndex, final long toIndex) {
+        long low = fromIndex;
+        long high = toIndex;
+        long found = -1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long storeTimestamp = this.getTimestamp(mid);
+            if (storeTimestamp < 0) {
+                return -2;
+            }
+            if (storeTimestamp < timestamp) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Drop the entries of the consume queue offsets from maxCqOffset on
+     */
+    public void truncateByMaxOffset(final long maxCqOffset) {
+        long indexNum = (maxCqOffset + this.interval - 1) / this.interval;
+        if (indexNum < this.getMaxIndex()) {
+            log.info("Truncate consume queue time index of {}-{} by max {}.", this.topic, this.queueId, maxCqOffset);
+            this.mappedFileQueue.truncateDirtyFiles(indexNum * UNIT_SIZE);
+            this.correctMinIndex();
+        }
+    }
+
+    /**
+     * Delete files which only index consume queue offsets before minCqOffset, the last file is kept.
+     */
+    public void deleteExpiredFile(final long minCqOffset) {
+        List<MappedFile> willRemoveFiles = new ArrayList<MappedFile>();
+
+        List<MappedFile> mappedFiles = this.mappedFileQueue.getMappedFiles();
+        for (int i = 0; i < mappedFiles.size() - 1; i++) {
+            MappedFile file = mappedFiles.get(i);
+            long maxCqOffsetInFile = ((file.getFileFromOffset() + this.mappedFileSize) / UNIT_SIZE - 1) * this.interval;
+            if (maxCqOffsetInFile >= minCqOffset || !file.destroy(1000)) {
+                break;
+            }
+            willRemoveFiles.add(file);
+        }
+
+        this.mappedFileQueue.deleteExpiredFile(willRemoveFiles);
+        this.correctMinIndex();
+    }
+
+    private void correctMinIndex() {
+        MappedFile firstFile = this.mappedFileQueue.getFirstMappedFile();
+        if (null == firstFile) {
+            this.minIndex = 0;
+            return;
+        }
+
+        // blank entries come first, binary search the first indexed one
+        long low = firstFile.getFileFromOffset() / UNIT_SIZE;
+        long high = Math.min(low + this.mappedFileSize / UNIT_SIZE, this.getMaxIndex()) - 1;
+        long first = high + 1;
+        this.minIndex = low;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            if (this.getTimestamp(mid) > 0) {
+                first = mid;
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+        this.minIndex = first;
+    }
+
+    public boolean flush(final int flushLeastPages) {
+        return this.mappedFileQueue.flush(flushLeastPages);
+    }
+
+    public void destroy() {
+        this.minIndex = 0;
+        this.mappedFileQueue.destroy();
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public long getMinIndex() {
+        return minIndex;
+    }
+
+    /**
+     * Index of the next entry to write
+     */
+    public long getMaxIndex() {
+        return this.mappedFileQueue.getMaxOffset() / UNIT_SIZE;
+    }
+}
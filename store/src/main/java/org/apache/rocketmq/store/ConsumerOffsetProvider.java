@@ -0,0 +1,35 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.util.Map;
+
+/**
+ * Offsets committed by consumer groups, kept outside of the store.
+ */
+public interface ConsumerOffsetProvider {
+    /**
+     * @return offset of the queue committed by the group, -1 if it has not committed any
+     */
+    long queryOffset(String group, String topic, int queueId);
+
+    /**
+     * @return the smallest offset committed by any group of every consumed queue, by topic and queueId
+     */
+    Map<String, Map<Integer, Long>> queryMinOffsetInAllGroup();
+}
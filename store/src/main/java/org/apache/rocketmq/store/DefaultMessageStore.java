@@ -22,16 +22,24 @@ import java.io.RandomAccessFile;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileLock;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -42,6 +50,7 @@ import org.apache.rocketmq.common.SystemClock;
 import org.apache.rocketmq.common.ThreadFactoryImpl;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageConst;
 import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.common.message.MessageExtBatch;
@@ -52,9 +61,12 @@ import org.apache.rocketmq.store.config.MessageStoreConfig;
 import org.apache.rocketmq.store.config.StorePathConfigHelper;
 import org.apache.rocketmq.store.ha.HAService;
 import org.apache.rocketmq.store.index.IndexService;
+import org.apache.rocketmq.store.index.LsmIndexService;
 import org.apache.rocketmq.store.index.QueryOffsetResult;
 import org.apache.rocketmq.store.schedule.ScheduleMessageService;
 import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.apache.rocketmq.store.tiered.TieredStoreService;
+import org.apache.rocketmq.store.timer.TimerMessageStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -77,9 +89,18 @@ public class DefaultMessageStore implements MessageStore {
 
     private final IndexService indexService;
 
+    private final LsmIndexService lsmIndexService;
+
+    private final ReadAheadService readAheadService;
+
+    private final PageCacheResidencyService pageCacheResidencyService;
+
+    private volatile ConsumerOffsetProvider consumerOffsetProvider;
+
     private final AllocateMappedFileService allocateMappedFileService;
 
-    private final ReputMessageService reputMessageService;
+    // One per CommitLog shard
+    private final List<ReputMessageService> reputMessageServices;
 
     private final HAService haService;
 
@@ -89,6 +110,9 @@ public class DefaultMessageStore implements MessageStore {
 
     private final TransientStorePool transientStorePool;
 
+    // Consume queue files are mapped on first access if not null
+    private final MappedFileBudget consumeQueueMappedFileBudget;
+
     private final RunningFlags runningFlags = new RunningFlags();
     private final SystemClock systemClock = new SystemClock();
 
@@ -104,36 +128,75 @@ public class DefaultMessageStore implements MessageStore {
 
     private AtomicLong printTimes = new AtomicLong(0);
 
+    private final PutMessageCallback putMessageFailedCounter = new PutMessageCallback() {
+        @Override
+        public void onComplete(PutMessageResult putMessageResult) {
+            if (null == putMessageResult || !putMessageResult.isOk()) {
+                storeStatsService.getPutMessageFailedTimes().incrementAndGet();
+            }
+        }
+    };
+
     private final LinkedList<CommitLogDispatcher> dispatcherList;
 
+    private final TieredStoreService tieredStoreService;
+
+    private final TimerMessageStore timerMessageStore;
+
     private RandomAccessFile lockFile;
 
     private FileLock lock;
 
     public DefaultMessageStore(final MessageStoreConfig messageStoreConfig, final BrokerStatsManager brokerStatsManager,
         final MessageArrivingListener messageArrivingListener, final BrokerConfig brokerConfig) throws IOException {
+        if (messageStoreConfig.getCommitLogShardNum() < 1
+            || messageStoreConfig.getCommitLogShardNum() > MessageStoreConfig.MAX_COMMIT_LOG_SHARD_NUM) {
+            throw new IllegalArgumentException("commitLogShardNum " + messageStoreConfig.getCommitLogShardNum()
+                + " out of [1, " + MessageStoreConfig.MAX_COMMIT_LOG_SHARD_NUM + "]");
+        }
         this.messageArrivingListener = messageArrivingListener;
         this.brokerConfig = brokerConfig;
         this.messageStoreConfig = messageStoreConfig;
         this.brokerStatsManager = brokerStatsManager;
         this.allocateMappedFileService = new AllocateMappedFileService(this);
-        this.commitLog = new CommitLog(this);
+        if (messageStoreConfig.getCommitLogShardNum() > 1 && BrokerRole.ASYNC_MASTER == messageStoreConfig.getBrokerRole()) {
+            log.warn("commit log is split into {} shards, slaves are refused", messageStoreConfig.getCommitLogShardNum());
+            this.commitLog = new ShardedCommitLog(this);
+        } else {
+            if (messageStoreConfig.getCommitLogShardNum() > 1) {
+                log.warn("commit log shards can not be replicated, ignore commitLogShardNum on {}", messageStoreConfig.getBrokerRole());
+            }
+            this.commitLog = new CommitLog(this);
+        }
         this.consumeQueueTable = new ConcurrentHashMap<>(32);
+        this.consumeQueueMappedFileBudget = messageStoreConfig.isEnableConsumeQueueLazyMapping()
+            ? new MappedFileBudget(messageStoreConfig.getMaxMappedConsumeQueueFiles(), messageStoreConfig.getConsumeQueueMappedFileIdleTime())
+            : null;
 
         this.flushConsumeQueueService = new FlushConsumeQueueService();
         this.cleanCommitLogService = new CleanCommitLogService();
         this.cleanConsumeQueueService = new CleanConsumeQueueService();
         this.storeStatsService = new StoreStatsService();
         this.indexService = new IndexService(this);
+        this.lsmIndexService = messageStoreConfig.isMessageIndexLsmEnable() ? new LsmIndexService(this) : null;
+        this.readAheadService = messageStoreConfig.isReadAheadEnable() ? new ReadAheadService(this) : null;
+        this.pageCacheResidencyService = messageStoreConfig.isPageCacheResidencyEnable() ? new PageCacheResidencyService(this) : null;
         this.haService = new HAService(this);
 
-        this.reputMessageService = new ReputMessageService();
+        this.reputMessageServices = new ArrayList<ReputMessageService>();
+        for (CommitLog shard : this.commitLog.getShards()) {
+            this.reputMessageServices.add(new ReputMessageService(shard));
+        }
 
         this.scheduleMessageService = new ScheduleMessageService(this);
 
+        this.tieredStoreService = messageStoreConfig.isTieredStoreEnable() ? new TieredStoreService(this) : null;
+
+        this.timerMessageStore = messageStoreConfig.isTimerWheelEnable() ? new TimerMessageStore(this) : null;
+
         this.transientStorePool = new TransientStorePool(messageStoreConfig);
 
-        if (messageStoreConfig.isTransientStorePoolEnable()) {
+        if (messageStoreConfig.isTransientStorePoolEnable() || messageStoreConfig.isDirectIOFlushEnable()) {
             this.transientStorePool.init();
         }
 
@@ -152,10 +215,13 @@ public class DefaultMessageStore implements MessageStore {
 
     public void truncateDirtyLogicFiles(long phyOffset) {
         ConcurrentMap<String, ConcurrentMap<Integer, ConsumeQueue>> tables = DefaultMessageStore.this.consumeQueueTable;
+        CommitLog shard = this.commitLog.shardOfOffset(phyOffset);
 
         for (ConcurrentMap<Integer, ConsumeQueue> maps : tables.values()) {
             for (ConsumeQueue logic : maps.values()) {
-                logic.truncateDirtyLogicFiles(phyOffset);
+                if (this.commitLog.shardOf(logic.getTopic(), logic.getQueueId()) == shard) {
+                    logic.truncateDirtyLogicFiles(phyOffset);
+                }
             }
         }
     }
@@ -180,13 +246,28 @@ public class DefaultMessageStore implements MessageStore {
             // load Consume Queue
             result = result && this.loadConsumeQueue();
 
+            if (null != this.tieredStoreService) {
+                result = result && this.tieredStoreService.load();
+            }
+
+            if (null != this.timerMessageStore) {
+                result = result && this.timerMessageStore.load();
+            }
+
             if (result) {
                 this.storeCheckpoint =
-                    new StoreCheckpoint(StorePathConfigHelper.getStoreCheckpoint(this.messageStoreConfig.getStorePathRootDir()));
+                    new StoreCheckpoint(StorePathConfigHelper.getStoreCheckpoint(this.messageStoreConfig.getStorePathRootDir()),
+                        this.commitLog.getShards().size());
 
                 this.indexService.load(lastExitOK);
+                if (this.lsmIndexService != null) {
+                    result = this.lsmIndexService.load();
+                }
 
                 this.recover(lastExitOK);
+                if (this.lsmIndexService != null && this.messageStoreConfig.isMessageIndexEnable()) {
+                    this.lsmIndexService.recover();
+                }
 
                 log.info("load over, and the max phy offset = {}", this.getMaxPhyOffset());
             }
@@ -223,15 +304,37 @@ public class DefaultMessageStore implements MessageStore {
             this.scheduleMessageService.start();
         }
 
-        if (this.getMessageStoreConfig().isDuplicationEnable()) {
-            this.reputMessageService.setReputFromOffset(this.commitLog.getConfirmOffset());
-        } else {
-            this.reputMessageService.setReputFromOffset(this.commitLog.getMaxOffset());
+        if (this.timerMessageStore != null && SLAVE != messageStoreConfig.getBrokerRole()) {
+            this.timerMessageStore.start();
+        }
+
+        if (this.lsmIndexService != null) {
+            this.lsmIndexService.start();
+        }
+
+        if (this.readAheadService != null) {
+            this.readAheadService.start();
+        }
+
+        if (this.pageCacheResidencyService != null) {
+            this.pageCacheResidencyService.start();
+        }
+
+        for (ReputMessageService reputMessageService : this.reputMessageServices) {
+            if (this.getMessageStoreConfig().isDuplicationEnable()) {
+                reputMessageService.setReputFromOffset(this.commitLog.getConfirmOffset());
+            } else {
+                reputMessageService.setReputFromOffset(reputMessageService.commitLog.getMaxOffset());
+            }
+            reputMessageService.start();
         }
-        this.reputMessageService.start();
 
         this.haService.start();
 
+        if (this.tieredStoreService != null) {
+            this.tieredStoreService.start();
+        }
+
         this.createTempFile();
         this.addScheduleTask();
         this.shutdown = false;
@@ -254,12 +357,33 @@ public class DefaultMessageStore implements MessageStore {
                 this.scheduleMessageService.shutdown();
             }
 
+            if (this.timerMessageStore != null) {
+                this.timerMessageStore.shutdown();
+            }
+
             this.haService.shutdown();
 
+            if (this.tieredStoreService != null) {
+                this.tieredStoreService.shutdown();
+            }
+
+            if (this.readAheadService != null) {
+                this.readAheadService.shutdown();
+            }
+
+            if (this.pageCacheResidencyService != null) {
+                this.pageCacheResidencyService.shutdown();
+            }
+
             this.storeStatsService.shutdown();
             this.indexService.shutdown();
             this.commitLog.shutdown();
-            this.reputMessageService.shutdown();
+            for (ReputMessageService reputMessageService : this.reputMessageServices) {
+                reputMessageService.shutdown();
+            }
+            if (this.lsmIndexService != null) {
+                this.lsmIndexService.shutdown();
+            }
             this.flushConsumeQueueService.shutdown();
             this.allocateMappedFileService.shutdown();
             this.storeCheckpoint.flush();
@@ -287,6 +411,12 @@ public class DefaultMessageStore implements MessageStore {
         this.destroyLogics();
         this.commitLog.destroy();
         this.indexService.destroy();
+        if (this.lsmIndexService != null) {
+            this.lsmIndexService.destroy();
+        }
+        if (this.timerMessageStore != null) {
+            this.timerMessageStore.destroy();
+        }
         this.deleteFile(StorePathConfigHelper.getAbortFile(this.messageStoreConfig.getStorePathRootDir()));
         this.deleteFile(StorePathConfigHelper.getStoreCheckpoint(this.messageStoreConfig.getStorePathRootDir()));
     }
@@ -300,6 +430,93 @@ public class DefaultMessageStore implements MessageStore {
     }
 
     public PutMessageResult putMessage(MessageExtBrokerInner msg) {
+        PutMessageResult checkResult = this.checkMessage(msg);
+        if (checkResult != null) {
+            return checkResult;
+        }
+
+        long beginTime = this.getSystemClock().now();
+        PutMessageResult result = this.commitLog.putMessage(msg);
+
+        long eclipseTime = this.getSystemClock().now() - beginTime;
+        if (eclipseTime > 500) {
+            log.warn("putMessage not in lock eclipse time(ms)={}, bodyLength={}", eclipseTime, msg.getBody().length);
+        }
+        this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
+
+        if (null == result || !result.isOk()) {
+            this.storeStatsService.getPutMessageFailedTimes().incrementAndGet();
+        }
+
+        return result;
+    }
+
+    public PutMessageResult putMessages(MessageExtBatch messageExtBatch) {
+        PutMessageResult checkResult = this.checkMessages(messageExtBatch);
+        if (checkResult != null) {
+            return checkResult;
+        }
+
+        long beginTime = this.getSystemClock().now();
+        PutMessageResult result = this.commitLog.putMessages(messageExtBatch);
+
+        long eclipseTime = this.getSystemClock().now() - beginTime;
+        if (eclipseTime > 500) {
+            log.warn("not in lock eclipse time(ms)={}, bodyLength={}", eclipseTime, messageExtBatch.getBody().length);
+        }
+        this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
+
+        if (null == result || !result.isOk()) {
+            this.storeStatsService.getPutMessageFailedTimes().incrementAndGet();
+        }
+
+        return result;
+    }
+
+    @Override
+    public PutMessageFuture asyncPutMessage(final MessageExtBrokerInner msg) {
+        PutMessageResult checkResult = this.checkMessage(msg);
+        if (checkResult != null) {
+            return PutMessageFuture.completed(checkResult);
+        }
+
+        long beginTime = this.getSystemClock().now();
+        PutMessageFuture future = this.commitLog.asyncPutMessage(msg);
+
+        long eclipseTime = this.getSystemClock().now() - beginTime;
+        if (eclipseTime > 500) {
+            log.warn("asyncPutMessage not in lock eclipse time(ms)={}, bodyLength={}", eclipseTime, msg.getBody().length);
+        }
+        this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
+
+        future.addCallback(this.putMessageFailedCounter);
+        return future;
+    }
+
+    @Override
+    public PutMessageFuture asyncPutMessages(final MessageExtBatch messageExtBatch) {
+        PutMessageResult checkResult = this.checkMessages(messageExtBatch);
+        if (checkResult != null) {
+            return PutMessageFuture.completed(checkResult);
+        }
+
+        long beginTime = this.getSystemClock().now();
+        PutMessageFuture future = this.commitLog.asyncPutMessages(messageExtBatch);
+
+        long eclipseTime = this.getSystemClock().now() - beginTime;
+        if (eclipseTime > 500) {
+            log.warn("asyncPutMessages not in lock eclipse time(ms)={}, bodyLength={}", eclipseTime, messageExtBatch.getBody().length);
+        }
+        this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
+
+        future.addCallback(this.putMessageFailedCounter);
+        return future;
+    }
+
+    /**
+     * @return the result to reject the message with, or null if it can be stored
+     */
+    private PutMessageResult checkMessage(final MessageExtBrokerInner msg) {
         if (this.shutdown) {
             log.warn("message store has shutdown, so putMessage is forbidden");
             return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE, null);
@@ -335,27 +552,19 @@ public class DefaultMessageStore implements MessageStore {
             return new PutMessageResult(PutMessageStatus.PROPERTIES_SIZE_EXCEEDED, null);
         }
 
-        if (this.isOSPageCacheBusy()) {
-            return new PutMessageResult(PutMessageStatus.OS_PAGECACHE_BUSY, null);
-        }
-
-        long beginTime = this.getSystemClock().now();
-        PutMessageResult result = this.commitLog.putMessage(msg);
-
-        long eclipseTime = this.getSystemClock().now() - beginTime;
-        if (eclipseTime > 500) {
-            log.warn("putMessage not in lock eclipse time(ms)={}, bodyLength={}", eclipseTime, msg.getBody().length);
+        if (this.timerMessageStore != null && !this.timerMessageStore.checkDeliverTimestamp(msg)) {
+            log.warn("putMessage message deliver time illegal " + msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS));
+            return new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
         }
-        this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
 
-        if (null == result || !result.isOk()) {
-            this.storeStatsService.getPutMessageFailedTimes().incrementAndGet();
+        if (this.isOSPageCacheBusy()) {
+            return new PutMessageResult(PutMessageStatus.OS_PAGECACHE_BUSY, null);
         }
 
-        return result;
+        return null;
     }
 
-    public PutMessageResult putMessages(MessageExtBatch messageExtBatch) {
+    private PutMessageResult checkMessages(final MessageExtBatch messageExtBatch) {
         if (this.shutdown) {
             log.warn("DefaultMessageStore has shutdown, so putMessages is forbidden");
             return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE, null);
@@ -395,20 +604,7 @@ public class DefaultMessageStore implements MessageStore {
             return new PutMessageResult(PutMessageStatus.OS_PAGECACHE_BUSY, null);
         }
 
-        long beginTime = this.getSystemClock().now();
-        PutMessageResult result = this.commitLog.putMessages(messageExtBatch);
-
-        long eclipseTime = this.getSystemClock().now() - beginTime;
-        if (eclipseTime > 500) {
-            log.warn("not in lock eclipse time(ms)={}, bodyLength={}", eclipseTime, messageExtBatch.getBody().length);
-        }
-        this.storeStatsService.setPutMessageEntireTimeMax(eclipseTime);
-
-        if (null == result || !result.isOk()) {
-            this.storeStatsService.getPutMessageFailedTimes().incrementAndGet();
-        }
-
-        return result;
+        return null;
     }
 
     @Override
@@ -433,6 +629,14 @@ public class DefaultMessageStore implements MessageStore {
         return commitLog;
     }
 
+    public TieredStoreService getTieredStoreService() {
+        return tieredStoreService;
+    }
+
+    public TimerMessageStore getTimerMessageStore() {
+        return timerMessageStore;
+    }
+
     public GetMessageResult getMessage(final String group, final String topic, final int queueId, final long offset,
         final int maxMsgNums,
         final MessageFilter messageFilter) {
@@ -455,17 +659,24 @@ public class DefaultMessageStore implements MessageStore {
 
         GetMessageResult getResult = new GetMessageResult();
 
-        final long maxOffsetPy = this.commitLog.getMaxOffset();
+        final long maxOffsetPy = this.commitLog.shardOf(topic, queueId).getMaxOffset();
+        final long minOffsetPy = this.commitLog.shardOf(topic, queueId).getMinOffset();
 
         ConsumeQueue consumeQueue = findConsumeQueue(topic, queueId);
         if (consumeQueue != null) {
             minOffset = consumeQueue.getMinOffsetInQueue();
             maxOffset = consumeQueue.getMaxOffsetInQueue();
 
+            final int maxFilterMessageCount = Math.max(16000, maxMsgNums * ConsumeQueue.CQ_STORE_UNIT_SIZE);
+            SelectMappedBufferResult tieredConsumeQueue = null;
+            if (offset < minOffset && maxOffset != 0 && this.tieredStoreService != null) {
+                tieredConsumeQueue = this.tieredStoreService.getConsumeQueueBuffer(topic, queueId, offset, maxFilterMessageCount);
+            }
+
             if (maxOffset == 0) {
                 status = GetMessageStatus.NO_MESSAGE_IN_QUEUE;
                 nextBeginOffset = nextOffsetCorrection(offset, 0);
-            } else if (offset < minOffset) {
+            } else if (offset < minOffset && null == tieredConsumeQueue) {
                 status = GetMessageStatus.OFFSET_TOO_SMALL;
                 nextBeginOffset = nextOffsetCorrection(offset, minOffset);
             } else if (offset == maxOffset) {
@@ -479,16 +690,25 @@ public class DefaultMessageStore implements MessageStore {
                     nextBeginOffset = nextOffsetCorrection(offset, maxOffset);
                 }
             } else {
-                SelectMappedBufferResult bufferConsumeQueue = consumeQueue.getIndexBuffer(offset);
+                SelectMappedBufferResult bufferConsumeQueue =
+                    null != tieredConsumeQueue ? tieredConsumeQueue : consumeQueue.getIndexBuffer(offset);
                 if (bufferConsumeQueue != null) {
+                    // CommitLog file region the messages are sliced from, held once for all of them
+                    SelectMappedBufferResult region = null;
+                    boolean regionUsed = false;
                     try {
                         status = GetMessageStatus.NO_MATCHED_MESSAGE;
 
                         long nextPhyFileStartOffset = Long.MIN_VALUE;
                         long maxPhyOffsetPulling = 0;
+                        // CommitLog range of the messages read from local files
+                        long readFromPhyOffset = -1;
+                        long readToPhyOffset = -1;
+
+                        final boolean coldReadThrottled = this.pageCacheResidencyService != null
+                            && this.pageCacheResidencyService.isColdReadThrottled(group, topic, queueId);
 
                         int i = 0;
-                        final int maxFilterMessageCount = Math.max(16000, maxMsgNums * ConsumeQueue.CQ_STORE_UNIT_SIZE);
                         final boolean diskFallRecorded = this.messageStoreConfig.isDiskFallRecorded();
                         ConsumeQueueExt.CqExtUnit cqExtUnit = new ConsumeQueueExt.CqExtUnit();
                         for (; i < bufferConsumeQueue.getSize() && i < maxFilterMessageCount; i += ConsumeQueue.CQ_STORE_UNIT_SIZE) {
@@ -510,6 +730,10 @@ public class DefaultMessageStore implements MessageStore {
                                 break;
                             }
 
+                            if (isInDisk && coldReadThrottled && getResult.getMessageCount() > 0) {
+                                break;
+                            }
+
                             boolean extRet = false, isTagsCodeLegal = true;
                             if (consumeQueue.isExtAddr(tagsCode)) {
                                 extRet = consumeQueue.getExt(tagsCode, cqExtUnit);
@@ -532,8 +756,22 @@ public class DefaultMessageStore implements MessageStore {
                                 continue;
                             }
 
-                            SelectMappedBufferResult selectResult = this.commitLog.getMessage(offsetPy, sizePy);
-                            if (null == selectResult) {
+                            SelectMappedBufferResult selectResult = null;
+                            final boolean tiered = this.tieredStoreService != null && offsetPy < minOffsetPy;
+                            if (tiered) {
+                                selectResult = this.tieredStoreService.getMessage(offsetPy, sizePy);
+                            } else if (null == region || !region.contains(offsetPy, sizePy)) {
+                                if (region != null && !regionUsed) {
+                                    region.release();
+                                }
+                                region = this.commitLog.getData(offsetPy);
+                                regionUsed = false;
+                                if (region != null && !region.contains(offsetPy, sizePy)) {
+                                    region.release();
+                                    region = null;
+                                }
+                            }
+                            if (tiered ? null == selectResult : null == region) {
                                 if (getResult.getBufferTotalSize() == 0) {
                                     status = GetMessageStatus.MESSAGE_WAS_REMOVING;
                                 }
@@ -542,18 +780,39 @@ public class DefaultMessageStore implements MessageStore {
                                 continue;
                             }
 
-                            if (messageFilter != null
-                                && !messageFilter.isMatchedByCommitLog(selectResult.getByteBuffer().slice(), null)) {
+                            if (isFiller(tiered ? selectResult.getByteBuffer().slice() : region.slice(offsetPy, sizePy))) {
+                                if (getResult.getBufferTotalSize() == 0) {
+                                    status = GetMessageStatus.NO_MATCHED_MESSAGE;
+                                }
+                                if (tiered) {
+                                    selectResult.release();
+                                }
+                                continue;
+                            }
+
+                            if (messageFilter != null && !messageFilter.isMatchedByCommitLog(
+                                tiered ? selectResult.getByteBuffer().slice() : region.slice(offsetPy, sizePy), null)) {
                                 if (getResult.getBufferTotalSize() == 0) {
                                     status = GetMessageStatus.NO_MATCHED_MESSAGE;
                                 }
                                 // release...
-                                selectResult.release();
+                                if (tiered) {
+                                    selectResult.release();
+                                }
                                 continue;
                             }
 
                             this.storeStatsService.getGetMessageTransferedMsgCount().incrementAndGet();
-                            getResult.addMessage(selectResult);
+                            if (tiered) {
+                                getResult.addMessage(selectResult);
+                            } else {
+                                getResult.addMessage(region, offsetPy, sizePy);
+                                regionUsed = true;
+                                if (readFromPhyOffset < 0) {
+                                    readFromPhyOffset = offsetPy;
+                                }
+                                readToPhyOffset = offsetPy + sizePy;
+                            }
                             status = GetMessageStatus.FOUND;
                             nextPhyFileStartOffset = Long.MIN_VALUE;
                         }
@@ -565,12 +824,23 @@ public class DefaultMessageStore implements MessageStore {
 
                         nextBeginOffset = offset + (i / ConsumeQueue.CQ_STORE_UNIT_SIZE);
 
+                        if (readFromPhyOffset >= 0 && checkInDiskByCommitOffset(readFromPhyOffset, maxOffsetPy)) {
+                            if (this.readAheadService != null) {
+                                this.readAheadService.onColdRead(group, topic, queueId, readFromPhyOffset, readToPhyOffset);
+                            }
+                            if (this.pageCacheResidencyService != null) {
+                                this.pageCacheResidencyService.onColdRead(readToPhyOffset - readFromPhyOffset);
+                            }
+                        }
+
                         long diff = maxOffsetPy - maxPhyOffsetPulling;
                         long memory = (long) (StoreUtil.TOTAL_PHYSICAL_MEMORY_SIZE
                             * (this.messageStoreConfig.getAccessMessageInMemoryMaxRatio() / 100.0));
                         getResult.setSuggestPullingFromSlave(diff > memory);
                     } finally {
-
+                        if (region != null && !regionUsed) {
+                            region.release();
+                        }
                         bufferConsumeQueue.release();
                     }
                 } else {
@@ -708,6 +978,22 @@ public class DefaultMessageStore implements MessageStore {
             if (this.scheduleMessageService != null) {
                 this.scheduleMessageService.buildRunningStats(result);
             }
+
+            if (this.timerMessageStore != null) {
+                this.timerMessageStore.buildRunningStats(result);
+            }
+
+            if (this.lsmIndexService != null) {
+                this.lsmIndexService.buildRunningStats(result);
+            }
+
+            if (this.readAheadService != null) {
+                this.readAheadService.buildRunningStats(result);
+            }
+
+            if (this.pageCacheResidencyService != null) {
+                this.pageCacheResidencyService.buildRunningStats(result);
+            }
         }
 
         result.put(RunningStats.commitLogMinOffset.name(), String.valueOf(DefaultMessageStore.this.getMinPhyOffset()));
@@ -730,43 +1016,30 @@ public class DefaultMessageStore implements MessageStore {
     public long getEarliestMessageTime(String topic, int queueId) {
         ConsumeQueue logicQueue = this.findConsumeQueue(topic, queueId);
         if (logicQueue != null) {
-            long minLogicOffset = logicQueue.getMinLogicOffset();
-
-            SelectMappedBufferResult result = logicQueue.getIndexBuffer(minLogicOffset / ConsumeQueue.CQ_STORE_UNIT_SIZE);
-            return getStoreTime(result);
+            return logicQueue.getMessageStoreTimeStamp(logicQueue.getMinOffsetInQueue());
         }
 
         return -1;
     }
 
-    private long getStoreTime(SelectMappedBufferResult result) {
-        if (result != null) {
-            try {
-                final long phyOffset = result.getByteBuffer().getLong();
-                final int size = result.getByteBuffer().getInt();
-                long storeTime = this.getCommitLog().pickupStoreTimestamp(phyOffset, size);
-                return storeTime;
-            } catch (Exception e) {
-            } finally {
-                result.release();
-            }
-        }
-        return -1;
-    }
-
     @Override
     public long getEarliestMessageTime() {
-        final long minPhyOffset = this.getMinPhyOffset();
         final int size = this.messageStoreConfig.getMaxMessageSize() * 2;
-        return this.getCommitLog().pickupStoreTimestamp(minPhyOffset, size);
+        long earliestMessageTime = -1;
+        for (CommitLog shard : this.commitLog.getShards()) {
+            long storeTime = shard.pickupStoreTimestamp(shard.getMinOffset(), size);
+            if (storeTime >= 0 && (earliestMessageTime < 0 || storeTime < earliestMessageTime)) {
+                earliestMessageTime = storeTime;
+            }
+        }
+        return earliestMessageTime;
     }
 
     @Override
     public long getMessageStoreTimeStamp(String topic, int queueId, long consumeQueueOffset) {
         ConsumeQueue logicQueue = this.findConsumeQueue(topic, queueId);
         if (logicQueue != null) {
-            SelectMappedBufferResult result = logicQueue.getIndexBuffer(consumeQueueOffset);
-            return getStoreTime(result);
+            return logicQueue.getMessageStoreTimeStamp(consumeQueueOffset);
         }
 
         return -1;
@@ -801,7 +1074,9 @@ public class DefaultMessageStore implements MessageStore {
 
         boolean result = this.commitLog.appendData(startOffset, data);
         if (result) {
-            this.reputMessageService.wakeup();
+            for (ReputMessageService reputMessageService : this.reputMessageServices) {
+                reputMessageService.wakeup();
+            }
         } else {
             log.error("appendToPhyQueue failed " + startOffset + " " + data.length);
         }
@@ -814,6 +1089,26 @@ public class DefaultMessageStore implements MessageStore {
         this.cleanCommitLogService.excuteDeleteFilesManualy();
     }
 
+    /**
+     * With the LSM index, the hash chain index files written before it was enabled are looked up too until they expire
+     */
+    private QueryOffsetResult queryOffset(String topic, String key, int maxNum, long begin, long end) {
+        if (null == this.lsmIndexService) {
+            return this.indexService.queryOffset(topic, key, maxNum, begin, end);
+        }
+
+        QueryOffsetResult result = this.lsmIndexService.queryOffset(topic, key, maxNum, begin, end);
+        int remaining = Math.min(maxNum, this.messageStoreConfig.getMaxMsgsNumBatch()) - result.getPhyOffsets().size();
+        if (remaining > 0) {
+            for (Long phyOffset : this.indexService.queryOffset(topic, key, remaining, begin, end).getPhyOffsets()) {
+                if (!result.getPhyOffsets().contains(phyOffset)) {
+                    result.getPhyOffsets().add(phyOffset);
+                }
+            }
+        }
+        return result;
+    }
+
     @Override
     public QueryMessageResult queryMessage(String topic, String key, int maxNum, long begin, long end) {
         QueryMessageResult queryMessageResult = new QueryMessageResult();
@@ -821,7 +1116,7 @@ public class DefaultMessageStore implements MessageStore {
         long lastQueryMsgTime = end;
 
         for (int i = 0; i < 3; i++) {
-            QueryOffsetResult queryOffsetResult = this.indexService.queryOffset(topic, key, maxNum, begin, lastQueryMsgTime);
+            QueryOffsetResult queryOffsetResult = this.queryOffset(topic, key, maxNum, begin, lastQueryMsgTime);
             if (queryOffsetResult.getPhyOffsets().isEmpty()) {
                 break;
             }
@@ -837,10 +1132,6 @@ public class DefaultMessageStore implements MessageStore {
                 try {
 
                     boolean match = true;
-                    MessageExt msg = this.lookMessageByOffset(offset);
-                    if (0 == m) {
-                        lastQueryMsgTime = msg.getStoreTimestamp();
-                    }
 
 //                    String[] keyArray = msg.getKeys().split(MessageConst.KEY_SEPARATOR);
 //                    if (topic.equals(msg.getTopic())) {
@@ -858,6 +1149,10 @@ public class DefaultMessageStore implements MessageStore {
                             int size = result.getByteBuffer().getInt(0);
                             result.getByteBuffer().limit(size);
                             result.setSize(size);
+                            if (0 == m) {
+                                // read from the record itself rather than decoding the whole message once more
+                                lastQueryMsgTime = result.getByteBuffer().getLong(MessageDecoder.MESSAGE_STORE_TIMESTAMP_POSTION);
+                            }
                             queryMessageResult.addMessage(result);
                         }
                     } else {
@@ -1013,7 +1308,7 @@ public class DefaultMessageStore implements MessageStore {
     @Override
     public boolean checkInDiskByConsumeOffset(final String topic, final int queueId, long consumeOffset) {
 
-        final long maxOffsetPy = this.commitLog.getMaxOffset();
+        final long maxOffsetPy = this.commitLog.shardOf(topic, queueId).getMaxOffset();
 
         ConsumeQueue consumeQueue = findConsumeQueue(topic, queueId);
         if (consumeQueue != null) {
@@ -1037,7 +1332,11 @@ public class DefaultMessageStore implements MessageStore {
     }
 
     public long dispatchBehindBytes() {
-        return this.reputMessageService.behind();
+        long behind = 0;
+        for (ReputMessageService reputMessageService : this.reputMessageServices) {
+            behind += reputMessageService.behind();
+        }
+        return behind;
     }
 
     @Override
@@ -1064,6 +1363,9 @@ public class DefaultMessageStore implements MessageStore {
         SelectMappedBufferResult sbr = this.commitLog.getMessage(commitLogOffset, size);
         if (null != sbr) {
             try {
+                if (isFiller(sbr.getByteBuffer())) {
+                    return null;
+                }
                 return MessageDecoder.decode(sbr.getByteBuffer(), true, false);
             } finally {
                 sbr.release();
@@ -1073,6 +1375,15 @@ public class DefaultMessageStore implements MessageStore {
         return null;
     }
 
+    /**
+     * Whether the record starting at the buffer's position is a filler left by a failed write, see
+     * {@link MessageSysFlag#FILLER_FLAG}
+     */
+    public static boolean isFiller(final ByteBuffer record) {
+        return record.remaining() >= MessageDecoder.MESSAGE_SYSFLAG_POSITION + 4
+            && (record.getInt(record.position() + MessageDecoder.MESSAGE_SYSFLAG_POSITION) & MessageSysFlag.FILLER_FLAG) != 0;
+    }
+
     public ConsumeQueue findConsumeQueue(String topic, int queueId) {
         ConcurrentMap<Integer, ConsumeQueue> map = consumeQueueTable.get(topic);
         if (null == map) {
@@ -1181,6 +1492,19 @@ public class DefaultMessageStore implements MessageStore {
             }
         }, 1, 10, TimeUnit.MINUTES);
 
+        if (this.consumeQueueMappedFileBudget != null) {
+            this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        DefaultMessageStore.this.consumeQueueMappedFileBudget.evict();
+                    } catch (Throwable e) {
+                        log.warn("unmap consume queue files over the budget exception", e);
+                    }
+                }
+            }, 10, 10, TimeUnit.SECONDS);
+        }
+
         this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
@@ -1235,7 +1559,8 @@ public class DefaultMessageStore implements MessageStore {
         return file.exists();
     }
 
-    private boolean loadConsumeQueue() {
+    private boolean loadConsumeQueue() throws Exception {
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
         File dirLogic = new File(StorePathConfigHelper.getStorePathConsumeQueue(this.messageStoreConfig.getStorePathRootDir()));
         File[] fileTopicList = dirLogic.listFiles();
         if (fileTopicList != null) {
@@ -1252,27 +1577,36 @@ public class DefaultMessageStore implements MessageStore {
                         } catch (NumberFormatException e) {
                             continue;
                         }
-                        ConsumeQueue logic = new ConsumeQueue(
+                        final ConsumeQueue logic = new ConsumeQueue(
                             topic,
                             queueId,
                             StorePathConfigHelper.getStorePathConsumeQueue(this.messageStoreConfig.getStorePathRootDir()),
                             this.getMessageStoreConfig().getMapedFileSizeConsumeQueue(),
                             this);
                         this.putConsumeQueue(topic, queueId, logic);
-                        if (!logic.load()) {
-                            return false;
-                        }
+                        tasks.add(new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() {
+                                return logic.load();
+                            }
+                        });
                     }
                 }
             }
         }
 
+        for (Boolean result : this.runRecoverTasks(tasks)) {
+            if (!result) {
+                return false;
+            }
+        }
+
         log.info("load logics queue all over, OK");
 
         return true;
     }
 
-    private void recover(final boolean lastExitOK) {
+    private void recover(final boolean lastExitOK) throws Exception {
         this.recoverConsumeQueue();
 
         if (lastExitOK) {
@@ -1303,22 +1637,60 @@ public class DefaultMessageStore implements MessageStore {
         }
     }
 
-    private void recoverConsumeQueue() {
+    private void recoverConsumeQueue() throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
         for (ConcurrentMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
-            for (ConsumeQueue logic : maps.values()) {
-                logic.recover();
+            for (final ConsumeQueue logic : maps.values()) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        logic.recover();
+                        return null;
+                    }
+                });
+            }
+        }
+        this.runRecoverTasks(tasks);
+    }
+
+    /**
+     * Run the tasks with recoverThreadNum threads if parallel recovery is enabled, one by one in the calling thread
+     * otherwise.
+     *
+     * @return results in the order of the tasks
+     */
+    <T> List<T> runRecoverTasks(final List<Callable<T>> tasks) throws Exception {
+        List<T> results = new ArrayList<T>(tasks.size());
+        int threadNum = Math.min(this.messageStoreConfig.getRecoverThreadNum(), tasks.size());
+        if (!this.messageStoreConfig.isParallelRecoverEnable() || threadNum <= 1) {
+            for (Callable<T> task : tasks) {
+                results.add(task.call());
             }
+            return results;
         }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threadNum, new ThreadFactoryImpl("StoreRecoverThread_"));
+        try {
+            for (Future<T> future : executorService.invokeAll(tasks)) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            executorService.shutdown();
+        }
+        return results;
     }
 
     private void recoverTopicQueueTable() {
         HashMap<String/* topic-queueid */, Long/* offset */> table = new HashMap<String, Long>(1024);
-        long minPhyOffset = this.commitLog.getMinOffset();
         for (ConcurrentMap<Integer, ConsumeQueue> maps : this.consumeQueueTable.values()) {
             for (ConsumeQueue logic : maps.values()) {
                 String key = logic.getTopic() + "-" + logic.getQueueId();
                 table.put(key, logic.getMaxOffsetInQueue());
-                logic.correctMinOffset(minPhyOffset);
+                logic.correctMinOffset(this.commitLog.shardOf(logic.getTopic(), logic.getQueueId()).getMinOffset());
             }
         }
 
@@ -1345,6 +1717,22 @@ public class DefaultMessageStore implements MessageStore {
         return storeCheckpoint;
     }
 
+    public MappedFileBudget getConsumeQueueMappedFileBudget() {
+        return consumeQueueMappedFileBudget;
+    }
+
+    public PageCacheResidencyService getPageCacheResidencyService() {
+        return pageCacheResidencyService;
+    }
+
+    public ConsumerOffsetProvider getConsumerOffsetProvider() {
+        return consumerOffsetProvider;
+    }
+
+    public void setConsumerOffsetProvider(ConsumerOffsetProvider consumerOffsetProvider) {
+        this.consumerOffsetProvider = consumerOffsetProvider;
+    }
+
     public HAService getHaService() {
         return haService;
     }
@@ -1363,6 +1751,16 @@ public class DefaultMessageStore implements MessageStore {
         }
     }
 
+    private void notifyMessageArriving(DispatchRequest dispatchRequest) {
+        if (BrokerRole.SLAVE != this.getMessageStoreConfig().getBrokerRole()
+            && this.brokerConfig.isLongPollingEnable()) {
+            this.messageArrivingListener.arriving(dispatchRequest.getTopic(),
+                dispatchRequest.getQueueId(), dispatchRequest.getConsumeQueueOffset() + 1,
+                dispatchRequest.getTagsCode(), dispatchRequest.getStoreTimestamp(),
+                dispatchRequest.getBitMap(), dispatchRequest.getPropertiesMap());
+        }
+    }
+
     public void putMessagePositionInfo(DispatchRequest dispatchRequest) {
         ConsumeQueue cq = this.findConsumeQueue(dispatchRequest.getTopic(), dispatchRequest.getQueueId());
         cq.putMessagePositionInfoWrapper(dispatchRequest);
@@ -1396,6 +1794,10 @@ public class DefaultMessageStore implements MessageStore {
     }
 
     public void unlockMappedFile(final MappedFile mappedFile) {
+        if (this.pageCacheResidencyService != null) {
+            // Files stay locked as long as they are among the newest ones
+            return;
+        }
         this.scheduledExecutorService.schedule(new Runnable() {
             @Override
             public void run() {
@@ -1425,8 +1827,15 @@ public class DefaultMessageStore implements MessageStore {
 
         @Override
         public void dispatch(DispatchRequest request) {
+            if ((request.getSysFlag() & MessageSysFlag.FILLER_FLAG) != 0) {
+                return;
+            }
             if (DefaultMessageStore.this.messageStoreConfig.isMessageIndexEnable()) {
-                DefaultMessageStore.this.indexService.buildIndex(request);
+                if (DefaultMessageStore.this.lsmIndexService != null) {
+                    DefaultMessageStore.this.lsmIndexService.buildIndex(request);
+                } else {
+                    DefaultMessageStore.this.indexService.buildIndex(request);
+                }
             }
         }
     }
@@ -1590,7 +1999,7 @@ public class DefaultMessageStore implements MessageStore {
     }
 
     class CleanConsumeQueueService {
-        private long lastPhysicalMinOffset = 0;
+        private final long[] lastPhysicalMinOffsets = new long[DefaultMessageStore.this.commitLog.getShards().size()];
 
         public void run() {
             try {
@@ -1603,14 +2012,20 @@ public class DefaultMessageStore implements MessageStore {
         private void deleteExpiredFiles() {
             int deleteLogicsFilesInterval = DefaultMessageStore.this.getMessageStoreConfig().getDeleteConsumeQueueFilesInterval();
 
-            long minOffset = DefaultMessageStore.this.commitLog.getMinOffset();
-            if (minOffset > this.lastPhysicalMinOffset) {
-                this.lastPhysicalMinOffset = minOffset;
+            for (CommitLog shard : DefaultMessageStore.this.commitLog.getShards()) {
+                long minOffset = shard.getMinOffset();
+                if (minOffset <= this.lastPhysicalMinOffsets[shard.getShardIndex()]) {
+                    continue;
+                }
+                this.lastPhysicalMinOffsets[shard.getShardIndex()] = minOffset;
 
                 ConcurrentMap<String, ConcurrentMap<Integer, ConsumeQueue>> tables = DefaultMessageStore.this.consumeQueueTable;
 
                 for (ConcurrentMap<Integer, ConsumeQueue> maps : tables.values()) {
                     for (ConsumeQueue logic : maps.values()) {
+                        if (DefaultMessageStore.this.commitLog.shardOf(logic.getTopic(), logic.getQueueId()) != shard) {
+                            continue;
+                        }
                         int deleteCount = logic.deleteExpiredFile(minOffset);
 
                         if (deleteCount > 0 && deleteLogicsFilesInterval > 0) {
@@ -1622,7 +2037,18 @@ public class DefaultMessageStore implements MessageStore {
                     }
                 }
 
-                DefaultMessageStore.this.indexService.deleteExpiredFile(minOffset);
+                if (DefaultMessageStore.this.commitLog.getShards().size() > 1) {
+                    long earliestMessageTime = DefaultMessageStore.this.getEarliestMessageTime();
+                    DefaultMessageStore.this.indexService.deleteExpiredFileByTime(earliestMessageTime);
+                    if (DefaultMessageStore.this.lsmIndexService != null) {
+                        DefaultMessageStore.this.lsmIndexService.deleteExpiredFileByTime(earliestMessageTime);
+                    }
+                } else {
+                    DefaultMessageStore.this.indexService.deleteExpiredFile(minOffset);
+                    if (DefaultMessageStore.this.lsmIndexService != null) {
+                        DefaultMessageStore.this.lsmIndexService.deleteExpiredFile(minOffset);
+                    }
+                }
             }
         }
 
@@ -1642,14 +2068,27 @@ public class DefaultMessageStore implements MessageStore {
                 flushConsumeQueueLeastPages = 0;
             }
 
-            long logicsMsgTimestamp = 0;
+            long[] logicsMsgTimestamps = null;
+            long[] logicsMsgOffsets = null;
 
             int flushConsumeQueueThoroughInterval = DefaultMessageStore.this.getMessageStoreConfig().getFlushConsumeQueueThoroughInterval();
             long currentTimeMillis = System.currentTimeMillis();
             if (currentTimeMillis >= (this.lastFlushTimestamp + flushConsumeQueueThoroughInterval)) {
                 this.lastFlushTimestamp = currentTimeMillis;
                 flushConsumeQueueLeastPages = 0;
-                logicsMsgTimestamp = DefaultMessageStore.this.getStoreCheckpoint().getLogicsMsgTimestamp();
+                StoreCheckpoint storeCheckpoint = DefaultMessageStore.this.getStoreCheckpoint();
+                logicsMsgTimestamps = new long[storeCheckpoint.getShardNum()];
+                for (int i = 0; i < logicsMsgTimestamps.length; i++) {
+                    // Workers finish out of CommitLog order, only what all of them have dispatched counts
+                    logicsMsgTimestamps[i] = DefaultMessageStore.this.messageStoreConfig.isParallelDispatchEnable()
+                        ? DefaultMessageStore.this.reputMessageServices.get(i).dispatchedTimestamp()
+                        : storeCheckpoint.getLogicsMsgTimestamp(i);
+                }
+                // Taken before flushing, so every message below them is in the flushed files
+                logicsMsgOffsets = new long[DefaultMessageStore.this.reputMessageServices.size()];
+                for (int i = 0; i < logicsMsgOffsets.length; i++) {
+                    logicsMsgOffsets[i] = DefaultMessageStore.this.reputMessageServices.get(i).dispatchedOffset();
+                }
             }
 
             ConcurrentMap<String, ConcurrentMap<Integer, ConsumeQueue>> tables = DefaultMessageStore.this.consumeQueueTable;
@@ -1664,8 +2103,15 @@ public class DefaultMessageStore implements MessageStore {
             }
 
             if (0 == flushConsumeQueueLeastPages) {
-                if (logicsMsgTimestamp > 0) {
-                    DefaultMessageStore.this.getStoreCheckpoint().setLogicsMsgTimestamp(logicsMsgTimestamp);
+                for (int i = 0; logicsMsgTimestamps != null && i < logicsMsgTimestamps.length; i++) {
+                    if (logicsMsgTimestamps[i] > 0) {
+                        DefaultMessageStore.this.getStoreCheckpoint().setLogicsMsgTimestamp(i, logicsMsgTimestamps[i]);
+                    }
+                }
+                for (int i = 0; logicsMsgOffsets != null && i < logicsMsgOffsets.length; i++) {
+                    if (logicsMsgOffsets[i] > 0) {
+                        DefaultMessageStore.this.getStoreCheckpoint().setLogicsMsgOffset(i, logicsMsgOffsets[i]);
+                    }
                 }
                 DefaultMessageStore.this.getStoreCheckpoint().flush();
             }
@@ -1702,7 +2148,27 @@ public class DefaultMessageStore implements MessageStore {
 
     class ReputMessageService extends ServiceThread {
 
+        private final CommitLog commitLog;
         private volatile long reputFromOffset = 0;
+        private volatile long parsedTimestamp = 0;
+        private final List<DispatchWorker> consumeQueueDispatchWorkers;
+        private final DispatchWorker indexDispatchWorker;
+
+        ReputMessageService(final CommitLog commitLog) {
+            this.commitLog = commitLog;
+            if (DefaultMessageStore.this.messageStoreConfig.isParallelDispatchEnable()) {
+                int capacity = DefaultMessageStore.this.messageStoreConfig.getDispatchQueueCapacity();
+                int stripeNum = Math.max(1, DefaultMessageStore.this.messageStoreConfig.getDispatchStripeNum());
+                this.consumeQueueDispatchWorkers = new ArrayList<DispatchWorker>(stripeNum);
+                for (int i = 0; i < stripeNum; i++) {
+                    this.consumeQueueDispatchWorkers.add(new DispatchWorker(capacity, false));
+                }
+                this.indexDispatchWorker = new DispatchWorker(capacity, true);
+            } else {
+                this.consumeQueueDispatchWorkers = Collections.emptyList();
+                this.indexDispatchWorker = null;
+            }
+        }
 
         public long getReputFromOffset() {
             return reputFromOffset;
@@ -1723,18 +2189,85 @@ public class DefaultMessageStore implements MessageStore {
 
             if (this.isCommitLogAvailable()) {
                 log.warn("shutdown ReputMessageService, but commitlog have not finish to be dispatched, CL: {} reputFromOffset: {}",
-                    DefaultMessageStore.this.commitLog.getMaxOffset(), this.reputFromOffset);
+                    this.commitLog.getMaxOffset(), this.reputFromOffset);
             }
 
             super.shutdown();
+
+            // Workers drain their queues before they stop
+            for (DispatchWorker worker : this.consumeQueueDispatchWorkers) {
+                worker.shutdown();
+            }
+            if (this.indexDispatchWorker != null) {
+                this.indexDispatchWorker.shutdown();
+            }
+        }
+
+        @Override
+        public void start() {
+            for (DispatchWorker worker : this.consumeQueueDispatchWorkers) {
+                worker.start();
+            }
+            if (this.indexDispatchWorker != null) {
+                this.indexDispatchWorker.start();
+            }
+            super.start();
         }
 
         public long behind() {
-            return DefaultMessageStore.this.commitLog.getMaxOffset() - this.reputFromOffset;
+            return this.commitLog.getMaxOffset() - this.dispatchedOffset();
+        }
+
+        /**
+         * @return the CommitLog offset up to which every dispatcher has finished, the parse offset when dispatching
+         * is done by this thread.
+         */
+        private long dispatchedOffset() {
+            final long parsedOffset = this.reputFromOffset;
+            long offset = parsedOffset;
+            for (DispatchWorker worker : this.consumeQueueDispatchWorkers) {
+                offset = Math.min(offset, worker.getDispatchedOffset(parsedOffset));
+            }
+            if (this.indexDispatchWorker != null) {
+                offset = Math.min(offset, this.indexDispatchWorker.getDispatchedOffset(parsedOffset));
+            }
+            return offset;
+        }
+
+        /**
+         * @return the store timestamp of a message such that every message before it has been written to the consume
+         * queues, 0 if unknown. Only maintained when dispatching in parallel.
+         */
+        private long dispatchedTimestamp() {
+            final long parsedTimestamp = this.parsedTimestamp;
+            long timestamp = parsedTimestamp;
+            for (DispatchWorker worker : this.consumeQueueDispatchWorkers) {
+                timestamp = Math.min(timestamp, worker.getDispatchedTimestamp(parsedTimestamp));
+            }
+            return timestamp;
+        }
+
+        private void dispatch(final DispatchRequest dispatchRequest) {
+            if (this.indexDispatchWorker == null) {
+                DefaultMessageStore.this.doDispatch(dispatchRequest);
+                DefaultMessageStore.this.notifyMessageArriving(dispatchRequest);
+                return;
+            }
+
+            final long previousTimestamp = this.parsedTimestamp;
+            if (DefaultMessageStore.this.messageStoreConfig.isMessageIndexEnable()) {
+                this.indexDispatchWorker.putRequest(dispatchRequest, previousTimestamp);
+            }
+
+            // All requests of a queue go to the same worker, so its entries and notifications stay in CommitLog order
+            int hash = (dispatchRequest.getTopic().hashCode() * 31 + dispatchRequest.getQueueId()) & Integer.MAX_VALUE;
+            this.consumeQueueDispatchWorkers.get(hash % this.consumeQueueDispatchWorkers.size())
+                .putRequest(dispatchRequest, previousTimestamp);
+            this.parsedTimestamp = dispatchRequest.getStoreTimestamp();
         }
 
         private boolean isCommitLogAvailable() {
-            return this.reputFromOffset < DefaultMessageStore.this.commitLog.getMaxOffset();
+            return this.reputFromOffset < this.commitLog.getMaxOffset();
         }
 
         private void doReput() {
@@ -1745,27 +2278,19 @@ public class DefaultMessageStore implements MessageStore {
                     break;
                 }
 
-                SelectMappedBufferResult result = DefaultMessageStore.this.commitLog.getData(reputFromOffset);
+                SelectMappedBufferResult result = this.commitLog.getData(reputFromOffset);
                 if (result != null) {
                     try {
                         this.reputFromOffset = result.getStartOffset();
 
                         for (int readSize = 0; readSize < result.getSize() && doNext; ) {
                             DispatchRequest dispatchRequest =
-                                DefaultMessageStore.this.commitLog.checkMessageAndReturnSize(result.getByteBuffer(), false, false);
+                                this.commitLog.checkMessageAndReturnSize(result.getByteBuffer(), false, false);
                             int size = dispatchRequest.getMsgSize();
 
                             if (dispatchRequest.isSuccess()) {
                                 if (size > 0) {
-                                    DefaultMessageStore.this.doDispatch(dispatchRequest);
-
-                                    if (BrokerRole.SLAVE != DefaultMessageStore.this.getMessageStoreConfig().getBrokerRole()
-                                        && DefaultMessageStore.this.brokerConfig.isLongPollingEnable()) {
-                                        DefaultMessageStore.this.messageArrivingListener.arriving(dispatchRequest.getTopic(),
-                                            dispatchRequest.getQueueId(), dispatchRequest.getConsumeQueueOffset() + 1,
-                                            dispatchRequest.getTagsCode(), dispatchRequest.getStoreTimestamp(),
-                                            dispatchRequest.getBitMap(), dispatchRequest.getPropertiesMap());
-                                    }
+                                    this.dispatch(dispatchRequest);
 
                                     this.reputFromOffset += size;
                                     readSize += size;
@@ -1777,7 +2302,7 @@ public class DefaultMessageStore implements MessageStore {
                                             .addAndGet(dispatchRequest.getMsgSize());
                                     }
                                 } else if (size == 0) {
-                                    this.reputFromOffset = DefaultMessageStore.this.commitLog.rollNextFile(this.reputFromOffset);
+                                    this.reputFromOffset = this.commitLog.rollNextFile(this.reputFromOffset);
                                     readSize = result.getSize();
                                 }
                             } else if (!dispatchRequest.isSuccess()) {
@@ -1827,4 +2352,103 @@ public class DefaultMessageStore implements MessageStore {
         }
 
     }
+
+    /**
+     * Runs the dispatchers for the requests a ReputMessageService parsed, in parse order. An index worker runs only
+     * the CommitLogDispatcherBuildIndex dispatchers, a consume queue worker runs all the others and then notifies
+     * the MessageArrivingListener.
+     */
+    class DispatchWorker extends ServiceThread {
+
+        private final BlockingQueue<DispatchRequest> requestQueue;
+        private final boolean indexWorker;
+        private final AtomicLong pendingRequests = new AtomicLong(0);
+        private volatile long dispatchedOffset = 0;
+        private volatile long dispatchedTimestamp = 0;
+
+        DispatchWorker(final int capacity, final boolean indexWorker) {
+            this.requestQueue = new ArrayBlockingQueue<DispatchRequest>(capacity);
+            this.indexWorker = indexWorker;
+        }
+
+        /**
+         * @param previousTimestamp store timestamp of the request parsed before this one
+         */
+        public void putRequest(final DispatchRequest request, final long previousTimestamp) {
+            if (this.pendingRequests.getAndIncrement() == 0) {
+                // Idle, everything handed over before this request is done
+                this.dispatchedTimestamp = previousTimestamp;
+                this.dispatchedOffset = request.getCommitLogOffset();
+            }
+
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    this.requestQueue.put(request);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public long getDispatchedOffset(final long parsedOffset) {
+            return this.pendingRequests.get() == 0 ? parsedOffset : this.dispatchedOffset;
+        }
+
+        public long getDispatchedTimestamp(final long parsedTimestamp) {
+            return this.pendingRequests.get() == 0 ? parsedTimestamp : this.dispatchedTimestamp;
+        }
+
+        private void doDispatch(final DispatchRequest request) {
+            try {
+                for (CommitLogDispatcher dispatcher : DefaultMessageStore.this.dispatcherList) {
+                    if ((dispatcher instanceof CommitLogDispatcherBuildIndex) == this.indexWorker) {
+                        dispatcher.dispatch(request);
+                    }
+                }
+
+                if (!this.indexWorker) {
+                    DefaultMessageStore.this.notifyMessageArriving(request);
+                }
+            } catch (Exception e) {
+                DefaultMessageStore.log.warn(this.getServiceName() + " dispatch failed, COMMITLOG OFFSET: "
+                    + request.getCommitLogOffset(), e);
+            } finally {
+                this.dispatchedTimestamp = request.getStoreTimestamp();
+                this.dispatchedOffset = request.getCommitLogOffset() + request.getMsgSize();
+                this.pendingRequests.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void run() {
+            DefaultMessageStore.log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    DispatchRequest request = this.requestQueue.poll(10, TimeUnit.MILLISECONDS);
+                    if (request != null) {
+                        this.doDispatch(request);
+                    }
+                } catch (InterruptedException e) {
+                    DefaultMessageStore.log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            for (DispatchRequest request = this.requestQueue.poll(); request != null; request = this.requestQueue.poll()) {
+                this.doDispatch(request);
+            }
+
+            DefaultMessageStore.log.info(this.getServiceName() + " service end");
+        }
+
+        @Override
+        public String getServiceName() {
+            return DispatchWorker.class.getSimpleName();
+        }
+    }
 }
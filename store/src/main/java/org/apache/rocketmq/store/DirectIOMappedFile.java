@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.apache.rocketmq.store.util.LibC;
+import sun.nio.ch.DirectBuffer;
+
+/**
+ * A CommitLog file which commits its write buffer with O_DIRECT writes and makes them durable with fdatasync.
+ * <p>
+ * Messages are appended to a page aligned buffer of the TransientStorePool as usual. Committing writes whole blocks of
+ * it straight to the device, the last partial block is padded with zeros and written again by the next commit. Reads
+ * keep going through the mapped buffer. Falls back to the FileChannel commit path if the file can not be opened with
+ * O_DIRECT.
+ */
+public class DirectIOMappedFile extends MappedFile {
+    private static final int BLOCK_SIZE = OS_PAGE_SIZE;
+    private static final int O_DIRECT = Platform.ARCH.startsWith("arm") || Platform.ARCH.startsWith("aarch64") ? 0200000 : 040000;
+    // Padding source for the tail block, only ever read through duplicates
+    private static final ByteBuffer ZERO_BLOCK = ByteBuffer.allocateDirect(BLOCK_SIZE);
+
+    private int fd = -1;
+    private ByteBuffer tailBlock;
+
+    public DirectIOMappedFile(final String fileName, final int fileSize,
+        final TransientStorePool transientStorePool) throws IOException {
+        super(fileName, fileSize, transientStorePool);
+
+        if (this.writeBuffer != null && Platform.isLinux()) {
+            this.fd = LibC.INSTANCE.open(fileName, LibC.O_RDWR | O_DIRECT);
+            if (this.fd < 0) {
+                log.warn("open {} with O_DIRECT failed, commit through file channel instead", fileName);
+            } else {
+                this.tailBlock = allocateBlock();
+            }
+        }
+    }
+
+    private static ByteBuffer allocateBlock() {
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(BLOCK_SIZE * 2);
+        long address = ((DirectBuffer) byteBuffer).address();
+        int offset = (int) ((BLOCK_SIZE - address % BLOCK_SIZE) % BLOCK_SIZE);
+        byteBuffer.position(offset);
+        byteBuffer.limit(offset + BLOCK_SIZE);
+        return byteBuffer.slice();
+    }
+
+    @Override
+    protected void commit0(final int commitLeastPages) {
+        if (this.fd < 0) {
+            super.commit0(commitLeastPages);
+            return;
+        }
+
+        int writePos = this.wrotePosition.get();
+        int lastCommittedPosition = this.committedPosition.get();
+
+        if (writePos - lastCommittedPosition > 0) {
+            try {
+                int begin = lastCommittedPosition - lastCommittedPosition % BLOCK_SIZE;
+                int end = writePos - writePos % BLOCK_SIZE;
+                if (end > begin) {
+                    long address = ((DirectBuffer) this.writeBuffer).address();
+                    this.write(address + begin, end - begin, begin);
+                }
+
+                if (writePos > end) {
+                    ByteBuffer byteBuffer = this.writeBuffer.slice();
+                    byteBuffer.position(end);
+                    byteBuffer.limit(writePos);
+                    this.tailBlock.clear();
+                    this.tailBlock.put(byteBuffer);
+                    ByteBuffer padding = ZERO_BLOCK.duplicate();
+                    padding.limit(this.tailBlock.remaining());
+                    this.tailBlock.put(padding);
+                    this.write(((DirectBuffer) this.tailBlock).address(), BLOCK_SIZE, end);
+                }
+
+                this.committedPosition.set(writePos);
+            } catch (Throwable e) {
+                log.error("Error occurred when commit data to file with direct I/O.", e);
+            }
+        }
+    }
+
+    private void write(final long address, final int size, final long position) throws IOException {
+        for (int written = 0; written < size; ) {
+            long ret = LibC.INSTANCE.pwrite(this.fd, new Pointer(address + written),
+                new NativeLong(size - written), position + written).longValue();
+            if (ret <= 0) {
+                throw new IOException("pwrite " + this.getFileName() + " failed, ret = " + ret);
+            }
+            written += ret;
+        }
+    }
+
+    @Override
+    protected void force() throws IOException {
+        if (this.fd < 0) {
+            super.force();
+            return;
+        }
+
+        if (LibC.INSTANCE.fdatasync(this.fd) != 0) {
+            throw new IOException("fdatasync " + this.getFileName() + " failed");
+        }
+    }
+
+    @Override
+    public boolean cleanup(final long currentRef) {
+        boolean result = super.cleanup(currentRef);
+        if (result && this.fd >= 0) {
+            LibC.INSTANCE.close(this.fd);
+            this.fd = -1;
+        }
+        return result;
+    }
+}
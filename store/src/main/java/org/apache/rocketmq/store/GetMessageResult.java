@@ -28,6 +28,15 @@ public class GetMessageResult {
 
     private final List<ByteBuffer> messageBufferList = new ArrayList<ByteBuffer>(100);
 
+    // Buffers held once for all the messages sliced from them
+    private final List<SelectMappedBufferResult> regionList = new ArrayList<SelectMappedBufferResult>(4);
+
+    // Messages adjacent in one region merged into one buffer, so that they are sent by one write
+    private final List<ByteBuffer> transferBufferList = new ArrayList<ByteBuffer>(100);
+    private SelectMappedBufferResult lastRegion;
+    private long lastTransferStartOffset;
+    private long lastTransferEndOffset;
+
     private GetMessageStatus status;
     private long nextBeginOffset;
     private long minOffset;
@@ -82,18 +91,55 @@ public class GetMessageResult {
         return messageBufferList;
     }
 
+    public List<ByteBuffer> getTransferBufferList() {
+        return transferBufferList;
+    }
+
     public void addMessage(final SelectMappedBufferResult mapedBuffer) {
         this.messageMapedList.add(mapedBuffer);
         this.messageBufferList.add(mapedBuffer.getByteBuffer());
+        this.transferBufferList.add(mapedBuffer.getByteBuffer());
+        this.lastRegion = null;
         this.bufferTotalSize += mapedBuffer.getSize();
         this.msgCount4Commercial += (int) Math.ceil(
             mapedBuffer.getSize() / BrokerStatsManager.SIZE_PER_COUNT);
     }
 
+    /**
+     * Add the message at [offset, offset + size) of the region, the region is released with this result and is held
+     * only once however many messages are sliced from it.
+     */
+    public void addMessage(final SelectMappedBufferResult region, final long offset, final int size) {
+        if (!this.regionList.contains(region)) {
+            this.regionList.add(region);
+        }
+
+        ByteBuffer message = region.slice(offset, size);
+        this.messageMapedList.add(new SelectMappedBufferResult(offset, message, size, null));
+        this.messageBufferList.add(message);
+
+        if (region == this.lastRegion && offset == this.lastTransferEndOffset) {
+            this.transferBufferList.set(this.transferBufferList.size() - 1,
+                region.slice(this.lastTransferStartOffset, (int) (offset + size - this.lastTransferStartOffset)));
+        } else {
+            this.transferBufferList.add(region.slice(offset, size));
+            this.lastRegion = region;
+            this.lastTransferStartOffset = offset;
+        }
+        this.lastTransferEndOffset = offset + size;
+
+        this.bufferTotalSize += size;
+        this.msgCount4Commercial += (int) Math.ceil(
+            size / BrokerStatsManager.SIZE_PER_COUNT);
+    }
+
     public void release() {
         for (SelectMappedBufferResult select : this.messageMapedList) {
             select.release();
         }
+        for (SelectMappedBufferResult region : this.regionList) {
+            region.release();
+        }
     }
 
     public int getBufferTotalSize() {
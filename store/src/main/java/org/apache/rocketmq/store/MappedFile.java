@@ -51,6 +51,8 @@ public class MappedFile extends ReferenceResource {
     protected final AtomicInteger wrotePosition = new AtomicInteger(0);
     //ADD BY ChenYang
     protected final AtomicInteger committedPosition = new AtomicInteger(0);
+    // Only used in multi-writer append mode, the end of the space handed out to writers, may run ahead of wrotePosition
+    protected final AtomicInteger reservedPosition = new AtomicInteger(0);
     private final AtomicInteger flushedPosition = new AtomicInteger(0);
     protected int fileSize;
     protected FileChannel fileChannel;
@@ -62,9 +64,13 @@ public class MappedFile extends ReferenceResource {
     private String fileName;
     private long fileFromOffset;
     private File file;
-    private MappedByteBuffer mappedByteBuffer;
+    private volatile MappedByteBuffer mappedByteBuffer;
     private volatile long storeTimestamp = 0;
     private boolean firstCreateInQueue = false;
+    // Not null if the file is mapped on first access, and may be unmapped again by the budget
+    private MappedFileBudget mappedFileBudget = null;
+    private volatile long lastAccessTimestamp = 0;
+    private volatile boolean locked = false;
 
     public MappedFile() {
     }
@@ -78,6 +84,15 @@ public class MappedFile extends ReferenceResource {
         init(fileName, fileSize, transientStorePool);
     }
 
+    /**
+     * Create a file which is mapped on first access, and unmapped by the budget once it is sealed and idle.
+     */
+    public MappedFile(final String fileName, final int fileSize,
+        final MappedFileBudget mappedFileBudget) throws IOException {
+        this.mappedFileBudget = mappedFileBudget;
+        init(fileName, fileSize);
+    }
+
     public static void ensureDirOK(final String dirName) {
         if (dirName != null) {
             File f = new File(dirName);
@@ -161,9 +176,9 @@ public class MappedFile extends ReferenceResource {
 
         try {
             this.fileChannel = new RandomAccessFile(this.file, "rw").getChannel();
-            this.mappedByteBuffer = this.fileChannel.map(MapMode.READ_WRITE, 0, fileSize);
-            TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(fileSize);
-            TOTAL_MAPPED_FILES.incrementAndGet();
+            if (null == this.mappedFileBudget) {
+                this.mappedByteBuffer = this.map();
+            }
             ok = true;
         } catch (FileNotFoundException e) {
             log.error("create file channel " + this.fileName + " Failed. ", e);
@@ -178,6 +193,90 @@ public class MappedFile extends ReferenceResource {
         }
     }
 
+    private MappedByteBuffer map() throws IOException {
+        MappedByteBuffer buffer = this.fileChannel.map(MapMode.READ_WRITE, 0, this.fileSize);
+        TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(this.fileSize);
+        TOTAL_MAPPED_FILES.incrementAndGet();
+        return buffer;
+    }
+
+    private MappedByteBuffer mappedByteBuffer() {
+        MappedByteBuffer buffer = this.mappedByteBuffer;
+        if (this.mappedFileBudget != null) {
+            this.lastAccessTimestamp = System.currentTimeMillis();
+            if (null == buffer) {
+                buffer = this.mapLazily();
+            }
+        }
+        return buffer;
+    }
+
+    private synchronized MappedByteBuffer mapLazily() {
+        if (null == this.mappedByteBuffer) {
+            try {
+                this.mappedByteBuffer = this.map();
+            } catch (IOException e) {
+                log.error("map file " + this.fileName + " Failed. ", e);
+                throw new IllegalStateException(e);
+            }
+            this.mappedFileBudget.mapped(this);
+        }
+        return this.mappedByteBuffer;
+    }
+
+    /**
+     * Hold the file and map it if needed, under the same lock as {@link #unmap(long)}, so the buffer returned can not
+     * be unmapped until the file is released.
+     *
+     * @return null if the file could not be held
+     */
+    private synchronized MappedByteBuffer holdMapped() {
+        if (!this.hold()) {
+            return null;
+        }
+
+        try {
+            return this.mappedByteBuffer();
+        } catch (RuntimeException e) {
+            this.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Unmap a file which is mapped on first access, if it is sealed, no one holds it and it has not been accessed
+     * after idleBefore. It is mapped again by the next access, only accesses through {@link #hold()} are safe from
+     * being unmapped meanwhile.
+     *
+     * @return true if the file has been unmapped
+     */
+    public synchronized boolean unmap(final long idleBefore) {
+        if (null == this.mappedFileBudget || null == this.mappedByteBuffer || !this.isAvailable()
+            || this.getRefCount() != 1 || !this.isFull() || this.getFlushedPosition() < this.fileSize
+            || this.lastAccessTimestamp > idleBefore) {
+            return false;
+        }
+
+        clean(this.mappedByteBuffer);
+        this.mappedByteBuffer = null;
+        TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(this.fileSize * (-1));
+        TOTAL_MAPPED_FILES.decrementAndGet();
+        this.mappedFileBudget.unmapped(this);
+        return true;
+    }
+
+    public boolean isMapped() {
+        return this.mappedByteBuffer != null;
+    }
+
+    public long getLastAccessTimestamp() {
+        return lastAccessTimestamp;
+    }
+
+    public boolean isLocked() {
+        return locked;
+    }
+
     public long getLastModifiedTimestamp() {
         return this.file.lastModified();
     }
@@ -205,7 +304,7 @@ public class MappedFile extends ReferenceResource {
         int currentPos = this.wrotePosition.get();
 
         if (currentPos < this.fileSize) {
-            ByteBuffer byteBuffer = writeBuffer != null ? writeBuffer.slice() : this.mappedByteBuffer.slice();
+            ByteBuffer byteBuffer = writeBuffer != null ? writeBuffer.slice() : this.mappedByteBuffer().slice();
             byteBuffer.position(currentPos);
             AppendMessageResult result = null;
             if (messageExt instanceof MessageExtBrokerInner) {
@@ -267,6 +366,63 @@ public class MappedFile extends ReferenceResource {
         return false;
     }
 
+    /**
+     * Reserve a region for a writer which will copy its data concurrently with other writers. The region becomes
+     * visible to readers only after {@link #publish(int, int, long)}, which must be called in reservation order.
+     *
+     * @param size The length of the region
+     * @return The start position of the region in this file, or -1 if there is not enough space left
+     */
+    public int reserve(final int size) {
+        for (;;) {
+            int reserved = this.reservedPosition.get();
+            int currentPos = Math.max(reserved, this.wrotePosition.get());
+            if (currentPos + size > this.fileSize) {
+                return -1;
+            }
+            if (this.reservedPosition.compareAndSet(reserved, currentPos + size)) {
+                return currentPos;
+            }
+        }
+    }
+
+    /**
+     * @return How many bytes could still be reserved in this file
+     */
+    public int getReservableSize() {
+        return this.fileSize - Math.max(this.reservedPosition.get(), this.wrotePosition.get());
+    }
+
+    public boolean isReservedFull() {
+        return this.fileSize == this.reservedPosition.get();
+    }
+
+    /**
+     * Copy data into a region previously handed out by {@link #reserve(int)}.
+     */
+    public void writeReserved(final int pos, final ByteBuffer data) {
+        ByteBuffer byteBuffer = this.mappedByteBuffer().slice();
+        byteBuffer.position(pos);
+        byteBuffer.put(data);
+    }
+
+    /**
+     * Make a reserved region visible to flush, reput and HA. Regions are published strictly in the order they were
+     * reserved, so this spins until all the regions before it have been published.
+     */
+    public void publish(final int pos, final int size, final long storeTimestamp) {
+        int spins = 0;
+        while (this.wrotePosition.get() != pos) {
+            if (++spins > 1000) {
+                Thread.yield();
+            }
+        }
+        if (storeTimestamp > 0) {
+            this.storeTimestamp = storeTimestamp;
+        }
+        this.wrotePosition.set(pos + size);
+    }
+
     /**
      * @return The current flushed position
      */
@@ -276,12 +432,7 @@ public class MappedFile extends ReferenceResource {
                 int value = getReadPosition();
 
                 try {
-                    //We only append data to fileChannel or mappedByteBuffer, never both.
-                    if (writeBuffer != null || this.fileChannel.position() != 0) {
-                        this.fileChannel.force(false);
-                    } else {
-                        this.mappedByteBuffer.force();
-                    }
+                    this.force();
                 } catch (Throwable e) {
                     log.error("Error occurred when force data to disk.", e);
                 }
@@ -296,6 +447,16 @@ public class MappedFile extends ReferenceResource {
         return this.getFlushedPosition();
     }
 
+    protected void force() throws IOException {
+        //We only append data to fileChannel or mappedByteBuffer, never both.
+        MappedByteBuffer buffer = this.mappedByteBuffer;
+        if (writeBuffer != null || this.fileChannel.position() != 0 || null == buffer) {
+            this.fileChannel.force(false);
+        } else {
+            buffer.force();
+        }
+    }
+
     public int commit(final int commitLeastPages) {
         if (writeBuffer == null) {
             //no need to commit data to file channel, so just regard wrotePosition as committedPosition.
@@ -383,8 +544,9 @@ public class MappedFile extends ReferenceResource {
         int readPosition = getReadPosition();
         if ((pos + size) <= readPosition) {
 
-            if (this.hold()) {
-                ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+            MappedByteBuffer mappedBuffer = this.holdMapped();
+            if (mappedBuffer != null) {
+                ByteBuffer byteBuffer = mappedBuffer.slice();
                 byteBuffer.position(pos);
                 ByteBuffer byteBufferNew = byteBuffer.slice();
                 byteBufferNew.limit(size);
@@ -404,8 +566,9 @@ public class MappedFile extends ReferenceResource {
     public SelectMappedBufferResult selectMappedBuffer(int pos) {
         int readPosition = getReadPosition();
         if (pos < readPosition && pos >= 0) {
-            if (this.hold()) {
-                ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+            MappedByteBuffer mappedBuffer = this.holdMapped();
+            if (mappedBuffer != null) {
+                ByteBuffer byteBuffer = mappedBuffer.slice();
                 byteBuffer.position(pos);
                 int size = readPosition - pos;
                 ByteBuffer byteBufferNew = byteBuffer.slice();
@@ -431,9 +594,14 @@ public class MappedFile extends ReferenceResource {
             return true;
         }
 
-        clean(this.mappedByteBuffer);
-        TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(this.fileSize * (-1));
-        TOTAL_MAPPED_FILES.decrementAndGet();
+        if (this.mappedByteBuffer != null) {
+            clean(this.mappedByteBuffer);
+            TOTAL_MAPPED_VIRTUAL_MEMORY.addAndGet(this.fileSize * (-1));
+            TOTAL_MAPPED_FILES.decrementAndGet();
+        }
+        if (this.mappedFileBudget != null) {
+            this.mappedFileBudget.unmapped(this);
+        }
         log.info("unmap file[REF:" + currentRef + "] " + this.fileName + " OK");
         return true;
     }
@@ -471,6 +639,7 @@ public class MappedFile extends ReferenceResource {
 
     public void setWrotePosition(int pos) {
         this.wrotePosition.set(pos);
+        this.reservedPosition.set(pos);
     }
 
     /**
@@ -486,7 +655,8 @@ public class MappedFile extends ReferenceResource {
 
     public void warmMappedFile(FlushDiskType type, int pages) {
         long beginTime = System.currentTimeMillis();
-        ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+        MappedByteBuffer mappedBuffer = this.mappedByteBuffer();
+        ByteBuffer byteBuffer = mappedBuffer.slice();
         int flush = 0;
         long time = System.currentTimeMillis();
         for (int i = 0, j = 0; i < this.fileSize; i += MappedFile.OS_PAGE_SIZE, j++) {
@@ -495,7 +665,7 @@ public class MappedFile extends ReferenceResource {
             if (type == FlushDiskType.SYNC_FLUSH) {
                 if ((i / OS_PAGE_SIZE) - (flush / OS_PAGE_SIZE) >= pages) {
                     flush = i;
-                    mappedByteBuffer.force();
+                    mappedBuffer.force();
                 }
             }
 
@@ -515,7 +685,7 @@ public class MappedFile extends ReferenceResource {
         if (type == FlushDiskType.SYNC_FLUSH) {
             log.info("mapped file warm-up done, force to disk, mappedFile={}, costTime={}",
                 this.getFileName(), System.currentTimeMillis() - beginTime);
-            mappedByteBuffer.force();
+            mappedBuffer.force();
         }
         log.info("mapped file warm-up done. mappedFile={}, costTime={}", this.getFileName(),
             System.currentTimeMillis() - beginTime);
@@ -527,12 +697,28 @@ public class MappedFile extends ReferenceResource {
         return fileName;
     }
 
+    /**
+     * Not safe for a file mapped on first access unless the caller holds it, see {@link #holdSliceByteBuffer()}.
+     */
     public MappedByteBuffer getMappedByteBuffer() {
-        return mappedByteBuffer;
+        return this.mappedByteBuffer();
     }
 
+    /**
+     * Not safe for a file mapped on first access unless the caller holds it, see {@link #holdSliceByteBuffer()}.
+     */
     public ByteBuffer sliceByteBuffer() {
-        return this.mappedByteBuffer.slice();
+        return this.mappedByteBuffer().slice();
+    }
+
+    /**
+     * Hold the file and slice its whole buffer, the caller releases the file once it is done with the slice.
+     *
+     * @return null if the file could not be held
+     */
+    public ByteBuffer holdSliceByteBuffer() {
+        MappedByteBuffer mappedBuffer = this.holdMapped();
+        return mappedBuffer != null ? mappedBuffer.slice() : null;
     }
 
     public long getStoreTimestamp() {
@@ -549,11 +735,17 @@ public class MappedFile extends ReferenceResource {
 
     public void mlock() {
         final long beginTime = System.currentTimeMillis();
-        final long address = ((DirectBuffer) (this.mappedByteBuffer)).address();
+        final long address = ((DirectBuffer) (this.mappedByteBuffer())).address();
         Pointer pointer = new Pointer(address);
         {
             int ret = LibC.INSTANCE.mlock(pointer, new NativeLong(this.fileSize));
-            log.info("mlock {} {} {} ret = {} time consuming = {}", address, this.fileName, this.fileSize, ret, System.currentTimeMillis() - beginTime);
+            if (0 == ret) {
+                this.locked = true;
+                log.info("mlock {} {} {} ret = {} time consuming = {}", address, this.fileName, this.fileSize, ret, System.currentTimeMillis() - beginTime);
+            } else {
+                // e.g. beyond RLIMIT_MEMLOCK, the file stays unlocked so that it is tried again
+                log.warn("mlock {} {} {} failed, ret = {} time consuming = {}", address, this.fileName, this.fileSize, ret, System.currentTimeMillis() - beginTime);
+            }
         }
 
         {
@@ -562,11 +754,50 @@ public class MappedFile extends ReferenceResource {
         }
     }
 
+    /**
+     * Ask the OS to read [pos, pos + size) of the file into the page cache asynchronously.
+     */
+    public boolean adviseWillNeed(final int pos, final int size) {
+        MappedByteBuffer mappedBuffer = this.holdMapped();
+        if (null == mappedBuffer) {
+            return false;
+        }
+
+        try {
+            long address = ((DirectBuffer) mappedBuffer).address() + pos;
+            long alignedAddress = address - address % OS_PAGE_SIZE;
+            int ret = LibC.INSTANCE.madvise(new Pointer(alignedAddress), new NativeLong(size + address - alignedAddress), LibC.MADV_WILLNEED);
+            return 0 == ret;
+        } finally {
+            this.release();
+        }
+    }
+
+    /**
+     * Ask the OS to drop the pages of the file from this process, they are read again on next access.
+     */
+    public boolean adviseDontNeed() {
+        MappedByteBuffer mappedBuffer = this.holdMapped();
+        if (null == mappedBuffer) {
+            return false;
+        }
+
+        try {
+            final long address = ((DirectBuffer) mappedBuffer).address();
+            int ret = LibC.INSTANCE.madvise(new Pointer(address), new NativeLong(this.fileSize), LibC.MADV_DONTNEED);
+            log.info("madvise dontneed {} {} {} ret = {}", address, this.fileName, this.fileSize, ret);
+            return 0 == ret;
+        } finally {
+            this.release();
+        }
+    }
+
     public void munlock() {
         final long beginTime = System.currentTimeMillis();
-        final long address = ((DirectBuffer) (this.mappedByteBuffer)).address();
+        final long address = ((DirectBuffer) (this.mappedByteBuffer())).address();
         Pointer pointer = new Pointer(address);
         int ret = LibC.INSTANCE.munlock(pointer, new NativeLong(this.fileSize));
+        this.locked = false;
         log.info("munlock {} {} {} ret = {} time consuming = {}", address, this.fileName, this.fileSize, ret, System.currentTimeMillis() - beginTime);
     }
 
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounds how many of the files mapped on first access stay mapped.
+ * <p>
+ * When more than maxMappedFiles are mapped, {@link #evict()} unmaps the least recently accessed ones down to nine in
+ * ten of the budget. Only sealed files, idle for minIdleMillis and not held by anyone, are unmapped, so the budget may
+ * be exceeded for a while when all of them are in use.
+ * </p>
+ */
+public class MappedFileBudget {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    private final int maxMappedFiles;
+    private final long minIdleMillis;
+    private final Set<MappedFile> mappedFiles =
+        Collections.newSetFromMap(new ConcurrentHashMap<MappedFile, Boolean>());
+
+    public MappedFileBudget(final int maxMappedFiles, final long minIdleMillis) {
+        this.maxMappedFiles = maxMappedFiles;
+        this.minIdleMillis = minIdleMillis;
+    }
+
+    void mapped(final MappedFile mappedFile) {
+        this.mappedFiles.add(mappedFile);
+    }
+
+    void unmapped(final MappedFile mappedFile) {
+        this.mappedFiles.remove(mappedFile);
+    }
+
+    /**
+     * @return how many files have been unmapped
+     */
+    public synchronized int evict() {
+        int excess = this.mappedFiles.size() - this.maxMappedFiles;
+        if (excess <= 0) {
+            return 0;
+        }
+        excess += this.maxMappedFiles / 10;
+
+        // Access timestamps keep changing, sort by a snapshot of them
+        long idleBefore = System.currentTimeMillis() - this.minIdleMillis;
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (MappedFile mappedFile : this.mappedFiles) {
+            long lastAccessTimestamp = mappedFile.getLastAccessTimestamp();
+            if (lastAccessTimestamp <= idleBefore) {
+                candidates.add(new Candidate(mappedFile, lastAccessTimestamp));
+            }
+        }
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate o1, Candidate o2) {
+                return Long.compare(o1.lastAccessTimestamp, o2.lastAccessTimestamp);
+            }
+        });
+
+        int unmapped = 0;
+        for (int i = 0; i < candidates.size() && unmapped < excess; i++) {
+            // unmap checks again under the file lock that it is neither held nor accessed since the snapshot
+            if (candidates.get(i).mappedFile.unmap(idleBefore)) {
+                unmapped++;
+            }
+        }
+
+        log.info("mapped file budget {}, unmap {} of {} files over it, {} mapped",
+            this.maxMappedFiles, unmapped, excess, this.mappedFiles.size());
+        return unmapped;
+    }
+
+    public int getMappedFileNum() {
+        return this.mappedFiles.size();
+    }
+
+    public int getMaxMappedFiles() {
+        return maxMappedFiles;
+    }
+
+    private static class Candidate {
+        private final MappedFile mappedFile;
+        private final long lastAccessTimestamp;
+
+        Candidate(final MappedFile mappedFile, final long lastAccessTimestamp) {
+            this.mappedFile = mappedFile;
+            this.lastAccessTimestamp = lastAccessTimestamp;
+        }
+    }
+}
@@ -43,6 +43,9 @@ public class MappedFileQueue {
 
     private final AllocateMappedFileService allocateMappedFileService;
 
+    // Files are mapped on first access if not null
+    private final MappedFileBudget mappedFileBudget;
+
     private long flushedWhere = 0;
     private long committedWhere = 0;
 
@@ -50,9 +53,22 @@ public class MappedFileQueue {
 
     public MappedFileQueue(final String storePath, int mappedFileSize,
         AllocateMappedFileService allocateMappedFileService) {
+        this(storePath, mappedFileSize, allocateMappedFileService, null);
+    }
+
+    public MappedFileQueue(final String storePath, int mappedFileSize,
+        AllocateMappedFileService allocateMappedFileService, MappedFileBudget mappedFileBudget) {
         this.storePath = storePath;
         this.mappedFileSize = mappedFileSize;
         this.allocateMappedFileService = allocateMappedFileService;
+        this.mappedFileBudget = mappedFileBudget;
+    }
+
+    private MappedFile newMappedFile(final String fileName) throws IOException {
+        if (this.mappedFileBudget != null) {
+            return new MappedFile(fileName, this.mappedFileSize, this.mappedFileBudget);
+        }
+        return new MappedFile(fileName, this.mappedFileSize);
     }
 
     public void checkSelf() {
@@ -159,7 +175,7 @@ public class MappedFileQueue {
                 }
 
                 try {
-                    MappedFile mappedFile = new MappedFile(file.getPath(), mappedFileSize);
+                    MappedFile mappedFile = this.newMappedFile(file.getPath());
 
                     mappedFile.setWrotePosition(this.mappedFileSize);
                     mappedFile.setFlushedPosition(this.mappedFileSize);
@@ -199,7 +215,7 @@ public class MappedFileQueue {
             createOffset = startOffset - (startOffset % this.mappedFileSize);
         }
 
-        if (mappedFileLast != null && mappedFileLast.isFull()) {
+        if (mappedFileLast != null && (mappedFileLast.isFull() || mappedFileLast.isReservedFull())) {
             createOffset = mappedFileLast.getFileFromOffset() + this.mappedFileSize;
         }
 
@@ -214,7 +230,7 @@ public class MappedFileQueue {
                     nextNextFilePath, this.mappedFileSize);
             } else {
                 try {
-                    mappedFile = new MappedFile(nextFilePath, this.mappedFileSize);
+                    mappedFile = this.newMappedFile(nextFilePath);
                 } catch (IOException e) {
                     log.error("create mappedFile exception", e);
                 }
@@ -337,6 +353,17 @@ public class MappedFileQueue {
         final int deleteFilesInterval,
         final long intervalForcibly,
         final boolean cleanImmediately) {
+        return this.deleteExpiredFileByTime(expiredTime, deleteFilesInterval, intervalForcibly, cleanImmediately, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxDeletableOffset files reaching beyond this offset are kept even if expired
+     */
+    public int deleteExpiredFileByTime(final long expiredTime,
+        final int deleteFilesInterval,
+        final long intervalForcibly,
+        final boolean cleanImmediately,
+        final long maxDeletableOffset) {
         Object[] mfs = this.copyMappedFiles(0);
 
         if (null == mfs)
@@ -348,6 +375,9 @@ public class MappedFileQueue {
         if (null != mfs) {
             for (int i = 0; i < mfsLength; i++) {
                 MappedFile mappedFile = (MappedFile) mfs[i];
+                if (mappedFile.getFileFromOffset() + mappedFile.getFileSize() > maxDeletableOffset) {
+                    break;
+                }
                 long liveMaxTimestamp = mappedFile.getLastModifiedTimestamp() + expiredTime;
                 if (System.currentTimeMillis() >= liveMaxTimestamp || cleanImmediately) {
                     if (mappedFile.destroy(intervalForcibly)) {
@@ -377,6 +407,13 @@ public class MappedFileQueue {
     }
 
     public int deleteExpiredFileByOffset(long offset, int unitSize) {
+        return this.deleteExpiredFileByOffset(offset, unitSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxDeletableOffset files reaching beyond this offset are kept even if expired
+     */
+    public int deleteExpiredFileByOffset(long offset, int unitSize, long maxDeletableOffset) {
         Object[] mfs = this.copyMappedFiles(0);
 
         List<MappedFile> files = new ArrayList<MappedFile>();
@@ -388,6 +425,9 @@ public class MappedFileQueue {
             for (int i = 0; i < mfsLength; i++) {
                 boolean destroy;
                 MappedFile mappedFile = (MappedFile) mfs[i];
+                if (mappedFile.getFileFromOffset() + mappedFile.getFileSize() > maxDeletableOffset) {
+                    break;
+                }
                 SelectMappedBufferResult result = mappedFile.selectMappedBuffer(this.mappedFileSize - unitSize);
                 if (result != null) {
                     long maxOffsetInLogicQueue = result.getByteBuffer().getLong();
@@ -16,6 +16,7 @@
  */
 package org.apache.rocketmq.store;
 
+import java.nio.ByteBuffer;
 import org.apache.rocketmq.common.TopicFilterType;
 import org.apache.rocketmq.common.message.MessageExt;
 
@@ -23,6 +24,8 @@ public class MessageExtBrokerInner extends MessageExt {
     private static final long serialVersionUID = 7256001576878700634L;
     private String propertiesString;
     private long tagsCode;
+    // The record already serialized in store layout, see MessageExtEncoder
+    private transient ByteBuffer encodedBuff;
 
     public static long tagsString2tagsCode(final TopicFilterType filter, final String tags) {
         if (null == tags || tags.length() == 0)
@@ -46,4 +49,12 @@ public class MessageExtBrokerInner extends MessageExt {
     public void setTagsCode(long tagsCode) {
         this.tagsCode = tagsCode;
     }
+
+    public ByteBuffer getEncodedBuff() {
+        return encodedBuff;
+    }
+
+    public void setEncodedBuff(ByteBuffer encodedBuff) {
+        this.encodedBuff = encodedBuff;
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.nio.ByteBuffer;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.sysflag.MessageSysFlag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serialize a single message into the CommitLog record layout, outside of the put message lock.
+ */
+public class MessageExtEncoder {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    // Store the message content
+    private final ByteBuffer msgStoreItemMemory;
+    // The maximum length of the message
+    private final int maxMessageSize;
+
+    private final ByteBuffer msgIdMemory = ByteBuffer.allocate(MessageDecoder.MSG_ID_LENGTH);
+
+    private final ByteBuffer hostHolder = ByteBuffer.allocate(8);
+
+    public MessageExtEncoder(final int size) {
+        this.msgStoreItemMemory = ByteBuffer.allocate(size);
+        this.maxMessageSize = size;
+    }
+
+    /**
+     * Serialize the message in store layout. QUEUEOFFSET, PHYSICALOFFSET and STORETIMESTAMP are left blank, they
+     * are patched once the position of the record is known.
+     *
+     * @return the encoded record, or null if the message is illegal. The buffer is reused by the next call.
+     */
+    public ByteBuffer encode(final MessageExtBrokerInner msgInner) {
+        final byte[] propertiesData =
+            msgInner.getPropertiesString() == null ? null : msgInner.getPropertiesString().getBytes(MessageDecoder.CHARSET_UTF8);
+
+        final int propertiesLength = propertiesData == null ? 0 : propertiesData.length;
+
+        if (propertiesLength > Short.MAX_VALUE) {
+            log.warn("putMessage message properties length too long. length={}", propertiesData.length);
+            return null;
+        }
+
+        final byte[] topicData = msgInner.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
+        final int topicLength = topicData.length;
+
+        final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
+
+        final int msgLen = CommitLog.calMsgLength(bodyLength, topicLength, propertiesLength);
+
+        // Exceeds the maximum message
+        if (msgLen > this.maxMessageSize) {
+            log.warn("message size exceeded, msg total size: " + msgLen + ", msg body size: " + bodyLength
+                + ", maxMessageSize: " + this.maxMessageSize);
+            return null;
+        }
+
+        // Initialization of storage space
+        this.resetByteBuffer(msgStoreItemMemory, msgLen);
+        // 1 TOTALSIZE
+        this.msgStoreItemMemory.putInt(msgLen);
+        // 2 MAGICCODE
+        this.msgStoreItemMemory.putInt(CommitLog.MESSAGE_MAGIC_CODE);
+        // 3 BODYCRC
+        this.msgStoreItemMemory.putInt(msgInner.getBodyCRC());
+        // 4 QUEUEID
+        this.msgStoreItemMemory.putInt(msgInner.getQueueId());
+        // 5 FLAG
+        this.msgStoreItemMemory.putInt(msgInner.getFlag());
+        // 6 QUEUEOFFSET, patched later
+        this.msgStoreItemMemory.putLong(0);
+        // 7 PHYSICALOFFSET, patched later
+        this.msgStoreItemMemory.putLong(0);
+        // 8 SYSFLAG, only the store marks fillers, readers would skip a client message carrying the flag
+        this.msgStoreItemMemory.putInt(msgInner.getSysFlag() & ~MessageSysFlag.FILLER_FLAG);
+        // 9 BORNTIMESTAMP
+        this.msgStoreItemMemory.putLong(msgInner.getBornTimestamp());
+        // 10 BORNHOST
+        this.resetByteBuffer(hostHolder, 8);
+        this.msgStoreItemMemory.put(msgInner.getBornHostBytes(hostHolder));
+        // 11 STORETIMESTAMP, patched later
+        this.msgStoreItemMemory.putLong(0);
+        // 12 STOREHOSTADDRESS
+        this.resetByteBuffer(hostHolder, 8);
+        this.msgStoreItemMemory.put(msgInner.getStoreHostBytes(hostHolder));
+        // 13 RECONSUMETIMES
+        this.msgStoreItemMemory.putInt(msgInner.getReconsumeTimes());
+        // 14 Prepared Transaction Offset
+        this.msgStoreItemMemory.putLong(msgInner.getPreparedTransactionOffset());
+        // 15 BODY
+        this.msgStoreItemMemory.putInt(bodyLength);
+        if (bodyLength > 0)
+            this.msgStoreItemMemory.put(msgInner.getBody());
+        // 16 TOPIC
+        this.msgStoreItemMemory.put((byte) topicLength);
+        this.msgStoreItemMemory.put(topicData);
+        // 17 PROPERTIES
+        this.msgStoreItemMemory.putShort((short) propertiesLength);
+        if (propertiesLength > 0)
+            this.msgStoreItemMemory.put(propertiesData);
+
+        this.msgStoreItemMemory.flip();
+        return this.msgStoreItemMemory;
+    }
+
+    public String createMessageId(final MessageExt msg, final long wroteOffset) {
+        this.resetByteBuffer(hostHolder, 8);
+        return MessageDecoder.createMessageId(this.msgIdMemory, msg.getStoreHostBytes(hostHolder), wroteOffset);
+    }
+
+    private void resetByteBuffer(final ByteBuffer byteBuffer, final int limit) {
+        byteBuffer.flip();
+        byteBuffer.limit(limit);
+    }
+}
@@ -67,6 +67,22 @@ public interface MessageStore {
      */
     PutMessageResult putMessages(final MessageExtBatch messageExtBatch);
 
+    /**
+     * Store a message into store without blocking the caller on disk flush or slave replication.
+     *
+     * @param msg Message instance to store
+     * @return future completed with the result of store operation.
+     */
+    PutMessageFuture asyncPutMessage(final MessageExtBrokerInner msg);
+
+    /**
+     * Store a batch of messages without blocking the caller on disk flush or slave replication.
+     *
+     * @param messageExtBatch Message batch.
+     * @return future completed with the result of storing batch messages.
+     */
+    PutMessageFuture asyncPutMessages(final MessageExtBatch messageExtBatch);
+
     /**
      * Query at most <code>maxMsgNums</code> messages belonging to <code>topic</code> at <code>queueId</code> starting
      * from given <code>offset</code>. Resulting messages will further be screened using provided message filter.
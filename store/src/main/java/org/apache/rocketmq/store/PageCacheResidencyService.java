@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides which CommitLog files stay in memory.
+ * <p>
+ * The newest pinnedCommitLogSize bytes of the CommitLog, split evenly among its shards, are mlocked, files falling out
+ * of them are unlocked. Files every consumer group has committed past are advised with MADV_DONTNEED once, so that
+ * the pages of the tail are the last ones reclaimed. Cold reads of groups lagging coldReadThrottleLag messages behind
+ * are throttled to one message per pull once coldReadBytesPerSecond is used up by all pulls within a second.
+ * </p>
+ */
+public class PageCacheResidencyService extends ServiceThread {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    private static final long RELEASE_INTERVAL = 1000 * 10;
+
+    private final DefaultMessageStore defaultMessageStore;
+    // CommitLog offset of each shard below which files have been released
+    private final long[] releasedOffsets;
+
+    private final AtomicLong coldReadBytes = new AtomicLong(0);
+    private volatile long coldReadSecond = 0;
+
+    private volatile long pinnedBytes = 0;
+    private final AtomicLong releasedBytes = new AtomicLong(0);
+    private final AtomicLong throttledTimes = new AtomicLong(0);
+    private long lastReleaseTimestamp = 0;
+
+    public PageCacheResidencyService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+        this.releasedOffsets = new long[defaultMessageStore.getCommitLog().getShards().size()];
+    }
+
+    /**
+     * @return whether the pull of the group should read at most one message not in memory
+     */
+    public boolean isColdReadThrottled(final String group, final String topic, final int queueId) {
+        if (this.getColdReadBytes() < this.defaultMessageStore.getMessageStoreConfig().getColdReadBytesPerSecond()) {
+            return false;
+        }
+
+        ConsumerOffsetProvider consumerOffsetProvider = this.defaultMessageStore.getConsumerOffsetProvider();
+        if (null == consumerOffsetProvider) {
+            return false;
+        }
+        long committedOffset = consumerOffsetProvider.queryOffset(group, topic, queueId);
+        if (committedOffset < 0) {
+            return false;
+        }
+
+        long lag = this.defaultMessageStore.getMaxOffsetInQueue(topic, queueId) - committedOffset;
+        if (lag < this.defaultMessageStore.getMessageStoreConfig().getColdReadThrottleLag()) {
+            return false;
+        }
+        this.throttledTimes.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Called by a pull which has read bytes not in memory.
+     */
+    public void onColdRead(final long bytes) {
+        long second = System.currentTimeMillis() / 1000;
+        if (second != this.coldReadSecond) {
+            this.coldReadSecond = second;
+            this.coldReadBytes.set(0);
+        }
+        this.coldReadBytes.addAndGet(bytes);
+    }
+
+    private long getColdReadBytes() {
+        return System.currentTimeMillis() / 1000 == this.coldReadSecond ? this.coldReadBytes.get() : 0;
+    }
+
+    /**
+     * Lock the newest files of every shard within its part of pinnedCommitLogSize, unlock the others.
+     *
+     * @return bytes of the files locked
+     */
+    long pinTail() {
+        List<CommitLog> shards = this.defaultMessageStore.getCommitLog().getShards();
+        long pinnedSize = this.defaultMessageStore.getMessageStoreConfig().getPinnedCommitLogSize() / shards.size();
+
+        long pinned = 0;
+        for (CommitLog commitLog : shards) {
+            List<MappedFile> mappedFiles = commitLog.getMappedFileQueue().getMappedFiles();
+            long size = 0;
+            for (int i = mappedFiles.size() - 1; i >= 0; i--) {
+                MappedFile mappedFile = mappedFiles.get(i);
+                size += mappedFile.getFileSize();
+                boolean pin = size <= pinnedSize;
+                if (pin != mappedFile.isLocked() && mappedFile.hold()) {
+                    try {
+                        if (pin) {
+                            mappedFile.mlock();
+                        } else {
+                            mappedFile.munlock();
+                        }
+                    } finally {
+                        mappedFile.release();
+                    }
+                }
+                if (mappedFile.isLocked()) {
+                    pinned += mappedFile.getFileSize();
+                }
+            }
+        }
+
+        this.pinnedBytes = pinned;
+        return pinned;
+    }
+
+    /**
+     * Release files every consumer group has committed past, not locked and flushed, from memory.
+     *
+     * @return bytes of the files released
+     */
+    long releaseConsumed() {
+        ConsumerOffsetProvider consumerOffsetProvider = this.defaultMessageStore.getConsumerOffsetProvider();
+        if (null == consumerOffsetProvider) {
+            return 0;
+        }
+        Map<String, Map<Integer, Long>> minOffsetTable = consumerOffsetProvider.queryMinOffsetInAllGroup();
+        if (minOffsetTable.isEmpty()) {
+            return 0;
+        }
+
+        final CommitLog commitLog = this.defaultMessageStore.getCommitLog();
+        long[] consumedOffsets = new long[this.releasedOffsets.length];
+        Arrays.fill(consumedOffsets, Long.MAX_VALUE);
+        for (Map.Entry<String, Map<Integer, Long>> topicEntry : minOffsetTable.entrySet()) {
+            String topic = topicEntry.getKey();
+            for (Map.Entry<Integer, Long> entry : topicEntry.getValue().entrySet()) {
+                int queueId = entry.getKey();
+                long committedOffset = entry.getValue();
+                // Queues consumed up to the end leave their messages to the others
+                if (committedOffset >= this.defaultMessageStore.getMaxOffsetInQueue(topic, queueId)
+                    || committedOffset < this.defaultMessageStore.getMinOffsetInQueue(topic, queueId)) {
+                    continue;
+                }
+
+                long phyOffset = this.defaultMessageStore.getCommitLogOffsetInQueue(topic, queueId, committedOffset);
+                int shardIndex = commitLog.shardOf(topic, queueId).getShardIndex();
+                consumedOffsets[shardIndex] = Math.min(consumedOffsets[shardIndex], phyOffset);
+            }
+        }
+
+        long released = 0;
+        for (CommitLog shard : commitLog.getShards()) {
+            final int shardIndex = shard.getShardIndex();
+            for (MappedFile mappedFile : shard.getMappedFileQueue().getMappedFiles()) {
+                long fileToOffset = mappedFile.getFileFromOffset() + mappedFile.getFileSize();
+                if (fileToOffset <= this.releasedOffsets[shardIndex]) {
+                    continue;
+                }
+                if (fileToOffset > consumedOffsets[shardIndex] || mappedFile.isLocked()
+                    || mappedFile.getFlushedPosition() < mappedFile.getFileSize()) {
+                    break;
+                }
+
+                if (mappedFile.adviseDontNeed()) {
+                    released += mappedFile.getFileSize();
+                }
+                this.releasedOffsets[shardIndex] = fileToOffset;
+            }
+        }
+
+        if (released > 0) {
+            log.info("released {} bytes consumed by all groups, consumed offsets {}", released,
+                Arrays.toString(consumedOffsets));
+        }
+        this.releasedBytes.addAndGet(released);
+        return released;
+    }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        stats.put("residencyPinnedBytes", String.valueOf(this.pinnedBytes));
+        stats.put("residencyReleasedBytes", String.valueOf(this.releasedBytes.get()));
+        stats.put("coldReadThrottledTimes", String.valueOf(this.throttledTimes.get()));
+        stats.put("coldReadBytesThisSecond", String.valueOf(this.getColdReadBytes()));
+    }
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStopped()) {
+            try {
+                this.waitForRunning(1000);
+                this.pinTail();
+
+                long now = System.currentTimeMillis();
+                if (now - this.lastReleaseTimestamp >= RELEASE_INTERVAL) {
+                    this.lastReleaseTimestamp = now;
+                    this.releaseConsumed();
+                }
+            } catch (Throwable e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+    @Override
+    public String getServiceName() {
+        return PageCacheResidencyService.class.getSimpleName();
+    }
+
+    public long getPinnedBytes() {
+        return pinnedBytes;
+    }
+
+    public long getReleasedBytes() {
+        return releasedBytes.get();
+    }
+
+    public long getThrottledTimes() {
+        return throttledTimes.get();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Result of an asynchronous put, completed once the message is flushed and replicated as the store is configured to.
+ * <p>
+ * Callbacks run on the thread which completes the future, usually GroupCommitService or GroupTransferService, so they
+ * must not block.
+ */
+public class PutMessageFuture {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    private final CountDownLatch countDownLatch = new CountDownLatch(1);
+    private final List<PutMessageCallback> callbacks = new ArrayList<PutMessageCallback>(2);
+    private volatile PutMessageResult putMessageResult;
+
+    public static PutMessageFuture completed(final PutMessageResult putMessageResult) {
+        PutMessageFuture future = new PutMessageFuture();
+        future.complete(putMessageResult);
+        return future;
+    }
+
+    public void complete(final PutMessageResult putMessageResult) {
+        List<PutMessageCallback> toNotify;
+        synchronized (this.callbacks) {
+            if (this.putMessageResult != null) {
+                return;
+            }
+            this.putMessageResult = putMessageResult;
+            toNotify = new ArrayList<PutMessageCallback>(this.callbacks);
+            this.callbacks.clear();
+        }
+
+        this.countDownLatch.countDown();
+        for (PutMessageCallback callback : toNotify) {
+            this.invoke(callback, putMessageResult);
+        }
+    }
+
+    /**
+     * Run the callback once the future is completed, right away if it already is
+     */
+    public void addCallback(final PutMessageCallback callback) {
+        synchronized (this.callbacks) {
+            if (null == this.putMessageResult) {
+                this.callbacks.add(callback);
+                return;
+            }
+        }
+        this.invoke(callback, this.putMessageResult);
+    }
+
+    private void invoke(final PutMessageCallback callback, final PutMessageResult putMessageResult) {
+        try {
+            callback.onComplete(putMessageResult);
+        } catch (Throwable e) {
+            log.warn("put message callback threw exception", e);
+        }
+    }
+
+    public boolean isDone() {
+        return this.putMessageResult != null;
+    }
+
+    /**
+     * @return the result, or null if the future is not completed within the timeout
+     */
+    public PutMessageResult get(final long timeoutMillis) throws InterruptedException {
+        this.countDownLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        return this.putMessageResult;
+    }
+}
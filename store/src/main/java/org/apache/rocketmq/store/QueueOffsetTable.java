@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Next consume queue offset of every topic/queue, looked up on each append.<br/>
+ * Open addressing with linear probing over parallel arrays, keyed by the topic string and the int queue id, so
+ * neither a lookup nor an update of an existing queue allocates. Not thread safe, callers hold the put message lock.
+ */
+public class QueueOffsetTable {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private String[] topics;
+    private int[] queueIds;
+    private long[] offsets;
+    private int size;
+    private int threshold;
+
+    public QueueOffsetTable(final int initialCapacity) {
+        int capacity = 16;
+        while (capacity < initialCapacity) {
+            capacity <<= 1;
+        }
+        this.allocate(capacity);
+    }
+
+    /**
+     * @return the next offset of the queue, 0 if the queue is unknown
+     */
+    public long get(final String topic, final int queueId) {
+        final int mask = this.topics.length - 1;
+        for (int i = hash(topic, queueId) & mask; this.topics[i] != null; i = (i + 1) & mask) {
+            if (this.queueIds[i] == queueId && this.topics[i].equals(topic)) {
+                return this.offsets[i];
+            }
+        }
+        return 0;
+    }
+
+    public void put(final String topic, final int queueId, final long offset) {
+        final int mask = this.topics.length - 1;
+        int i = hash(topic, queueId) & mask;
+        for (; this.topics[i] != null; i = (i + 1) & mask) {
+            if (this.queueIds[i] == queueId && this.topics[i].equals(topic)) {
+                this.offsets[i] = offset;
+                return;
+            }
+        }
+
+        this.topics[i] = topic;
+        this.queueIds[i] = queueId;
+        this.offsets[i] = offset;
+        if (++this.size > this.threshold) {
+            this.rehash(this.topics.length << 1);
+        }
+    }
+
+    public void remove(final String topic, final int queueId) {
+        final int mask = this.topics.length - 1;
+        int i = hash(topic, queueId) & mask;
+        for (; ; i = (i + 1) & mask) {
+            if (this.topics[i] == null) {
+                return;
+            }
+            if (this.queueIds[i] == queueId && this.topics[i].equals(topic)) {
+                break;
+            }
+        }
+
+        // Shift the following entries of the probe sequence back, so that no lookup stops early at the hole
+        for (int j = (i + 1) & mask; this.topics[j] != null; j = (j + 1) & mask) {
+            int home = hash(this.topics[j], this.queueIds[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                this.topics[i] = this.topics[j];
+                this.queueIds[i] = this.queueIds[j];
+                this.offsets[i] = this.offsets[j];
+                i = j;
+            }
+        }
+        this.topics[i] = null;
+        this.size--;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the table keyed by "topic-queueId", the form recovery and the shards exchange it in
+     */
+    public HashMap<String, Long> toMap() {
+        HashMap<String, Long> map = new HashMap<String, Long>(Math.max(16, this.size * 2));
+        for (int i = 0; i < this.topics.length; i++) {
+            if (this.topics[i] != null) {
+                map.put(this.topics[i] + "-" + this.queueIds[i], this.offsets[i]);
+            }
+        }
+        return map;
+    }
+
+    public static QueueOffsetTable fromMap(final Map<String, Long> map) {
+        QueueOffsetTable table = new QueueOffsetTable(Math.max(1024, (int) (map.size() / LOAD_FACTOR) + 1));
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            String key = entry.getKey();
+            int split = key.lastIndexOf('-');
+            table.put(key.substring(0, split), Integer.parseInt(key.substring(split + 1)), entry.getValue());
+        }
+        return table;
+    }
+
+    private void allocate(final int capacity) {
+        this.topics = new String[capacity];
+        this.queueIds = new int[capacity];
+        this.offsets = new long[capacity];
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private void rehash(final int capacity) {
+        String[] oldTopics = this.topics;
+        int[] oldQueueIds = this.queueIds;
+        long[] oldOffsets = this.offsets;
+
+        this.allocate(capacity);
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldTopics.length; j++) {
+            if (oldTopics[j] != null) {
+                int i = hash(oldTopics[j], oldQueueIds[j]) & mask;
+                while (this.topics[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                this.topics[i] = oldTopics[j];
+                this.queueIds[i] = oldQueueIds[j];
+                this.offsets[i] = oldOffsets[j];
+            }
+        }
+    }
+
+    private static int hash(final String topic, final int queueId) {
+        int h = topic.hashCode() * 31 + queueId;
+        return h ^ (h >>> 16);
+    }
+}
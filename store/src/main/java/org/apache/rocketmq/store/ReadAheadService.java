@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads CommitLog data into the page cache ahead of consumers pulling messages which are no longer in memory.
+ * <p>
+ * Pulls of every group and queue make up a stream. Once two pulls of a stream move forward through the CommitLog, the
+ * readAheadSize bytes after the last one are advised with MADV_WILLNEED by this service, and again whenever the
+ * stream has consumed half of them. A pull falling within the read ahead region of its stream counts as a hit.
+ * </p>
+ */
+public class ReadAheadService extends ServiceThread {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    private static final int MAX_PENDING_REQUESTS = 1024;
+    private static final long STREAM_EXPIRED_TIME = 1000 * 60;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final ConcurrentMap<String/* group@topic@queueId */, ReadStream> streamTable =
+        new ConcurrentHashMap<String, ReadStream>();
+    private final LinkedBlockingQueue<ReadAheadRequest> requestQueue =
+        new LinkedBlockingQueue<ReadAheadRequest>(MAX_PENDING_REQUESTS);
+
+    private final AtomicLong hitTimes = new AtomicLong(0);
+    private final AtomicLong missTimes = new AtomicLong(0);
+    private final AtomicLong readAheadBytes = new AtomicLong(0);
+    private final AtomicLong droppedRequests = new AtomicLong(0);
+    private long lastExpireTimestamp = System.currentTimeMillis();
+
+    public ReadAheadService(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+    }
+
+    /**
+     * Called by a pull which has read messages of [fromPhyOffset, toPhyOffset) not in memory.
+     */
+    public void onColdRead(final String group, final String topic, final int queueId, final long fromPhyOffset,
+        final long toPhyOffset) {
+        final String key = group + "@" + topic + "@" + queueId;
+        ReadStream stream = this.streamTable.get(key);
+        if (null == stream) {
+            stream = new ReadStream();
+            ReadStream old = this.streamTable.putIfAbsent(key, stream);
+            if (old != null) {
+                stream = old;
+            }
+        }
+
+        final int readAheadSize = this.defaultMessageStore.getMessageStoreConfig().getReadAheadSize();
+        long from = -1;
+        long to = -1;
+        synchronized (stream) {
+            if (fromPhyOffset >= stream.readAheadFrom && toPhyOffset <= stream.readAheadTo) {
+                this.hitTimes.incrementAndGet();
+            } else {
+                this.missTimes.incrementAndGet();
+            }
+
+            // Messages of other queues lie in between, so a stream goes forward with gaps
+            boolean sequential = stream.lastReadTo > 0 && fromPhyOffset >= stream.lastReadTo
+                && fromPhyOffset - stream.lastReadTo <= readAheadSize;
+            stream.lastReadTo = toPhyOffset;
+            stream.lastAccessTimestamp = System.currentTimeMillis();
+
+            if (sequential && stream.readAheadTo - toPhyOffset < readAheadSize / 2) {
+                if (stream.readAheadTo < toPhyOffset) {
+                    stream.readAheadFrom = toPhyOffset;
+                }
+                from = Math.max(stream.readAheadTo, toPhyOffset);
+                to = toPhyOffset + readAheadSize;
+                stream.readAheadTo = to;
+            }
+        }
+
+        if (from >= 0 && !this.requestQueue.offer(new ReadAheadRequest(topic, queueId, from, to))) {
+            this.droppedRequests.incrementAndGet();
+        }
+    }
+
+    private void readAhead(final ReadAheadRequest request) {
+        CommitLog commitLog = this.defaultMessageStore.getCommitLog().shardOf(request.topic, request.queueId);
+        this.readAheadBytes.addAndGet(commitLog.readAhead(request.fromPhyOffset, request.toPhyOffset - request.fromPhyOffset));
+    }
+
+    private void expireStreams() {
+        long now = System.currentTimeMillis();
+        if (now - this.lastExpireTimestamp < STREAM_EXPIRED_TIME) {
+            return;
+        }
+        this.lastExpireTimestamp = now;
+
+        Iterator<Map.Entry<String, ReadStream>> it = this.streamTable.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().lastAccessTimestamp > STREAM_EXPIRED_TIME) {
+                it.remove();
+            }
+        }
+    }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        stats.put("readAheadHitTimes", String.valueOf(this.hitTimes.get()));
+        stats.put("readAheadMissTimes", String.valueOf(this.missTimes.get()));
+        stats.put("readAheadBytes", String.valueOf(this.readAheadBytes.get()));
+        stats.put("readAheadDroppedRequests", String.valueOf(this.droppedRequests.get()));
+        stats.put("readAheadStreamNum", String.valueOf(this.streamTable.size()));
+    }
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStopped()) {
+            try {
+                ReadAheadRequest request = this.requestQueue.poll(1000, TimeUnit.MILLISECONDS);
+                if (request != null) {
+                    this.readAhead(request);
+                }
+                this.expireStreams();
+            } catch (Throwable e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+    @Override
+    public String getServiceName() {
+        return ReadAheadService.class.getSimpleName();
+    }
+
+    public long getHitTimes() {
+        return hitTimes.get();
+    }
+
+    public long getMissTimes() {
+        return missTimes.get();
+    }
+
+    public long getReadAheadBytes() {
+        return readAheadBytes.get();
+    }
+
+    static class ReadStream {
+        private long lastReadTo = 0;
+        private long readAheadFrom = 0;
+        private long readAheadTo = 0;
+        private volatile long lastAccessTimestamp = 0;
+    }
+
+    static class ReadAheadRequest {
+        private final String topic;
+        private final int queueId;
+        private final long fromPhyOffset;
+        private final long toPhyOffset;
+
+        ReadAheadRequest(final String topic, final int queueId, final long fromPhyOffset, final long toPhyOffset) {
+            this.topic = topic;
+            this.queueId = queueId;
+            this.fromPhyOffset = fromPhyOffset;
+            this.toPhyOffset = toPhyOffset;
+        }
+    }
+}
@@ -118,6 +118,14 @@ public class RunningFlags {
         return false;
     }
 
+    public boolean isDiskFull() {
+        if ((this.flagBits & DISK_FULL_BIT) == DISK_FULL_BIT) {
+            return true;
+        }
+
+        return false;
+    }
+
     public boolean getAndMakeDiskFull() {
         boolean result = !((this.flagBits & DISK_FULL_BIT) == DISK_FULL_BIT);
         this.flagBits |= DISK_FULL_BIT;
@@ -69,4 +69,21 @@ public class SelectMappedBufferResult {
     public long getStartOffset() {
         return startOffset;
     }
+
+    /**
+     * Whether the physical range [offset, offset + size) lies in this buffer
+     */
+    public boolean contains(final long offset, final int size) {
+        return offset >= this.startOffset && offset + size <= this.startOffset + this.size;
+    }
+
+    /**
+     * A view of the physical range [offset, offset + size) of this buffer, sharing its hold on the mapped file
+     */
+    public ByteBuffer slice(final long offset, final int size) {
+        ByteBuffer byteBuffer = this.byteBuffer.duplicate();
+        byteBuffer.limit((int) (offset - this.startOffset) + size);
+        byteBuffer.position((int) (offset - this.startOffset));
+        return byteBuffer.slice();
+    }
 }
@@ -0,0 +1,374 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.rocketmq.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageExtBatch;
+import org.apache.rocketmq.common.sysflag.MessageSysFlag;
+import org.apache.rocketmq.store.schedule.ScheduleMessageService;
+import org.apache.rocketmq.store.timer.TimerMessageStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spread the CommitLog over several independent shards, each one with its own lock, flush service and directory.
+ * <p>
+ * Every shard owns a disjoint range of the physical offset space, so offsets stored in ConsumeQueue, index and message
+ * id stay globally unique and tell which shard to read from. A queue is always written to the same shard, chosen by
+ * topic/queue hash, which keeps the physical offsets of every ConsumeQueue increasing.
+ * <p>
+ * The CommitLog extended holds no files or services, every method goes to the shards. Slaves can not replicate a
+ * sharded CommitLog, which has no continuous offset space to read and append from.
+ */
+public class ShardedCommitLog extends CommitLog {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    // Room for 256T per shard, rounded down to whole mapped files
+    private static final long MAX_SHARD_SIZE = 1L << 48;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final List<CommitLog> shards;
+    private final long shardSize;
+
+    public ShardedCommitLog(final DefaultMessageStore defaultMessageStore) {
+        super(defaultMessageStore, true);
+        this.defaultMessageStore = defaultMessageStore;
+
+        int mappedFileSize = defaultMessageStore.getMessageStoreConfig().getMapedFileSizeCommitLog();
+        int shardNum = defaultMessageStore.getMessageStoreConfig().getCommitLogShardNum();
+        String storePath = defaultMessageStore.getMessageStoreConfig().getStorePathCommitLog();
+        this.shardSize = MAX_SHARD_SIZE - MAX_SHARD_SIZE % mappedFileSize;
+
+        List<CommitLog> list = new ArrayList<CommitLog>(shardNum);
+        for (int i = 0; i < shardNum; i++) {
+            list.add(new CommitLog(defaultMessageStore, i == 0 ? storePath : storePath + i, i, i * this.shardSize));
+        }
+        this.shards = Collections.unmodifiableList(list);
+    }
+
+    @Override
+    public boolean load() {
+        boolean result = true;
+        for (CommitLog shard : this.shards) {
+            result = result && shard.load();
+        }
+        return result;
+    }
+
+    @Override
+    public void start() {
+        for (CommitLog shard : this.shards) {
+            shard.start();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        for (CommitLog shard : this.shards) {
+            shard.shutdown();
+        }
+    }
+
+    @Override
+    public long flush() {
+        long flushedWhere = 0;
+        for (CommitLog shard : this.shards) {
+            flushedWhere = Math.max(flushedWhere, shard.flush());
+        }
+        return flushedWhere;
+    }
+
+    @Override
+    public long getMaxOffset() {
+        long maxOffset = 0;
+        for (CommitLog shard : this.shards) {
+            maxOffset = Math.max(maxOffset, shard.getMaxOffset());
+        }
+        return maxOffset;
+    }
+
+    @Override
+    public long getMinOffset() {
+        long minOffset = -1;
+        for (CommitLog shard : this.shards) {
+            long offset = shard.getMinOffset();
+            if (offset >= 0 && (minOffset < 0 || offset < minOffset)) {
+                minOffset = offset;
+            }
+        }
+        return minOffset;
+    }
+
+    @Override
+    public long remainHowManyDataToCommit() {
+        long remain = 0;
+        for (CommitLog shard : this.shards) {
+            remain += shard.remainHowManyDataToCommit();
+        }
+        return remain;
+    }
+
+    @Override
+    public long remainHowManyDataToFlush() {
+        long remain = 0;
+        for (CommitLog shard : this.shards) {
+            remain += shard.remainHowManyDataToFlush();
+        }
+        return remain;
+    }
+
+    @Override
+    public int deleteExpiredFile(final long expiredTime, final int deleteFilesInterval, final long intervalForcibly,
+        final boolean cleanImmediately) {
+        int deleteCount = 0;
+        for (CommitLog shard : this.shards) {
+            deleteCount += shard.deleteExpiredFile(expiredTime, deleteFilesInterval, intervalForcibly, cleanImmediately);
+        }
+        return deleteCount;
+    }
+
+    @Override
+    public SelectMappedBufferResult getData(final long offset) {
+        return this.shardOfOffset(offset).getData(offset);
+    }
+
+    @Override
+    public SelectMappedBufferResult getData(final long offset, final boolean returnFirstOnNotFound) {
+        return this.shardOfOffset(offset).getData(offset, returnFirstOnNotFound);
+    }
+
+    @Override
+    public long getConfirmOffset() {
+        return this.shards.get(0).getConfirmOffset();
+    }
+
+    @Override
+    public void setConfirmOffset(long phyOffset) {
+        for (CommitLog shard : this.shards) {
+            shard.setConfirmOffset(phyOffset);
+        }
+    }
+
+    @Override
+    public boolean appendData(long startOffset, byte[] data) {
+        log.error("appendData is not supported by a sharded commit log, startOffset: {}", startOffset);
+        return false;
+    }
+
+    @Override
+    public void recoverNormally() {
+        for (CommitLog shard : this.shards) {
+            shard.recoverNormally();
+        }
+    }
+
+    @Override
+    public void recoverAbnormally() {
+        for (CommitLog shard : this.shards) {
+            shard.recoverAbnormally();
+        }
+    }
+
+    @Override
+    public boolean resetOffset(long offset) {
+        return this.shardOfOffset(offset).resetOffset(offset);
+    }
+
+    @Override
+    public long getBeginTimeInLock() {
+        long beginTimeInLock = 0;
+        for (CommitLog shard : this.shards) {
+            long begin = shard.getBeginTimeInLock();
+            if (begin != 0 && (beginTimeInLock == 0 || begin < beginTimeInLock)) {
+                beginTimeInLock = begin;
+            }
+        }
+        return beginTimeInLock;
+    }
+
+    @Override
+    public PutMessageResult putMessage(final MessageExtBrokerInner msg) {
+        return this.shardOfMessage(msg).putMessage(msg);
+    }
+
+    @Override
+    public PutMessageFuture asyncPutMessage(final MessageExtBrokerInner msg) {
+        return this.shardOfMessage(msg).asyncPutMessage(msg);
+    }
+
+    @Override
+    public PutMessageResult putMessages(final MessageExtBatch messageExtBatch) {
+        return this.shardOf(messageExtBatch.getTopic(), messageExtBatch.getQueueId()).putMessages(messageExtBatch);
+    }
+
+    @Override
+    public PutMessageFuture asyncPutMessages(final MessageExtBatch messageExtBatch) {
+        return this.shardOf(messageExtBatch.getTopic(), messageExtBatch.getQueueId()).asyncPutMessages(messageExtBatch);
+    }
+
+    private CommitLog shardOfMessage(final MessageExtBrokerInner msg) {
+        String topic = msg.getTopic();
+        int queueId = msg.getQueueId();
+
+        // Delayed messages are rewritten to the schedule or timer topic by the shard, route them by where they end up
+        final int tranType = MessageSysFlag.getTransactionValue(msg.getSysFlag());
+        if (tranType != MessageSysFlag.TRANSACTION_NOT_TYPE && tranType != MessageSysFlag.TRANSACTION_COMMIT_TYPE) {
+            return this.shardOf(topic, queueId);
+        }
+
+        TimerMessageStore timerMessageStore = this.defaultMessageStore.getTimerMessageStore();
+        if (timerMessageStore != null && timerMessageStore.isTimerMessage(msg)) {
+            topic = TimerMessageStore.TIMER_TOPIC;
+            queueId = TimerMessageStore.TIMER_QUEUE_ID;
+        } else if (msg.getDelayTimeLevel() > 0) {
+            int delayLevel = Math.min(msg.getDelayTimeLevel(), this.defaultMessageStore.getScheduleMessageService().getMaxDelayLevel());
+            topic = ScheduleMessageService.SCHEDULE_TOPIC;
+            queueId = ScheduleMessageService.delayLevel2QueueId(delayLevel);
+        }
+
+        return this.shardOf(topic, queueId);
+    }
+
+    @Override
+    public long pickupStoreTimestamp(final long offset, final int size) {
+        return this.shardOfOffset(offset).pickupStoreTimestamp(offset, size);
+    }
+
+    @Override
+    public SelectMappedBufferResult getMessage(final long offset, final int size) {
+        return this.shardOfOffset(offset).getMessage(offset, size);
+    }
+
+    @Override
+    public long rollNextFile(final long offset) {
+        return this.shardOfOffset(offset).rollNextFile(offset);
+    }
+
+    @Override
+    public long readAhead(final long offset, final long size) {
+        return this.shardOfOffset(offset).readAhead(offset, size);
+    }
+
+    @Override
+    public void handleDiskFlush(AppendMessageResult result, PutMessageResult putMessageResult, MessageExt messageExt) {
+        this.shardOfOffset(result.getWroteOffset()).handleDiskFlush(result, putMessageResult, messageExt);
+    }
+
+    @Override
+    public void handleHA(AppendMessageResult result, PutMessageResult putMessageResult, MessageExt messageExt) {
+        this.shardOfOffset(result.getWroteOffset()).handleHA(result, putMessageResult, messageExt);
+    }
+
+    @Override
+    public CommitLog shardOf(final String topic, final int queueId) {
+        int hash = (topic.hashCode() * 31 + queueId) & Integer.MAX_VALUE;
+        return this.shards.get(hash % this.shards.size());
+    }
+
+    @Override
+    public CommitLog shardOfOffset(final long offset) {
+        int index = (int) Math.min(offset / this.shardSize, this.shards.size() - 1);
+        return this.shards.get(Math.max(index, 0));
+    }
+
+    @Override
+    public List<CommitLog> getShards() {
+        return shards;
+    }
+
+    /**
+     * @return the queue of the first shard, which starts at offset 0. Every shard has its own, callers going over all
+     * CommitLog files take them from {@link #getShards()}
+     */
+    @Override
+    public MappedFileQueue getMappedFileQueue() {
+        return this.shards.get(0).getMappedFileQueue();
+    }
+
+    @Override
+    public HashMap<String, Long> getTopicQueueTable() {
+        HashMap<String, Long> topicQueueTable = new HashMap<String, Long>(1024);
+        for (CommitLog shard : this.shards) {
+            topicQueueTable.putAll(shard.getTopicQueueTable());
+        }
+        return topicQueueTable;
+    }
+
+    /**
+     * Every shard only keeps the queues routed to it, each one is guarded by its own put message lock
+     */
+    @Override
+    public void setTopicQueueTable(HashMap<String, Long> topicQueueTable) {
+        List<HashMap<String, Long>> tables = new ArrayList<HashMap<String, Long>>(this.shards.size());
+        for (int i = 0; i < this.shards.size(); i++) {
+            tables.add(new HashMap<String, Long>(1024));
+        }
+
+        for (Map.Entry<String, Long> entry : topicQueueTable.entrySet()) {
+            String key = entry.getKey();
+            int split = key.lastIndexOf('-');
+            CommitLog shard = this.shardOf(key.substring(0, split), Integer.parseInt(key.substring(split + 1)));
+            tables.get(shard.getShardIndex()).put(key, entry.getValue());
+        }
+
+        for (CommitLog shard : this.shards) {
+            shard.setTopicQueueTable(tables.get(shard.getShardIndex()));
+        }
+    }
+
+    @Override
+    public void removeQueueFromTopicQueueTable(final String topic, final int queueId) {
+        this.shardOf(topic, queueId).removeQueueFromTopicQueueTable(topic, queueId);
+    }
+
+    @Override
+    public void destroy() {
+        for (CommitLog shard : this.shards) {
+            shard.destroy();
+        }
+    }
+
+    @Override
+    public boolean retryDeleteFirstFile(final long intervalForcibly) {
+        boolean result = false;
+        for (CommitLog shard : this.shards) {
+            result = shard.retryDeleteFirstFile(intervalForcibly) || result;
+        }
+        return result;
+    }
+
+    @Override
+    public void checkSelf() {
+        for (CommitLog shard : this.shards) {
+            shard.checkSelf();
+        }
+    }
+
+    @Override
+    public long lockTimeMills() {
+        long lockTimeMills = 0;
+        for (CommitLog shard : this.shards) {
+            lockTimeMills = Math.max(lockTimeMills, shard.lockTimeMills());
+        }
+        return lockTimeMills;
+    }
+}
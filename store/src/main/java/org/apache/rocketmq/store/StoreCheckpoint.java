@@ -22,12 +22,18 @@ import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicLongArray;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class StoreCheckpoint {
+    /**
+     * Timestamps of shards 1..N-1 are kept from byte 24 up to the offsets, which take the second half of the page
+     */
+    public static final int MAX_SHARD_NUM =
+        Math.min((MappedFile.OS_PAGE_SIZE / 2 - 24) / 16 + 1, MappedFile.OS_PAGE_SIZE / 2 / 16);
     private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
     private final RandomAccessFile randomAccessFile;
     private final FileChannel fileChannel;
@@ -35,8 +41,22 @@ public class StoreCheckpoint {
     private volatile long physicMsgTimestamp = 0;
     private volatile long logicsMsgTimestamp = 0;
     private volatile long indexMsgTimestamp = 0;
+    // Timestamps of CommitLog shards 1..N-1, shard 0 keeps using the fields above
+    private final AtomicLongArray shardPhysicMsgTimestamp;
+    private final AtomicLongArray shardLogicsMsgTimestamp;
+    // CommitLog offsets of every shard, below which messages are flushed, and dispatched to flushed consume queues
+    private final AtomicLongArray physicMsgOffset;
+    private final AtomicLongArray logicsMsgOffset;
 
     public StoreCheckpoint(final String scpPath) throws IOException {
+        this(scpPath, 1);
+    }
+
+    public StoreCheckpoint(final String scpPath, final int shardNum) throws IOException {
+        if (shardNum > MAX_SHARD_NUM) {
+            throw new IllegalArgumentException("store checkpoint has room for " + MAX_SHARD_NUM + " shards, not " + shardNum);
+        }
+
         File file = new File(scpPath);
         MappedFile.ensureDirOK(file.getParent());
         boolean fileExists = file.exists();
@@ -44,12 +64,24 @@ public class StoreCheckpoint {
         this.randomAccessFile = new RandomAccessFile(file, "rw");
         this.fileChannel = this.randomAccessFile.getChannel();
         this.mappedByteBuffer = fileChannel.map(MapMode.READ_WRITE, 0, MappedFile.OS_PAGE_SIZE);
+        this.shardPhysicMsgTimestamp = new AtomicLongArray(Math.max(shardNum - 1, 0));
+        this.shardLogicsMsgTimestamp = new AtomicLongArray(Math.max(shardNum - 1, 0));
+        this.physicMsgOffset = new AtomicLongArray(Math.max(shardNum, 1));
+        this.logicsMsgOffset = new AtomicLongArray(Math.max(shardNum, 1));
 
         if (fileExists) {
             log.info("store checkpoint file exists, " + scpPath);
             this.physicMsgTimestamp = this.mappedByteBuffer.getLong(0);
             this.logicsMsgTimestamp = this.mappedByteBuffer.getLong(8);
             this.indexMsgTimestamp = this.mappedByteBuffer.getLong(16);
+            for (int i = 0; i < this.shardPhysicMsgTimestamp.length(); i++) {
+                this.shardPhysicMsgTimestamp.set(i, this.mappedByteBuffer.getLong(shardPosition(i + 1)));
+                this.shardLogicsMsgTimestamp.set(i, this.mappedByteBuffer.getLong(shardPosition(i + 1) + 8));
+            }
+            for (int i = 0; i < this.physicMsgOffset.length(); i++) {
+                this.physicMsgOffset.set(i, this.mappedByteBuffer.getLong(offsetPosition(i)));
+                this.logicsMsgOffset.set(i, this.mappedByteBuffer.getLong(offsetPosition(i) + 8));
+            }
 
             log.info("store checkpoint file physicMsgTimestamp " + this.physicMsgTimestamp + ", "
                 + UtilAll.timeMillisToHumanString(this.physicMsgTimestamp));
@@ -79,9 +111,26 @@ public class StoreCheckpoint {
         this.mappedByteBuffer.putLong(0, this.physicMsgTimestamp);
         this.mappedByteBuffer.putLong(8, this.logicsMsgTimestamp);
         this.mappedByteBuffer.putLong(16, this.indexMsgTimestamp);
+        for (int i = 0; i < this.shardPhysicMsgTimestamp.length(); i++) {
+            this.mappedByteBuffer.putLong(shardPosition(i + 1), this.shardPhysicMsgTimestamp.get(i));
+            this.mappedByteBuffer.putLong(shardPosition(i + 1) + 8, this.shardLogicsMsgTimestamp.get(i));
+        }
+        for (int i = 0; i < this.physicMsgOffset.length(); i++) {
+            this.mappedByteBuffer.putLong(offsetPosition(i), this.physicMsgOffset.get(i));
+            this.mappedByteBuffer.putLong(offsetPosition(i) + 8, this.logicsMsgOffset.get(i));
+        }
         this.mappedByteBuffer.force();
     }
 
+    private static int shardPosition(final int shard) {
+        return 24 + (shard - 1) * 16;
+    }
+
+    // Files written before the offsets were kept read 0 here, which means unknown
+    private static int offsetPosition(final int shard) {
+        return MappedFile.OS_PAGE_SIZE / 2 + shard * 16;
+    }
+
     public long getPhysicMsgTimestamp() {
         return physicMsgTimestamp;
     }
@@ -98,12 +147,73 @@ public class StoreCheckpoint {
         this.logicsMsgTimestamp = logicsMsgTimestamp;
     }
 
+    public long getPhysicMsgTimestamp(final int shard) {
+        return shard == 0 ? this.physicMsgTimestamp : this.shardPhysicMsgTimestamp.get(shard - 1);
+    }
+
+    public void setPhysicMsgTimestamp(final int shard, final long physicMsgTimestamp) {
+        if (shard == 0) {
+            this.physicMsgTimestamp = physicMsgTimestamp;
+        } else {
+            this.shardPhysicMsgTimestamp.set(shard - 1, physicMsgTimestamp);
+        }
+    }
+
+    public long getLogicsMsgTimestamp(final int shard) {
+        return shard == 0 ? this.logicsMsgTimestamp : this.shardLogicsMsgTimestamp.get(shard - 1);
+    }
+
+    public void setLogicsMsgTimestamp(final int shard, final long logicsMsgTimestamp) {
+        if (shard == 0) {
+            this.logicsMsgTimestamp = logicsMsgTimestamp;
+        } else {
+            this.shardLogicsMsgTimestamp.set(shard - 1, logicsMsgTimestamp);
+        }
+    }
+
+    public long getPhysicMsgOffset(final int shard) {
+        return this.physicMsgOffset.get(shard);
+    }
+
+    public void setPhysicMsgOffset(final int shard, final long physicMsgOffset) {
+        this.physicMsgOffset.set(shard, physicMsgOffset);
+    }
+
+    public long getLogicsMsgOffset(final int shard) {
+        return this.logicsMsgOffset.get(shard);
+    }
+
+    public void setLogicsMsgOffset(final int shard, final long logicsMsgOffset) {
+        this.logicsMsgOffset.set(shard, logicsMsgOffset);
+    }
+
+    /**
+     * @return CommitLog offset of the shard from which an abnormal recovery has to check and dispatch messages again,
+     * -1 if it is not known
+     */
+    public long getMinOffset(final int shard) {
+        long min = Math.min(this.getPhysicMsgOffset(shard), this.getLogicsMsgOffset(shard));
+        return min > 0 ? min : -1;
+    }
+
+    public int getShardNum() {
+        return this.shardPhysicMsgTimestamp.length() + 1;
+    }
+
     public long getMinTimestampIndex() {
-        return Math.min(this.getMinTimestamp(), this.indexMsgTimestamp);
+        return this.getMinTimestampIndex(0);
+    }
+
+    public long getMinTimestampIndex(final int shard) {
+        return Math.min(this.getMinTimestamp(shard), this.indexMsgTimestamp);
     }
 
     public long getMinTimestamp() {
-        long min = Math.min(this.physicMsgTimestamp, this.logicsMsgTimestamp);
+        return this.getMinTimestamp(0);
+    }
+
+    public long getMinTimestamp(final int shard) {
+        long min = Math.min(this.getPhysicMsgTimestamp(shard), this.getLogicsMsgTimestamp(shard));
 
         min -= 1000 * 3;
         if (min < 0)
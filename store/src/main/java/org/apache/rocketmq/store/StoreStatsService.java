@@ -22,6 +22,7 @@ import java.util.LinkedList;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.ReentrantLock;
 import org.apache.rocketmq.common.ServiceThread;
 import org.apache.rocketmq.common.constant.LoggerName;
@@ -38,6 +39,9 @@ public class StoreStatsService extends ServiceThread {
         "[<=0ms]", "[0~10ms]", "[10~50ms]", "[50~100ms]", "[100~200ms]", "[200~500ms]", "[500ms~1s]", "[1~2s]", "[2~3s]", "[3~4s]", "[4~5s]", "[5~10s]", "[10s~]",
     };
 
+    // Bucket i counts the group commit flushes which took less than 2^i us, the last one takes the rest
+    private static final int GROUP_COMMIT_FLUSH_TIME_BUCKETS = 25;
+
     private static int printTPSInterval = 60 * 1;
 
     private final AtomicLong putMessageFailedTimes = new AtomicLong(0);
@@ -56,6 +60,7 @@ public class StoreStatsService extends ServiceThread {
     private final LinkedList<CallSnapshot> getTimesMissList = new LinkedList<CallSnapshot>();
     private final LinkedList<CallSnapshot> transferedMsgCountList = new LinkedList<CallSnapshot>();
     private volatile AtomicLong[] putMessageDistributeTime;
+    private volatile AtomicLongArray groupCommitFlushDistributeTime = new AtomicLongArray(GROUP_COMMIT_FLUSH_TIME_BUCKETS);
     private long messageStoreBootTimestamp = System.currentTimeMillis();
     private volatile long putMessageEntireTimeMax = 0;
     private volatile long getMessageEntireTimeMax = 0;
@@ -143,6 +148,43 @@ public class StoreStatsService extends ServiceThread {
         }
     }
 
+    /**
+     * Record how long one group commit flush took, see CommitLog.GroupCommitService
+     *
+     * @param costMicros flush latency in microseconds
+     */
+    public void setGroupCommitFlushTime(long costMicros) {
+        int index = 64 - Long.numberOfLeadingZeros(Math.max(costMicros, 0));
+        this.groupCommitFlushDistributeTime.incrementAndGet(Math.min(index, GROUP_COMMIT_FLUSH_TIME_BUCKETS - 1));
+    }
+
+    /**
+     * Group commit flush latency at the given percentile since the last [STORETPS] print, rounded up to a power of two
+     *
+     * @param percentile between 0 and 1, e.g. 0.99
+     * @return latency in microseconds, 0 if nothing was flushed
+     */
+    public long getGroupCommitFlushTimePercentile(double percentile) {
+        final AtomicLongArray times = this.groupCommitFlushDistributeTime;
+        long total = 0;
+        for (int i = 0; i < times.length(); i++) {
+            total += times.get(i);
+        }
+        if (0 == total) {
+            return 0;
+        }
+
+        long threshold = (long) Math.ceil(total * percentile);
+        long count = 0;
+        for (int i = 0; i < times.length(); i++) {
+            count += times.get(i);
+            if (count >= Math.max(threshold, 1)) {
+                return i == 0 ? 0 : 1L << i;
+            }
+        }
+        return 1L << (times.length() - 1);
+    }
+
     public long getGetMessageEntireTimeMax() {
         return getMessageEntireTimeMax;
     }
@@ -433,6 +475,8 @@ public class StoreStatsService extends ServiceThread {
         result.put("putMessageAverageSize",
             String.valueOf(this.getPutMessageSizeTotal() / totalTimes.doubleValue()));
         result.put("dispatchMaxBuffer", String.valueOf(this.dispatchMaxBuffer));
+        result.put("groupCommitFlushTimeP50", String.valueOf(this.getGroupCommitFlushTimePercentile(0.5)));
+        result.put("groupCommitFlushTimeP99", String.valueOf(this.getGroupCommitFlushTimePercentile(0.99)));
         result.put("getMessageEntireTimeMax", String.valueOf(this.getMessageEntireTimeMax));
         result.put("putTps", String.valueOf(this.getPutTps()));
         result.put("getFoundTps", String.valueOf(this.getGetFoundTps()));
@@ -508,6 +552,11 @@ public class StoreStatsService extends ServiceThread {
                 this.getGetTransferedTps(printTPSInterval)
             );
 
+            log.info("[GROUPCOMMIT] flush_time_p50 {}us flush_time_p99 {}us",
+                this.getGroupCommitFlushTimePercentile(0.5),
+                this.getGroupCommitFlushTimePercentile(0.99));
+            this.groupCommitFlushDistributeTime = new AtomicLongArray(GROUP_COMMIT_FLUSH_TIME_BUCKETS);
+
             final AtomicLong[] times = this.initPutMessageDistributeTime();
             if (null == times)
                 return;
@@ -48,7 +48,7 @@ public class TransientStorePool {
      */
     public void init() {
         for (int i = 0; i < poolSize; i++) {
-            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(fileSize);
+            ByteBuffer byteBuffer = allocatePageAligned(fileSize);
 
             final long address = ((DirectBuffer) byteBuffer).address();
             Pointer pointer = new Pointer(address);
@@ -58,6 +58,18 @@ public class TransientStorePool {
         }
     }
 
+    /**
+     * Direct I/O needs the source buffer to start on a page boundary, which allocateDirect does not promise
+     */
+    private static ByteBuffer allocatePageAligned(final int size) {
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(size + MappedFile.OS_PAGE_SIZE);
+        long address = ((DirectBuffer) byteBuffer).address();
+        int offset = (int) ((MappedFile.OS_PAGE_SIZE - address % MappedFile.OS_PAGE_SIZE) % MappedFile.OS_PAGE_SIZE);
+        byteBuffer.position(offset);
+        byteBuffer.limit(offset + size);
+        return byteBuffer.slice();
+    }
+
     public void destroy() {
         for (ByteBuffer byteBuffer : availableBuffers) {
             final long address = ((DirectBuffer) byteBuffer).address();
@@ -81,7 +93,7 @@ public class TransientStorePool {
     }
 
     public int remainBufferNumbs() {
-        if (storeConfig.isTransientStorePoolEnable()) {
+        if (storeConfig.isTransientStorePoolEnable() || storeConfig.isDirectIOFlushEnable()) {
             return availableBuffers.size();
         }
         return Integer.MAX_VALUE;
@@ -19,8 +19,12 @@ package org.apache.rocketmq.store.config;
 import java.io.File;
 import org.apache.rocketmq.common.annotation.ImportantField;
 import org.apache.rocketmq.store.ConsumeQueue;
+import org.apache.rocketmq.store.StoreCheckpoint;
 
 public class MessageStoreConfig {
+    // Every shard keeps its timestamps and offsets in the single page of the store checkpoint
+    public static final int MAX_COMMIT_LOG_SHARD_NUM = StoreCheckpoint.MAX_SHARD_NUM;
+
     //The root directory in which the log data is kept
     @ImportantField
     private String storePathRootDir = System.getProperty("user.home") + File.separator + "store";
@@ -41,6 +45,14 @@ public class MessageStoreConfig {
     // Bit count of filter bit map.
     // this will be set by pipe of calculate filter bit map.
     private int bitMapLengthConsumeQueueExt = 64;
+    // Keep the store time of the consume queue messages in a sidecar index, searched by time instead of the CommitLog
+    private boolean enableConsumeQueueTimeIndex = false;
+    // Index one message of every N, messages in between are then searched in the CommitLog
+    private int consumeQueueTimeIndexInterval = 1;
+    // Map consume queue files on first access, and unmap sealed ones idle for the idle time once over the budget
+    private boolean enableConsumeQueueLazyMapping = false;
+    private int maxMappedConsumeQueueFiles = 20000;
+    private int consumeQueueMappedFileIdleTime = 1000 * 60;
 
     // CommitLog flush interval
     // flush data to disk
@@ -58,6 +70,70 @@ public class MessageStoreConfig {
      */
     private boolean useReentrantLockWhenPutMessage = false;
 
+    /**
+     * Encode messages before taking the put message lock and only reserve space inside it, writers then copy their
+     * records into the CommitLog concurrently.<br/>
+     * Not available together with TransientStorePool.
+     */
+    private boolean multiWriterAppendEnable = false;
+
+    /**
+     * Number of independent CommitLog shards, each with its own lock, flush service and directory. Queues are
+     * assigned to a shard by topic/queue hash. Shard 0 lives in storePathCommitLog, shard N in storePathCommitLog + N.<br/>
+     * Shards can not be replicated, so only takes effect on an ASYNC_MASTER. Must not be changed once the store has data.
+     * At most {@link #MAX_COMMIT_LOG_SHARD_NUM}.
+     */
+    private int commitLogShardNum = 1;
+
+    /**
+     * Let ReputMessageService only parse the CommitLog and hand dispatch requests to worker threads: consume queues
+     * are built by dispatchStripeNum workers, each owning the queues hashed to it, and the index by one more worker.
+     * Every worker has a bounded queue of dispatchQueueCapacity requests, the parser blocks when one is full.
+     */
+    private boolean parallelDispatchEnable = false;
+    private int dispatchStripeNum = 4;
+    private int dispatchQueueCapacity = 4096;
+
+    /**
+     * Load and recover consume queues, and verify the CRC of CommitLog files after an abnormal shutdown, with
+     * recoverThreadNum threads on startup.
+     */
+    private boolean parallelRecoverEnable = false;
+    private int recoverThreadNum = 8;
+
+    /**
+     * Upload sealed CommitLog and ConsumeQueue files to the tiered storage backend and serve pulls from it once the
+     * local files are gone. Expired local files are only deleted after being uploaded, unless
+     * tieredDeleteOnDiskFullEnable is set and the disk is marked full, then they are deleted anyway so that a backend
+     * outage can't stop the broker; messages that never made it to the backend are lost.<br/>
+     * tieredStoreBackend names a TieredStorageBackend implementation, the default one copies to tieredStorePath.
+     */
+    private boolean tieredStoreEnable = false;
+    private String tieredStoreBackend = "org.apache.rocketmq.store.tiered.LocalDirectoryBackend";
+    private String tieredStorePath = System.getProperty("user.home") + File.separator + "store"
+        + File.separator + "tiered";
+    private int tieredOffloadInterval = 1000 * 10;
+    private boolean tieredDeleteOnDiskFullEnable = true;
+    // Remote files are read in chunks of this size, the last tieredReadCacheChunkNum chunks are kept on heap
+    private int tieredReadAheadSize = 1024 * 1024;
+    private int tieredReadCacheChunkNum = 64;
+
+    /**
+     * Route messages carrying a deliver time, and delay level messages, through the timing wheel instead of the fixed
+     * level schedule queues. The wheel has timerWheelSlotNum slots of one second, messages further ahead go around it
+     * again, deliver times more than timerMaxDelaySec ahead are rejected.
+     */
+    private boolean timerWheelEnable = false;
+    private int timerWheelSlotNum = 7 * 24 * 3600;
+    private int timerMaxDelaySec = 30 * 24 * 3600;
+    // TimerLog file size, must be a multiple of the 40 byte unit
+    private int mapedFileSizeTimerLog = 40 * 1024 * 1024;
+    private int timerDeliverThreadNum = 8;
+    private int timerDeliverQueueCapacity = 10000;
+    private int timerFlushInterval = 1000;
+    // Messages which can not be put back are retried with exponential backoff, then dropped
+    private int timerDeliverMaxRetryTimes = 16;
+
     // Whether schedule flush,default is real-time
     @ImportantField
     private boolean flushCommitLogTimed = false;
@@ -107,10 +183,34 @@ public class MessageStoreConfig {
     private int maxTransferCountOnMessageInDisk = 8;
     @ImportantField
     private int accessMessageInMemoryMaxRatio = 40;
+    // Read CommitLog data ahead of consumers pulling messages no longer in memory, readAheadSize bytes at a time
+    private boolean readAheadEnable = false;
+    private int readAheadSize = 1024 * 1024 * 4;
+    /**
+     * Keep the newest pinnedCommitLogSize bytes of the CommitLog mlocked, release older files from memory once all
+     * consumer groups have passed them, and slow down cold reads of groups lagging coldReadThrottleLag messages behind
+     * once coldReadBytesPerSecond is used up
+     */
+    private boolean pageCacheResidencyEnable = false;
+    private long pinnedCommitLogSize = 1024L * 1024 * 1024 * 2;
+    private long coldReadThrottleLag = 100000;
+    private long coldReadBytesPerSecond = 1024 * 1024 * 64;
     @ImportantField
     private boolean messageIndexEnable = true;
     private int maxHashSlotNum = 5000000;
     private int maxIndexNum = 5000000 * 4;
+    /**
+     * Index message keys into sorted runs with bloom filters instead of hash chain files, the hash chain files already
+     * written are still queried until they expire
+     */
+    private boolean messageIndexLsmEnable = false;
+    // Keys held in memory before they are written to a run
+    private int lsmIndexMemtableSize = 200000;
+    private int lsmIndexFlushInterval = 1000 * 60;
+    // Runs of one level merged into a run of the next level
+    private int lsmIndexCompactionFanout = 4;
+    // False positive rate of the run bloom filters, in percent
+    private int lsmIndexBloomErrorRate = 1;
     private int maxMsgsNumBatch = 64;
     @ImportantField
     private boolean messageIndexSafe = false;
@@ -118,6 +218,14 @@ public class MessageStoreConfig {
     private int haSendHeartbeatInterval = 1000 * 5;
     private int haHousekeepingInterval = 1000 * 20;
     private int haTransferBatchSize = 1024 * 32;
+    /**
+     * Keep sending batches until haMaxInFlightSize bytes are not acked by the slave, straight from the CommitLog files
+     * with FileChannel.transferTo, and let the slave ack once per read instead of once per batch
+     */
+    private boolean haPipelineEnable = false;
+    private int haMaxInFlightSize = 1024 * 1024 * 16;
+    // Socket buffer size of replication connections, raise it to the bandwidth-delay product of long links
+    private int haSocketBufferSize = 1024 * 64;
     @ImportantField
     private String haMasterAddress = null;
     private int haSlaveFallbehindMax = 1024 * 1024 * 256;
@@ -126,7 +234,18 @@ public class MessageStoreConfig {
     @ImportantField
     private FlushDiskType flushDiskType = FlushDiskType.ASYNC_FLUSH;
     private int syncFlushTimeout = 1000 * 5;
+    /**
+     * With SYNC_FLUSH, let GroupCommitService hold a woken up batch open for a while when requests arrive faster than
+     * a flush completes, so that one flush covers more of them. The window follows the measured flush latency and
+     * is never longer than groupCommitMaxWaitMicros.
+     */
+    private boolean groupCommitAdaptiveEnable = false;
+    private int groupCommitMaxWaitMicros = 2000;
     private String messageDelayLevel = "1s 5s 10s 30s 1m 2m 3m 4m 5m 6m 7m 8m 9m 10m 20m 30m 1h 2h";
+    /**
+     * Due delayed messages a delay level looks up and puts back at a time
+     */
+    private int scheduleDeliverBatchSize = 32;
     private long flushDelayOffsetInterval = 1000 * 10;
     @ImportantField
     private boolean cleanFileForciblyEnable = true;
@@ -142,6 +261,11 @@ public class MessageStoreConfig {
     private boolean transientStorePoolEnable = false;
     private int transientStorePoolSize = 5;
     private boolean fastFailIfNoBufferInStorePool = false;
+    /**
+     * Commit CommitLog data from the TransientStorePool buffers with O_DIRECT writes and make it durable with
+     * fdatasync instead of forcing the mapped file. Linux only, works with both flush disk types.
+     */
+    private boolean directIOFlushEnable = false;
 
     public boolean isDebugLockEnable() {
         return debugLockEnable;
@@ -225,6 +349,46 @@ public class MessageStoreConfig {
         this.bitMapLengthConsumeQueueExt = bitMapLengthConsumeQueueExt;
     }
 
+    public boolean isEnableConsumeQueueTimeIndex() {
+        return enableConsumeQueueTimeIndex;
+    }
+
+    public void setEnableConsumeQueueTimeIndex(boolean enableConsumeQueueTimeIndex) {
+        this.enableConsumeQueueTimeIndex = enableConsumeQueueTimeIndex;
+    }
+
+    public int getConsumeQueueTimeIndexInterval() {
+        return consumeQueueTimeIndexInterval;
+    }
+
+    public void setConsumeQueueTimeIndexInterval(int consumeQueueTimeIndexInterval) {
+        this.consumeQueueTimeIndexInterval = consumeQueueTimeIndexInterval;
+    }
+
+    public boolean isEnableConsumeQueueLazyMapping() {
+        return enableConsumeQueueLazyMapping;
+    }
+
+    public void setEnableConsumeQueueLazyMapping(boolean enableConsumeQueueLazyMapping) {
+        this.enableConsumeQueueLazyMapping = enableConsumeQueueLazyMapping;
+    }
+
+    public int getMaxMappedConsumeQueueFiles() {
+        return maxMappedConsumeQueueFiles;
+    }
+
+    public void setMaxMappedConsumeQueueFiles(int maxMappedConsumeQueueFiles) {
+        this.maxMappedConsumeQueueFiles = maxMappedConsumeQueueFiles;
+    }
+
+    public int getConsumeQueueMappedFileIdleTime() {
+        return consumeQueueMappedFileIdleTime;
+    }
+
+    public void setConsumeQueueMappedFileIdleTime(int consumeQueueMappedFileIdleTime) {
+        this.consumeQueueMappedFileIdleTime = consumeQueueMappedFileIdleTime;
+    }
+
     public int getFlushIntervalCommitLog() {
         return flushIntervalCommitLog;
     }
@@ -419,6 +583,54 @@ public class MessageStoreConfig {
         this.accessMessageInMemoryMaxRatio = accessMessageInMemoryMaxRatio;
     }
 
+    public boolean isReadAheadEnable() {
+        return readAheadEnable;
+    }
+
+    public void setReadAheadEnable(boolean readAheadEnable) {
+        this.readAheadEnable = readAheadEnable;
+    }
+
+    public int getReadAheadSize() {
+        return readAheadSize;
+    }
+
+    public void setReadAheadSize(int readAheadSize) {
+        this.readAheadSize = readAheadSize;
+    }
+
+    public boolean isPageCacheResidencyEnable() {
+        return pageCacheResidencyEnable;
+    }
+
+    public void setPageCacheResidencyEnable(boolean pageCacheResidencyEnable) {
+        this.pageCacheResidencyEnable = pageCacheResidencyEnable;
+    }
+
+    public long getPinnedCommitLogSize() {
+        return pinnedCommitLogSize;
+    }
+
+    public void setPinnedCommitLogSize(long pinnedCommitLogSize) {
+        this.pinnedCommitLogSize = pinnedCommitLogSize;
+    }
+
+    public long getColdReadThrottleLag() {
+        return coldReadThrottleLag;
+    }
+
+    public void setColdReadThrottleLag(long coldReadThrottleLag) {
+        this.coldReadThrottleLag = coldReadThrottleLag;
+    }
+
+    public long getColdReadBytesPerSecond() {
+        return coldReadBytesPerSecond;
+    }
+
+    public void setColdReadBytesPerSecond(long coldReadBytesPerSecond) {
+        this.coldReadBytesPerSecond = coldReadBytesPerSecond;
+    }
+
     public boolean isMessageIndexEnable() {
         return messageIndexEnable;
     }
@@ -443,6 +655,46 @@ public class MessageStoreConfig {
         this.maxIndexNum = maxIndexNum;
     }
 
+    public boolean isMessageIndexLsmEnable() {
+        return messageIndexLsmEnable;
+    }
+
+    public void setMessageIndexLsmEnable(boolean messageIndexLsmEnable) {
+        this.messageIndexLsmEnable = messageIndexLsmEnable;
+    }
+
+    public int getLsmIndexMemtableSize() {
+        return lsmIndexMemtableSize;
+    }
+
+    public void setLsmIndexMemtableSize(int lsmIndexMemtableSize) {
+        this.lsmIndexMemtableSize = lsmIndexMemtableSize;
+    }
+
+    public int getLsmIndexFlushInterval() {
+        return lsmIndexFlushInterval;
+    }
+
+    public void setLsmIndexFlushInterval(int lsmIndexFlushInterval) {
+        this.lsmIndexFlushInterval = lsmIndexFlushInterval;
+    }
+
+    public int getLsmIndexCompactionFanout() {
+        return lsmIndexCompactionFanout;
+    }
+
+    public void setLsmIndexCompactionFanout(int lsmIndexCompactionFanout) {
+        this.lsmIndexCompactionFanout = lsmIndexCompactionFanout;
+    }
+
+    public int getLsmIndexBloomErrorRate() {
+        return lsmIndexBloomErrorRate;
+    }
+
+    public void setLsmIndexBloomErrorRate(int lsmIndexBloomErrorRate) {
+        this.lsmIndexBloomErrorRate = lsmIndexBloomErrorRate;
+    }
+
     public int getMaxMsgsNumBatch() {
         return maxMsgsNumBatch;
     }
@@ -495,6 +747,30 @@ public class MessageStoreConfig {
         this.haTransferBatchSize = haTransferBatchSize;
     }
 
+    public boolean isHaPipelineEnable() {
+        return haPipelineEnable;
+    }
+
+    public void setHaPipelineEnable(boolean haPipelineEnable) {
+        this.haPipelineEnable = haPipelineEnable;
+    }
+
+    public int getHaMaxInFlightSize() {
+        return haMaxInFlightSize;
+    }
+
+    public void setHaMaxInFlightSize(int haMaxInFlightSize) {
+        this.haMaxInFlightSize = haMaxInFlightSize;
+    }
+
+    public int getHaSocketBufferSize() {
+        return haSocketBufferSize;
+    }
+
+    public void setHaSocketBufferSize(int haSocketBufferSize) {
+        this.haSocketBufferSize = haSocketBufferSize;
+    }
+
     public int getHaSlaveFallbehindMax() {
         return haSlaveFallbehindMax;
     }
@@ -523,6 +799,22 @@ public class MessageStoreConfig {
         this.syncFlushTimeout = syncFlushTimeout;
     }
 
+    public boolean isGroupCommitAdaptiveEnable() {
+        return groupCommitAdaptiveEnable;
+    }
+
+    public void setGroupCommitAdaptiveEnable(final boolean groupCommitAdaptiveEnable) {
+        this.groupCommitAdaptiveEnable = groupCommitAdaptiveEnable;
+    }
+
+    public int getGroupCommitMaxWaitMicros() {
+        return groupCommitMaxWaitMicros;
+    }
+
+    public void setGroupCommitMaxWaitMicros(final int groupCommitMaxWaitMicros) {
+        this.groupCommitMaxWaitMicros = groupCommitMaxWaitMicros;
+    }
+
     public String getHaMasterAddress() {
         return haMasterAddress;
     }
@@ -539,6 +831,14 @@ public class MessageStoreConfig {
         this.messageDelayLevel = messageDelayLevel;
     }
 
+    public int getScheduleDeliverBatchSize() {
+        return scheduleDeliverBatchSize;
+    }
+
+    public void setScheduleDeliverBatchSize(int scheduleDeliverBatchSize) {
+        this.scheduleDeliverBatchSize = scheduleDeliverBatchSize;
+    }
+
     public long getFlushDelayOffsetInterval() {
         return flushDelayOffsetInterval;
     }
@@ -618,6 +918,19 @@ public class MessageStoreConfig {
         this.transientStorePoolEnable = transientStorePoolEnable;
     }
 
+    /**
+     * Enable direct I/O flush only if directIOFlushEnable is true and the broker is not a slave
+     *
+     * @return <tt>true</tt> or <tt>false</tt>
+     */
+    public boolean isDirectIOFlushEnable() {
+        return directIOFlushEnable && BrokerRole.SLAVE != getBrokerRole();
+    }
+
+    public void setDirectIOFlushEnable(final boolean directIOFlushEnable) {
+        this.directIOFlushEnable = directIOFlushEnable;
+    }
+
     public int getTransientStorePoolSize() {
         return transientStorePoolSize;
     }
@@ -666,4 +979,186 @@ public class MessageStoreConfig {
         this.commitCommitLogThoroughInterval = commitCommitLogThoroughInterval;
     }
 
+    /**
+     * Enable multi-writer append only if multiWriterAppendEnable is true and TransientStorePool or direct I/O flush
+     * is not in use
+     *
+     * @return <tt>true</tt> or <tt>false</tt>
+     */
+    public boolean isMultiWriterAppendEnable() {
+        return multiWriterAppendEnable && !isTransientStorePoolEnable() && !isDirectIOFlushEnable();
+    }
+
+    public void setMultiWriterAppendEnable(final boolean multiWriterAppendEnable) {
+        this.multiWriterAppendEnable = multiWriterAppendEnable;
+    }
+
+    public int getCommitLogShardNum() {
+        return commitLogShardNum;
+    }
+
+    public void setCommitLogShardNum(final int commitLogShardNum) {
+        this.commitLogShardNum = commitLogShardNum;
+    }
+
+    public boolean isParallelDispatchEnable() {
+        return parallelDispatchEnable;
+    }
+
+    public void setParallelDispatchEnable(final boolean parallelDispatchEnable) {
+        this.parallelDispatchEnable = parallelDispatchEnable;
+    }
+
+    public int getDispatchStripeNum() {
+        return dispatchStripeNum;
+    }
+
+    public void setDispatchStripeNum(final int dispatchStripeNum) {
+        this.dispatchStripeNum = dispatchStripeNum;
+    }
+
+    public int getDispatchQueueCapacity() {
+        return dispatchQueueCapacity;
+    }
+
+    public void setDispatchQueueCapacity(final int dispatchQueueCapacity) {
+        this.dispatchQueueCapacity = dispatchQueueCapacity;
+    }
+
+    public boolean isParallelRecoverEnable() {
+        return parallelRecoverEnable;
+    }
+
+    public void setParallelRecoverEnable(final boolean parallelRecoverEnable) {
+        this.parallelRecoverEnable = parallelRecoverEnable;
+    }
+
+    public int getRecoverThreadNum() {
+        return recoverThreadNum;
+    }
+
+    public void setRecoverThreadNum(final int recoverThreadNum) {
+        this.recoverThreadNum = recoverThreadNum;
+    }
+
+    public boolean isTieredStoreEnable() {
+        return tieredStoreEnable;
+    }
+
+    public void setTieredStoreEnable(final boolean tieredStoreEnable) {
+        this.tieredStoreEnable = tieredStoreEnable;
+    }
+
+    public String getTieredStoreBackend() {
+        return tieredStoreBackend;
+    }
+
+    public void setTieredStoreBackend(final String tieredStoreBackend) {
+        this.tieredStoreBackend = tieredStoreBackend;
+    }
+
+    public String getTieredStorePath() {
+        return tieredStorePath;
+    }
+
+    public void setTieredStorePath(final String tieredStorePath) {
+        this.tieredStorePath = tieredStorePath;
+    }
+
+    public int getTieredOffloadInterval() {
+        return tieredOffloadInterval;
+    }
+
+    public void setTieredOffloadInterval(final int tieredOffloadInterval) {
+        this.tieredOffloadInterval = tieredOffloadInterval;
+    }
+
+    public boolean isTieredDeleteOnDiskFullEnable() {
+        return tieredDeleteOnDiskFullEnable;
+    }
+
+    public void setTieredDeleteOnDiskFullEnable(final boolean tieredDeleteOnDiskFullEnable) {
+        this.tieredDeleteOnDiskFullEnable = tieredDeleteOnDiskFullEnable;
+    }
+
+    public int getTieredReadAheadSize() {
+        return tieredReadAheadSize;
+    }
+
+    public void setTieredReadAheadSize(final int tieredReadAheadSize) {
+        this.tieredReadAheadSize = tieredReadAheadSize;
+    }
+
+    public int getTieredReadCacheChunkNum() {
+        return tieredReadCacheChunkNum;
+    }
+
+    public void setTieredReadCacheChunkNum(final int tieredReadCacheChunkNum) {
+        this.tieredReadCacheChunkNum = tieredReadCacheChunkNum;
+    }
+
+    public boolean isTimerWheelEnable() {
+        return timerWheelEnable;
+    }
+
+    public void setTimerWheelEnable(final boolean timerWheelEnable) {
+        this.timerWheelEnable = timerWheelEnable;
+    }
+
+    public int getTimerWheelSlotNum() {
+        return timerWheelSlotNum;
+    }
+
+    public void setTimerWheelSlotNum(final int timerWheelSlotNum) {
+        this.timerWheelSlotNum = timerWheelSlotNum;
+    }
+
+    public int getTimerMaxDelaySec() {
+        return timerMaxDelaySec;
+    }
+
+    public void setTimerMaxDelaySec(final int timerMaxDelaySec) {
+        this.timerMaxDelaySec = timerMaxDelaySec;
+    }
+
+    public int getMapedFileSizeTimerLog() {
+        return mapedFileSizeTimerLog;
+    }
+
+    public void setMapedFileSizeTimerLog(final int mapedFileSizeTimerLog) {
+        this.mapedFileSizeTimerLog = mapedFileSizeTimerLog;
+    }
+
+    public int getTimerDeliverThreadNum() {
+        return timerDeliverThreadNum;
+    }
+
+    public void setTimerDeliverThreadNum(final int timerDeliverThreadNum) {
+        this.timerDeliverThreadNum = timerDeliverThreadNum;
+    }
+
+    public int getTimerDeliverQueueCapacity() {
+        return timerDeliverQueueCapacity;
+    }
+
+    public void setTimerDeliverQueueCapacity(final int timerDeliverQueueCapacity) {
+        this.timerDeliverQueueCapacity = timerDeliverQueueCapacity;
+    }
+
+    public int getTimerFlushInterval() {
+        return timerFlushInterval;
+    }
+
+    public void setTimerFlushInterval(final int timerFlushInterval) {
+        this.timerFlushInterval = timerFlushInterval;
+    }
+
+    public int getTimerDeliverMaxRetryTimes() {
+        return timerDeliverMaxRetryTimes;
+    }
+
+    public void setTimerDeliverMaxRetryTimes(final int timerDeliverMaxRetryTimes) {
+        this.timerDeliverMaxRetryTimes = timerDeliverMaxRetryTimes;
+    }
+
 }
@@ -28,10 +28,18 @@ public class StorePathConfigHelper {
         return rootDir + File.separator + "consumequeue_ext";
     }
 
+    public static String getStorePathConsumeQueueTimeIndex(final String rootDir) {
+        return rootDir + File.separator + "consumequeue_time";
+    }
+
     public static String getStorePathIndex(final String rootDir) {
         return rootDir + File.separator + "index";
     }
 
+    public static String getStorePathLsmIndex(final String rootDir) {
+        return rootDir + File.separator + "lsmindex";
+    }
+
     public static String getStoreCheckpoint(final String rootDir) {
         return rootDir + File.separator + "checkpoint";
     }
@@ -48,6 +56,18 @@ public class StorePathConfigHelper {
         return rootDir + File.separator + "config" + File.separator + "delayOffset.json";
     }
 
+    public static String getTimerWheelStorePath(final String rootDir) {
+        return rootDir + File.separator + "timerwheel";
+    }
+
+    public static String getTimerLogStorePath(final String rootDir) {
+        return rootDir + File.separator + "timerlog";
+    }
+
+    public static String getTimerCheckpointPath(final String rootDir) {
+        return rootDir + File.separator + "config" + File.separator + "timercheck";
+    }
+
     public static String getTranStateTableStorePath(final String rootDir) {
         return rootDir + File.separator + "transaction" + File.separator + "statetable";
     }
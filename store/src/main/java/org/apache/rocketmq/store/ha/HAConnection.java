@@ -24,7 +24,9 @@ import java.nio.channels.SocketChannel;
 import org.apache.rocketmq.common.ServiceThread;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.remoting.common.RemotingUtil;
+import org.apache.rocketmq.store.MappedFile;
 import org.apache.rocketmq.store.SelectMappedBufferResult;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +40,8 @@ public class HAConnection {
 
     private volatile long slaveRequestOffset = -1;
     private volatile long slaveAckOffset = -1;
+    // Woken up by acks of the slave, when the window of batches in flight is full
+    private final WaitNotifyObject ackNotifyObject = new WaitNotifyObject();
 
     public HAConnection(final HAService haService, final SocketChannel socketChannel) throws IOException {
         this.haService = haService;
@@ -46,8 +50,9 @@ public class HAConnection {
         this.socketChannel.configureBlocking(false);
         this.socketChannel.socket().setSoLinger(false, -1);
         this.socketChannel.socket().setTcpNoDelay(true);
-        this.socketChannel.socket().setReceiveBufferSize(1024 * 64);
-        this.socketChannel.socket().setSendBufferSize(1024 * 64);
+        final int socketBufferSize = haService.getDefaultMessageStore().getMessageStoreConfig().getHaSocketBufferSize();
+        this.socketChannel.socket().setReceiveBufferSize(socketBufferSize);
+        this.socketChannel.socket().setSendBufferSize(socketBufferSize);
         this.writeSocketService = new WriteSocketService(this.socketChannel);
         this.readSocketService = new ReadSocketService(this.socketChannel);
         this.haService.getConnectionCount().incrementAndGet();
@@ -171,6 +176,7 @@ public class HAConnection {
                             }
 
                             HAConnection.this.haService.notifyTransferSome(HAConnection.this.slaveAckOffset);
+                            HAConnection.this.ackNotifyObject.wakeup();
                         }
                     } else if (readSize == 0) {
                         if (++readSizeZeroTimes >= 3) {
@@ -197,6 +203,8 @@ public class HAConnection {
         private final int headerSize = 8 + 4;
         private final ByteBuffer byteBufferHeader = ByteBuffer.allocate(headerSize);
         private long nextTransferFromWhere = -1;
+        // Where the transfer began, data before it is never acked by a slave starting from scratch
+        private long beginTransferFromWhere = -1;
         private SelectMappedBufferResult selectMappedBufferResult;
         private boolean lastWriteOver = true;
         private long lastWriteTimestamp = System.currentTimeMillis();
@@ -237,6 +245,7 @@ public class HAConnection {
                         } else {
                             this.nextTransferFromWhere = HAConnection.this.slaveRequestOffset;
                         }
+                        this.beginTransferFromWhere = this.nextTransferFromWhere;
 
                         log.info("master transfer data from " + this.nextTransferFromWhere + " to slave[" + HAConnection.this.clientAddr
                             + "], and slave request " + HAConnection.this.slaveRequestOffset);
@@ -267,12 +276,24 @@ public class HAConnection {
                             continue;
                     }
 
+                    final MessageStoreConfig messageStoreConfig = HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig();
+                    int windowRemaining = Integer.MAX_VALUE;
+                    if (messageStoreConfig.isHaPipelineEnable()) {
+                        long inFlight = this.nextTransferFromWhere
+                            - Math.max(HAConnection.this.slaveAckOffset, this.beginTransferFromWhere);
+                        windowRemaining = (int) Math.max(0, messageStoreConfig.getHaMaxInFlightSize() - inFlight);
+                        if (0 == windowRemaining) {
+                            HAConnection.this.ackNotifyObject.waitForRunning(100);
+                            continue;
+                        }
+                    }
+
                     SelectMappedBufferResult selectResult =
                         HAConnection.this.haService.getDefaultMessageStore().getCommitLogData(this.nextTransferFromWhere);
                     if (selectResult != null) {
-                        int size = selectResult.getSize();
-                        if (size > HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().getHaTransferBatchSize()) {
-                            size = HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().getHaTransferBatchSize();
+                        int size = Math.min(selectResult.getSize(), windowRemaining);
+                        if (size > messageStoreConfig.getHaTransferBatchSize()) {
+                            size = messageStoreConfig.getHaTransferBatchSize();
                         }
 
                         long thisOffset = this.nextTransferFromWhere;
@@ -351,7 +372,7 @@ public class HAConnection {
             // Write Body
             if (!this.byteBufferHeader.hasRemaining()) {
                 while (this.selectMappedBufferResult.getByteBuffer().hasRemaining()) {
-                    int writeSize = this.socketChannel.write(this.selectMappedBufferResult.getByteBuffer());
+                    int writeSize = this.writeBody();
                     if (writeSize > 0) {
                         writeSizeZeroTimes = 0;
                         this.lastWriteTimestamp = HAConnection.this.haService.getDefaultMessageStore().getSystemClock().now();
@@ -375,6 +396,23 @@ public class HAConnection {
             return result;
         }
 
+        /**
+         * Write the body from the mapped buffer, or with transferTo from the file channel without copying it when
+         * pipelined, the buffer position keeps track of how much is written either way.
+         */
+        private int writeBody() throws IOException {
+            ByteBuffer body = this.selectMappedBufferResult.getByteBuffer();
+            if (!HAConnection.this.haService.getDefaultMessageStore().getMessageStoreConfig().isHaPipelineEnable()) {
+                return this.socketChannel.write(body);
+            }
+
+            MappedFile mappedFile = this.selectMappedBufferResult.getMappedFile();
+            long position = this.selectMappedBufferResult.getStartOffset() - mappedFile.getFileFromOffset() + body.position();
+            int writeSize = (int) mappedFile.getFileChannel().transferTo(position, body.remaining(), this.socketChannel);
+            body.position(body.position() + writeSize);
+            return writeSize;
+        }
+
         @Override
         public String getServiceName() {
             return WriteSocketService.class.getSimpleName();
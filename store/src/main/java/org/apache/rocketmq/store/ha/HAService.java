@@ -214,6 +214,13 @@ public class HAService {
                                     HAService.log.info("HAService receive new connection, "
                                         + sc.socket().getRemoteSocketAddress());
 
+                                    if (HAService.this.defaultMessageStore.getCommitLog().getShards().size() > 1) {
+                                        log.error("a sharded commit log can not be replicated, refuse slave "
+                                            + sc.socket().getRemoteSocketAddress());
+                                        sc.close();
+                                        continue;
+                                    }
+
                                     try {
                                         HAConnection conn = new HAConnection(HAService.this, sc);
                                         conn.start();
@@ -432,6 +439,8 @@ public class HAService {
 
         private boolean dispatchReadRequest() {
             final int msgHeaderSize = 8 + 4; // phyoffset + size
+            // Acks are cumulative, pipelined batches are acked all at once after the read
+            final boolean pipelined = HAService.this.defaultMessageStore.getMessageStoreConfig().isHaPipelineEnable();
             int readSocketPos = this.byteBufferRead.position();
 
             while (true) {
@@ -460,7 +469,7 @@ public class HAService {
                         this.byteBufferRead.position(readSocketPos);
                         this.dispatchPostion += msgHeaderSize + bodySize;
 
-                        if (!reportSlaveMaxOffsetPlus()) {
+                        if (!pipelined && !reportSlaveMaxOffsetPlus()) {
                             return false;
                         }
 
@@ -475,7 +484,7 @@ public class HAService {
                 break;
             }
 
-            return true;
+            return !pipelined || this.reportSlaveMaxOffsetPlus();
         }
 
         private boolean reportSlaveMaxOffsetPlus() {
@@ -500,7 +509,8 @@ public class HAService {
 
                     SocketAddress socketAddress = RemotingUtil.string2SocketAddress(addr);
                     if (socketAddress != null) {
-                        this.socketChannel = RemotingUtil.connect(socketAddress);
+                        this.socketChannel = RemotingUtil.connect(socketAddress, 1000 * 5,
+                            HAService.this.defaultMessageStore.getMessageStoreConfig().getHaSocketBufferSize());
                         if (this.socketChannel != null) {
                             this.socketChannel.register(this.selector, SelectionKey.OP_READ);
                         }
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.index;
+
+/**
+ * One key of one message in the LSM index, ordered by key hash, then store time, then CommitLog offset.
+ */
+class IndexEntry implements Comparable<IndexEntry> {
+    public static final int ENTRY_SIZE = 8 + 8 + 8;
+
+    private final long keyHash;
+    private final long storeTimestamp;
+    private final long phyOffset;
+
+    IndexEntry(final long keyHash, final long storeTimestamp, final long phyOffset) {
+        this.keyHash = keyHash;
+        this.storeTimestamp = storeTimestamp;
+        this.phyOffset = phyOffset;
+    }
+
+    static int compare(final long keyHash1, final long storeTimestamp1, final long phyOffset1,
+        final long keyHash2, final long storeTimestamp2, final long phyOffset2) {
+        if (keyHash1 != keyHash2) {
+            return keyHash1 < keyHash2 ? -1 : 1;
+        }
+        if (storeTimestamp1 != storeTimestamp2) {
+            return storeTimestamp1 < storeTimestamp2 ? -1 : 1;
+        }
+        if (phyOffset1 != phyOffset2) {
+            return phyOffset1 < phyOffset2 ? -1 : 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public int compareTo(final IndexEntry o) {
+        return compare(this.keyHash, this.storeTimestamp, this.phyOffset, o.keyHash, o.storeTimestamp, o.phyOffset);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof IndexEntry))
+            return false;
+        return this.compareTo((IndexEntry) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (keyHash ^ (keyHash >>> 32));
+        result = 31 * result + (int) (storeTimestamp ^ (storeTimestamp >>> 32));
+        result = 31 * result + (int) (phyOffset ^ (phyOffset >>> 32));
+        return result;
+    }
+
+    public long getKeyHash() {
+        return keyHash;
+    }
+
+    public long getStoreTimestamp() {
+        return storeTimestamp;
+    }
+
+    public long getPhyOffset() {
+        return phyOffset;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.filter.util.BitsArray;
+import org.apache.rocketmq.filter.util.BloomFilter;
+import org.apache.rocketmq.store.MappedFile;
+import org.apache.rocketmq.store.ReferenceResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable file of index entries sorted by key hash and store time, with a bloom filter of the key hashes it holds.
+ * <p>
+ * Layout: magic(4) + level(4) + entryCount(4) + bloomErrorRate(4) + bloomExpectedNum(4) + minTimestamp(8) +
+ * maxTimestamp(8) + minPhyOffset(8) + maxPhyOffset(8) + inputNum(4) + input sequences(8 * inputNum) + bloom bits +
+ * entries, see {@link IndexEntry}
+ * </p>
+ * A run written by a compaction lists the runs it replaces, so that they are dropped if it was written but they could
+ * not be deleted.
+ */
+public class IndexRun extends ReferenceResource {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    public static final String TMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x4C534D49;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 4 + 8 + 8 + 8 + 8 + 4;
+    private static final int WRITE_BUFFER_SIZE = IndexEntry.ENTRY_SIZE * 4096;
+    /**
+     * Keeps a run, bloom bits included, below the 2G a file can be mapped at once
+     */
+    public static final int MAX_ENTRY_COUNT = 64 * 1024 * 1024;
+
+    private final File file;
+    private final long seq;
+    private final FileChannel fileChannel;
+    private final MappedByteBuffer mappedByteBuffer;
+    private final int level;
+    private final int entryCount;
+    private final long minTimestamp;
+    private final long maxTimestamp;
+    private final long minPhyOffset;
+    private final long maxPhyOffset;
+    private final long[] inputs;
+    private final BloomFilter bloomFilter;
+    private final BitsArray bloomBits;
+    private final int entriesPosition;
+
+    public IndexRun(final String fileName) throws IOException {
+        this.file = new File(fileName);
+        this.seq = Long.parseLong(this.file.getName());
+        RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "r");
+        this.fileChannel = randomAccessFile.getChannel();
+        try {
+            this.mappedByteBuffer = this.fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, this.fileChannel.size());
+            if (this.mappedByteBuffer.limit() < HEADER_SIZE || this.mappedByteBuffer.getInt(0) != MAGIC) {
+                throw new IOException("illegal index run " + fileName);
+            }
+            this.level = this.mappedByteBuffer.getInt(4);
+            this.entryCount = this.mappedByteBuffer.getInt(8);
+            this.bloomFilter = BloomFilter.createByFn(this.mappedByteBuffer.getInt(12), this.mappedByteBuffer.getInt(16));
+            this.minTimestamp = this.mappedByteBuffer.getLong(20);
+            this.maxTimestamp = this.mappedByteBuffer.getLong(28);
+            this.minPhyOffset = this.mappedByteBuffer.getLong(36);
+            this.maxPhyOffset = this.mappedByteBuffer.getLong(44);
+            this.inputs = new long[this.mappedByteBuffer.getInt(52)];
+            int pos = HEADER_SIZE;
+            for (int i = 0; i < this.inputs.length; i++, pos += 8) {
+                this.inputs[i] = this.mappedByteBuffer.getLong(pos);
+            }
+            byte[] bloomBytes = new byte[this.bloomFilter.getM() / Byte.SIZE];
+            ByteBuffer bloomBuffer = this.mappedByteBuffer.duplicate();
+            bloomBuffer.position(pos);
+            bloomBuffer.get(bloomBytes);
+            this.bloomBits = BitsArray.create(bloomBytes);
+            this.entriesPosition = pos + bloomBytes.length;
+            if (this.entriesPosition + (long) this.entryCount * IndexEntry.ENTRY_SIZE != this.mappedByteBuffer.limit()) {
+                throw new IOException("illegal index run size " + fileName);
+            }
+        } catch (IOException e) {
+            this.fileChannel.close();
+            throw e;
+        } catch (RuntimeException e) {
+            this.fileChannel.close();
+            throw new IOException("illegal index run " + fileName, e);
+        }
+    }
+
+    /**
+     * Write the sorted entries to a new run, entries older than purgePhyOffset or purgeTimestamp are left out.
+     *
+     * @param expectedNum upper bound of the number of entries, sizes the bloom filter
+     * @return the new run, null if no entry was left
+     */
+    public static IndexRun create(final String storePath, final long seq, final int level, final long[] inputs,
+        final Iterator<IndexEntry> entries, final int expectedNum, final int bloomErrorRate, final long purgePhyOffset,
+        final long purgeTimestamp) throws IOException {
+        if (expectedNum > MAX_ENTRY_COUNT) {
+            throw new IOException("index run of " + expectedNum + " entries exceeds " + MAX_ENTRY_COUNT);
+        }
+        MappedFile.ensureDirOK(storePath);
+        String fileName = storePath + File.separator + UtilAll.offset2FileName(seq);
+        File tmpFile = new File(fileName + TMP_SUFFIX);
+        try {
+            return create(fileName, tmpFile, level, inputs, entries, expectedNum, bloomErrorRate, purgePhyOffset,
+                purgeTimestamp);
+        } catch (IOException e) {
+            deleteQuietly(tmpFile);
+            throw e;
+        } catch (RuntimeException e) {
+            deleteQuietly(tmpFile);
+            throw e;
+        }
+    }
+
+    private static IndexRun create(final String fileName, final File tmpFile, final int level, final long[] inputs,
+        final Iterator<IndexEntry> entries, final int expectedNum, final int bloomErrorRate, final long purgePhyOffset,
+        final long purgeTimestamp) throws IOException {
+
+        BloomFilter bloomFilter = BloomFilter.createByFn(bloomErrorRate, Math.max(1, expectedNum));
+        BitsArray bloomBits = BitsArray.create(bloomFilter.getM());
+        int entriesPosition = HEADER_SIZE + inputs.length * 8 + bloomBits.byteLength();
+
+        int entryCount = 0;
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = 0;
+        long minPhyOffset = Long.MAX_VALUE;
+        long maxPhyOffset = 0;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(tmpFile, "rw");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            channel.truncate(0);
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            long position = entriesPosition;
+            while (entries.hasNext()) {
+                IndexEntry entry = entries.next();
+                if (entry.getPhyOffset() < purgePhyOffset || entry.getStoreTimestamp() < purgeTimestamp) {
+                    continue;
+                }
+                if (entryCount >= MAX_ENTRY_COUNT) {
+                    throw new IOException("index run " + fileName + " exceeds " + MAX_ENTRY_COUNT + " entries");
+                }
+                if (!buffer.hasRemaining()) {
+                    position += writeFully(channel, buffer, position);
+                }
+                buffer.putLong(entry.getKeyHash());
+                buffer.putLong(entry.getStoreTimestamp());
+                buffer.putLong(entry.getPhyOffset());
+                bloomFilter.hashTo(bitPositions(entry.getKeyHash(), bloomFilter), bloomBits);
+
+                entryCount++;
+                minTimestamp = Math.min(minTimestamp, entry.getStoreTimestamp());
+                maxTimestamp = Math.max(maxTimestamp, entry.getStoreTimestamp());
+                minPhyOffset = Math.min(minPhyOffset, entry.getPhyOffset());
+                maxPhyOffset = Math.max(maxPhyOffset, entry.getPhyOffset());
+            }
+            writeFully(channel, buffer, position);
+
+            ByteBuffer header = ByteBuffer.allocate(entriesPosition);
+            header.putInt(MAGIC);
+            header.putInt(level);
+            header.putInt(entryCount);
+            header.putInt(bloomErrorRate);
+            header.putInt(Math.max(1, expectedNum));
+            header.putLong(minTimestamp);
+            header.putLong(maxTimestamp);
+            header.putLong(minPhyOffset);
+            header.putLong(maxPhyOffset);
+            header.putInt(inputs.length);
+            for (long input : inputs) {
+                header.putLong(input);
+            }
+            header.put(bloomBits.bytes());
+            writeFully(channel, header, 0);
+            channel.force(true);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if (0 == entryCount) {
+            deleteQuietly(tmpFile);
+            return null;
+        }
+        // never rename a run into place that could not be opened again
+        long size = entriesPosition + (long) entryCount * IndexEntry.ENTRY_SIZE;
+        if (size > Integer.MAX_VALUE || tmpFile.length() != size) {
+            throw new IOException("illegal index run size " + tmpFile + ", " + tmpFile.length() + " != " + size);
+        }
+        File file = new File(fileName);
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("rename index run " + tmpFile + " failed");
+        }
+        try {
+            return new IndexRun(fileName);
+        } catch (IOException e) {
+            deleteQuietly(file);
+            throw e;
+        }
+    }
+
+    private static void deleteQuietly(final File file) {
+        if (file.exists() && !file.delete()) {
+            log.warn("delete index run {} failed", file);
+        }
+    }
+
+    private static int writeFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+        throws IOException {
+        buffer.flip();
+        int size = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + size - buffer.remaining());
+        }
+        buffer.clear();
+        return size;
+    }
+
+    /**
+     * Bloom filter bits of a key hash, derived from the two halves of the hash the way
+     * {@link BloomFilter#calcBitPositions(String)} derives them from the murmur hash of the key.
+     */
+    static int[] bitPositions(final long keyHash, final BloomFilter bloomFilter) {
+        int[] bitPositions = new int[bloomFilter.getK()];
+        int hash1 = (int) keyHash;
+        int hash2 = (int) (keyHash >>> 32);
+        for (int i = 1; i <= bitPositions.length; i++) {
+            int combinedHash = hash1 + (i * hash2);
+            if (combinedHash < 0) {
+                combinedHash = ~combinedHash;
+            }
+            bitPositions[i - 1] = combinedHash % bloomFilter.getM();
+        }
+        return bitPositions;
+    }
+
+    /**
+     * Add the latest entries of the key stored within [begin, end] to the result, newest first.
+     */
+    public void select(final long keyHash, final long begin, final long end, final int maxNum,
+        final List<IndexEntry> result) {
+        if (this.maxTimestamp < begin || this.minTimestamp > end
+            || !this.bloomFilter.isHit(bitPositions(keyHash, this.bloomFilter), this.bloomBits)) {
+            return;
+        }
+
+        // first entry after (keyHash, end), then walk back
+        int low = 0;
+        int high = this.entryCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int pos = this.entryPosition(mid);
+            if (IndexEntry.compare(this.mappedByteBuffer.getLong(pos), this.mappedByteBuffer.getLong(pos + 8), 0,
+                keyHash, end, 1) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        for (int i = low - 1, found = 0; i >= 0 && found < maxNum; i--, found++) {
+            IndexEntry entry = this.getEntry(i);
+            if (entry.getKeyHash() != keyHash || entry.getStoreTimestamp() < begin) {
+                break;
+            }
+            result.add(entry);
+        }
+    }
+
+    private int entryPosition(final int index) {
+        // the whole run is mapped, so an entry checked against the mapped size stays within an int
+        long pos = this.entriesPosition + (long) index * IndexEntry.ENTRY_SIZE;
+        return (int) pos;
+    }
+
+    public IndexEntry getEntry(final int index) {
+        int pos = this.entryPosition(index);
+        return new IndexEntry(this.mappedByteBuffer.getLong(pos), this.mappedByteBuffer.getLong(pos + 8),
+            this.mappedByteBuffer.getLong(pos + 16));
+    }
+
+    public Iterator<IndexEntry> iterator() {
+        return new Iterator<IndexEntry>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.next < IndexRun.this.entryCount;
+            }
+
+            @Override
+            public IndexEntry next() {
+                return IndexRun.this.getEntry(this.next++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public boolean cleanup(final long currentRef) {
+        if (this.isAvailable() || currentRef > 0) {
+            return false;
+        }
+
+        MappedFile.clean(this.mappedByteBuffer);
+        try {
+            this.fileChannel.close();
+        } catch (IOException e) {
+            log.warn("close index run " + this.file + " failed", e);
+        }
+        return true;
+    }
+
+    public boolean destroy(final long intervalForcibly) {
+        this.shutdown(intervalForcibly);
+        if (this.isCleanupOver()) {
+            boolean result = this.file.delete();
+            log.info("delete index run {} {}", this.file, result ? "OK" : "Failed");
+            return true;
+        }
+
+        log.warn("destroy index run[REF:{}] {} Failed", this.getRefCount(), this.file);
+        return false;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public long getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    public long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    public long getMinPhyOffset() {
+        return minPhyOffset;
+    }
+
+    public long getMaxPhyOffset() {
+        return maxPhyOffset;
+    }
+
+    public long[] getInputs() {
+        return inputs;
+    }
+}
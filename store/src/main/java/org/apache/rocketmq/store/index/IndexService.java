@@ -45,9 +45,12 @@ public class IndexService {
     private final String storePath;
     private final ArrayList<IndexFile> indexFileList = new ArrayList<IndexFile>();
     private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    // Messages of CommitLog shards are dispatched concurrently and their offsets are not in order
+    private final boolean sharded;
 
     public IndexService(final DefaultMessageStore store) {
         this.defaultMessageStore = store;
+        this.sharded = store.getCommitLog().getShards().size() > 1;
         this.hashSlotNum = store.getMessageStoreConfig().getMaxHashSlotNum();
         this.indexNum = store.getMessageStoreConfig().getMaxIndexNum();
         this.storePath =
@@ -120,6 +123,42 @@ public class IndexService {
         }
     }
 
+    /**
+     * Offsets of a sharded CommitLog are not in order, delete the index files older than the oldest message instead
+     */
+    public void deleteExpiredFileByTime(long timestamp) {
+        Object[] files = null;
+        try {
+            this.readWriteLock.readLock().lock();
+            if (this.indexFileList.isEmpty()) {
+                return;
+            }
+
+            long endTimestamp = this.indexFileList.get(0).getEndTimestamp();
+            if (endTimestamp < timestamp) {
+                files = this.indexFileList.toArray();
+            }
+        } catch (Exception e) {
+            log.error("destroy exception", e);
+        } finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        if (files != null) {
+            List<IndexFile> fileList = new ArrayList<IndexFile>();
+            for (int i = 0; i < (files.length - 1); i++) {
+                IndexFile f = (IndexFile) files[i];
+                if (f.getEndTimestamp() < timestamp) {
+                    fileList.add(f);
+                } else {
+                    break;
+                }
+            }
+
+            this.deleteExpiredFile(fileList);
+        }
+    }
+
     private void deleteExpiredFile(List<IndexFile> files) {
         if (!files.isEmpty()) {
             try {
@@ -199,13 +238,23 @@ public class IndexService {
     }
 
     public void buildIndex(DispatchRequest req) {
+        if (this.sharded) {
+            synchronized (this) {
+                this.doBuildIndex(req);
+            }
+        } else {
+            this.doBuildIndex(req);
+        }
+    }
+
+    private void doBuildIndex(DispatchRequest req) {
         IndexFile indexFile = retryGetAndCreateIndexFile();
         if (indexFile != null) {
             long endPhyOffset = indexFile.getEndPhyOffset();
             DispatchRequest msg = req;
             String topic = msg.getTopic();
             String keys = msg.getKeys();
-            if (msg.getCommitLogOffset() < endPhyOffset) {
+            if (!this.sharded && msg.getCommitLogOffset() < endPhyOffset) {
                 return;
             }
 
@@ -0,0 +1,659 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.sysflag.MessageSysFlag;
+import org.apache.rocketmq.store.CommitLog;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.DispatchRequest;
+import org.apache.rocketmq.store.SelectMappedBufferResult;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Message key index kept as a log structured merge tree instead of hash chains.
+ * <p>
+ * Keys are added to a sorted in-memory memtable. A full or old enough memtable is frozen and written by this service
+ * to an immutable {@link IndexRun}, runs of the same level are merged into one run of the next level once there are
+ * lsmIndexCompactionFanout of them. A lookup binary searches each run whose bloom filter may hold the key, and keys
+ * are compared by a 64 bit hash so that few candidates are read from the CommitLog in vain.
+ * </p>
+ */
+public class LsmIndexService extends ServiceThread {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    private static final long CHECK_INTERVAL = 1000;
+    private static final int MAX_SELECT_TIMES = 3;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final MessageStoreConfig messageStoreConfig;
+    private final String storePath;
+    // Messages of CommitLog shards are dispatched concurrently and their offsets are not in order
+    private final boolean sharded;
+
+    // Guards switching the memtable and changing the run list, readers take the volatile lists as they are
+    private final Object stateLock = new Object();
+    private volatile Memtable memtable = new Memtable();
+    private volatile List<Memtable> immutableMemtables = Collections.emptyList();
+    private volatile List<IndexRun> runs = Collections.emptyList();
+    private final List<IndexRun> runsToDestroy = new ArrayList<IndexRun>();
+    private final AtomicLong nextSeq = new AtomicLong(0);
+
+    // Max CommitLog offset of the flushed runs, entries still in memtables are lost with the process
+    private volatile long maxIndexedPhyOffset = 0;
+    // Offset of the first message dispatched since load, recover() indexes the gap up to it
+    private volatile long firstDispatchedPhyOffset = -1;
+    private volatile long lastUpdateTimestamp = 0;
+    private volatile long lastUpdatePhyOffset = 0;
+    private volatile long purgePhyOffset = 0;
+    private volatile long purgeTimestamp = 0;
+
+    public LsmIndexService(final DefaultMessageStore store) {
+        this.defaultMessageStore = store;
+        this.messageStoreConfig = store.getMessageStoreConfig();
+        this.sharded = store.getCommitLog().getShards().size() > 1;
+        this.storePath = StorePathConfigHelper.getStorePathLsmIndex(this.messageStoreConfig.getStorePathRootDir());
+    }
+
+    public boolean load() {
+        File[] files = new File(this.storePath).listFiles();
+        if (files == null) {
+            return true;
+        }
+
+        // ascending order
+        Arrays.sort(files);
+        List<IndexRun> loaded = new ArrayList<IndexRun>();
+        for (File file : files) {
+            if (file.getName().endsWith(IndexRun.TMP_SUFFIX)) {
+                log.info("delete unfinished index run {} {}", file, file.delete() ? "OK" : "Failed");
+                continue;
+            }
+
+            try {
+                loaded.add(new IndexRun(file.getPath()));
+            } catch (IOException e) {
+                // the runs it was merged from, if any, are not dropped, so only its own entries are lost
+                log.error("skip illegal index run {}", file, e);
+                this.nextSeq.set(Math.max(this.nextSeq.get(), Long.parseLong(file.getName()) + 1));
+            } catch (NumberFormatException e) {
+                log.error("load index run {} error", file, e);
+            }
+        }
+
+        // inputs of a compaction which were written over but not deleted
+        Set<Long> replaced = new HashSet<Long>();
+        for (IndexRun run : loaded) {
+            for (long input : run.getInputs()) {
+                replaced.add(input);
+            }
+        }
+
+        List<IndexRun> live = new ArrayList<IndexRun>();
+        for (IndexRun run : loaded) {
+            this.nextSeq.set(Math.max(this.nextSeq.get(), run.getSeq() + 1));
+            if (replaced.contains(run.getSeq())) {
+                run.destroy(0);
+                continue;
+            }
+
+            live.add(run);
+            this.maxIndexedPhyOffset = Math.max(this.maxIndexedPhyOffset, run.getMaxPhyOffset());
+            if (run.getMaxTimestamp() > this.lastUpdateTimestamp) {
+                this.lastUpdateTimestamp = run.getMaxTimestamp();
+                this.lastUpdatePhyOffset = run.getMaxPhyOffset();
+            }
+            log.info("load index run OK, seq {} level {} entries {}", run.getSeq(), run.getLevel(), run.getEntryCount());
+        }
+        this.runs = Collections.unmodifiableList(live);
+
+        return true;
+    }
+
+    /**
+     * Index the messages between the last flushed run and the first message dispatched by the CommitLog recovery,
+     * they were only in a memtable when the broker went down. Called once the CommitLog is recovered.<br/>
+     * Offsets of a sharded CommitLog are not in order, there the index is rebuilt only with messageIndexSafe.
+     */
+    public void recover() {
+        if (this.sharded) {
+            return;
+        }
+
+        final CommitLog commitLog = this.defaultMessageStore.getCommitLog();
+        long offset = Math.max(this.maxIndexedPhyOffset, commitLog.getMinOffset());
+        final long endOffset = this.firstDispatchedPhyOffset >= 0
+            ? Math.min(this.firstDispatchedPhyOffset, commitLog.getMaxOffset()) : commitLog.getMaxOffset();
+        final long beginOffset = offset;
+        int count = 0;
+        while (offset < endOffset) {
+            SelectMappedBufferResult result = commitLog.getData(offset);
+            if (null == result) {
+                break;
+            }
+
+            try {
+                ByteBuffer byteBuffer = result.getByteBuffer();
+                long fileOffset = offset;
+                for (int readSize = 0; readSize < result.getSize() && offset < endOffset; ) {
+                    DispatchRequest request = commitLog.checkMessageAndReturnSize(byteBuffer, false, false);
+                    int size = request.getMsgSize();
+                    if (!request.isSuccess() || size < 0) {
+                        log.warn("rebuild index stopped at illegal message, offset {}", offset);
+                        return;
+                    }
+                    if (size == 0) {
+                        offset = commitLog.rollNextFile(fileOffset);
+                        break;
+                    }
+                    if ((request.getSysFlag() & MessageSysFlag.FILLER_FLAG) == 0) {
+                        this.buildIndex(request);
+                        count++;
+                    }
+                    offset += size;
+                    readSize += size;
+                }
+            } finally {
+                result.release();
+            }
+        }
+        log.info("rebuild index from {} to {}, {} messages", beginOffset, offset, count);
+    }
+
+    public void buildIndex(final DispatchRequest req) {
+        if (this.firstDispatchedPhyOffset < 0) {
+            this.firstDispatchedPhyOffset = req.getCommitLogOffset();
+        }
+        // already in a run, the tail of the CommitLog is dispatched again after an abnormal exit
+        if (!this.sharded && req.getCommitLogOffset() < this.maxIndexedPhyOffset) {
+            return;
+        }
+
+        final int tranType = MessageSysFlag.getTransactionValue(req.getSysFlag());
+        if (tranType == MessageSysFlag.TRANSACTION_ROLLBACK_TYPE) {
+            return;
+        }
+
+        List<String> keys = new ArrayList<String>(4);
+        if (req.getUniqKey() != null) {
+            keys.add(req.getUniqKey());
+        }
+        if (req.getKeys() != null && req.getKeys().length() > 0) {
+            for (String key : req.getKeys().split(MessageConst.KEY_SEPARATOR)) {
+                if (key.length() > 0) {
+                    keys.add(key);
+                }
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        boolean frozen = false;
+        synchronized (this.stateLock) {
+            Memtable current = this.memtable;
+            for (String key : keys) {
+                current.put(new IndexEntry(hash(buildKey(req.getTopic(), key)), req.getStoreTimestamp(),
+                    req.getCommitLogOffset()));
+            }
+            this.lastUpdateTimestamp = req.getStoreTimestamp();
+            this.lastUpdatePhyOffset = req.getCommitLogOffset();
+
+            if (current.getSize() >= Math.min(this.messageStoreConfig.getLsmIndexMemtableSize(), IndexRun.MAX_ENTRY_COUNT)) {
+                this.freezeMemtable();
+                frozen = true;
+            }
+        }
+
+        if (frozen) {
+            this.wakeup();
+        }
+    }
+
+    public QueryOffsetResult queryOffset(String topic, String key, int maxNum, long begin, long end) {
+        maxNum = Math.min(maxNum, this.messageStoreConfig.getMaxMsgsNumBatch());
+        final long keyHash = hash(buildKey(topic, key));
+
+        List<IndexEntry> found = new ArrayList<IndexEntry>();
+        for (int times = 0; times < MAX_SELECT_TIMES; times++) {
+            found.clear();
+            // same order the writers publish in: memtable, then frozen memtables, then runs
+            this.memtable.select(keyHash, begin, end, maxNum, found);
+            for (Memtable frozen : this.immutableMemtables) {
+                frozen.select(keyHash, begin, end, maxNum, found);
+            }
+
+            List<IndexRun> current = this.runs;
+            List<IndexRun> held = new ArrayList<IndexRun>(current.size());
+            try {
+                for (IndexRun run : current) {
+                    if (!run.hold()) {
+                        break;
+                    }
+                    held.add(run);
+                }
+                if (held.size() == current.size()) {
+                    for (IndexRun run : held) {
+                        run.select(keyHash, begin, end, maxNum, found);
+                    }
+                    break;
+                }
+            } finally {
+                for (IndexRun run : held) {
+                    run.release();
+                }
+            }
+            // a compaction replaced some of the runs, look again
+        }
+
+        Collections.sort(found, new Comparator<IndexEntry>() {
+            @Override
+            public int compare(IndexEntry o1, IndexEntry o2) {
+                return -IndexEntry.compare(0, o1.getStoreTimestamp(), o1.getPhyOffset(),
+                    0, o2.getStoreTimestamp(), o2.getPhyOffset());
+            }
+        });
+        Set<Long> phyOffsets = new LinkedHashSet<Long>();
+        for (int i = 0; i < found.size() && phyOffsets.size() < maxNum; i++) {
+            phyOffsets.add(found.get(i).getPhyOffset());
+        }
+
+        return new QueryOffsetResult(new ArrayList<Long>(phyOffsets), this.lastUpdateTimestamp, this.lastUpdatePhyOffset);
+    }
+
+    public void deleteExpiredFile(long offset) {
+        this.purgePhyOffset = offset;
+        List<IndexRun> expired = new ArrayList<IndexRun>();
+        synchronized (this.stateLock) {
+            List<IndexRun> live = new ArrayList<IndexRun>(this.runs.size());
+            for (IndexRun run : this.runs) {
+                if (run.getMaxPhyOffset() < offset) {
+                    expired.add(run);
+                } else {
+                    live.add(run);
+                }
+            }
+            this.replaceRuns(live, expired);
+        }
+        this.destroyRuns();
+    }
+
+    /**
+     * Offsets of a sharded CommitLog are not in order, delete the runs older than the oldest message instead
+     */
+    public void deleteExpiredFileByTime(long timestamp) {
+        this.purgeTimestamp = timestamp;
+        List<IndexRun> expired = new ArrayList<IndexRun>();
+        synchronized (this.stateLock) {
+            List<IndexRun> live = new ArrayList<IndexRun>(this.runs.size());
+            for (IndexRun run : this.runs) {
+                if (run.getMaxTimestamp() < timestamp) {
+                    expired.add(run);
+                } else {
+                    live.add(run);
+                }
+            }
+            this.replaceRuns(live, expired);
+        }
+        this.destroyRuns();
+    }
+
+    public void destroy() {
+        synchronized (this.stateLock) {
+            this.replaceRuns(Collections.<IndexRun>emptyList(), this.runs);
+            this.memtable = new Memtable();
+            this.immutableMemtables = Collections.emptyList();
+        }
+        this.destroyRuns();
+    }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        int memtableEntries = this.memtable.getSize();
+        for (Memtable frozen : this.immutableMemtables) {
+            memtableEntries += frozen.getSize();
+        }
+        stats.put("lsmIndexMemtableEntries", String.valueOf(memtableEntries));
+        stats.put("lsmIndexRunNum", String.valueOf(this.runs.size()));
+    }
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStopped()) {
+            try {
+                this.waitForRunning(CHECK_INTERVAL);
+                this.flushMemtables(false);
+                this.compact();
+                this.destroyRuns();
+            } catch (Throwable e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+    /**
+     * Called once messages are no longer dispatched, so that no entry is left in memory
+     */
+    @Override
+    public void shutdown() {
+        super.shutdown();
+
+        try {
+            this.flushMemtables(true);
+        } catch (Throwable e) {
+            log.error("flush index memtables error, the index will be rebuilt from the CommitLog on the next start", e);
+        }
+        this.destroyRuns();
+        for (IndexRun run : this.runs) {
+            run.shutdown(0);
+        }
+    }
+
+    @Override
+    public String getServiceName() {
+        return LsmIndexService.class.getSimpleName();
+    }
+
+    private void freezeMemtable() {
+        List<Memtable> frozen = new ArrayList<Memtable>(this.immutableMemtables);
+        frozen.add(this.memtable);
+        this.immutableMemtables = Collections.unmodifiableList(frozen);
+        this.memtable = new Memtable();
+    }
+
+    private void flushMemtables(final boolean force) throws IOException {
+        Memtable current = this.memtable;
+        if (current.getSize() > 0
+            && (force || System.currentTimeMillis() - current.getCreateTimestamp() >= this.messageStoreConfig.getLsmIndexFlushInterval())) {
+            synchronized (this.stateLock) {
+                if (this.memtable == current) {
+                    this.freezeMemtable();
+                }
+            }
+        }
+
+        for (Memtable frozen : this.immutableMemtables) {
+            IndexRun run = IndexRun.create(this.storePath, this.nextSeq.getAndIncrement(), 0, new long[0],
+                frozen.iterator(), frozen.getSize(), this.messageStoreConfig.getLsmIndexBloomErrorRate(), 0, 0);
+
+            synchronized (this.stateLock) {
+                if (run != null) {
+                    List<IndexRun> live = new ArrayList<IndexRun>(this.runs);
+                    live.add(run);
+                    this.replaceRuns(live, Collections.<IndexRun>emptyList());
+                    this.maxIndexedPhyOffset = Math.max(this.maxIndexedPhyOffset, run.getMaxPhyOffset());
+                }
+                List<Memtable> remaining = new ArrayList<Memtable>(this.immutableMemtables);
+                remaining.remove(frozen);
+                this.immutableMemtables = Collections.unmodifiableList(remaining);
+            }
+
+            if (frozen.getMaxTimestamp() > this.defaultMessageStore.getStoreCheckpoint().getIndexMsgTimestamp()) {
+                this.defaultMessageStore.getStoreCheckpoint().setIndexMsgTimestamp(frozen.getMaxTimestamp());
+                this.defaultMessageStore.getStoreCheckpoint().flush();
+            }
+        }
+    }
+
+    /**
+     * Merge the oldest runs of the first level which has enough of them, dropping the entries of deleted messages.
+     * Runs are not merged beyond {@link IndexRun#MAX_ENTRY_COUNT} entries.
+     */
+    private void compact() throws IOException {
+        final int fanout = Math.max(2, this.messageStoreConfig.getLsmIndexCompactionFanout());
+        Map<Integer, List<IndexRun>> levels = new TreeMap<Integer, List<IndexRun>>();
+        for (IndexRun run : this.runs) {
+            List<IndexRun> level = levels.get(run.getLevel());
+            if (null == level) {
+                level = new ArrayList<IndexRun>();
+                levels.put(run.getLevel(), level);
+            }
+            level.add(run);
+        }
+
+        for (Map.Entry<Integer, List<IndexRun>> entry : levels.entrySet()) {
+            if (entry.getValue().size() < fanout) {
+                continue;
+            }
+
+            List<IndexRun> inputs = entry.getValue().subList(0, fanout);
+            long expectedNum = 0;
+            for (IndexRun input : inputs) {
+                expectedNum += input.getEntryCount();
+            }
+            // runs this large are the last level, they are dropped by expiry instead
+            if (expectedNum > IndexRun.MAX_ENTRY_COUNT) {
+                continue;
+            }
+
+            long[] inputSeqs = new long[inputs.size()];
+            List<Iterator<IndexEntry>> iterators = new ArrayList<Iterator<IndexEntry>>(inputs.size());
+            for (int i = 0; i < inputs.size(); i++) {
+                inputSeqs[i] = inputs.get(i).getSeq();
+                iterators.add(inputs.get(i).iterator());
+            }
+
+            long beginTime = System.currentTimeMillis();
+            IndexRun merged = IndexRun.create(this.storePath, this.nextSeq.getAndIncrement(), entry.getKey() + 1,
+                inputSeqs, new MergeIterator(iterators), (int) expectedNum, this.messageStoreConfig.getLsmIndexBloomErrorRate(),
+                this.purgePhyOffset, this.purgeTimestamp);
+
+            synchronized (this.stateLock) {
+                List<IndexRun> live = new ArrayList<IndexRun>(this.runs.size());
+                for (IndexRun run : this.runs) {
+                    if (!inputs.contains(run)) {
+                        live.add(run);
+                    }
+                }
+                if (merged != null) {
+                    live.add(merged);
+                }
+                this.replaceRuns(live, inputs);
+            }
+            log.info("compact {} index runs of level {} into {} entries, eclipse time(ms) {}", inputs.size(),
+                entry.getKey(), merged != null ? merged.getEntryCount() : 0, System.currentTimeMillis() - beginTime);
+            return;
+        }
+    }
+
+    // called with stateLock held
+    private void replaceRuns(final List<IndexRun> live, final List<IndexRun> removed) {
+        this.runs = Collections.unmodifiableList(new ArrayList<IndexRun>(live));
+        this.runsToDestroy.addAll(removed);
+    }
+
+    private void destroyRuns() {
+        synchronized (this.stateLock) {
+            for (Iterator<IndexRun> it = this.runsToDestroy.iterator(); it.hasNext(); ) {
+                if (it.next().destroy(1000 * 3)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static String buildKey(final String topic, final String key) {
+        return topic + "#" + key;
+    }
+
+    /**
+     * 64 bit FNV-1a of the key, finished with the murmur3 mix so that both halves used by the bloom filter are
+     * well spread.
+     */
+    static long hash(final String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(MessageDecoder.CHARSET_UTF8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    long getMaxIndexedPhyOffset() {
+        return maxIndexedPhyOffset;
+    }
+
+    List<IndexRun> getRuns() {
+        return runs;
+    }
+
+    static class Memtable {
+        private final ConcurrentSkipListSet<IndexEntry> entries = new ConcurrentSkipListSet<IndexEntry>();
+        private final long createTimestamp = System.currentTimeMillis();
+        private volatile int size = 0;
+        private volatile long maxTimestamp = 0;
+
+        // called with stateLock held
+        void put(final IndexEntry entry) {
+            if (this.entries.add(entry)) {
+                this.size++;
+                this.maxTimestamp = Math.max(this.maxTimestamp, entry.getStoreTimestamp());
+            }
+        }
+
+        void select(final long keyHash, final long begin, final long end, final int maxNum,
+            final List<IndexEntry> result) {
+            int found = 0;
+            for (IndexEntry entry : this.entries.subSet(new IndexEntry(keyHash, begin, Long.MIN_VALUE), true,
+                new IndexEntry(keyHash, end, Long.MAX_VALUE), true).descendingSet()) {
+                if (found++ >= maxNum) {
+                    break;
+                }
+                result.add(entry);
+            }
+        }
+
+        Iterator<IndexEntry> iterator() {
+            return this.entries.iterator();
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        long getCreateTimestamp() {
+            return createTimestamp;
+        }
+
+        long getMaxTimestamp() {
+            return maxTimestamp;
+        }
+    }
+
+    /**
+     * Merges sorted iterators into one, an entry found in several of them is returned once.
+     */
+    static class MergeIterator implements Iterator<IndexEntry> {
+        private final PriorityQueue<Cursor> cursors;
+        private IndexEntry last;
+
+        MergeIterator(final List<Iterator<IndexEntry>> iterators) {
+            this.cursors = new PriorityQueue<Cursor>(Math.max(1, iterators.size()));
+            for (Iterator<IndexEntry> iterator : iterators) {
+                if (iterator.hasNext()) {
+                    this.cursors.add(new Cursor(iterator));
+                }
+            }
+            this.skipDuplicates();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !this.cursors.isEmpty();
+        }
+
+        @Override
+        public IndexEntry next() {
+            Cursor cursor = this.cursors.poll();
+            this.last = cursor.head;
+            if (cursor.advance()) {
+                this.cursors.add(cursor);
+            }
+            this.skipDuplicates();
+            return this.last;
+        }
+
+        private void skipDuplicates() {
+            while (this.last != null && !this.cursors.isEmpty() && this.cursors.peek().head.equals(this.last)) {
+                Cursor cursor = this.cursors.poll();
+                if (cursor.advance()) {
+                    this.cursors.add(cursor);
+                }
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private static class Cursor implements Comparable<Cursor> {
+            private final Iterator<IndexEntry> iterator;
+            private IndexEntry head;
+
+            Cursor(final Iterator<IndexEntry> iterator) {
+                this.iterator = iterator;
+                this.head = iterator.next();
+            }
+
+            boolean advance() {
+                if (this.iterator.hasNext()) {
+                    this.head = this.iterator.next();
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public int compareTo(final Cursor o) {
+                return this.head.compareTo(o.head);
+            }
+        }
+    }
+}
@@ -16,8 +16,12 @@
  */
 package org.apache.rocketmq.store.schedule;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Timer;
@@ -26,12 +30,15 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import org.apache.rocketmq.common.ConfigManager;
 import org.apache.rocketmq.common.TopicFilterType;
+import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.common.message.MessageAccessor;
 import org.apache.rocketmq.common.message.MessageConst;
 import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageExtBatch;
 import org.apache.rocketmq.common.running.RunningStats;
+import org.apache.rocketmq.common.sysflag.MessageSysFlag;
 import org.apache.rocketmq.store.ConsumeQueue;
 import org.apache.rocketmq.store.ConsumeQueueExt;
 import org.apache.rocketmq.store.DefaultMessageStore;
@@ -40,6 +47,7 @@ import org.apache.rocketmq.store.PutMessageResult;
 import org.apache.rocketmq.store.PutMessageStatus;
 import org.apache.rocketmq.store.SelectMappedBufferResult;
 import org.apache.rocketmq.store.config.StorePathConfigHelper;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,6 +58,8 @@ public class ScheduleMessageService extends ConfigManager {
     private static final long FIRST_DELAY_TIME = 1000L;
     private static final long DELAY_FOR_A_WHILE = 100L;
     private static final long DELAY_FOR_A_PERIOD = 10000L;
+    // Due messages closer than this in the CommitLog are read with one lookup
+    private static final int LOOKUP_REGION_SIZE = 1024 * 1024;
 
     private final ConcurrentMap<Integer /* level */, Long/* delay timeMillis */> delayLevelTable =
         new ConcurrentHashMap<Integer, Long>(32);
@@ -59,6 +69,10 @@ public class ScheduleMessageService extends ConfigManager {
 
     private final Timer timer = new Timer("ScheduleMessageTimerThread", true);
 
+    // One timer per delay level, so that a level with a backlog does not hold up the others
+    private final ConcurrentMap<Integer /* level */, Timer> deliverTimerTable =
+        new ConcurrentHashMap<Integer, Timer>(32);
+
     private final DefaultMessageStore defaultMessageStore;
 
     private int maxDelayLevel;
@@ -90,6 +104,23 @@ public class ScheduleMessageService extends ConfigManager {
 
     private void updateOffset(int delayLevel, long offset) {
         this.offsetTable.put(delayLevel, offset);
+
+        BrokerStatsManager brokerStatsManager = this.defaultMessageStore.getBrokerStatsManager();
+        if (brokerStatsManager != null) {
+            long maxOffset = this.defaultMessageStore.getMaxOffsetInQueue(SCHEDULE_TOPIC, delayLevel2QueueId(delayLevel));
+            brokerStatsManager.recordScheduleLagNums(delayLevel, Math.max(0, maxOffset - offset));
+        }
+    }
+
+    private void recordLagTime(int delayLevel, long lagTime) {
+        BrokerStatsManager brokerStatsManager = this.defaultMessageStore.getBrokerStatsManager();
+        if (brokerStatsManager != null) {
+            brokerStatsManager.recordScheduleLagTime(delayLevel, Math.max(0, lagTime));
+        }
+    }
+
+    private Timer deliverTimer(final int delayLevel) {
+        return this.deliverTimerTable.get(delayLevel);
     }
 
     public long computeDeliverTimestamp(final int delayLevel, final long storeTimestamp) {
@@ -112,7 +143,9 @@ public class ScheduleMessageService extends ConfigManager {
             }
 
             if (timeDelay != null) {
-                this.timer.schedule(new DeliverDelayedMessageTimerTask(level, offset), FIRST_DELAY_TIME);
+                Timer deliverTimer = new Timer("ScheduleMessageTimerThread_" + level, true);
+                this.deliverTimerTable.put(level, deliverTimer);
+                deliverTimer.schedule(new DeliverDelayedMessageTimerTask(level, offset), FIRST_DELAY_TIME);
             }
         }
 
@@ -131,6 +164,9 @@ public class ScheduleMessageService extends ConfigManager {
 
     public void shutdown() {
         this.timer.cancel();
+        for (Timer deliverTimer : this.deliverTimerTable.values()) {
+            deliverTimer.cancel();
+        }
     }
 
     public int getMaxDelayLevel() {
@@ -202,6 +238,146 @@ public class ScheduleMessageService extends ConfigManager {
         return true;
     }
 
+    /**
+     * Look up the due messages, reading each run of them that lies close together in one CommitLog file with a
+     * single lookup.
+     *
+     * @return the messages in the order given, null for the ones that could not be read
+     */
+    private List<MessageExt> lookMessagesByOffset(final List<DueMessage> dueMessages) {
+        List<MessageExt> msgExts = new ArrayList<MessageExt>(dueMessages.size());
+        int begin = 0;
+        while (begin < dueMessages.size()) {
+            long regionStart = dueMessages.get(begin).getOffsetPy();
+            long regionEnd = regionStart + dueMessages.get(begin).getSizePy();
+            int end = begin + 1;
+            while (end < dueMessages.size()) {
+                DueMessage next = dueMessages.get(end);
+                if (next.getOffsetPy() < regionStart || next.getOffsetPy() + next.getSizePy() - regionStart > LOOKUP_REGION_SIZE) {
+                    break;
+                }
+                regionEnd = Math.max(regionEnd, next.getOffsetPy() + next.getSizePy());
+                end++;
+            }
+
+            SelectMappedBufferResult region = end - begin > 1
+                ? this.defaultMessageStore.getCommitLog().getMessage(regionStart, (int) (regionEnd - regionStart)) : null;
+            if (region != null) {
+                try {
+                    for (int k = begin; k < end; k++) {
+                        DueMessage dueMessage = dueMessages.get(k);
+                        ByteBuffer slice = region.getByteBuffer().duplicate();
+                        int pos = (int) (dueMessage.getOffsetPy() - regionStart);
+                        slice.limit(pos + dueMessage.getSizePy());
+                        slice.position(pos);
+                        msgExts.add(DefaultMessageStore.isFiller(slice) ? null : MessageDecoder.decode(slice.slice(), true, false));
+                    }
+                } finally {
+                    region.release();
+                }
+            } else {
+                // a single message, or the run crosses into the next file
+                for (int k = begin; k < end; k++) {
+                    DueMessage dueMessage = dueMessages.get(k);
+                    msgExts.add(this.defaultMessageStore.lookMessageByOffset(dueMessage.getOffsetPy(), dueMessage.getSizePy()));
+                }
+            }
+            begin = end;
+        }
+        return msgExts;
+    }
+
+    /**
+     * Put back messages of the same queue, with one putMessages call when they can go in a batch.
+     */
+    private PutMessageResult putMessages(final List<MessageExtBrokerInner> msgInners) {
+        MessageExtBrokerInner first = msgInners.get(0);
+        if (msgInners.size() == 1) {
+            return this.defaultMessageStore.putMessage(first);
+        }
+
+        List<byte[]> records = new ArrayList<byte[]>(msgInners.size());
+        int totalSize = 0;
+        for (MessageExtBrokerInner msgInner : msgInners) {
+            if (MessageSysFlag.getTransactionValue(msgInner.getSysFlag()) != MessageSysFlag.TRANSACTION_NOT_TYPE) {
+                records = null;
+                break;
+            }
+            msgInner.setBodyCRC(UtilAll.crc32(msgInner.getBody()));
+            // store the same properties a single put would, which still carry the delay level
+            Map<String, String> properties = msgInner.getProperties();
+            MessageAccessor.setProperties(msgInner, MessageDecoder.string2messageProperties(msgInner.getPropertiesString()));
+            try {
+                byte[] record = MessageDecoder.encode(msgInner, false);
+                records.add(record);
+                totalSize += record.length;
+            } catch (Exception e) {
+                log.warn("ScheduleMessageService, encode message for batch failed, put them one by one. topic=" + first.getTopic(), e);
+                records = null;
+                break;
+            } finally {
+                MessageAccessor.setProperties(msgInner, properties);
+            }
+        }
+
+        if (null == records || totalSize > this.defaultMessageStore.getMessageStoreConfig().getMaxMessageSize()) {
+            PutMessageResult result = null;
+            for (MessageExtBrokerInner msgInner : msgInners) {
+                result = this.defaultMessageStore.putMessage(msgInner);
+                if (null == result || result.getPutMessageStatus() != PutMessageStatus.PUT_OK) {
+                    return result;
+                }
+            }
+            return result;
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(totalSize);
+        for (byte[] record : records) {
+            body.put(record);
+        }
+
+        MessageExtBatch messageExtBatch = new MessageExtBatch();
+        messageExtBatch.setTopic(first.getTopic());
+        messageExtBatch.setQueueId(first.getQueueId());
+        messageExtBatch.setBody(body.array());
+        messageExtBatch.setBornTimestamp(first.getBornTimestamp());
+        messageExtBatch.setBornHost(first.getBornHost());
+        messageExtBatch.setStoreHost(first.getStoreHost());
+        messageExtBatch.setWaitStoreMsgOK(false);
+        messageExtBatch.setCompleteRecords(true);
+        return this.defaultMessageStore.putMessages(messageExtBatch);
+    }
+
+    static class DueMessage {
+        private final long queueOffset;
+        private final long offsetPy;
+        private final int sizePy;
+        private final long deliverTimestamp;
+
+        DueMessage(final long queueOffset, final long offsetPy, final int sizePy, final long deliverTimestamp) {
+            this.queueOffset = queueOffset;
+            this.offsetPy = offsetPy;
+            this.sizePy = sizePy;
+            this.deliverTimestamp = deliverTimestamp;
+        }
+
+        public long getQueueOffset() {
+            return queueOffset;
+        }
+
+        public long getOffsetPy() {
+            return offsetPy;
+        }
+
+        public int getSizePy() {
+            return sizePy;
+        }
+
+        public long getDeliverTimestamp() {
+            return deliverTimestamp;
+        }
+    }
+
     class DeliverDelayedMessageTimerTask extends TimerTask {
         private final int delayLevel;
         private final long offset;
@@ -218,7 +394,7 @@ public class ScheduleMessageService extends ConfigManager {
             } catch (Exception e) {
                 // XXX: warn and notify me
                 log.error("ScheduleMessageService, executeOnTimeup exception", e);
-                ScheduleMessageService.this.timer.schedule(new DeliverDelayedMessageTimerTask(
+                ScheduleMessageService.this.deliverTimer(this.delayLevel).schedule(new DeliverDelayedMessageTimerTask(
                     this.delayLevel, this.offset), DELAY_FOR_A_PERIOD);
             }
         }
@@ -252,6 +428,8 @@ public class ScheduleMessageService extends ConfigManager {
                         long nextOffset = offset;
                         int i = 0;
                         ConsumeQueueExt.CqExtUnit cqExtUnit = new ConsumeQueueExt.CqExtUnit();
+                        final int deliverBatchSize = ScheduleMessageService.this.defaultMessageStore.getMessageStoreConfig().getScheduleDeliverBatchSize();
+                        List<DueMessage> dueMessages = new ArrayList<DueMessage>(deliverBatchSize);
                         for (; i < bufferCQ.getSize(); i += ConsumeQueue.CQ_STORE_UNIT_SIZE) {
                             long offsetPy = bufferCQ.getByteBuffer().getLong();
                             int sizePy = bufferCQ.getByteBuffer().getInt();
@@ -277,47 +455,20 @@ public class ScheduleMessageService extends ConfigManager {
                             long countdown = deliverTimestamp - now;
 
                             if (countdown <= 0) {
-                                MessageExt msgExt =
-                                    ScheduleMessageService.this.defaultMessageStore.lookMessageByOffset(
-                                        offsetPy, sizePy);
-
-                                if (msgExt != null) {
-                                    try {
-                                        MessageExtBrokerInner msgInner = this.messageTimeup(msgExt);
-                                        PutMessageResult putMessageResult =
-                                            ScheduleMessageService.this.defaultMessageStore
-                                                .putMessage(msgInner);
-
-                                        if (putMessageResult != null
-                                            && putMessageResult.getPutMessageStatus() == PutMessageStatus.PUT_OK) {
-                                            continue;
-                                        } else {
-                                            // XXX: warn and notify me
-                                            log.error(
-                                                "ScheduleMessageService, a message time up, but reput it failed, topic: {} msgId {}",
-                                                msgExt.getTopic(), msgExt.getMsgId());
-                                            ScheduleMessageService.this.timer.schedule(
-                                                new DeliverDelayedMessageTimerTask(this.delayLevel,
-                                                    nextOffset), DELAY_FOR_A_PERIOD);
-                                            ScheduleMessageService.this.updateOffset(this.delayLevel,
-                                                nextOffset);
-                                            return;
-                                        }
-                                    } catch (Exception e) {
-                                        /*
-                                         * XXX: warn and notify me
-
-
-
-                                         */
-                                        log.error(
-                                            "ScheduleMessageService, messageTimeup execute error, drop it. msgExt="
-                                                + msgExt + ", nextOffset=" + nextOffset + ",offsetPy="
-                                                + offsetPy + ",sizePy=" + sizePy, e);
-                                    }
+                                dueMessages.add(new DueMessage(nextOffset, offsetPy, sizePy, deliverTimestamp));
+                                if (dueMessages.size() < deliverBatchSize) {
+                                    continue;
+                                }
+                                if (!this.deliverOrRetry(dueMessages)) {
+                                    return;
                                 }
+                                dueMessages.clear();
                             } else {
-                                ScheduleMessageService.this.timer.schedule(
+                                if (!this.deliverOrRetry(dueMessages)) {
+                                    return;
+                                }
+                                ScheduleMessageService.this.recordLagTime(this.delayLevel, 0);
+                                ScheduleMessageService.this.deliverTimer(this.delayLevel).schedule(
                                     new DeliverDelayedMessageTimerTask(this.delayLevel, nextOffset),
                                     countdown);
                                 ScheduleMessageService.this.updateOffset(this.delayLevel, nextOffset);
@@ -325,8 +476,11 @@ public class ScheduleMessageService extends ConfigManager {
                             }
                         } // end of for
 
+                        if (!this.deliverOrRetry(dueMessages)) {
+                            return;
+                        }
                         nextOffset = offset + (i / ConsumeQueue.CQ_STORE_UNIT_SIZE);
-                        ScheduleMessageService.this.timer.schedule(new DeliverDelayedMessageTimerTask(
+                        ScheduleMessageService.this.deliverTimer(this.delayLevel).schedule(new DeliverDelayedMessageTimerTask(
                             this.delayLevel, nextOffset), DELAY_FOR_A_WHILE);
                         ScheduleMessageService.this.updateOffset(this.delayLevel, nextOffset);
                         return;
@@ -346,10 +500,91 @@ public class ScheduleMessageService extends ConfigManager {
                 }
             } // end of if (cq != null)
 
-            ScheduleMessageService.this.timer.schedule(new DeliverDelayedMessageTimerTask(this.delayLevel,
+            ScheduleMessageService.this.deliverTimer(this.delayLevel).schedule(new DeliverDelayedMessageTimerTask(this.delayLevel,
                 failScheduleOffset), DELAY_FOR_A_WHILE);
         }
 
+        /**
+         * Put back the due messages, or schedule this level to retry from the first one that failed.
+         *
+         * @return false if a retry was scheduled
+         */
+        private boolean deliverOrRetry(final List<DueMessage> dueMessages) {
+            if (dueMessages.isEmpty()) {
+                return true;
+            }
+
+            ScheduleMessageService.this.recordLagTime(this.delayLevel,
+                System.currentTimeMillis() - dueMessages.get(0).getDeliverTimestamp());
+
+            long failedOffset = this.deliver(dueMessages);
+            if (failedOffset < 0) {
+                return true;
+            }
+
+            ScheduleMessageService.this.deliverTimer(this.delayLevel).schedule(
+                new DeliverDelayedMessageTimerTask(this.delayLevel, failedOffset), DELAY_FOR_A_PERIOD);
+            ScheduleMessageService.this.updateOffset(this.delayLevel, failedOffset);
+            return false;
+        }
+
+        /**
+         * Messages for the same queue are put back with one putMessages call. If a group fails, the level resumes
+         * from its first message, so groups after it that did succeed will be delivered once more.
+         *
+         * @return -1 if every message was put back, otherwise the schedule CQ offset to retry from
+         */
+        private long deliver(final List<DueMessage> dueMessages) {
+            List<MessageExt> msgExts = ScheduleMessageService.this.lookMessagesByOffset(dueMessages);
+
+            Map<String, List<MessageExtBrokerInner>> groups = new LinkedHashMap<String, List<MessageExtBrokerInner>>();
+            Map<String, Long> groupOffsets = new HashMap<String, Long>();
+            for (int k = 0; k < dueMessages.size(); k++) {
+                MessageExt msgExt = msgExts.get(k);
+                if (msgExt == null) {
+                    continue;
+                }
+
+                try {
+                    MessageExtBrokerInner msgInner = this.messageTimeup(msgExt);
+                    String key = msgInner.getTopic() + "@" + msgInner.getQueueId();
+                    List<MessageExtBrokerInner> group = groups.get(key);
+                    if (null == group) {
+                        group = new ArrayList<MessageExtBrokerInner>();
+                        groups.put(key, group);
+                        groupOffsets.put(key, dueMessages.get(k).getQueueOffset());
+                    }
+                    group.add(msgInner);
+                } catch (Exception e) {
+                    log.error("ScheduleMessageService, messageTimeup execute error, drop it. msgExt=" + msgExt
+                        + ", offsetPy=" + dueMessages.get(k).getOffsetPy() + ",sizePy=" + dueMessages.get(k).getSizePy(), e);
+                }
+            }
+
+            long failedOffset = -1;
+            for (Map.Entry<String, List<MessageExtBrokerInner>> entry : groups.entrySet()) {
+                List<MessageExtBrokerInner> group = entry.getValue();
+                try {
+                    PutMessageResult putMessageResult = ScheduleMessageService.this.putMessages(group);
+                    if (putMessageResult != null
+                        && putMessageResult.getPutMessageStatus() == PutMessageStatus.PUT_OK) {
+                        continue;
+                    }
+
+                    // XXX: warn and notify me
+                    log.error("ScheduleMessageService, {} messages time up, but reput them failed, topic: {} msgId {}",
+                        group.size(), group.get(0).getTopic(), group.get(0).getMsgId());
+                    long groupOffset = groupOffsets.get(entry.getKey());
+                    failedOffset = failedOffset < 0 ? groupOffset : Math.min(failedOffset, groupOffset);
+                } catch (Exception e) {
+                    log.error("ScheduleMessageService, reput execute error, drop " + group.size()
+                        + " messages. topic=" + group.get(0).getTopic(), e);
+                }
+            }
+
+            return failedOffset;
+        }
+
         private MessageExtBrokerInner messageTimeup(MessageExt msgExt) {
             MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
             msgInner.setBody(msgExt.getBody());
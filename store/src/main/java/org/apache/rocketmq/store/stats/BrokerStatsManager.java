@@ -57,6 +57,10 @@ public class BrokerStatsManager {
     // Pull Message Latency
     public static final String GROUP_GET_LATENCY = "GROUP_GET_LATENCY";
 
+    // Delayed messages a delay level has not delivered yet, and how late its oldest due one is
+    public static final String SCHEDULE_LAG_NUMS = "SCHEDULE_LAG_NUMS";
+    public static final String SCHEDULE_LAG_TIME = "SCHEDULE_LAG_TIME";
+
     /**
      * read disk follow stats
      */
@@ -70,6 +74,8 @@ public class BrokerStatsManager {
     private final String clusterName;
     private final MomentStatsItemSet momentStatsItemSetFallSize = new MomentStatsItemSet(GROUP_GET_FALL_SIZE, scheduledExecutorService, log);
     private final MomentStatsItemSet momentStatsItemSetFallTime = new MomentStatsItemSet(GROUP_GET_FALL_TIME, scheduledExecutorService, log);
+    private final MomentStatsItemSet momentStatsItemSetScheduleLagNums = new MomentStatsItemSet(SCHEDULE_LAG_NUMS, scheduledExecutorService, log);
+    private final MomentStatsItemSet momentStatsItemSetScheduleLagTime = new MomentStatsItemSet(SCHEDULE_LAG_TIME, scheduledExecutorService, log);
 
     public BrokerStatsManager(String clusterName) {
         this.clusterName = clusterName;
@@ -104,6 +110,14 @@ public class BrokerStatsManager {
         return momentStatsItemSetFallTime;
     }
 
+    public MomentStatsItemSet getMomentStatsItemSetScheduleLagNums() {
+        return momentStatsItemSetScheduleLagNums;
+    }
+
+    public MomentStatsItemSet getMomentStatsItemSetScheduleLagTime() {
+        return momentStatsItemSetScheduleLagTime;
+    }
+
     public void start() {
     }
 
@@ -189,6 +203,14 @@ public class BrokerStatsManager {
         this.momentStatsItemSetFallSize.getAndCreateStatsItem(statsKey).getValue().set(fallBehind);
     }
 
+    public void recordScheduleLagNums(final int delayLevel, final long lagNums) {
+        this.momentStatsItemSetScheduleLagNums.getAndCreateStatsItem(String.valueOf(delayLevel)).getValue().set(lagNums);
+    }
+
+    public void recordScheduleLagTime(final int delayLevel, final long lagTime) {
+        this.momentStatsItemSetScheduleLagTime.getAndCreateStatsItem(String.valueOf(delayLevel)).getValue().set(lagTime);
+    }
+
     public void incCommercialValue(final String key, final String owner, final String group,
         final String topic, final String type, final int incValue) {
         final String statsKey = buildCommercialStatsKey(owner, topic, group, type);
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.tiered;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.rocketmq.store.MappedFile;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+
+/**
+ * Keeps the objects as files below tieredStorePath, e.g. on a cheaper disk or a mounted network file system.
+ */
+public class LocalDirectoryBackend implements TieredStorageBackend {
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File rootDir;
+
+    public LocalDirectoryBackend(final MessageStoreConfig messageStoreConfig) {
+        this.rootDir = new File(messageStoreConfig.getTieredStorePath());
+        MappedFile.ensureDirOK(this.rootDir.getPath());
+    }
+
+    @Override
+    public void upload(final String name, final File file) throws IOException {
+        File target = new File(this.rootDir, name);
+        MappedFile.ensureDirOK(target.getParent());
+        File tmp = new File(target.getPath() + TMP_SUFFIX);
+
+        FileInputStream in = new FileInputStream(file);
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel source = in.getChannel();
+            FileChannel dest = out.getChannel();
+            dest.truncate(0);
+            long size = source.size();
+            for (long position = 0; position < size; ) {
+                position += source.transferTo(position, size - position, dest);
+            }
+            dest.force(true);
+        } finally {
+            in.close();
+            out.close();
+        }
+
+        if (!tmp.renameTo(target)) {
+            throw new IOException("rename " + tmp + " to " + target + " failed");
+        }
+    }
+
+    @Override
+    public Map<String, Long> list(final String prefix) throws IOException {
+        Map<String, Long> objects = new HashMap<String, Long>();
+        File[] files = new File(this.rootDir, prefix).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && !file.getName().endsWith(TMP_SUFFIX)) {
+                    objects.put(file.getName(), file.length());
+                }
+            }
+        }
+        return objects;
+    }
+
+    @Override
+    public int read(final String name, final long position, final ByteBuffer dst) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(this.rootDir, name), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (position >= channel.size()) {
+                return -1;
+            }
+
+            int read = 0;
+            while (dst.hasRemaining()) {
+                int n = channel.read(dst, position + read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return read;
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.tiered;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Blob store that sealed store files are offloaded to. Objects are written once and never modified, names look like
+ * "commitlog/0/00000000001073741824" or "consumequeue/TopicTest/0/00000000000006000000".<br/>
+ * Implementations must have a public constructor taking the
+ * {@link org.apache.rocketmq.store.config.MessageStoreConfig}.
+ */
+public interface TieredStorageBackend {
+
+    /**
+     * Store the content of the local file under the name. The object must not become visible before it is complete.
+     */
+    void upload(final String name, final File file) throws IOException;
+
+    /**
+     * @return the size of every object directly under the prefix, keyed by the last segment of its name
+     */
+    Map<String, Long> list(final String prefix) throws IOException;
+
+    /**
+     * Read from the object at the position until dst is full or the object ends.
+     *
+     * @return the number of bytes read, -1 if the position is at or past the end of the object
+     */
+    int read(final String name, final long position, final ByteBuffer dst) throws IOException;
+
+    void shutdown();
+}
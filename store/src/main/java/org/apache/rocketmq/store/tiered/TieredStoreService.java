@@ -0,0 +1,376 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.tiered;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.store.CommitLog;
+import org.apache.rocketmq.store.ConsumeQueue;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.MappedFile;
+import org.apache.rocketmq.store.MappedFileQueue;
+import org.apache.rocketmq.store.SelectMappedBufferResult;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads sealed and flushed CommitLog and ConsumeQueue files to a {@link TieredStorageBackend}, and reads them back
+ * once the local copies have been deleted. Local files are only allowed to be deleted after they were uploaded, or
+ * when the disk is full, see {@link #getMaxDeletableOffset(String, MappedFileQueue)}.
+ */
+public class TieredStoreService extends ServiceThread {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    /**
+     * Returned by {@link #getOffloadedOffset(String, MappedFileQueue)} when the remote files could not be listed
+     */
+    public static final long OFFLOADED_OFFSET_UNKNOWN = -1;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final TieredStorageBackend backend;
+
+    // fileFromOffset -> remote file, the offsets of all shards are disjoint so they share one table
+    private final ConcurrentNavigableMap<Long, RemoteFile> commitLogFiles = new ConcurrentSkipListMap<Long, RemoteFile>();
+    // consume queue prefix -> fileFromOffset -> remote file, listed from the backend on first use
+    private final ConcurrentMap<String, ConcurrentNavigableMap<Long, RemoteFile>> consumeQueueFiles =
+        new ConcurrentHashMap<String, ConcurrentNavigableMap<Long, RemoteFile>>();
+
+    private final ReadAheadCache readAheadCache;
+
+    private volatile boolean deletingOnDiskFull = false;
+
+    public TieredStoreService(final DefaultMessageStore defaultMessageStore) throws IOException {
+        this.defaultMessageStore = defaultMessageStore;
+        MessageStoreConfig messageStoreConfig = defaultMessageStore.getMessageStoreConfig();
+        try {
+            this.backend = (TieredStorageBackend) Class.forName(messageStoreConfig.getTieredStoreBackend())
+                .getConstructor(MessageStoreConfig.class).newInstance(messageStoreConfig);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("create tiered storage backend " + messageStoreConfig.getTieredStoreBackend() + " failed", e);
+        }
+        this.readAheadCache = new ReadAheadCache(messageStoreConfig.getTieredReadAheadSize(),
+            messageStoreConfig.getTieredReadCacheChunkNum());
+    }
+
+    public static String commitLogPrefix(final int shardIndex) {
+        return "commitlog/" + shardIndex;
+    }
+
+    public static String consumeQueuePrefix(final String topic, final int queueId) {
+        return "consumequeue/" + topic + "/" + queueId;
+    }
+
+    public boolean load() {
+        try {
+            for (CommitLog shard : this.defaultMessageStore.getCommitLog().getShards()) {
+                this.listRemoteFiles(commitLogPrefix(shard.getShardIndex()), this.commitLogFiles);
+            }
+            log.info("load tiered store OK, {} commit log files offloaded", this.commitLogFiles.size());
+            return true;
+        } catch (IOException e) {
+            log.error("load tiered store failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the offset below which all files of the queue are in the remote tier, or
+     * {@link #OFFLOADED_OFFSET_UNKNOWN} if the backend could not be listed
+     */
+    public long getOffloadedOffset(final String prefix, final MappedFileQueue mappedFileQueue) {
+        Map<Long, RemoteFile> remoteFiles = this.remoteFilesOf(prefix);
+        if (null == remoteFiles) {
+            return OFFLOADED_OFFSET_UNKNOWN;
+        }
+
+        long offset = 0;
+        for (MappedFile mappedFile : mappedFileQueue.getMappedFiles()) {
+            RemoteFile remoteFile = remoteFiles.get(mappedFile.getFileFromOffset());
+            if (null == remoteFile || remoteFile.size != mappedFile.getFileSize()) {
+                break;
+            }
+            offset = mappedFile.getFileFromOffset() + mappedFile.getFileSize();
+        }
+        return offset;
+    }
+
+    /**
+     * @return the offset below which local files of the queue may be deleted, that is the offloaded offset, nothing
+     * while it is unknown, and everything once the disk is marked full and tieredDeleteOnDiskFullEnable is set
+     */
+    public long getMaxDeletableOffset(final String prefix, final MappedFileQueue mappedFileQueue) {
+        if (this.defaultMessageStore.getMessageStoreConfig().isTieredDeleteOnDiskFullEnable()
+            && this.defaultMessageStore.getRunningFlags().isDiskFull()) {
+            if (!this.deletingOnDiskFull) {
+                this.deletingOnDiskFull = true;
+                log.warn("disk is full, delete local files whether offloaded to tiered store or not");
+            }
+            return Long.MAX_VALUE;
+        }
+        if (this.deletingOnDiskFull) {
+            this.deletingOnDiskFull = false;
+            log.info("disk is no longer full, delete local files only after offloaded to tiered store");
+        }
+
+        long offset = this.getOffloadedOffset(prefix, mappedFileQueue);
+        return offset == OFFLOADED_OFFSET_UNKNOWN ? 0 : offset;
+    }
+
+    /**
+     * Read a message that is no longer in the local CommitLog.
+     *
+     * @return null if the message is not in the remote tier either
+     */
+    public SelectMappedBufferResult getMessage(final long offset, final int size) {
+        Map.Entry<Long, RemoteFile> entry = this.commitLogFiles.floorEntry(offset);
+        if (null == entry || offset + size > entry.getKey() + entry.getValue().size) {
+            return null;
+        }
+
+        return this.read(entry.getValue(), offset, offset - entry.getKey(), size);
+    }
+
+    /**
+     * Read consume queue units that are no longer in the local ConsumeQueue, at most up to the end of the remote file
+     * holding the first one.
+     *
+     * @return null if the offset is not in the remote tier either
+     */
+    public SelectMappedBufferResult getConsumeQueueBuffer(final String topic, final int queueId, final long offset,
+        final int maxSize) {
+        ConcurrentNavigableMap<Long, RemoteFile> remoteFiles = this.remoteFilesOf(consumeQueuePrefix(topic, queueId));
+        if (null == remoteFiles) {
+            return null;
+        }
+
+        final long position = offset * ConsumeQueue.CQ_STORE_UNIT_SIZE;
+        Map.Entry<Long, RemoteFile> entry = remoteFiles.floorEntry(position);
+        if (null == entry || position >= entry.getKey() + entry.getValue().size) {
+            return null;
+        }
+
+        long remain = entry.getKey() + entry.getValue().size - position;
+        int size = (int) Math.min(remain, maxSize);
+        size -= size % ConsumeQueue.CQ_STORE_UNIT_SIZE;
+        return this.read(entry.getValue(), position, position - entry.getKey(), size);
+    }
+
+    private SelectMappedBufferResult read(final RemoteFile remoteFile, final long offset, final long position,
+        final int size) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(size);
+        try {
+            this.readAheadCache.read(remoteFile, position, byteBuffer);
+        } catch (IOException e) {
+            log.warn("read tiered store file " + remoteFile.name + " at " + position + " failed", e);
+            return null;
+        }
+
+        if (byteBuffer.hasRemaining()) {
+            log.warn("tiered store file {} ends before {}", remoteFile.name, position + size);
+            return null;
+        }
+        byteBuffer.flip();
+        return new SelectMappedBufferResult(offset, byteBuffer, size, null);
+    }
+
+    private ConcurrentNavigableMap<Long, RemoteFile> remoteFilesOf(final String prefix) {
+        if (prefix.startsWith("commitlog/")) {
+            return this.commitLogFiles;
+        }
+
+        ConcurrentNavigableMap<Long, RemoteFile> remoteFiles = this.consumeQueueFiles.get(prefix);
+        if (null == remoteFiles) {
+            remoteFiles = new ConcurrentSkipListMap<Long, RemoteFile>();
+            try {
+                this.listRemoteFiles(prefix, remoteFiles);
+            } catch (IOException e) {
+                log.warn("list tiered store files of " + prefix + " failed", e);
+                return null;
+            }
+            ConcurrentNavigableMap<Long, RemoteFile> old = this.consumeQueueFiles.putIfAbsent(prefix, remoteFiles);
+            if (old != null) {
+                remoteFiles = old;
+            }
+        }
+        return remoteFiles;
+    }
+
+    private void listRemoteFiles(final String prefix, final Map<Long, RemoteFile> remoteFiles) throws IOException {
+        for (Map.Entry<String, Long> entry : this.backend.list(prefix).entrySet()) {
+            try {
+                remoteFiles.put(Long.parseLong(entry.getKey()), new RemoteFile(prefix + "/" + entry.getKey(), entry.getValue()));
+            } catch (NumberFormatException e) {
+                log.warn("skip unknown tiered store file {}/{}", prefix, entry.getKey());
+            }
+        }
+    }
+
+    private void offload(final String prefix, final MappedFileQueue mappedFileQueue) {
+        Map<Long, RemoteFile> remoteFiles = this.remoteFilesOf(prefix);
+        if (null == remoteFiles) {
+            return;
+        }
+
+        List<MappedFile> mappedFiles = mappedFileQueue.getMappedFiles();
+        for (MappedFile mappedFile : mappedFiles) {
+            if (this.isStopped()) {
+                return;
+            }
+            // Upload in file order so that getOffloadedOffset keeps moving
+            if (!mappedFile.isFull() || mappedFile.getFlushedPosition() < mappedFile.getFileSize()) {
+                return;
+            }
+            if (remoteFiles.containsKey(mappedFile.getFileFromOffset())) {
+                continue;
+            }
+            if (!mappedFile.hold()) {
+                return;
+            }
+
+            try {
+                File file = new File(mappedFile.getFileName());
+                String name = prefix + "/" + file.getName();
+                long beginTime = System.currentTimeMillis();
+                this.backend.upload(name, file);
+                remoteFiles.put(mappedFile.getFileFromOffset(), new RemoteFile(name, mappedFile.getFileSize()));
+                log.info("offload {} to tiered store OK, cost {} ms", name, System.currentTimeMillis() - beginTime);
+            } catch (IOException e) {
+                log.warn("offload " + mappedFile.getFileName() + " to tiered store failed", e);
+                return;
+            } finally {
+                mappedFile.release();
+            }
+        }
+    }
+
+    public void doOffload() {
+        for (CommitLog shard : this.defaultMessageStore.getCommitLog().getShards()) {
+            this.offload(commitLogPrefix(shard.getShardIndex()), shard.getMappedFileQueue());
+        }
+
+        for (ConcurrentMap<Integer, ConsumeQueue> maps : this.defaultMessageStore.getConsumeQueueTable().values()) {
+            for (ConsumeQueue logic : maps.values()) {
+                this.offload(consumeQueuePrefix(logic.getTopic(), logic.getQueueId()), logic.getMappedFileQueue());
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStopped()) {
+            try {
+                this.doOffload();
+                this.waitForRunning(this.defaultMessageStore.getMessageStoreConfig().getTieredOffloadInterval());
+            } catch (Throwable e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        this.backend.shutdown();
+    }
+
+    @Override
+    public String getServiceName() {
+        return TieredStoreService.class.getSimpleName();
+    }
+
+    static class RemoteFile {
+        private final String name;
+        private final long size;
+
+        RemoteFile(final String name, final long size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    /**
+     * LRU of fixed size chunks of remote files, a sequential replay mostly hits the chunk the previous read loaded.
+     */
+    class ReadAheadCache {
+        private final int chunkSize;
+        private final LinkedHashMap<String, byte[]> chunks;
+
+        ReadAheadCache(final int chunkSize, final int chunkNum) {
+            this.chunkSize = chunkSize;
+            this.chunks = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                    return size() > chunkNum;
+                }
+            };
+        }
+
+        void read(final RemoteFile remoteFile, long position, final ByteBuffer dst) throws IOException {
+            while (dst.hasRemaining() && position < remoteFile.size) {
+                long chunkIndex = position / this.chunkSize;
+                byte[] chunk = this.getChunk(remoteFile, chunkIndex);
+                int chunkPosition = (int) (position - chunkIndex * this.chunkSize);
+                int length = Math.min(dst.remaining(), chunk.length - chunkPosition);
+                if (length <= 0) {
+                    return;
+                }
+                dst.put(chunk, chunkPosition, length);
+                position += length;
+            }
+        }
+
+        private byte[] getChunk(final RemoteFile remoteFile, final long chunkIndex) throws IOException {
+            String key = remoteFile.name + "@" + chunkIndex;
+            synchronized (this.chunks) {
+                byte[] chunk = this.chunks.get(key);
+                if (chunk != null) {
+                    return chunk;
+                }
+            }
+
+            long position = chunkIndex * this.chunkSize;
+            ByteBuffer byteBuffer = ByteBuffer.allocate((int) Math.min(this.chunkSize, remoteFile.size - position));
+            if (TieredStoreService.this.backend.read(remoteFile.name, position, byteBuffer) < 0) {
+                return new byte[0];
+            }
+            byte[] chunk = byteBuffer.position() == byteBuffer.capacity() ? byteBuffer.array()
+                : Arrays.copyOf(byteBuffer.array(), byteBuffer.position());
+
+            synchronized (this.chunks) {
+                this.chunks.put(key, chunk);
+            }
+            return chunk;
+        }
+    }
+}
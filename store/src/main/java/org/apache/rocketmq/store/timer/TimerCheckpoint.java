@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.timer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.store.MappedFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Progress of the timing wheel: the timer topic consume queue offset enqueued up to, the TimerLog offset the wheel
+ * was flushed with and the next second to deliver.
+ */
+public class TimerCheckpoint {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final MappedByteBuffer mappedByteBuffer;
+    private volatile long enqueueOffset = 0;
+    private volatile long timerLogOffset = 0;
+    private volatile long readTimeSec = 0;
+
+    public TimerCheckpoint(final String path) throws IOException {
+        File file = new File(path);
+        MappedFile.ensureDirOK(file.getParent());
+        boolean fileExists = file.exists();
+
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.fileChannel = this.randomAccessFile.getChannel();
+        this.mappedByteBuffer = fileChannel.map(MapMode.READ_WRITE, 0, MappedFile.OS_PAGE_SIZE);
+
+        if (fileExists) {
+            this.enqueueOffset = this.mappedByteBuffer.getLong(0);
+            this.timerLogOffset = this.mappedByteBuffer.getLong(8);
+            this.readTimeSec = this.mappedByteBuffer.getLong(16);
+            log.info("timer checkpoint file exists, enqueueOffset {} timerLogOffset {} readTimeSec {}",
+                this.enqueueOffset, this.timerLogOffset, this.readTimeSec);
+        } else {
+            log.info("timer checkpoint file not exists, " + path);
+        }
+    }
+
+    public void shutdown() {
+        this.flush();
+
+        // unmap mappedByteBuffer
+        MappedFile.clean(this.mappedByteBuffer);
+
+        try {
+            this.fileChannel.close();
+        } catch (IOException e) {
+            log.error("Failed to properly close the channel", e);
+        }
+    }
+
+    public void flush() {
+        this.mappedByteBuffer.putLong(0, this.enqueueOffset);
+        this.mappedByteBuffer.putLong(8, this.timerLogOffset);
+        this.mappedByteBuffer.putLong(16, this.readTimeSec);
+        this.mappedByteBuffer.force();
+    }
+
+    public long getEnqueueOffset() {
+        return enqueueOffset;
+    }
+
+    public void setEnqueueOffset(long enqueueOffset) {
+        this.enqueueOffset = enqueueOffset;
+    }
+
+    public long getTimerLogOffset() {
+        return timerLogOffset;
+    }
+
+    public void setTimerLogOffset(long timerLogOffset) {
+        this.timerLogOffset = timerLogOffset;
+    }
+
+    public long getReadTimeSec() {
+        return readTimeSec;
+    }
+
+    public void setReadTimeSec(long readTimeSec) {
+        this.readTimeSec = readTimeSec;
+    }
+}
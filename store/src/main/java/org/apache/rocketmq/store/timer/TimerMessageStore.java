@@ -0,0 +1,679 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.timer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.ThreadFactoryImpl;
+import org.apache.rocketmq.common.TopicFilterType;
+import org.apache.rocketmq.common.constant.LoggerName;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.ConsumeQueue;
+import org.apache.rocketmq.store.ConsumeQueueExt;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.MappedFile;
+import org.apache.rocketmq.store.MappedFileQueue;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.PutMessageResult;
+import org.apache.rocketmq.store.PutMessageStatus;
+import org.apache.rocketmq.store.SelectMappedBufferResult;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers messages at an arbitrary second instead of one of the fixed delay levels.
+ * <p>
+ * CommitLog stores these messages to TIMER_TOPIC with the deliver time as tags code. TimerEnqueueService reads that
+ * consume queue and links every message into the TimerWheel slot of its second: a TimerLog unit points to the
+ * message and to the unit linked before it, the slot points to the newest unit. TimerDequeueService walks a slot
+ * once its second has come and hands the messages to a bounded pool which puts them back to their real topic.
+ * Messages due beyond the end of the wheel are linked into its farthest slot and linked again from there.
+ * </p>
+ * TimerFlushService flushes the TimerLog and the wheel and records how far both services got in the TimerCheckpoint,
+ * a restart re-enqueues and re-delivers only what came after it. Delivery is at least once.
+ */
+public class TimerMessageStore {
+    private static final Logger log = LoggerFactory.getLogger(LoggerName.STORE_LOGGER_NAME);
+
+    public static final String TIMER_TOPIC = "TIMER_TOPIC_XXXX";
+    public static final int TIMER_QUEUE_ID = 0;
+
+    /**
+     * TimerLog unit: expireBoundSec(8) + prevPos(8) + offsetPy(8) + deliverMs(8) + sizePy(4) + magic(4)<br/>
+     * expireBoundSec is beyond the slot of every unit appended so far, once the wheel has passed the bound of the last
+     * unit of a file the whole file can be deleted.
+     */
+    public static final int UNIT_SIZE = 40;
+    private static final int UNIT_MAGIC = 0x54494D52;
+    private static final long DELAY_FOR_A_WHILE = 100L;
+    private static final long MAX_RETRY_BACKOFF_SEC = 300L;
+
+    private final DefaultMessageStore defaultMessageStore;
+    private final MessageStoreConfig messageStoreConfig;
+    private final MappedFileQueue timerLog;
+    private TimerWheel timerWheel;
+    private TimerCheckpoint timerCheckpoint;
+    private final ByteBuffer unitBuffer = ByteBuffer.allocate(UNIT_SIZE);
+
+    private final ThreadPoolExecutor deliverExecutor;
+    private final TimerEnqueueService enqueueService = new TimerEnqueueService();
+    private final TimerDequeueService dequeueService = new TimerDequeueService();
+    private final TimerFlushService flushService = new TimerFlushService();
+
+    // Next offset of the timer topic consume queue to link into the wheel
+    private volatile long enqueueOffset = 0;
+    // Second being delivered, units are always linked into a later slot. Changed while holding this
+    private volatile long readTimeSec = 0;
+    private long expireBoundSec = 0;
+    // Failed put backs of each message by its CommitLog offset, only used by TimerDequeueService. Not persisted, so a
+    // restart gives every message the full number of retries again
+    private final Map<Long, Integer> deliverRetryTimes = new HashMap<Long, Integer>();
+
+    public TimerMessageStore(final DefaultMessageStore defaultMessageStore) {
+        this.defaultMessageStore = defaultMessageStore;
+        this.messageStoreConfig = defaultMessageStore.getMessageStoreConfig();
+        int fileSize = this.messageStoreConfig.getMapedFileSizeTimerLog() / UNIT_SIZE * UNIT_SIZE;
+        this.timerLog = new MappedFileQueue(StorePathConfigHelper.getTimerLogStorePath(this.messageStoreConfig.getStorePathRootDir()),
+            fileSize, null);
+        this.deliverExecutor = new ThreadPoolExecutor(
+            this.messageStoreConfig.getTimerDeliverThreadNum(),
+            this.messageStoreConfig.getTimerDeliverThreadNum(),
+            1000 * 60,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(this.messageStoreConfig.getTimerDeliverQueueCapacity()),
+            new ThreadFactoryImpl("TimerDeliverThread_"),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public boolean load() {
+        try {
+            String rootDir = this.messageStoreConfig.getStorePathRootDir();
+            this.timerCheckpoint = new TimerCheckpoint(StorePathConfigHelper.getTimerCheckpointPath(rootDir));
+            this.timerWheel = new TimerWheel(StorePathConfigHelper.getTimerWheelStorePath(rootDir), this.messageStoreConfig.getTimerWheelSlotNum());
+        } catch (IOException e) {
+            log.error("load timer message store exception", e);
+            return false;
+        }
+
+        if (!this.timerLog.load()) {
+            return false;
+        }
+
+        this.enqueueOffset = this.timerCheckpoint.getEnqueueOffset();
+        this.readTimeSec = this.timerCheckpoint.getReadTimeSec() > 0 ? this.timerCheckpoint.getReadTimeSec() : System.currentTimeMillis() / 1000;
+
+        long timerLogOffset = this.timerCheckpoint.getTimerLogOffset();
+        this.recoverWheel(timerLogOffset);
+        TimerUnit lastUnit = timerLogOffset >= UNIT_SIZE ? this.readUnit(timerLogOffset - UNIT_SIZE) : null;
+        this.expireBoundSec = lastUnit != null ? lastUnit.getExpireBoundSec() : this.readTimeSec + this.timerWheel.getSlotNum();
+        this.timerLog.truncateDirtyFiles(timerLogOffset);
+        this.timerLog.setFlushedWhere(timerLogOffset);
+        this.timerLog.setCommittedWhere(timerLogOffset);
+
+        log.info("load timer message store OK, enqueueOffset {} readTimeSec {} timerLogOffset {}",
+            this.enqueueOffset, this.readTimeSec, timerLogOffset);
+        return true;
+    }
+
+    /**
+     * The wheel may have been written after the checkpoint, unlink the units beyond it before they are truncated. They
+     * are linked again when their messages are re-enqueued.
+     */
+    private void recoverWheel(final long timerLogOffset) {
+        int recovered = 0;
+        for (int i = 0; i < this.timerWheel.getSlotNum(); i++) {
+            TimerWheel.Slot slot = this.timerWheel.getSlotByIndex(i);
+            if (slot.getTimeSec() < this.readTimeSec || slot.getLastPos() < timerLogOffset) {
+                continue;
+            }
+
+            long pos = slot.getLastPos();
+            int num = slot.getNum();
+            while (pos >= timerLogOffset) {
+                TimerUnit unit = this.readUnit(pos);
+                if (null == unit) {
+                    log.warn("timer log unit {} of slot {} is broken, drop the slot", pos, slot.getTimeSec());
+                    pos = -1;
+                    break;
+                }
+                pos = unit.getPrevPos();
+                num--;
+            }
+
+            this.timerWheel.putSlot(slot.getTimeSec(), pos, pos < 0 ? 0 : num);
+            recovered++;
+        }
+
+        log.info("recover timer wheel OK, {} slots unlinked units beyond {}", recovered, timerLogOffset);
+    }
+
+    public void start() {
+        this.enqueueService.start();
+        this.dequeueService.start();
+        this.flushService.start();
+    }
+
+    public void shutdown() {
+        this.enqueueService.shutdown();
+        this.dequeueService.shutdown();
+        this.deliverExecutor.shutdown();
+        try {
+            this.deliverExecutor.awaitTermination(5000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            log.error("shutdown timer deliver executor exception", e);
+        }
+        this.flushService.shutdown();
+
+        if (this.timerWheel != null) {
+            this.flush();
+            this.timerLog.shutdown(1000 * 3);
+            this.timerWheel.shutdown();
+            this.timerCheckpoint.shutdown();
+        }
+    }
+
+    public void destroy() {
+        this.timerLog.destroy();
+        if (this.timerWheel != null) {
+            this.timerWheel.destroy();
+        }
+    }
+
+    public boolean isTimerMessage(final Message msg) {
+        return msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS) != null || msg.getDelayTimeLevel() > 0;
+    }
+
+    /**
+     * @return the deliver time of a message {@link #isTimerMessage} accepted, in milliseconds
+     */
+    public long computeDeliverTimestamp(final Message msg, final long storeTimestamp) {
+        String t = msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS);
+        if (t != null) {
+            try {
+                return Long.parseLong(t);
+            } catch (NumberFormatException e) {
+                return storeTimestamp;
+            }
+        }
+
+        int delayLevel = Math.min(msg.getDelayTimeLevel(), this.defaultMessageStore.getScheduleMessageService().getMaxDelayLevel());
+        return this.defaultMessageStore.getScheduleMessageService().computeDeliverTimestamp(delayLevel, storeTimestamp);
+    }
+
+    /**
+     * @return false if the deliver time is malformed or further ahead than timerMaxDelaySec
+     */
+    public boolean checkDeliverTimestamp(final Message msg) {
+        String t = msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS);
+        if (t == null) {
+            return true;
+        }
+
+        try {
+            long maxDeliverTimestamp = System.currentTimeMillis() + this.messageStoreConfig.getTimerMaxDelaySec() * 1000L;
+            return Long.parseLong(t) <= maxDeliverTimestamp;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public void buildRunningStats(HashMap<String, String> stats) {
+        long maxOffset = this.defaultMessageStore.getMaxOffsetInQueue(TIMER_TOPIC, TIMER_QUEUE_ID);
+        stats.put("timerMessageOffset", String.format("%d,%d", this.enqueueOffset, maxOffset));
+        stats.put("timerReadTimeMs", String.valueOf(this.readTimeSec * 1000));
+    }
+
+    /**
+     * @return false if the TimerLog could not be appended
+     */
+    private boolean linkToWheel(final long offsetPy, final int sizePy, final long deliverMs) {
+        return this.linkToWheel(offsetPy, sizePy, deliverMs, deliverMs / 1000);
+    }
+
+    /**
+     * @param notBeforeSec the unit goes to the slot of this second, or of the next one to be read if it has passed
+     */
+    private synchronized boolean linkToWheel(final long offsetPy, final int sizePy, final long deliverMs,
+        final long notBeforeSec) {
+        final int slotNum = this.timerWheel.getSlotNum();
+        long slotSec = Math.max(notBeforeSec, this.readTimeSec + 1);
+        slotSec = Math.min(slotSec, this.readTimeSec + slotNum - 1);
+
+        MappedFile mappedFile = this.timerLog.getLastMappedFile(0);
+        if (null == mappedFile) {
+            log.error("create timer log mapped file failed");
+            return false;
+        }
+
+        TimerWheel.Slot slot = this.timerWheel.getSlot(slotSec);
+        long pos = mappedFile.getFileFromOffset() + mappedFile.getWrotePosition();
+        this.expireBoundSec = Math.max(this.expireBoundSec, slotSec + 1);
+
+        this.unitBuffer.clear();
+        this.unitBuffer.putLong(this.expireBoundSec);
+        this.unitBuffer.putLong(slot.getLastPos());
+        this.unitBuffer.putLong(offsetPy);
+        this.unitBuffer.putLong(deliverMs);
+        this.unitBuffer.putInt(sizePy);
+        this.unitBuffer.putInt(UNIT_MAGIC);
+        if (!mappedFile.appendMessage(this.unitBuffer.array())) {
+            log.error("append timer log failed, pos {}", pos);
+            return false;
+        }
+
+        this.timerWheel.putSlot(slotSec, pos, slot.getNum() + 1);
+        return true;
+    }
+
+    private TimerUnit readUnit(final long pos) {
+        MappedFile mappedFile = this.timerLog.findMappedFileByOffset(pos);
+        if (null == mappedFile) {
+            return null;
+        }
+
+        SelectMappedBufferResult result = mappedFile.selectMappedBuffer((int) (pos % this.timerLog.getMappedFileSize()), UNIT_SIZE);
+        if (null == result) {
+            return null;
+        }
+
+        try {
+            ByteBuffer byteBuffer = result.getByteBuffer();
+            long expireBoundSec = byteBuffer.getLong();
+            long prevPos = byteBuffer.getLong();
+            long offsetPy = byteBuffer.getLong();
+            long deliverMs = byteBuffer.getLong();
+            int sizePy = byteBuffer.getInt();
+            if (byteBuffer.getInt() != UNIT_MAGIC) {
+                log.error("timer log unit {} magic code mismatch", pos);
+                return null;
+            }
+            return new TimerUnit(expireBoundSec, prevPos, offsetPy, sizePy, deliverMs);
+        } finally {
+            result.release();
+        }
+    }
+
+    /**
+     * @return true if any message was linked into the wheel
+     */
+    private boolean enqueue() {
+        ConsumeQueue cq = this.defaultMessageStore.findConsumeQueue(TIMER_TOPIC, TIMER_QUEUE_ID);
+        long offset = this.enqueueOffset;
+        if (offset < cq.getMinOffsetInQueue()) {
+            log.error("timer CQ offset invalid. offset={}, cqMinOffset={}", offset, cq.getMinOffsetInQueue());
+            offset = cq.getMinOffsetInQueue();
+            this.enqueueOffset = offset;
+        } else if (offset > cq.getMaxOffsetInQueue()) {
+            // The consume queue was truncated by recovery
+            log.error("timer CQ offset invalid. offset={}, cqMaxOffset={}", offset, cq.getMaxOffsetInQueue());
+            offset = cq.getMaxOffsetInQueue();
+            this.enqueueOffset = offset;
+        }
+
+        SelectMappedBufferResult bufferCQ = cq.getIndexBuffer(offset);
+        if (null == bufferCQ) {
+            return false;
+        }
+
+        try {
+            int i = 0;
+            ConsumeQueueExt.CqExtUnit cqExtUnit = new ConsumeQueueExt.CqExtUnit();
+            for (; i < bufferCQ.getSize(); i += ConsumeQueue.CQ_STORE_UNIT_SIZE) {
+                long offsetPy = bufferCQ.getByteBuffer().getLong();
+                int sizePy = bufferCQ.getByteBuffer().getInt();
+                long tagsCode = bufferCQ.getByteBuffer().getLong();
+
+                if (cq.isExtAddr(tagsCode)) {
+                    if (cq.getExt(tagsCode, cqExtUnit)) {
+                        tagsCode = cqExtUnit.getTagsCode();
+                    } else {
+                        log.error("[BUG] can't find consume queue extend file content!addr={}, offsetPy={}, sizePy={}",
+                            tagsCode, offsetPy, sizePy);
+                        tagsCode = System.currentTimeMillis();
+                    }
+                }
+
+                if (!this.linkToWheel(offsetPy, sizePy, tagsCode)) {
+                    break;
+                }
+                this.enqueueOffset = offset + i / ConsumeQueue.CQ_STORE_UNIT_SIZE + 1;
+            }
+            return i > 0;
+        } finally {
+            bufferCQ.release();
+        }
+    }
+
+    /**
+     * @return false if the current second has not come yet or some of its messages could not be put back
+     */
+    private boolean dequeue() throws InterruptedException {
+        final long timeSec = this.readTimeSec;
+        if (timeSec * 1000 > System.currentTimeMillis()) {
+            return false;
+        }
+
+        TimerWheel.Slot slot;
+        synchronized (this) {
+            slot = this.timerWheel.getSlot(timeSec);
+        }
+
+        // The slot links its units newest first
+        LinkedList<TimerUnit> units = new LinkedList<TimerUnit>();
+        for (long pos = slot.getLastPos(); pos >= 0; ) {
+            TimerUnit unit = this.readUnit(pos);
+            if (null == unit) {
+                log.error("timer log unit {} of slot {} not found, drop the rest of the slot", pos, timeSec);
+                break;
+            }
+            units.addFirst(unit);
+            pos = unit.getPrevPos();
+        }
+
+        List<TimerUnit> rolled = new ArrayList<TimerUnit>();
+        List<DeliverTask> tasks = new ArrayList<DeliverTask>(units.size());
+        CountDownLatch latch = new CountDownLatch(units.size());
+        for (TimerUnit unit : units) {
+            if (unit.getDeliverMs() / 1000 > timeSec) {
+                rolled.add(unit);
+                latch.countDown();
+            } else {
+                DeliverTask task = new DeliverTask(unit, latch);
+                tasks.add(task);
+                this.deliverExecutor.execute(task);
+            }
+        }
+        latch.await();
+
+        int failed = 0;
+        for (TimerUnit unit : rolled) {
+            this.linkToWheel(unit.getOffsetPy(), unit.getSizePy(), unit.getDeliverMs());
+        }
+        for (DeliverTask task : tasks) {
+            if (task.isDelivered()) {
+                if (!this.deliverRetryTimes.isEmpty()) {
+                    this.deliverRetryTimes.remove(task.unit.getOffsetPy());
+                }
+            } else {
+                this.retryLater(task.unit, timeSec);
+                failed++;
+            }
+        }
+
+        synchronized (this) {
+            this.readTimeSec = timeSec + 1;
+        }
+        return failed == 0;
+    }
+
+    /**
+     * Link a message which could not be put back into a later slot, waiting twice as long after every failure. Once
+     * timerDeliverMaxRetryTimes is reached it is dropped, it stays in the CommitLog under the timer topic.
+     */
+    private void retryLater(final TimerUnit unit, final long timeSec) {
+        Integer retried = this.deliverRetryTimes.get(unit.getOffsetPy());
+        int retryTimes = null == retried ? 1 : retried + 1;
+        if (retryTimes > this.messageStoreConfig.getTimerDeliverMaxRetryTimes()) {
+            this.deliverRetryTimes.remove(unit.getOffsetPy());
+            log.error("timer message put back still failed after {} retries, drop it. offsetPy={}, sizePy={}, deliverMs={}",
+                retryTimes - 1, unit.getOffsetPy(), unit.getSizePy(), unit.getDeliverMs());
+            return;
+        }
+
+        this.deliverRetryTimes.put(unit.getOffsetPy(), retryTimes);
+        long backoffSec = Math.min(1L << Math.min(retryTimes - 1, 30), MAX_RETRY_BACKOFF_SEC);
+        this.linkToWheel(unit.getOffsetPy(), unit.getSizePy(), unit.getDeliverMs(), timeSec + backoffSec);
+    }
+
+    /**
+     * @return false if the message has to be put back again later
+     */
+    private boolean deliver(final TimerUnit unit) {
+        MessageExt msgExt = this.defaultMessageStore.lookMessageByOffset(unit.getOffsetPy(), unit.getSizePy());
+        if (null == msgExt) {
+            log.error("timer message not found, drop it. offsetPy={}, sizePy={}", unit.getOffsetPy(), unit.getSizePy());
+            return true;
+        }
+
+        try {
+            MessageExtBrokerInner msgInner = this.messageTimeup(msgExt);
+            PutMessageResult putMessageResult = this.defaultMessageStore.putMessage(msgInner);
+            if (putMessageResult != null && putMessageResult.getPutMessageStatus() == PutMessageStatus.PUT_OK) {
+                return true;
+            }
+
+            log.error("TimerMessageStore, a message time up, but reput it failed, topic: {} msgId {}",
+                msgExt.getTopic(), msgExt.getMsgId());
+            return false;
+        } catch (Exception e) {
+            log.error("TimerMessageStore, messageTimeup execute error, drop it. msgExt=" + msgExt
+                + ",offsetPy=" + unit.getOffsetPy() + ",sizePy=" + unit.getSizePy(), e);
+            return true;
+        }
+    }
+
+    private MessageExtBrokerInner messageTimeup(MessageExt msgExt) {
+        MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+        msgInner.setBody(msgExt.getBody());
+        msgInner.setFlag(msgExt.getFlag());
+        MessageAccessor.setProperties(msgInner, msgExt.getProperties());
+        MessageAccessor.clearProperty(msgInner, MessageConst.PROPERTY_TIMER_DELIVER_MS);
+        MessageAccessor.clearProperty(msgInner, MessageConst.PROPERTY_DELAY_TIME_LEVEL);
+
+        TopicFilterType topicFilterType = MessageExt.parseTopicFilterType(msgInner.getSysFlag());
+        long tagsCodeValue =
+            MessageExtBrokerInner.tagsString2tagsCode(topicFilterType, msgInner.getTags());
+        msgInner.setTagsCode(tagsCodeValue);
+        msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
+
+        msgInner.setSysFlag(msgExt.getSysFlag());
+        msgInner.setBornTimestamp(msgExt.getBornTimestamp());
+        msgInner.setBornHost(msgExt.getBornHost());
+        msgInner.setStoreHost(msgExt.getStoreHost());
+        msgInner.setReconsumeTimes(msgExt.getReconsumeTimes());
+
+        msgInner.setWaitStoreMsgOK(false);
+
+        msgInner.setTopic(msgInner.getProperty(MessageConst.PROPERTY_REAL_TOPIC));
+
+        String queueIdStr = msgInner.getProperty(MessageConst.PROPERTY_REAL_QUEUE_ID);
+        int queueId = Integer.parseInt(queueIdStr);
+        msgInner.setQueueId(queueId);
+
+        return msgInner;
+    }
+
+    private void flush() {
+        long offset;
+        long timerLogOffset;
+        long timeSec;
+        synchronized (this) {
+            offset = this.enqueueOffset;
+            timerLogOffset = this.timerLog.getMaxOffset();
+            timeSec = this.readTimeSec;
+        }
+
+        this.timerLog.flush(0);
+        this.timerWheel.flush();
+
+        this.timerCheckpoint.setEnqueueOffset(offset);
+        this.timerCheckpoint.setTimerLogOffset(timerLogOffset);
+        this.timerCheckpoint.setReadTimeSec(timeSec);
+        this.timerCheckpoint.flush();
+
+        this.timerLog.deleteExpiredFileByOffset(timeSec, UNIT_SIZE);
+    }
+
+    public long getEnqueueOffset() {
+        return enqueueOffset;
+    }
+
+    public long getReadTimeSec() {
+        return readTimeSec;
+    }
+
+    static class TimerUnit {
+        private final long expireBoundSec;
+        private final long prevPos;
+        private final long offsetPy;
+        private final int sizePy;
+        private final long deliverMs;
+
+        TimerUnit(final long expireBoundSec, final long prevPos, final long offsetPy, final int sizePy,
+            final long deliverMs) {
+            this.expireBoundSec = expireBoundSec;
+            this.prevPos = prevPos;
+            this.offsetPy = offsetPy;
+            this.sizePy = sizePy;
+            this.deliverMs = deliverMs;
+        }
+
+        public long getExpireBoundSec() {
+            return expireBoundSec;
+        }
+
+        public long getPrevPos() {
+            return prevPos;
+        }
+
+        public long getOffsetPy() {
+            return offsetPy;
+        }
+
+        public int getSizePy() {
+            return sizePy;
+        }
+
+        public long getDeliverMs() {
+            return deliverMs;
+        }
+    }
+
+    class DeliverTask implements Runnable {
+        private final TimerUnit unit;
+        private final CountDownLatch latch;
+        private volatile boolean delivered = false;
+
+        DeliverTask(final TimerUnit unit, final CountDownLatch latch) {
+            this.unit = unit;
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.delivered = TimerMessageStore.this.deliver(this.unit);
+            } finally {
+                this.latch.countDown();
+            }
+        }
+
+        public boolean isDelivered() {
+            return delivered;
+        }
+    }
+
+    class TimerEnqueueService extends ServiceThread {
+        @Override
+        public String getServiceName() {
+            return TimerEnqueueService.class.getSimpleName();
+        }
+
+        @Override
+        public void run() {
+            TimerMessageStore.log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    if (!TimerMessageStore.this.enqueue()) {
+                        this.waitForRunning(DELAY_FOR_A_WHILE);
+                    }
+                } catch (Exception e) {
+                    TimerMessageStore.log.warn(this.getServiceName() + " service has exception. ", e);
+                    this.waitForRunning(DELAY_FOR_A_WHILE);
+                }
+            }
+
+            TimerMessageStore.log.info(this.getServiceName() + " service end");
+        }
+    }
+
+    class TimerDequeueService extends ServiceThread {
+        @Override
+        public String getServiceName() {
+            return TimerDequeueService.class.getSimpleName();
+        }
+
+        @Override
+        public void run() {
+            TimerMessageStore.log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    if (!TimerMessageStore.this.dequeue()) {
+                        this.waitForRunning(DELAY_FOR_A_WHILE);
+                    }
+                } catch (Exception e) {
+                    TimerMessageStore.log.warn(this.getServiceName() + " service has exception. ", e);
+                    this.waitForRunning(DELAY_FOR_A_WHILE);
+                }
+            }
+
+            TimerMessageStore.log.info(this.getServiceName() + " service end");
+        }
+    }
+
+    class TimerFlushService extends ServiceThread {
+        @Override
+        public String getServiceName() {
+            return TimerFlushService.class.getSimpleName();
+        }
+
+        @Override
+        public void run() {
+            TimerMessageStore.log.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(TimerMessageStore.this.messageStoreConfig.getTimerFlushInterval());
+                    TimerMessageStore.this.flush();
+                } catch (Exception e) {
+                    TimerMessageStore.log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            TimerMessageStore.log.info(this.getServiceName() + " service end");
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.timer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.store.MappedFile;
+
+/**
+ * Memory mapped ring of one second slots. A slot holds the second it currently belongs to and the position of the
+ * last TimerLog unit linked into it, a slot still holding an older second is empty.
+ * <p>
+ * Slot layout: timeSec(8) + lastPos(8) + num(4) + reserved(4)
+ * </p>
+ * Not thread safe, TimerMessageStore guards it.
+ */
+public class TimerWheel {
+    public static final int SLOT_SIZE = 24;
+
+    private final int slotNum;
+    private final MappedFile mappedFile;
+    private final ByteBuffer byteBuffer;
+
+    public TimerWheel(final String storePath, final int slotNum) throws IOException {
+        this.slotNum = slotNum;
+        this.mappedFile = new MappedFile(storePath + File.separator + UtilAll.offset2FileName(0), slotNum * SLOT_SIZE);
+        this.byteBuffer = this.mappedFile.getMappedByteBuffer();
+    }
+
+    public Slot getSlot(final long timeSec) {
+        int pos = this.position(timeSec);
+        if (this.byteBuffer.getLong(pos) != timeSec) {
+            return new Slot(timeSec, -1, 0);
+        }
+        return new Slot(timeSec, this.byteBuffer.getLong(pos + 8), this.byteBuffer.getInt(pos + 16));
+    }
+
+    public void putSlot(final long timeSec, final long lastPos, final int num) {
+        int pos = this.position(timeSec);
+        this.byteBuffer.putLong(pos, timeSec);
+        this.byteBuffer.putLong(pos + 8, lastPos);
+        this.byteBuffer.putInt(pos + 16, num);
+    }
+
+    /**
+     * @return the slot at the index whatever second it belongs to, used when repairing the wheel after a restart
+     */
+    Slot getSlotByIndex(final int index) {
+        int pos = index * SLOT_SIZE;
+        return new Slot(this.byteBuffer.getLong(pos), this.byteBuffer.getLong(pos + 8), this.byteBuffer.getInt(pos + 16));
+    }
+
+    private int position(final long timeSec) {
+        return (int) (timeSec % this.slotNum) * SLOT_SIZE;
+    }
+
+    public int getSlotNum() {
+        return slotNum;
+    }
+
+    public void flush() {
+        this.mappedFile.getMappedByteBuffer().force();
+    }
+
+    public void shutdown() {
+        this.flush();
+        this.mappedFile.shutdown(1000);
+    }
+
+    public void destroy() {
+        this.mappedFile.destroy(1000);
+    }
+
+    public static class Slot {
+        private final long timeSec;
+        private final long lastPos;
+        private final int num;
+
+        public Slot(final long timeSec, final long lastPos, final int num) {
+            this.timeSec = timeSec;
+            this.lastPos = lastPos;
+            this.num = num;
+        }
+
+        public long getTimeSec() {
+            return timeSec;
+        }
+
+        public long getLastPos() {
+            return lastPos;
+        }
+
+        public int getNum() {
+            return num;
+        }
+    }
+}
@@ -50,4 +50,14 @@ public interface LibC extends Library {
     int mlockall(int flags);
 
     int msync(Pointer p, NativeLong length, int flags);
+
+    int O_RDWR = 02;
+
+    int open(String path, int flags);
+
+    int close(int fd);
+
+    NativeLong pwrite(int fd, Pointer buf, NativeLong count, long offset);
+
+    int fdatasync(int fd);
 }
@@ -30,12 +30,14 @@ import org.apache.rocketmq.common.message.Message;
 import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.common.message.MessageExtBatch;
+import org.apache.rocketmq.common.sysflag.MessageSysFlag;
 import org.apache.rocketmq.store.config.MessageStoreConfig;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class AppendCallbackTest {
@@ -153,4 +155,140 @@ public class AppendCallbackTest {
 
     }
 
+    @Test
+    public void testAppendMessageBatchInStoreLayout() throws Exception {
+        List<Message> messages = new ArrayList<>();
+        String topic = "test-topic";
+        for (int i = 0; i < 10; i++) {
+            Message msg = new Message();
+            msg.setBody(("body" + i).getBytes());
+            msg.setTopic(topic);
+            msg.setTags("abc");
+            messages.add(msg);
+        }
+        MessageExtBatch messageExtBatch = new MessageExtBatch();
+        messageExtBatch.setTopic(topic);
+        messageExtBatch.setQueueId(3);
+        messageExtBatch.setBornTimestamp(System.currentTimeMillis());
+        messageExtBatch.setBornHost(new InetSocketAddress("127.0.0.1", 123));
+        messageExtBatch.setStoreHost(new InetSocketAddress("127.0.0.1", 124));
+        messageExtBatch.setBody(MessageDecoder.encodeMessagesInStoreLayout(messages, topic));
+
+        //the request body is patched in place instead of being copied
+        ByteBuffer encoded = batchEncoder.encode(messageExtBatch);
+        assertTrue(encoded.hasArray());
+        assertTrue(encoded.array() == messageExtBatch.getBody());
+
+        messageExtBatch.setEncodedBuff(encoded);
+        ByteBuffer buff = ByteBuffer.allocate(1024 * 10);
+        AppendMessageResult allresult = callback.doAppend(0, buff, 1024 * 10, messageExtBatch);
+        assertEquals(AppendMessageStatus.PUT_OK, allresult.getStatus());
+        assertEquals(messages.size(), allresult.getMsgNum());
+        assertEquals(buff.position(), allresult.getWroteBytes());
+
+        List<MessageExt> decodeMsgs = MessageDecoder.decodes((ByteBuffer) buff.flip());
+        assertEquals(messages.size(), decodeMsgs.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(topic, decodeMsgs.get(i).getTopic());
+            assertEquals(3, decodeMsgs.get(i).getQueueId());
+            assertEquals(i, decodeMsgs.get(i).getQueueOffset());
+            assertEquals(new String(messages.get(i).getBody()), new String(decodeMsgs.get(i).getBody()));
+            assertEquals(UtilAll.crc32(messages.get(i).getBody()), decodeMsgs.get(i).getBodyCRC());
+            assertEquals(messages.get(i).getTags(), decodeMsgs.get(i).getTags());
+            assertEquals(messageExtBatch.getBornHostNameString(), decodeMsgs.get(i).getBornHostNameString());
+        }
+    }
+
+    @Test
+    public void testRejectMalformedBatchInStoreLayout() throws Exception {
+        Message msg = new Message();
+        msg.setBody("body".getBytes());
+        msg.setTopic("test-topic");
+        MessageExtBatch messageExtBatch = new MessageExtBatch();
+        messageExtBatch.setTopic("other-topic");
+        messageExtBatch.setBornHost(new InetSocketAddress("127.0.0.1", 123));
+        messageExtBatch.setStoreHost(new InetSocketAddress("127.0.0.1", 124));
+        List<Message> messages = new ArrayList<>();
+        messages.add(msg);
+        messageExtBatch.setBody(MessageDecoder.encodeMessagesInStoreLayout(messages, "test-topic"));
+
+        assertEquals(null, batchEncoder.encode(messageExtBatch));
+    }
+
+    @Test
+    public void testRecomputeBodyCrcOfBatchInStoreLayout() throws Exception {
+        Message msg = new Message();
+        msg.setBody("body".getBytes());
+        msg.setTopic("test-topic");
+        MessageExtBatch messageExtBatch = new MessageExtBatch();
+        messageExtBatch.setTopic("test-topic");
+        messageExtBatch.setBornHost(new InetSocketAddress("127.0.0.1", 123));
+        messageExtBatch.setStoreHost(new InetSocketAddress("127.0.0.1", 124));
+        List<Message> messages = new ArrayList<>();
+        messages.add(msg);
+        byte[] body = MessageDecoder.encodeMessagesInStoreLayout(messages, "test-topic");
+        //a wrong BODYCRC from the client would make recovery truncate the CommitLog here
+        ByteBuffer.wrap(body).putInt(8, 12345);
+        messageExtBatch.setBody(body);
+
+        ByteBuffer encoded = batchEncoder.encode(messageExtBatch);
+        assertEquals(UtilAll.crc32(msg.getBody()), MessageDecoder.decode(encoded).getBodyCRC());
+    }
+
+    @Test
+    public void testAppendPreEncodedMessage() throws Exception {
+        MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+        msgInner.setTopic("test-topic");
+        msgInner.setQueueId(0);
+        msgInner.setBody("body".getBytes());
+        msgInner.setBodyCRC(UtilAll.crc32(msgInner.getBody()));
+        msgInner.setBornTimestamp(System.currentTimeMillis());
+        msgInner.setStoreTimestamp(System.currentTimeMillis());
+        msgInner.setBornHost(new InetSocketAddress("127.0.0.1", 123));
+        msgInner.setStoreHost(new InetSocketAddress("127.0.0.1", 124));
+        msgInner.setEncodedBuff(new MessageExtEncoder(1024).encode(msgInner));
+
+        ByteBuffer buff = ByteBuffer.allocate(1024 * 10);
+        buff.position(100);
+        AppendMessageResult result = callback.doAppend(0, buff, 1024 * 10 - 100, msgInner);
+        assertEquals(AppendMessageStatus.PUT_OK, result.getStatus());
+        assertEquals(100, result.getWroteOffset());
+        assertEquals(buff.position() - 100, result.getWroteBytes());
+
+        buff.flip();
+        buff.position(100);
+        MessageExt decoded = MessageDecoder.decode(buff);
+        assertEquals(msgInner.getTopic(), decoded.getTopic());
+        assertEquals("body", new String(decoded.getBody()));
+        assertEquals(100, decoded.getCommitLogOffset());
+        assertEquals(msgInner.getStoreTimestamp(), decoded.getStoreTimestamp());
+        assertEquals(result.getLogicsOffset(), decoded.getQueueOffset());
+    }
+
+    @Test
+    public void testClearClientFillerFlag() throws Exception {
+        MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
+        msgInner.setTopic("test-topic");
+        msgInner.setQueueId(0);
+        msgInner.setBody("body".getBytes());
+        msgInner.setBodyCRC(UtilAll.crc32(msgInner.getBody()));
+        msgInner.setSysFlag(MessageSysFlag.FILLER_FLAG);
+        msgInner.setBornTimestamp(System.currentTimeMillis());
+        msgInner.setBornHost(new InetSocketAddress("127.0.0.1", 123));
+        msgInner.setStoreHost(new InetSocketAddress("127.0.0.1", 124));
+
+        ByteBuffer buff = ByteBuffer.allocate(1024 * 10);
+        assertEquals(AppendMessageStatus.PUT_OK, callback.doAppend(0, buff, 1024 * 10, msgInner).getStatus());
+        int preEncodedPos = buff.position();
+        msgInner.setEncodedBuff(new MessageExtEncoder(1024).encode(msgInner));
+        assertEquals(AppendMessageStatus.PUT_OK, callback.doAppend(0, buff, 1024 * 10 - preEncodedPos, msgInner).getStatus());
+
+        buff.flip();
+        assertFalse(DefaultMessageStore.isFiller(buff));
+        assertEquals(0, MessageDecoder.decode(buff).getSysFlag() & MessageSysFlag.FILLER_FLAG);
+        buff.position(preEncodedPos);
+        assertFalse(DefaultMessageStore.isFiller(buff));
+        assertEquals(0, MessageDecoder.decode(buff).getSysFlag() & MessageSysFlag.FILLER_FLAG);
+    }
+
 }
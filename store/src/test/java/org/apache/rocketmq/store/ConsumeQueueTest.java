@@ -102,6 +102,10 @@ public class ConsumeQueueTest {
             commitLogFileSize, cqFileSize, true, cqExtFileSize
         );
 
+        return gen(messageStoreConfig);
+    }
+
+    protected DefaultMessageStore gen(MessageStoreConfig messageStoreConfig) throws Exception {
         BrokerConfig brokerConfig = new BrokerConfig();
 
         DefaultMessageStore master = new DefaultMessageStore(
@@ -265,4 +269,60 @@ public class ConsumeQueueTest {
             UtilAll.deleteFile(new File(storePath));
         }
     }
+
+    @Test
+    public void testConsumeQueueWithTimeIndex() throws Exception {
+        MessageStoreConfig messageStoreConfig = buildStoreConfig(commitLogFileSize, cqFileSize, false, cqExtFileSize);
+        messageStoreConfig.setEnableConsumeQueueTimeIndex(true);
+        messageStoreConfig.setConsumeQueueTimeIndexInterval(3);
+
+        DefaultMessageStore master = gen(messageStoreConfig);
+        try {
+            for (int i = 0; i < 200; i++) {
+                master.putMessage(buildMessage());
+                if (i % 50 == 0) {
+                    Thread.sleep(5);
+                }
+            }
+            // wait build consume queue
+            Thread.sleep(1000);
+            verifyTimeIndex(master);
+
+            // the index is recovered with the consume queue
+            master.shutdown();
+            master = gen(messageStoreConfig);
+            verifyTimeIndex(master);
+        } finally {
+            master.shutdown();
+            master.destroy();
+            UtilAll.deleteFile(new File(storePath));
+        }
+    }
+
+    private void verifyTimeIndex(DefaultMessageStore master) {
+        ConsumeQueue cq = master.getConsumeQueueTable().get(topic).get(queueId);
+        assertThat(cq).isNotNull();
+        assertThat(cq.getMaxOffsetInQueue()).isEqualTo(200);
+
+        long[] storeTimes = new long[200];
+        for (int i = 0; i < storeTimes.length; i++) {
+            SelectMappedBufferResult bufferResult = cq.getIndexBuffer(i);
+            assertThat(bufferResult).isNotNull();
+            try {
+                long phyOffset = bufferResult.getByteBuffer().getLong();
+                int size = bufferResult.getByteBuffer().getInt();
+                storeTimes[i] = master.getCommitLog().pickupStoreTimestamp(phyOffset, size);
+            } finally {
+                bufferResult.release();
+            }
+            assertThat(cq.getMessageStoreTimeStamp(i)).isEqualTo(storeTimes[i]);
+        }
+
+        for (int i = 0; i < storeTimes.length; i += 7) {
+            long offset = cq.getOffsetInQueueByTime(storeTimes[i]);
+            assertThat(storeTimes[(int) offset]).isEqualTo(storeTimes[i]);
+        }
+        assertThat(cq.getOffsetInQueueByTime(storeTimes[0] - 1000)).isEqualTo(0);
+        assertThat(cq.getOffsetInQueueByTime(storeTimes[199] + 1000)).isEqualTo(199);
+    }
 }
@@ -21,14 +21,21 @@ import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.rocketmq.common.BrokerConfig;
 import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.store.config.FlushDiskType;
 import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
 import org.junit.After;
 import org.apache.rocketmq.store.stats.BrokerStatsManager;
 import org.junit.Before;
@@ -151,6 +158,190 @@ public class DefaultMessageStoreTest {
         verifyThatMasterIsFunctional(totalMsgs, messageStore);
     }
 
+    @Test
+    public void testAsyncGroupCommit() throws Exception {
+        // futures are completed by GroupCommitService, which only runs with SYNC_FLUSH
+        assertThat(((DefaultMessageStore) messageStore).getMessageStoreConfig().getFlushDiskType())
+            .isEqualTo(FlushDiskType.SYNC_FLUSH);
+
+        long totalMsgs = 10;
+        QUEUE_TOTAL = 1;
+        MessageBody = StoreMessage.getBytes();
+        List<PutMessageFuture> futures = new ArrayList<PutMessageFuture>();
+        for (long i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setWaitStoreMsgOK(true);
+            futures.add(messageStore.asyncPutMessage(msg));
+        }
+
+        for (PutMessageFuture future : futures) {
+            PutMessageResult result = future.get(5000);
+            assertThat(result).isNotNull();
+            assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+            // completed only once flushed
+            assertThat(((DefaultMessageStore) messageStore).getCommitLog().getMappedFileQueue().getFlushedWhere())
+                .isGreaterThanOrEqualTo(result.getAppendMessageResult().getWroteOffset()
+                    + result.getAppendMessageResult().getWroteBytes());
+        }
+        verifyThatMasterIsFunctional(totalMsgs, messageStore);
+    }
+
+    @Test
+    public void testAsyncPutTimeout() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(messageStoreConfig.getStorePathRootDir() + File.separator + "asyncputtimeout");
+        messageStoreConfig.setStorePathCommitLog(messageStoreConfig.getStorePathRootDir() + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setFlushDiskType(FlushDiskType.SYNC_FLUSH);
+        messageStoreConfig.setSyncFlushTimeout(200);
+        // not started, so GroupCommitService never completes the request
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, null, new MyMessageArrivingListener(), new BrokerConfig());
+        try {
+            assertTrue(store.load());
+            QUEUE_TOTAL = 1;
+            MessageBody = StoreMessage.getBytes();
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setWaitStoreMsgOK(true);
+
+            PutMessageFuture future = store.getCommitLog().asyncPutMessage(msg);
+            assertThat(future.isDone()).isFalse();
+            PutMessageResult result = future.get(5000);
+            assertThat(result).isNotNull();
+            assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.FLUSH_DISK_TIMEOUT);
+            assertThat(result.getAppendMessageResult().getStatus()).isEqualTo(AppendMessageStatus.PUT_OK);
+        } finally {
+            store.shutdown();
+            store.destroy();
+        }
+    }
+
+    @Test
+    public void testAdaptiveGroupCommitWindow() throws Exception {
+        DefaultMessageStore store = (DefaultMessageStore) messageStore;
+        store.getMessageStoreConfig().setGroupCommitMaxWaitMicros(2000);
+        CommitLog.GroupCommitService service = store.getCommitLog().new GroupCommitService();
+        assertThat(service.batchWindowNanos()).isEqualTo(0);
+
+        long now = 0;
+        // requests every 1ms, flushes take 0.1ms: nothing to wait for
+        for (int i = 0; i < 100; i++) {
+            service.recordRequest(now += TimeUnit.MILLISECONDS.toNanos(1));
+            service.recordFlushTime(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        assertThat(service.batchWindowNanos()).isEqualTo(0);
+
+        // flushes slow down to 1.5ms, wait about one flush for the requests arriving meanwhile
+        for (int i = 0; i < 100; i++) {
+            service.recordRequest(now += TimeUnit.MILLISECONDS.toNanos(1));
+            service.recordFlushTime(TimeUnit.MICROSECONDS.toNanos(1500));
+        }
+        assertThat(service.batchWindowNanos()).isBetween(TimeUnit.MICROSECONDS.toNanos(1400), TimeUnit.MICROSECONDS.toNanos(1500));
+
+        // never longer than the configured maximum
+        for (int i = 0; i < 100; i++) {
+            service.recordRequest(now += TimeUnit.MILLISECONDS.toNanos(1));
+            service.recordFlushTime(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        assertThat(service.batchWindowNanos()).isEqualTo(TimeUnit.MICROSECONDS.toNanos(2000));
+
+        // and closed again once the disk is fast
+        for (int i = 0; i < 100; i++) {
+            service.recordRequest(now += TimeUnit.MILLISECONDS.toNanos(1));
+            service.recordFlushTime(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        assertThat(service.batchWindowNanos()).isEqualTo(0);
+    }
+
+    @Test
+    public void testParallelDispatch() throws Exception {
+        messageStore.shutdown();
+        messageStore.destroy();
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024 * 10);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 1024 * 10);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setParallelDispatchEnable(true);
+        messageStoreConfig.setDispatchStripeNum(3);
+        messageStoreConfig.setFlushConsumeQueueThoroughInterval(0);
+        messageStore = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"), new MyMessageArrivingListener(), new BrokerConfig());
+        assertTrue(messageStore.load());
+        messageStore.start();
+
+        long totalMsgs = 100;
+        QUEUE_TOTAL = 8;
+        MessageBody = StoreMessage.getBytes();
+        long lastStoreTimestamp = 0;
+        for (long i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = buildMessage();
+            msg.setKeys("parallel-" + i);
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            lastStoreTimestamp = messageStore.putMessage(msg).getAppendMessageResult().getStoreTimestamp();
+        }
+
+        for (int i = 0; i < 100 && messageStore.dispatchBehindBytes() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(messageStore.dispatchBehindBytes()).isEqualTo(0);
+
+        for (int queueId = 0; queueId < QUEUE_TOTAL; queueId++) {
+            long maxOffset = messageStore.getMaxOffsetInQueue("FooBar", queueId);
+            assertThat(maxOffset).isEqualTo(totalMsgs / QUEUE_TOTAL + (queueId < totalMsgs % QUEUE_TOTAL ? 1 : 0));
+            GetMessageResult result = messageStore.getMessage("GROUP_A", "FooBar", queueId, 0, 1024, null);
+            assertThat(result.getMessageBufferList().size()).isEqualTo((int) maxOffset);
+            result.release();
+        }
+
+        QueryMessageResult queryResult = messageStore.queryMessage("FooBar", "parallel-42", 1, 0, Long.MAX_VALUE);
+        assertThat(queryResult.getMessageBufferList().size()).isEqualTo(1);
+        queryResult.release();
+
+        // the last flush checkpoints the timestamp every worker has reached
+        messageStore.shutdown();
+        assertThat(((DefaultMessageStore) messageStore).getStoreCheckpoint().getLogicsMsgTimestamp()).isEqualTo(lastStoreTimestamp);
+    }
+
+    @Test
+    public void testParallelRecoverAbnormally() throws Exception {
+        messageStore.shutdown();
+        messageStore.destroy();
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 8);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setParallelRecoverEnable(true);
+        messageStoreConfig.setRecoverThreadNum(4);
+        messageStore = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"), new MyMessageArrivingListener(), new BrokerConfig());
+        assertTrue(messageStore.load());
+        messageStore.start();
+
+        long totalMsgs = 200;
+        QUEUE_TOTAL = 4;
+        MessageBody = StoreMessage.getBytes();
+        for (long i = 0; i < totalMsgs; i++) {
+            messageStore.putMessage(buildMessage());
+        }
+        for (int i = 0; i < 100 && messageStore.dispatchBehindBytes() > 0; i++) {
+            Thread.sleep(10);
+        }
+        long maxPhyOffset = messageStore.getMaxPhyOffset();
+        messageStore.shutdown();
+
+        // Pretend the store was not shut down normally
+        assertTrue(new File(StorePathConfigHelper.getAbortFile(messageStoreConfig.getStorePathRootDir())).createNewFile());
+        messageStore = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"), new MyMessageArrivingListener(), new BrokerConfig());
+        assertTrue(messageStore.load());
+        messageStore.start();
+
+        assertThat(messageStore.getMaxPhyOffset()).isEqualTo(maxPhyOffset);
+        for (int queueId = 0; queueId < QUEUE_TOTAL; queueId++) {
+            assertThat(messageStore.getMaxOffsetInQueue("FooBar", queueId)).isEqualTo(totalMsgs / QUEUE_TOTAL);
+        }
+    }
+
     private void verifyThatMasterIsFunctional(long totalMsgs, MessageStore master) {
         for (long i = 0; i < totalMsgs; i++) {
             master.putMessage(buildMessage());
@@ -187,6 +378,31 @@ public class DefaultMessageStoreTest {
         assertThat(getMessageResult45.getMessageBufferList().size()).isEqualTo(10);
     }
 
+    @Test
+    public void testPullCoalescesAdjacentMessages() throws Exception {
+        String topic = "coalesceTopic";
+
+        for (int i = 0; i < 32; i++) {
+            MessageExtBrokerInner messageExtBrokerInner = buildMessage();
+            messageExtBrokerInner.setTopic(topic);
+            messageExtBrokerInner.setQueueId(0);
+            messageStore.putMessage(messageExtBrokerInner);
+        }
+        //wait for consume queue build
+        Thread.sleep(10);
+        GetMessageResult getMessageResult = messageStore.getMessage("simple", topic, 0, 0, 32, null);
+        assertThat(getMessageResult.getMessageCount()).isEqualTo(32);
+        assertThat(getMessageResult.getMessageBufferList().size()).isEqualTo(32);
+        // the messages follow each other in one CommitLog file
+        assertThat(getMessageResult.getTransferBufferList().size()).isEqualTo(1);
+        assertThat(getMessageResult.getTransferBufferList().get(0).remaining()).isEqualTo(getMessageResult.getBufferTotalSize());
+        for (ByteBuffer byteBuffer : getMessageResult.getMessageBufferList()) {
+            MessageExt messageExt = MessageDecoder.decode(byteBuffer);
+            assertThat(messageExt.getTopic()).isEqualTo(topic);
+        }
+        getMessageResult.release();
+    }
+
     private class MyMessageArrivingListener implements MessageArrivingListener {
         @Override
         public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
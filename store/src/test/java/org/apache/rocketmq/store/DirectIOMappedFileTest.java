@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageExtBatch;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DirectIOMappedFileTest {
+    private static final int FILE_SIZE = 1024 * 64;
+
+    @Test
+    public void testCommitPadsTailBlockWithZeros() throws IOException {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setMapedFileSizeCommitLog(FILE_SIZE);
+        messageStoreConfig.setTransientStorePoolSize(1);
+        TransientStorePool transientStorePool = new TransientStorePool(messageStoreConfig);
+        transientStorePool.init();
+        DirectIOMappedFile mappedFile = new DirectIOMappedFile("target/unit_test_store/DirectIOMappedFileTest/000",
+            FILE_SIZE, transientStorePool);
+
+        // the first commit leaves a long partial block behind, the second a short one
+        int first = MappedFile.OS_PAGE_SIZE + 3000;
+        int second = MappedFile.OS_PAGE_SIZE * 2 + 904;
+        append(mappedFile, first, (byte) 'x');
+        assertThat(mappedFile.commit(0)).isEqualTo(first);
+        append(mappedFile, second - first, (byte) 'y');
+        assertThat(mappedFile.commit(0)).isEqualTo(second);
+
+        byte[] data = new byte[MappedFile.OS_PAGE_SIZE * 3];
+        RandomAccessFile file = new RandomAccessFile(mappedFile.getFileName(), "r");
+        try {
+            file.readFully(data);
+        } finally {
+            file.close();
+        }
+        byte[] expected = new byte[data.length];
+        Arrays.fill(expected, 0, first, (byte) 'x');
+        Arrays.fill(expected, first, second, (byte) 'y');
+        assertThat(data).isEqualTo(expected);
+
+        mappedFile.shutdown(1000);
+        assertThat(mappedFile.destroy(1000)).isTrue();
+        transientStorePool.destroy();
+    }
+
+    private static void append(final MappedFile mappedFile, final int size, final byte b) {
+        // goes to the pooled write buffer, like the CommitLog appends
+        mappedFile.appendMessage(new MessageExtBrokerInner(), new AppendMessageCallback() {
+            @Override
+            public AppendMessageResult doAppend(long fileFromOffset, ByteBuffer byteBuffer, int maxBlank,
+                MessageExtBrokerInner msg) {
+                for (int i = 0; i < size; i++) {
+                    byteBuffer.put(b);
+                }
+                return new AppendMessageResult(AppendMessageStatus.PUT_OK, 0, size, "", 0, 0, 0);
+            }
+
+            @Override
+            public AppendMessageResult doAppend(long fileFromOffset, ByteBuffer byteBuffer, int maxBlank,
+                MessageExtBatch messageExtBatch) {
+                throw new UnsupportedOperationException();
+            }
+        });
+    }
+
+    @After
+    public void destroy() {
+        UtilAll.deleteFile(new File("target/unit_test_store/DirectIOMappedFileTest"));
+    }
+}
@@ -22,6 +22,7 @@ package org.apache.rocketmq.store;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.apache.rocketmq.common.UtilAll;
 import org.junit.After;
@@ -52,6 +53,88 @@ public class MappedFileTest {
         assertThat(mappedFile.destroy(1000)).isTrue();
     }
 
+    @Test
+    public void testReserveAndPublish() throws IOException {
+        MappedFile mappedFile = new MappedFile("target/unit_test_store/MappedFileTest/001", 1024 * 64);
+        byte[] data = storeMessage.getBytes();
+
+        int first = mappedFile.reserve(data.length);
+        int second = mappedFile.reserve(data.length);
+        assertThat(first).isEqualTo(0);
+        assertThat(second).isEqualTo(data.length);
+        assertThat(mappedFile.reserve(1024 * 64)).isEqualTo(-1);
+
+        // Reserved but not yet published regions are invisible to readers
+        mappedFile.writeReserved(second, ByteBuffer.wrap(data));
+        assertThat(mappedFile.getReadPosition()).isEqualTo(0);
+
+        mappedFile.writeReserved(first, ByteBuffer.wrap(data));
+        mappedFile.publish(first, data.length, 0);
+        mappedFile.publish(second, data.length, 0);
+        assertThat(mappedFile.getReadPosition()).isEqualTo(data.length * 2);
+
+        SelectMappedBufferResult selectMappedBufferResult = mappedFile.selectMappedBuffer(second);
+        byte[] read = new byte[data.length];
+        selectMappedBufferResult.getByteBuffer().get(read);
+        assertThat(new String(read)).isEqualTo(storeMessage);
+        selectMappedBufferResult.release();
+
+        mappedFile.shutdown(1000);
+        assertThat(mappedFile.destroy(1000)).isTrue();
+    }
+
+    @Test
+    public void testLazyMappingWithinBudget() throws IOException {
+        int fileSize = 1024 * 4;
+        byte[] data = new byte[fileSize];
+        System.arraycopy(storeMessage.getBytes(), 0, data, 0, storeMessage.length());
+        MappedFileBudget budget = new MappedFileBudget(1, 0);
+        MappedFile sealed = new MappedFile("target/unit_test_store/MappedFileTest/002", fileSize, budget);
+        MappedFile active = new MappedFile("target/unit_test_store/MappedFileTest/003", fileSize, budget);
+        assertThat(sealed.isMapped()).isFalse();
+
+        assertThat(sealed.appendMessage(data)).isTrue();
+        sealed.flush(0);
+        assertThat(active.appendMessage(storeMessage.getBytes())).isTrue();
+        // Appending goes through the file channel
+        assertThat(sealed.isMapped()).isFalse();
+
+        SelectMappedBufferResult held = sealed.selectMappedBuffer(0, storeMessage.length());
+        SelectMappedBufferResult result = active.selectMappedBuffer(0);
+        result.release();
+        assertThat(budget.getMappedFileNum()).isEqualTo(2);
+
+        // Neither the held file nor the one still written is unmapped
+        assertThat(budget.evict()).isEqualTo(0);
+        held.release();
+        assertThat(budget.evict()).isEqualTo(1);
+        assertThat(sealed.isMapped()).isFalse();
+        assertThat(active.isMapped()).isTrue();
+
+        // A slice is safe while the file is held
+        ByteBuffer slice = sealed.holdSliceByteBuffer();
+        assertThat(slice.limit()).isEqualTo(fileSize);
+        assertThat(budget.evict()).isEqualTo(0);
+        sealed.release();
+
+        // Not unmapped if accessed after the idle time
+        assertThat(sealed.unmap(sealed.getLastAccessTimestamp() - 1)).isFalse();
+        assertThat(sealed.unmap(sealed.getLastAccessTimestamp())).isTrue();
+
+        // Mapped again on access
+        held = sealed.selectMappedBuffer(0, storeMessage.length());
+        byte[] read = new byte[storeMessage.length()];
+        held.getByteBuffer().get(read);
+        assertThat(new String(read)).isEqualTo(storeMessage);
+        held.release();
+
+        sealed.shutdown(1000);
+        active.shutdown(1000);
+        assertThat(sealed.destroy(1000)).isTrue();
+        assertThat(active.destroy(1000)).isTrue();
+        assertThat(budget.getMappedFileNum()).isEqualTo(0);
+    }
+
     @After
     public void destory() {
         File file = new File("target/unit_test_store");
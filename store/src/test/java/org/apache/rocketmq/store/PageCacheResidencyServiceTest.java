@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PageCacheResidencyServiceTest {
+    // 1000 messages of about 130 bytes fill four files
+    private static final int FILE_SIZE = 1024 * 32;
+    private static final long COMMITTED_OFFSET = 700;
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-residency";
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(this.storePath);
+        messageStoreConfig.setStorePathCommitLog(this.storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(FILE_SIZE);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setPinnedCommitLogSize(FILE_SIZE);
+        messageStoreConfig.setColdReadThrottleLag(100);
+        messageStoreConfig.setColdReadBytesPerSecond(0);
+        this.messageStore = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        this.messageStore.setConsumerOffsetProvider(new ConsumerOffsetProvider() {
+            @Override
+            public long queryOffset(String group, String topic, int queueId) {
+                return "GROUP_A".equals(group) ? COMMITTED_OFFSET : -1;
+            }
+
+            @Override
+            public Map<String, Map<Integer, Long>> queryMinOffsetInAllGroup() {
+                return Collections.<String, Map<Integer, Long>>singletonMap("TOPIC_A",
+                    Collections.singletonMap(0, COMMITTED_OFFSET));
+            }
+        });
+        assertThat(this.messageStore.load()).isTrue();
+        this.messageStore.start();
+    }
+
+    @After
+    public void destroy() {
+        this.messageStore.shutdown();
+        this.messageStore.destroy();
+        UtilAll.deleteFile(new File(this.storePath));
+    }
+
+    @Test
+    public void testPinAndRelease() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            MessageExtBrokerInner msg = new MessageExtBrokerInner();
+            msg.setTopic("TOPIC_A");
+            msg.setQueueId(0);
+            msg.setBody("Once, there was a chance for me!".getBytes());
+            msg.setBornTimestamp(System.currentTimeMillis());
+            msg.setBornHost(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            msg.setStoreHost(new InetSocketAddress(InetAddress.getLocalHost(), 8123));
+            assertThat(this.messageStore.putMessage(msg).isOk()).isTrue();
+        }
+        for (int i = 0; i < 100 && this.messageStore.getMaxOffsetInQueue("TOPIC_A", 0) < 1000; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(this.messageStore.getMaxOffsetInQueue("TOPIC_A", 0)).isEqualTo(1000);
+        MappedFileQueue mappedFileQueue = this.messageStore.getCommitLog().getMappedFileQueue();
+        List<MappedFile> mappedFiles = mappedFileQueue.getMappedFiles();
+        assertThat(mappedFiles.size()).isGreaterThan(2);
+        // Flushed a file at a time
+        for (int i = 0; i < mappedFiles.size(); i++) {
+            mappedFileQueue.flush(0);
+        }
+
+        PageCacheResidencyService residencyService = new PageCacheResidencyService(this.messageStore);
+        // Only the newest file is within the pinned size
+        assertThat(residencyService.pinTail()).isEqualTo(FILE_SIZE);
+        assertThat(mappedFiles.get(mappedFiles.size() - 1).isLocked()).isTrue();
+
+        long consumedOffset = this.messageStore.getCommitLogOffsetInQueue("TOPIC_A", 0, COMMITTED_OFFSET);
+        long expected = consumedOffset / FILE_SIZE * FILE_SIZE;
+        assertThat(expected).isGreaterThan(0);
+        assertThat(residencyService.releaseConsumed()).isEqualTo(expected);
+        // Released once
+        assertThat(residencyService.releaseConsumed()).isEqualTo(0);
+
+        // Only groups lagging far behind are throttled
+        residencyService.onColdRead(1024);
+        assertThat(residencyService.isColdReadThrottled("GROUP_A", "TOPIC_A", 0)).isTrue();
+        assertThat(residencyService.isColdReadThrottled("GROUP_B", "TOPIC_A", 0)).isFalse();
+        assertThat(residencyService.getThrottledTimes()).isEqualTo(1);
+    }
+}
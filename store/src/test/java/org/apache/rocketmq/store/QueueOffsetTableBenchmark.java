@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Per append offset lookup and update of {@link QueueOffsetTable} against the former HashMap keyed by
+ * "topic-queueId". Run with -prof gc to compare allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueOffsetTableBenchmark {
+    private static final int QUEUES_PER_TOPIC = 8;
+
+    @Param({"1000", "50000"})
+    private int queueNum;
+
+    private String[] topics;
+    private int[] queueIds;
+    private int next;
+
+    private final StringBuilder keyBuilder = new StringBuilder();
+    private HashMap<String, Long> hashMap;
+    private QueueOffsetTable queueOffsetTable;
+
+    @Setup
+    public void setup() {
+        this.topics = new String[this.queueNum];
+        this.queueIds = new int[this.queueNum];
+        this.hashMap = new HashMap<String, Long>(1024);
+        this.queueOffsetTable = new QueueOffsetTable(1024);
+        for (int i = 0; i < this.queueNum; i++) {
+            this.topics[i] = "BenchmarkTopic-" + (i / QUEUES_PER_TOPIC);
+            this.queueIds[i] = i % QUEUES_PER_TOPIC;
+            this.hashMap.put(this.topics[i] + "-" + this.queueIds[i], 0L);
+            this.queueOffsetTable.put(this.topics[i], this.queueIds[i], 0L);
+        }
+    }
+
+    @Benchmark
+    public long hashMap() {
+        int i = this.nextQueue();
+        this.keyBuilder.setLength(0);
+        this.keyBuilder.append(this.topics[i]);
+        this.keyBuilder.append('-');
+        this.keyBuilder.append(this.queueIds[i]);
+        String key = this.keyBuilder.toString();
+        Long queueOffset = this.hashMap.get(key);
+        if (null == queueOffset) {
+            queueOffset = 0L;
+        }
+        this.hashMap.put(key, ++queueOffset);
+        return queueOffset;
+    }
+
+    @Benchmark
+    public long queueOffsetTable() {
+        int i = this.nextQueue();
+        long queueOffset = this.queueOffsetTable.get(this.topics[i], this.queueIds[i]);
+        this.queueOffsetTable.put(this.topics[i], this.queueIds[i], ++queueOffset);
+        return queueOffset;
+    }
+
+    private int nextQueue() {
+        if (++this.next == this.queueNum) {
+            this.next = 0;
+        }
+        return this.next;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+            .include(QueueOffsetTableBenchmark.class.getSimpleName())
+            .build();
+        new Runner(options).run();
+    }
+}
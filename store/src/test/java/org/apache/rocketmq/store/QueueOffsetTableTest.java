@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.util.HashMap;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueueOffsetTableTest {
+    @Test
+    public void testPutGetAndGrow() {
+        QueueOffsetTable table = new QueueOffsetTable(16);
+        assertThat(table.get("TopicTest", 0)).isEqualTo(0);
+
+        for (int i = 0; i < 1000; i++) {
+            table.put("TopicTest-" + (i / 8), i % 8, i + 1);
+        }
+        assertThat(table.size()).isEqualTo(1000);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(table.get("TopicTest-" + (i / 8), i % 8)).isEqualTo(i + 1);
+        }
+
+        table.put("TopicTest-0", 0, 100);
+        assertThat(table.get("TopicTest-0", 0)).isEqualTo(100);
+        assertThat(table.size()).isEqualTo(1000);
+    }
+
+    @Test
+    public void testRemove() {
+        QueueOffsetTable table = new QueueOffsetTable(16);
+        for (int i = 0; i < 500; i++) {
+            table.put("TopicTest", i, i + 1);
+        }
+        for (int i = 0; i < 500; i += 2) {
+            table.remove("TopicTest", i);
+        }
+        table.remove("TopicTest", 1000);
+
+        assertThat(table.size()).isEqualTo(250);
+        for (int i = 0; i < 500; i++) {
+            assertThat(table.get("TopicTest", i)).isEqualTo(i % 2 == 0 ? 0 : i + 1);
+        }
+    }
+
+    @Test
+    public void testMapConversion() {
+        HashMap<String, Long> map = new HashMap<String, Long>();
+        map.put("TopicTest-0", 10L);
+        map.put("Topic-With-Dash-3", 20L);
+
+        QueueOffsetTable table = QueueOffsetTable.fromMap(map);
+        assertThat(table.get("TopicTest", 0)).isEqualTo(10);
+        assertThat(table.get("Topic-With-Dash", 3)).isEqualTo(20);
+        assertThat(table.toMap()).isEqualTo(map);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReadAheadServiceTest {
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-readahead";
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(this.storePath);
+        messageStoreConfig.setStorePathCommitLog(this.storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setReadAheadSize(1024);
+        this.messageStore = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        assertThat(this.messageStore.load()).isTrue();
+        this.messageStore.start();
+    }
+
+    @After
+    public void destroy() {
+        this.messageStore.shutdown();
+        this.messageStore.destroy();
+        UtilAll.deleteFile(new File(this.storePath));
+    }
+
+    @Test
+    public void testSequentialStream() {
+        ReadAheadService readAheadService = new ReadAheadService(this.messageStore);
+
+        readAheadService.onColdRead("GROUP_A", "TOPIC_A", 0, 0, 100);
+        // Moves forward, [200, 1224) is read ahead
+        readAheadService.onColdRead("GROUP_A", "TOPIC_A", 0, 150, 200);
+        readAheadService.onColdRead("GROUP_A", "TOPIC_A", 0, 200, 300);
+        readAheadService.onColdRead("GROUP_A", "TOPIC_A", 0, 300, 400);
+        assertThat(readAheadService.getHitTimes()).isEqualTo(2);
+        assertThat(readAheadService.getMissTimes()).isEqualTo(2);
+
+        // Streams of other groups are tracked on their own
+        readAheadService.onColdRead("GROUP_B", "TOPIC_A", 0, 300, 400);
+        // A jump leaves the read ahead region
+        readAheadService.onColdRead("GROUP_A", "TOPIC_A", 0, 8000, 8100);
+        assertThat(readAheadService.getHitTimes()).isEqualTo(2);
+        assertThat(readAheadService.getMissTimes()).isEqualTo(4);
+    }
+
+    @Test
+    public void testCommitLogReadAhead() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            MessageExtBrokerInner msg = new MessageExtBrokerInner();
+            msg.setTopic("TOPIC_A");
+            msg.setQueueId(0);
+            msg.setBody("Once, there was a chance for me!".getBytes());
+            msg.setBornTimestamp(System.currentTimeMillis());
+            msg.setBornHost(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            msg.setStoreHost(new InetSocketAddress(InetAddress.getLocalHost(), 8123));
+            assertThat(this.messageStore.putMessage(msg).isOk()).isTrue();
+        }
+
+        long maxPhyOffset = this.messageStore.getMaxPhyOffset();
+        // Only written data is read ahead
+        assertThat(this.messageStore.getCommitLog().readAhead(0, 1024 * 1024)).isEqualTo(maxPhyOffset);
+        assertThat(this.messageStore.getCommitLog().readAhead(10, 20)).isEqualTo(20);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.store.config.BrokerRole;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ShardedCommitLogTest {
+    private static final int QUEUE_TOTAL = 8;
+    private final String storePath = "target/unit_test_store/ShardedCommitLogTest";
+    private SocketAddress bornHost;
+    private SocketAddress storeHost;
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        bornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+        messageStore = buildMessageStore();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    private DefaultMessageStore buildMessageStore() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setCommitLogShardNum(4);
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MyMessageArrivingListener(), new BrokerConfig());
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    @Test
+    public void testPutAndGetAcrossShards() throws Exception {
+        assertThat(messageStore.getCommitLog()).isInstanceOf(ShardedCommitLog.class);
+        assertThat(messageStore.getCommitLog().getShards()).hasSize(4);
+        assertThat(messageStore.getCommitLog().getMappedFileQueue())
+            .isSameAs(messageStore.getCommitLog().getShards().get(0).getMappedFileQueue());
+
+        int totalMsgs = 100;
+        Set<Integer> usedShards = new HashSet<Integer>();
+        for (int i = 0; i < totalMsgs; i++) {
+            PutMessageResult result = messageStore.putMessage(buildMessage(i % QUEUE_TOTAL));
+            assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+
+            long wroteOffset = result.getAppendMessageResult().getWroteOffset();
+            CommitLog shard = messageStore.getCommitLog().shardOf("FooBar", i % QUEUE_TOTAL);
+            assertThat(messageStore.getCommitLog().shardOfOffset(wroteOffset)).isSameAs(shard);
+            usedShards.add(shard.getShardIndex());
+        }
+        assertThat(usedShards.size()).isGreaterThan(1);
+
+        waitDispatched(messageStore);
+        assertMessages(messageStore, totalMsgs);
+
+        messageStore.shutdown();
+        messageStore = buildMessageStore();
+        assertMessages(messageStore, totalMsgs);
+    }
+
+    @Test
+    public void testPullFromShard() throws Exception {
+        // a queue routed away from shard 0, so its offsets are beyond the first shard
+        int queueId = 0;
+        while (messageStore.getCommitLog().shardOf("FooBar", queueId).getShardIndex() == 0) {
+            queueId++;
+        }
+
+        long firstOffset = -1;
+        for (int i = 0; i < 16; i++) {
+            PutMessageResult result = messageStore.putMessage(buildMessage(queueId));
+            assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+            if (firstOffset < 0) {
+                firstOffset = result.getAppendMessageResult().getWroteOffset();
+            }
+        }
+        waitDispatched(messageStore);
+
+        SelectMappedBufferResult data = messageStore.getCommitLogData(firstOffset);
+        assertThat(data).isNotNull();
+        assertThat(data.getStartOffset()).isEqualTo(firstOffset);
+        data.release();
+
+        // Offsets of the shard roll within it
+        CommitLog shard = messageStore.getCommitLog().shardOf("FooBar", queueId);
+        assertThat(messageStore.getCommitLog().rollNextFile(firstOffset)).isEqualTo(shard.rollNextFile(firstOffset));
+        assertThat(messageStore.getCommitLog().shardOfOffset(messageStore.getCommitLog().rollNextFile(firstOffset)))
+            .isSameAs(shard);
+
+        GetMessageResult result = messageStore.getMessage("GROUP_A", "FooBar", queueId, 0, 16, null);
+        assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+        assertThat(result.getMessageCount()).isEqualTo(16);
+        assertThat(result.getTransferBufferList()).hasSize(1);
+        for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+            assertThat(MessageDecoder.decode(byteBuffer).getQueueId()).isEqualTo(queueId);
+        }
+        result.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShardNumBeyondCheckpoint() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath + File.separator + "beyond");
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "beyond" + File.separator + "commitlog");
+        messageStoreConfig.setCommitLogShardNum(MessageStoreConfig.MAX_COMMIT_LOG_SHARD_NUM + 1);
+        new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MyMessageArrivingListener(), new BrokerConfig());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShardNumBeyondCheckpointOnSlave() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath + File.separator + "beyond");
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "beyond" + File.separator + "commitlog");
+        messageStoreConfig.setBrokerRole(BrokerRole.SLAVE);
+        messageStoreConfig.setCommitLogShardNum(MessageStoreConfig.MAX_COMMIT_LOG_SHARD_NUM + 1);
+        new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MyMessageArrivingListener(), new BrokerConfig());
+    }
+
+    private void waitDispatched(MessageStore store) throws InterruptedException {
+        for (int i = 0; i < 100 && store.dispatchBehindBytes() > 0; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void assertMessages(MessageStore store, int totalMsgs) {
+        for (int queueId = 0; queueId < QUEUE_TOTAL; queueId++) {
+            GetMessageResult result = store.getMessage("GROUP_A", "FooBar", queueId, 0, 1024, null);
+            assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+            assertThat(result.getMessageCount()).isEqualTo(totalMsgs / QUEUE_TOTAL + (queueId < totalMsgs % QUEUE_TOTAL ? 1 : 0));
+            result.release();
+        }
+    }
+
+    private MessageExtBrokerInner buildMessage(int queueId) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic("FooBar");
+        msg.setTags("TAG1");
+        msg.setKeys("Hello");
+        msg.setBody("Once, there was a chance for me!".getBytes());
+        msg.setQueueId(queueId);
+        msg.setSysFlag(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(storeHost);
+        msg.setBornHost(bornHost);
+        return msg;
+    }
+
+    private class MyMessageArrivingListener implements MessageArrivingListener {
+        @Override
+        public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+            byte[] filterBitMap, Map<String, String> properties) {
+        }
+    }
+}
@@ -47,6 +47,23 @@ public class StoreCheckpointTest {
         assertThat(storeCheckpoint.getLogicsMsgTimestamp()).isEqualTo(logicsMsgTimestamp);
     }
 
+    @Test
+    public void testWriteAndReadOffsets() throws IOException {
+        StoreCheckpoint storeCheckpoint = new StoreCheckpoint("target/checkpoint_test/0000", 2);
+        assertThat(storeCheckpoint.getMinOffset(0)).isEqualTo(-1);
+        storeCheckpoint.setPhysicMsgOffset(0, 0x1000);
+        storeCheckpoint.setLogicsMsgOffset(0, 0x0800);
+        storeCheckpoint.setPhysicMsgOffset(1, 0x2000);
+        storeCheckpoint.setLogicsMsgOffset(1, 0x3000);
+        storeCheckpoint.flush();
+        storeCheckpoint.shutdown();
+
+        storeCheckpoint = new StoreCheckpoint("target/checkpoint_test/0000", 2);
+        assertThat(storeCheckpoint.getMinOffset(0)).isEqualTo(0x0800);
+        assertThat(storeCheckpoint.getMinOffset(1)).isEqualTo(0x2000);
+        storeCheckpoint.shutdown();
+    }
+
     @After
     public void destory() {
         File file = new File("target/checkpoint_test");
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StoreStatsServiceTest {
+    @Test
+    public void testGroupCommitFlushTimePercentile() {
+        StoreStatsService storeStatsService = new StoreStatsService();
+        assertThat(storeStatsService.getGroupCommitFlushTimePercentile(0.99)).isEqualTo(0);
+
+        for (int i = 0; i < 98; i++) {
+            storeStatsService.setGroupCommitFlushTime(300);
+        }
+        storeStatsService.setGroupCommitFlushTime(5000);
+        storeStatsService.setGroupCommitFlushTime(Long.MAX_VALUE);
+
+        assertThat(storeStatsService.getGroupCommitFlushTimePercentile(0.5)).isEqualTo(512);
+        assertThat(storeStatsService.getGroupCommitFlushTimePercentile(0.99)).isEqualTo(8192);
+        assertThat(storeStatsService.getGroupCommitFlushTimePercentile(1)).isEqualTo(1L << 24);
+    }
+}
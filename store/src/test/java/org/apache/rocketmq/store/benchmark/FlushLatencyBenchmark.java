@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.benchmark;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.MessageArrivingListener;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.PutMessageResult;
+import org.apache.rocketmq.store.PutMessageStatus;
+import org.apache.rocketmq.store.config.FlushDiskType;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+
+/**
+ * Compare SYNC_FLUSH put latency of the mapped file flush path against the direct I/O flush path.
+ * <p>
+ * Usage: FlushLatencyBenchmark [storePath] [threads] [messagesPerThread] [bodySize]
+ */
+public class FlushLatencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String storePath = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir") + File.separator + "flushbench";
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int messagesPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        int bodySize = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+
+        run("mmap force", storePath, false, threads, messagesPerThread, bodySize);
+        run("direct I/O", storePath, true, threads, messagesPerThread, bodySize);
+    }
+
+    private static void run(String name, String storePath, boolean directIO, int threads, final int messagesPerThread,
+        final int bodySize) throws Exception {
+        UtilAll.deleteFile(new File(storePath));
+
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024 * 128);
+        messageStoreConfig.setTransientStorePoolSize(3);
+        messageStoreConfig.setFlushDiskType(FlushDiskType.SYNC_FLUSH);
+        messageStoreConfig.setDirectIOFlushEnable(directIO);
+        final DefaultMessageStore messageStore = new DefaultMessageStore(messageStoreConfig,
+            new BrokerStatsManager("FlushLatencyBenchmark"), new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        if (!messageStore.load()) {
+            throw new IllegalStateException("load message store failed");
+        }
+        messageStore.start();
+
+        final long[][] latencies = new long[threads][messagesPerThread];
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final SocketAddress host = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int threadIndex = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        byte[] body = new byte[bodySize];
+                        for (int i = 0; i < messagesPerThread; i++) {
+                            MessageExtBrokerInner msg = new MessageExtBrokerInner();
+                            msg.setTopic("FlushLatencyBenchmark");
+                            msg.setQueueId(threadIndex % 8);
+                            msg.setBody(body);
+                            msg.setBornTimestamp(System.currentTimeMillis());
+                            msg.setBornHost(host);
+                            msg.setStoreHost(host);
+
+                            long start = System.nanoTime();
+                            PutMessageResult result = messageStore.putMessage(msg);
+                            latencies[threadIndex][i] = System.nanoTime() - start;
+                            if (result.getPutMessageStatus() != PutMessageStatus.PUT_OK) {
+                                System.out.printf("put message failed: %s%n", result.getPutMessageStatus());
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }, "FlushLatencyBenchmark-" + t).start();
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - begin;
+
+        messageStore.shutdown();
+        messageStore.destroy();
+        UtilAll.deleteFile(new File(storePath));
+
+        long[] all = new long[threads * messagesPerThread];
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, all, t * messagesPerThread, messagesPerThread);
+        }
+        Arrays.sort(all);
+        System.out.printf("%-10s TPS: %d p50: %dus p99: %dus p999: %dus max: %dus%n",
+            name,
+            all.length * TimeUnit.SECONDS.toNanos(1) / elapsed,
+            TimeUnit.NANOSECONDS.toMicros(all[all.length / 2]),
+            TimeUnit.NANOSECONDS.toMicros(all[(int) (all.length * 0.99)]),
+            TimeUnit.NANOSECONDS.toMicros(all[(int) (all.length * 0.999)]),
+            TimeUnit.NANOSECONDS.toMicros(all[all.length - 1]));
+    }
+}
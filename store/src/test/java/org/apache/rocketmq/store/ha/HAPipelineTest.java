@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.ha;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.GetMessageResult;
+import org.apache.rocketmq.store.GetMessageStatus;
+import org.apache.rocketmq.store.MessageArrivingListener;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.PutMessageResult;
+import org.apache.rocketmq.store.PutMessageStatus;
+import org.apache.rocketmq.store.config.BrokerRole;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HAPipelineTest {
+    private static final int QUEUE_TOTAL = 4;
+    private final String storePath = "target/unit_test_store/HAPipelineTest";
+    private SocketAddress bornHost;
+    private SocketAddress storeHost;
+    private DefaultMessageStore master;
+    private DefaultMessageStore slave;
+
+    @Before
+    public void init() throws Exception {
+        storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        bornHost = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+    }
+
+    @After
+    public void destroy() {
+        if (slave != null) {
+            slave.shutdown();
+            slave.destroy();
+        }
+        if (master != null) {
+            master.shutdown();
+            master.destroy();
+        }
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testPipelinedReplication() throws Exception {
+        // a window smaller than a batch, so the master keeps waiting for acks
+        this.startPair(true, true, 1024);
+        this.replicate(200);
+    }
+
+    @Test
+    public void testPipelinedMasterWithSlave() throws Exception {
+        this.startPair(true, false, 1024 * 4);
+        this.replicate(200);
+    }
+
+    @Test
+    public void testMasterWithPipelinedSlave() throws Exception {
+        this.startPair(false, true, 1024 * 4);
+        this.replicate(200);
+    }
+
+    private void startPair(final boolean masterPipelined, final boolean slavePipelined, final int maxInFlightSize)
+        throws Exception {
+        int masterHaPort = freePort();
+        master = this.buildMessageStore("master", BrokerRole.ASYNC_MASTER, masterHaPort, masterPipelined, maxInFlightSize);
+        slave = this.buildMessageStore("slave", BrokerRole.SLAVE, freePort(), slavePipelined, maxInFlightSize);
+        slave.updateHaMasterAddress("127.0.0.1:" + masterHaPort);
+    }
+
+    private void replicate(final int totalMsgs) throws Exception {
+        for (int i = 0; i < totalMsgs; i++) {
+            PutMessageResult result = master.putMessage(this.buildMessage(i % QUEUE_TOTAL));
+            assertThat(result.getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+
+        long masterMaxOffset = master.getMaxPhyOffset();
+        for (int i = 0; i < 1000 && (slave.getMaxPhyOffset() < masterMaxOffset
+            || master.getHaService().getPush2SlaveMaxOffset().get() < masterMaxOffset
+            || slave.dispatchBehindBytes() > 0); i++) {
+            Thread.sleep(10);
+        }
+        assertThat(slave.getMaxPhyOffset()).isEqualTo(masterMaxOffset);
+        // acks are cumulative, the last one covers everything sent
+        assertThat(master.getHaService().getPush2SlaveMaxOffset().get()).isEqualTo(masterMaxOffset);
+
+        for (int queueId = 0; queueId < QUEUE_TOTAL; queueId++) {
+            assertThat(slave.getMaxOffsetInQueue("FooBar", queueId)).isEqualTo(totalMsgs / QUEUE_TOTAL);
+            // a single pull returns at most maxTransferCountOnMessageInMemory messages
+            long offset = 0;
+            while (offset < totalMsgs / QUEUE_TOTAL) {
+                GetMessageResult result = slave.getMessage("GROUP_A", "FooBar", queueId, offset, 1024, null);
+                assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+                assertThat(result.getMessageCount()).isGreaterThan(0);
+                offset += result.getMessageCount();
+                assertThat(result.getNextBeginOffset()).isEqualTo(offset);
+                result.release();
+            }
+            assertThat(offset).isEqualTo(totalMsgs / QUEUE_TOTAL);
+        }
+    }
+
+    private DefaultMessageStore buildMessageStore(final String name, final BrokerRole brokerRole, final int haPort,
+        final boolean pipelined, final int maxInFlightSize) throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath + File.separator + name);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + name + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setBrokerRole(brokerRole);
+        messageStoreConfig.setHaListenPort(haPort);
+        messageStoreConfig.setHaPipelineEnable(pipelined);
+        messageStoreConfig.setHaMaxInFlightSize(maxInFlightSize);
+        messageStoreConfig.setHaTransferBatchSize(1024 * 2);
+        // the reput service of a broker with id 0 acts as a master even if its store is a slave
+        BrokerConfig brokerConfig = new BrokerConfig();
+        brokerConfig.setBrokerId(brokerRole == BrokerRole.SLAVE ? 1 : 0);
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("simpleTest"),
+            new MyMessageArrivingListener(), brokerConfig);
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    private static int freePort() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0);
+        try {
+            return serverSocket.getLocalPort();
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    private MessageExtBrokerInner buildMessage(int queueId) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic("FooBar");
+        msg.setTags("TAG1");
+        msg.setKeys("Hello");
+        msg.setBody("Once, there was a chance for me!".getBytes());
+        msg.setQueueId(queueId);
+        msg.setSysFlag(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreHost(storeHost);
+        msg.setBornHost(bornHost);
+        return msg;
+    }
+
+    private class MyMessageArrivingListener implements MessageArrivingListener {
+        @Override
+        public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+            byte[] filterBitMap, Map<String, String> properties) {
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.rocketmq.common.UtilAll;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Fail.failBecauseExceptionWasNotThrown;
+
+public class IndexRunTest {
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-lsmindex";
+
+    @After
+    public void destroy() {
+        UtilAll.deleteFile(new File(this.storePath));
+    }
+
+    private LsmIndexService.Memtable newMemtable(final int keyNum, final long phyOffsetBase) {
+        LsmIndexService.Memtable memtable = new LsmIndexService.Memtable();
+        for (int i = 0; i < keyNum; i++) {
+            memtable.put(new IndexEntry(LsmIndexService.hash("TopicTest#" + (i % 100)), 1000 + i, phyOffsetBase + i));
+        }
+        return memtable;
+    }
+
+    @Test
+    public void testCreateAndSelect() throws Exception {
+        LsmIndexService.Memtable memtable = this.newMemtable(1000, 0);
+        IndexRun run = IndexRun.create(this.storePath, 0, 0, new long[0], memtable.iterator(), memtable.getSize(), 1, 0, 0);
+        assertThat(run).isNotNull();
+        assertThat(run.getEntryCount()).isEqualTo(1000);
+
+        List<IndexEntry> found = new ArrayList<IndexEntry>();
+        run.select(LsmIndexService.hash("TopicTest#60"), 0, Long.MAX_VALUE, 64, found);
+        assertThat(found).hasSize(10);
+        // newest first
+        assertThat(found.get(0).getPhyOffset()).isEqualTo(960);
+        assertThat(found.get(9).getPhyOffset()).isEqualTo(60);
+
+        found.clear();
+        run.select(LsmIndexService.hash("TopicTest#60"), 1200, 1500, 64, found);
+        assertThat(found).hasSize(3);
+
+        found.clear();
+        run.select(LsmIndexService.hash("TopicTest#missing"), 0, Long.MAX_VALUE, 64, found);
+        assertThat(found).isEmpty();
+
+        // entries read back after a restart
+        run.shutdown(0);
+        IndexRun reloaded = new IndexRun(this.storePath + File.separator + UtilAll.offset2FileName(0));
+        assertThat(reloaded.getEntryCount()).isEqualTo(1000);
+        assertThat(reloaded.getMinPhyOffset()).isEqualTo(0);
+        assertThat(reloaded.getMaxPhyOffset()).isEqualTo(999);
+        reloaded.select(LsmIndexService.hash("TopicTest#60"), 0, Long.MAX_VALUE, 4, found);
+        assertThat(found).hasSize(4);
+        reloaded.destroy(0);
+    }
+
+    @Test
+    public void testMergeRuns() throws Exception {
+        LsmIndexService.Memtable first = this.newMemtable(500, 0);
+        LsmIndexService.Memtable second = this.newMemtable(500, 250);
+        IndexRun run1 = IndexRun.create(this.storePath, 0, 0, new long[0], first.iterator(), first.getSize(), 1, 0, 0);
+        IndexRun run2 = IndexRun.create(this.storePath, 1, 0, new long[0], second.iterator(), second.getSize(), 1, 0, 0);
+
+        List<Iterator<IndexEntry>> iterators = Arrays.asList(run1.iterator(), run2.iterator());
+        // entries of offsets below 100 dropped as deleted messages
+        IndexRun merged = IndexRun.create(this.storePath, 2, 1, new long[] {0, 1},
+            new LsmIndexService.MergeIterator(iterators), 1000, 1, 100, 0);
+        assertThat(merged.getLevel()).isEqualTo(1);
+        assertThat(merged.getInputs()).containsExactly(0L, 1L);
+        assertThat(merged.getMinPhyOffset()).isEqualTo(100);
+
+        IndexEntry last = null;
+        int count = 0;
+        for (Iterator<IndexEntry> it = merged.iterator(); it.hasNext(); count++) {
+            IndexEntry entry = it.next();
+            if (last != null) {
+                assertThat(entry.compareTo(last)).isGreaterThan(0);
+            }
+            last = entry;
+        }
+        // offsets of the two runs overlap but their store times differ, so no entry is merged away
+        assertThat(count).isEqualTo(400 + 500);
+
+        run1.destroy(0);
+        run2.destroy(0);
+        merged.destroy(0);
+    }
+
+    @Test
+    public void testCreateFailureLeavesNoFile() throws Exception {
+        LsmIndexService.Memtable memtable = this.newMemtable(100, 0);
+        try {
+            IndexRun.create(this.storePath, 0, 0, new long[0], memtable.iterator(), IndexRun.MAX_ENTRY_COUNT + 1, 1,
+                0, 0);
+            failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException ignored) {
+        }
+
+        final Iterator<IndexEntry> entries = memtable.iterator();
+        Iterator<IndexEntry> failing = new Iterator<IndexEntry>() {
+            private int count = 0;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public IndexEntry next() {
+                if (++this.count > 50) {
+                    throw new IllegalStateException("read run failed");
+                }
+                return entries.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try {
+            IndexRun.create(this.storePath, 1, 0, new long[0], failing, 100, 1, 0, 0);
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException ignored) {
+        }
+
+        String[] files = new File(this.storePath).list();
+        assertThat(files == null ? new String[0] : files).isEmpty();
+    }
+}
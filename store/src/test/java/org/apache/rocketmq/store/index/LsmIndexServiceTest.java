@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.index;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.MessageArrivingListener;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.QueryMessageResult;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.config.StorePathConfigHelper;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LsmIndexServiceTest {
+    private static final String TOPIC = "LsmIndexTopic";
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-lsmindexservice";
+    private DefaultMessageStore messageStore;
+
+    @After
+    public void destroy() {
+        if (this.messageStore != null) {
+            this.messageStore.shutdown();
+            this.messageStore.destroy();
+        }
+        UtilAll.deleteFile(new File(this.storePath));
+    }
+
+    private DefaultMessageStore createMessageStore() throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(this.storePath);
+        messageStoreConfig.setStorePathCommitLog(this.storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 64);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(1024 * 4);
+        messageStoreConfig.setMaxHashSlotNum(100);
+        messageStoreConfig.setMaxIndexNum(100 * 10);
+        messageStoreConfig.setMessageIndexLsmEnable(true);
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("lsmIndexTest"),
+            new MessageArrivingListener() {
+                @Override
+                public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+                    byte[] filterBitMap, Map<String, String> properties) {
+                }
+            }, new BrokerConfig());
+        assertThat(store.load()).isTrue();
+        store.start();
+        return store;
+    }
+
+    @Test
+    public void testRebuildLostMemtable() throws Exception {
+        this.messageStore = this.createMessageStore();
+        int totalMsgs = 500;
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = new MessageExtBrokerInner();
+            msg.setTopic(TOPIC);
+            msg.setQueueId(0);
+            msg.setKeys("key" + i);
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            msg.setBody(("lsm index message " + i).getBytes());
+            msg.setBornTimestamp(System.currentTimeMillis());
+            msg.setBornHost(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            msg.setStoreHost(new InetSocketAddress(InetAddress.getLocalHost(), 8123));
+            assertThat(this.messageStore.putMessage(msg).isOk()).isTrue();
+        }
+        for (int i = 0; i < 100 && this.messageStore.getMaxOffsetInQueue(TOPIC, 0) < totalMsgs; i++) {
+            Thread.sleep(10);
+        }
+        this.assertFound("key7");
+
+        // the runs are gone as if the memtable had never been flushed before the broker went down
+        this.messageStore.shutdown();
+        UtilAll.deleteFile(new File(StorePathConfigHelper.getStorePathLsmIndex(this.storePath)));
+        this.messageStore = this.createMessageStore();
+
+        this.assertFound("key7");
+        this.assertFound("key" + (totalMsgs - 1));
+    }
+
+    private void assertFound(final String key) {
+        QueryMessageResult result = this.messageStore.queryMessage(TOPIC, key, 32, 0, Long.MAX_VALUE);
+        try {
+            assertThat(result.getMessageBufferList()).hasSize(1);
+        } finally {
+            result.release();
+        }
+    }
+}
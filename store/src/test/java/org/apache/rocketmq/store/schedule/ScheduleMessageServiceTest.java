@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.schedule;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.GetMessageResult;
+import org.apache.rocketmq.store.GetMessageStatus;
+import org.apache.rocketmq.store.MessageArrivingListener;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.PutMessageStatus;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ScheduleMessageServiceTest {
+    private static final String TOPIC = "ScheduleTopic";
+    private static final int QUEUE_NUM = 2;
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-schedule";
+    private DefaultMessageStore messageStore;
+    private BrokerStatsManager brokerStatsManager;
+    private SocketAddress host;
+
+    @Before
+    public void init() throws Exception {
+        host = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setMessageDelayLevel("1s 2s");
+        messageStoreConfig.setScheduleDeliverBatchSize(8);
+        brokerStatsManager = new BrokerStatsManager("scheduleTest");
+        messageStore = new DefaultMessageStore(messageStoreConfig, brokerStatsManager, new MyMessageArrivingListener(), new BrokerConfig());
+        assertTrue(messageStore.load());
+        messageStore.start();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testBatchedRedelivery() throws Exception {
+        int total = 100;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < total; i++) {
+            MessageExtBrokerInner msg = new MessageExtBrokerInner();
+            msg.setTopic(TOPIC);
+            msg.setQueueId(i % QUEUE_NUM);
+            msg.setBody(String.valueOf(i).getBytes());
+            msg.setDelayTimeLevel(1 + i % 2);
+            msg.setReconsumeTimes(i % 3);
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            msg.setBornTimestamp(now + i);
+            msg.setBornHost(host);
+            msg.setStoreHost(host);
+            assertThat(messageStore.putMessage(msg).getPutMessageStatus()).isEqualTo(PutMessageStatus.PUT_OK);
+        }
+        assertThat(messageStore.getMaxOffsetInQueue(TOPIC, 0)).isEqualTo(0);
+
+        int received = 0;
+        long[] offsets = new long[QUEUE_NUM];
+        long deadline = System.currentTimeMillis() + 15000;
+        while (received < total && System.currentTimeMillis() < deadline) {
+            for (int queueId = 0; queueId < QUEUE_NUM; queueId++) {
+                GetMessageResult result = messageStore.getMessage("GROUP_A", TOPIC, queueId, offsets[queueId], 32, null);
+                if (result.getStatus() != GetMessageStatus.FOUND) {
+                    continue;
+                }
+                for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                    MessageExt msg = MessageDecoder.decode(byteBuffer, true, false);
+                    int i = Integer.parseInt(new String(msg.getBody()));
+                    // every record keeps its own fields, whether it was put back alone or in a batch
+                    assertThat(msg.getQueueId()).isEqualTo(i % QUEUE_NUM);
+                    assertThat(msg.getReconsumeTimes()).isEqualTo(i % 3);
+                    assertThat(msg.getBornTimestamp()).isEqualTo(now + i);
+                    assertThat(msg.getProperty(MessageConst.PROPERTY_REAL_TOPIC)).isEqualTo(TOPIC);
+                    assertThat(msg.getStoreTimestamp()).isGreaterThanOrEqualTo(now + (1 + i % 2) * 1000 - 1000);
+                    received++;
+                }
+                offsets[queueId] = result.getNextBeginOffset();
+                result.release();
+            }
+            Thread.sleep(100);
+        }
+        assertThat(received).isEqualTo(total);
+
+        // the offset is updated right after the put, give the level a moment to record it
+        AtomicLong lagNums = brokerStatsManager.getMomentStatsItemSetScheduleLagNums().getAndCreateStatsItem("1").getValue();
+        for (int i = 0; i < 20 && lagNums.get() != 0; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(lagNums.get()).isEqualTo(0);
+    }
+
+    private class MyMessageArrivingListener implements MessageArrivingListener {
+        @Override
+        public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+            byte[] filterBitMap, Map<String, String> properties) {
+        }
+    }
+}
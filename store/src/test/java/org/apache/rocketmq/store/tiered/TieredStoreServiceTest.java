@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.tiered;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.ConsumeQueue;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.GetMessageResult;
+import org.apache.rocketmq.store.GetMessageStatus;
+import org.apache.rocketmq.store.MessageArrivingListener;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TieredStoreServiceTest {
+    private static final String TOPIC = "TieredTopic";
+    private static final int QUEUE_TOTAL = 4;
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-tiered";
+    private DefaultMessageStore messageStore;
+
+    @Before
+    public void init() throws Exception {
+        messageStore = createMessageStore(LocalDirectoryBackend.class.getName());
+    }
+
+    private DefaultMessageStore createMessageStore(final String backend) throws Exception {
+        MessageStoreConfig messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(64 * 1024);
+        messageStoreConfig.setMapedFileSizeConsumeQueue(50 * ConsumeQueue.CQ_STORE_UNIT_SIZE);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setTieredStoreEnable(true);
+        messageStoreConfig.setTieredStoreBackend(backend);
+        messageStoreConfig.setTieredStorePath(storePath + File.separator + "tiered");
+        messageStoreConfig.setTieredOffloadInterval(100);
+        messageStoreConfig.setTieredReadAheadSize(4096);
+        messageStoreConfig.setTieredReadCacheChunkNum(4);
+        DefaultMessageStore store = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("tieredTest"), new MyMessageArrivingListener(), new BrokerConfig());
+        assertTrue(store.load());
+        store.start();
+        return store;
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testReadOffloadedMessages() throws Exception {
+        int totalMsgs = 2000;
+        putMessages(totalMsgs);
+
+        // wait for dispatch, flush and offload
+        Thread.sleep(2000);
+
+        assertThat(messageStore.getCommitLog().deleteExpiredFile(0, 0, 1000, true)).isGreaterThan(0);
+        for (ConcurrentMap<Integer, ConsumeQueue> maps : messageStore.getConsumeQueueTable().values()) {
+            for (ConsumeQueue logic : maps.values()) {
+                logic.deleteExpiredFile(messageStore.getMinPhyOffset());
+            }
+        }
+        assertThat(messageStore.getMinPhyOffset()).isGreaterThan(0);
+        assertThat(messageStore.getMinOffsetInQueue(TOPIC, 0)).isGreaterThan(0);
+
+        int found = 0;
+        for (int queueId = 0; queueId < QUEUE_TOTAL; queueId++) {
+            long maxOffset = messageStore.getMaxOffsetInQueue(TOPIC, queueId);
+            for (long offset = 0; offset < maxOffset; ) {
+                GetMessageResult result = messageStore.getMessage("GROUP_A", TOPIC, queueId, offset, 32, null);
+                assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+                for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                    MessageExt msg = MessageDecoder.decode(byteBuffer, true, false);
+                    assertThat(msg.getQueueId()).isEqualTo(queueId);
+                    assertThat(msg.getQueueOffset()).isEqualTo(offset);
+                    offset++;
+                    found++;
+                }
+                result.release();
+                assertThat(result.getNextBeginOffset()).isEqualTo(offset);
+            }
+        }
+        assertThat(found).isEqualTo(totalMsgs);
+    }
+
+    @Test
+    public void testDeleteOnlyOnDiskFullWhenBackendUnavailable() throws Exception {
+        messageStore.shutdown();
+        messageStore.destroy();
+        messageStore = createMessageStore(UnavailableBackend.class.getName());
+        putMessages(2000);
+
+        // wait for dispatch, flush and failed offloads
+        Thread.sleep(2000);
+
+        ConsumeQueue logic = messageStore.getConsumeQueueTable().get(TOPIC).get(0);
+        assertThat(messageStore.getTieredStoreService().getOffloadedOffset(
+            TieredStoreService.consumeQueuePrefix(TOPIC, 0), logic.getMappedFileQueue()))
+            .isEqualTo(TieredStoreService.OFFLOADED_OFFSET_UNKNOWN);
+        assertThat(messageStore.getCommitLog().deleteExpiredFile(0, 0, 1000, true)).isEqualTo(0);
+        assertThat(messageStore.getMinPhyOffset()).isEqualTo(0);
+
+        messageStore.getRunningFlags().getAndMakeDiskFull();
+        assertThat(messageStore.getCommitLog().deleteExpiredFile(0, 0, 1000, true)).isGreaterThan(0);
+        assertThat(messageStore.getMinPhyOffset()).isGreaterThan(0);
+    }
+
+    private void putMessages(final int totalMsgs) throws Exception {
+        SocketAddress host = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        for (int i = 0; i < totalMsgs; i++) {
+            MessageExtBrokerInner msg = new MessageExtBrokerInner();
+            msg.setTopic(TOPIC);
+            msg.setQueueId(i % QUEUE_TOTAL);
+            msg.setBody(("tiered message " + i).getBytes());
+            msg.setBornTimestamp(System.currentTimeMillis());
+            msg.setBornHost(host);
+            msg.setStoreHost(host);
+            messageStore.putMessage(msg);
+        }
+    }
+
+    /**
+     * Refuses every upload and can't list consume queues, as if the remote tier were down since the broker started
+     */
+    public static class UnavailableBackend extends LocalDirectoryBackend {
+        public UnavailableBackend(final MessageStoreConfig messageStoreConfig) {
+            super(messageStoreConfig);
+        }
+
+        @Override
+        public void upload(final String name, final File file) throws IOException {
+            throw new IOException("tiered store unavailable");
+        }
+
+        @Override
+        public Map<String, Long> list(final String prefix) throws IOException {
+            if (prefix.startsWith("consumequeue/")) {
+                throw new IOException("tiered store unavailable");
+            }
+            return super.list(prefix);
+        }
+    }
+
+    private class MyMessageArrivingListener implements MessageArrivingListener {
+        @Override
+        public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+            byte[] filterBitMap, Map<String, String> properties) {
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.rocketmq.store.timer;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.rocketmq.common.BrokerConfig;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.DefaultMessageStore;
+import org.apache.rocketmq.store.GetMessageResult;
+import org.apache.rocketmq.store.GetMessageStatus;
+import org.apache.rocketmq.store.MessageArrivingListener;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.apache.rocketmq.store.PutMessageStatus;
+import org.apache.rocketmq.store.config.MessageStoreConfig;
+import org.apache.rocketmq.store.stats.BrokerStatsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TimerMessageStoreTest {
+    private static final String TOPIC = "TimerTopic";
+
+    private final String storePath = System.getProperty("user.home") + File.separator + "unitteststore-timer";
+    private MessageStoreConfig messageStoreConfig;
+    private DefaultMessageStore messageStore;
+    private SocketAddress host;
+
+    @Before
+    public void init() throws Exception {
+        host = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        messageStoreConfig = new MessageStoreConfig();
+        messageStoreConfig.setStorePathRootDir(storePath);
+        messageStoreConfig.setStorePathCommitLog(storePath + File.separator + "commitlog");
+        messageStoreConfig.setMapedFileSizeCommitLog(1024 * 1024);
+        messageStoreConfig.setMaxHashSlotNum(10000);
+        messageStoreConfig.setMaxIndexNum(100 * 100);
+        messageStoreConfig.setTimerWheelEnable(true);
+        // Two seconds ahead at most, later messages go around the wheel
+        messageStoreConfig.setTimerWheelSlotNum(3);
+        messageStoreConfig.setMapedFileSizeTimerLog(TimerMessageStore.UNIT_SIZE * 16);
+        messageStoreConfig.setTimerFlushInterval(100);
+        messageStoreConfig.setTimerMaxDelaySec(3600);
+        messageStore = new DefaultMessageStore(messageStoreConfig, new BrokerStatsManager("timerTest"), new MyMessageArrivingListener(), new BrokerConfig());
+        assertTrue(messageStore.load());
+        messageStore.start();
+    }
+
+    @After
+    public void destroy() {
+        messageStore.shutdown();
+        messageStore.destroy();
+        UtilAll.deleteFile(new File(storePath));
+    }
+
+    @Test
+    public void testDeliverAtTime() throws Exception {
+        long now = System.currentTimeMillis();
+        Map<String, Long> deliverTimes = new HashMap<String, Long>();
+        for (int i = 0; i < 100; i++) {
+            long deliverTime = now + 1000 + (i % 4) * 1000;
+            assertThat(putMessage("timer message " + i, deliverTime)).isEqualTo(PutMessageStatus.PUT_OK);
+            deliverTimes.put("timer message " + i, deliverTime);
+        }
+        assertThat(putMessage("too far", now + 7200 * 1000L)).isEqualTo(PutMessageStatus.MESSAGE_ILLEGAL);
+        assertThat(messageStore.getMaxOffsetInQueue(TOPIC, 0)).isEqualTo(0);
+
+        long offset = 0;
+        long deadline = System.currentTimeMillis() + 15000;
+        while (offset < deliverTimes.size() && System.currentTimeMillis() < deadline) {
+            GetMessageResult result = messageStore.getMessage("GROUP_A", TOPIC, 0, offset, 32, null);
+            if (result.getStatus() != GetMessageStatus.FOUND) {
+                Thread.sleep(100);
+                continue;
+            }
+            for (ByteBuffer byteBuffer : result.getMessageBufferList()) {
+                MessageExt msg = MessageDecoder.decode(byteBuffer, true, false);
+                Long deliverTime = deliverTimes.get(new String(msg.getBody()));
+                assertThat(deliverTime).isNotNull();
+                assertThat(msg.getStoreTimestamp()).isGreaterThanOrEqualTo(deliverTime / 1000 * 1000);
+                assertThat(msg.getProperty(MessageConst.PROPERTY_TIMER_DELIVER_MS)).isNull();
+            }
+            offset = result.getNextBeginOffset();
+            result.release();
+        }
+        assertThat(offset).isEqualTo(deliverTimes.size());
+        assertThat(messageStore.getTimerMessageStore().getEnqueueOffset()).isEqualTo(deliverTimes.size());
+    }
+
+    @Test
+    public void testDropAfterMaxRetryTimes() throws Exception {
+        messageStoreConfig.setTimerDeliverMaxRetryTimes(2);
+        assertThat(putMessage("dropped", System.currentTimeMillis() + 1000)).isEqualTo(PutMessageStatus.PUT_OK);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (messageStore.getTimerMessageStore().getEnqueueOffset() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertThat(messageStore.getTimerMessageStore().getEnqueueOffset()).isEqualTo(1);
+
+        // put back fails at the deliver time and after waiting one and two seconds, then the message is dropped
+        messageStore.getRunningFlags().getAndMakeNotWriteable();
+        Thread.sleep(6000);
+        messageStore.getRunningFlags().getAndMakeWriteable();
+
+        assertThat(putMessage("delivered", System.currentTimeMillis() + 1000)).isEqualTo(PutMessageStatus.PUT_OK);
+        deadline = System.currentTimeMillis() + 10000;
+        while (messageStore.getMaxOffsetInQueue(TOPIC, 0) < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        GetMessageResult result = messageStore.getMessage("GROUP_A", TOPIC, 0, 0, 32, null);
+        assertThat(result.getStatus()).isEqualTo(GetMessageStatus.FOUND);
+        assertThat(result.getMessageCount()).isEqualTo(1);
+        MessageExt msg = MessageDecoder.decode(result.getMessageBufferList().get(0), true, false);
+        assertThat(new String(msg.getBody())).isEqualTo("delivered");
+        result.release();
+    }
+
+    private PutMessageStatus putMessage(String body, long deliverTime) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(TOPIC);
+        msg.setQueueId(0);
+        msg.setBody(body.getBytes());
+        msg.setDeliverTimeMs(deliverTime);
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setBornHost(host);
+        msg.setStoreHost(host);
+        return messageStore.putMessage(msg).getPutMessageStatus();
+    }
+
+    private class MyMessageArrivingListener implements MessageArrivingListener {
+        @Override
+        public void arriving(String topic, int queueId, long logicOffset, long tagsCode, long msgStoreTime,
+            byte[] filterBitMap, Map<String, String> properties) {
+        }
+    }
+}